@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.benchmark;
+
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.github.narh.cipher.CipherAESUtils;
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.command.AES128CBCCryptCommand;
+import com.github.narh.cipher.command.AES256CBCCryptCommand;
+import com.github.narh.cipher.command.AbstractAESCryptCommand;
+
+/**
+ * ベンチマーク共通の入力データ
+ *
+ * スループット(ops/s)にデータ長を掛けたものがバイト単位のスループットとなる。
+ * 1操作あたりの確保バイト数は -prof gc の gc.alloc.rate.norm で確認する。
+ *
+ * @author narita
+ *
+ */
+final class BenchmarkSupport {
+
+  static final byte[] PASSPHRASE = "benchmark passphrase".getBytes();
+  static final byte[] SALT = "saltsalt".getBytes();
+
+  /** 256MB のデータを扱うフォークのヒープ */
+  static final String HEAP = "-Xmx3g";
+  /** ログ出力を抑止する設定 */
+  static final String LOG_CONFIG = "-Dlog4j.configuration=log4j-benchmark.xml";
+
+  private BenchmarkSupport() {
+  }
+
+  static byte[] random(final int size) {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    return data;
+  }
+
+  static AbstractAESCryptCommand command(final CipherAlgorithm algorithm) {
+    return (CipherAlgorithm.AES128CBC == algorithm) ? new AES128CBCCryptCommand() : new AES256CBCCryptCommand();
+  }
+
+  static byte[] secretKey(final CipherAlgorithm algorithm) {
+    byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE, SALT);
+    byte[] key = new byte[(int) (algorithm.length / 8)];
+    System.arraycopy(secretKey, 0, key, 0, key.length);
+    return key;
+  }
+
+  static byte[] iv() {
+    return CipherAESUtils.generateIV(PASSPHRASE, SALT, CipherAESUtils.generateSecretKey(PASSPHRASE, SALT));
+  }
+
+  /**
+   * 書き込みを破棄する出力ストリーム
+   */
+  static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.command.AbstractAESCryptCommand;
+
+/**
+ * {@link com.github.narh.cipher.command.CryptCommand} の配列による暗号化・復号化
+ *
+ * @author narita
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkSupport.HEAP, BenchmarkSupport.LOG_CONFIG })
+public class CryptCommandBenchmark {
+
+  @Param({ "AES128CBC", "AES256CBC" })
+  public CipherAlgorithm algorithm;
+
+  @Param({ "64", "1024", "65536", "1048576", "16777216", "268435456" })
+  public int size;
+
+  private AbstractAESCryptCommand command;
+  private byte[] secretKey;
+  private byte[] iv;
+  private byte[] plain;
+  private byte[] encrypted;
+
+  @Setup
+  public void setUp() {
+    command = BenchmarkSupport.command(algorithm);
+    secretKey = BenchmarkSupport.secretKey(algorithm);
+    iv = BenchmarkSupport.iv();
+    plain = BenchmarkSupport.random(size);
+    CipherContext context = context(CipherOperationMode.ENCRYPT, plain);
+    command.encrypt(context);
+    encrypted = context.getContents();
+  }
+
+  @Benchmark
+  public byte[] encrypt() {
+    CipherContext context = context(CipherOperationMode.ENCRYPT, plain);
+    command.encrypt(context);
+    return context.getContents();
+  }
+
+  @Benchmark
+  public byte[] decrypt() {
+    CipherContext context = context(CipherOperationMode.DECRYPT, encrypted);
+    command.decrypt(context);
+    return context.getContents();
+  }
+
+  private CipherContext context(final CipherOperationMode mode, final byte[] origin) {
+    return CipherContext.builder()
+        .cryptMode(mode)
+        .passphrase(BenchmarkSupport.PASSPHRASE)
+        .salt(BenchmarkSupport.SALT)
+        .secretKey(secretKey)
+        .iv(iv)
+        .origin(origin)
+        .build();
+  }
+}
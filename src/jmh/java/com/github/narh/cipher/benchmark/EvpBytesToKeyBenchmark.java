@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.benchmark;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.narh.cipher.CipherAESUtils;
+import com.github.narh.cipher.DerivedKeyCache;
+import com.github.narh.cipher.EvpBytesToKey;
+
+/**
+ * {@link CipherAESUtils#openSSLEvpBytesToKey} と {@link EvpBytesToKey} による鍵導出
+ *
+ * cached=false の場合は導出済み鍵データのキャッシュを無効にして導出そのものを計測する。
+ *
+ * @author narita
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkSupport.LOG_CONFIG })
+public class EvpBytesToKeyBenchmark {
+
+  @Param({ "MD5", "SHA-1", "SHA-256" })
+  public String digest;
+
+  @Param({ "1", "1000" })
+  public int count;
+
+  @Param({ "false", "true" })
+  public boolean cached;
+
+  private MessageDigest messageDigest;
+  private DerivedKeyCache previous;
+  private byte[] key;
+  private byte[] iv;
+
+  @Setup
+  public void setUp() throws Exception {
+    messageDigest = MessageDigest.getInstance(digest);
+    previous = CipherAESUtils.getDerivedKeyCache();
+    CipherAESUtils.setDerivedKeyCache(cached ? new DerivedKeyCache(DerivedKeyCache.DEFAULT_MAX_ENTRIES
+        , DerivedKeyCache.DEFAULT_TTL_MILLIS) : null);
+    key = new byte[32];
+    iv = new byte[16];
+  }
+
+  @TearDown
+  public void tearDown() {
+    CipherAESUtils.setDerivedKeyCache(previous);
+  }
+
+  @Benchmark
+  public byte[] openSSLEvpBytesToKey() {
+    byte[] first = CipherAESUtils.openSSLEvpBytesToKey(BenchmarkSupport.PASSPHRASE, BenchmarkSupport.SALT
+        , messageDigest, count, null);
+    return CipherAESUtils.openSSLEvpBytesToKey(BenchmarkSupport.PASSPHRASE, BenchmarkSupport.SALT
+        , messageDigest, count, first);
+  }
+
+  @Benchmark
+  public byte[] deriveKeyAndIv() throws Exception {
+    EvpBytesToKey.derive(digest, count, BenchmarkSupport.PASSPHRASE, BenchmarkSupport.SALT, key, iv);
+    return iv;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.benchmark;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherStreamFactory;
+
+/**
+ * {@link CipherStreamFactory#getZipOutputStream(String, java.io.OutputStream)} による圧縮と暗号化
+ *
+ * pipelined が true の場合は圧縮と暗号化を別スレッドで行う。
+ *
+ * @author narita
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkSupport.HEAP, BenchmarkSupport.LOG_CONFIG })
+public class ZipArchiveBenchmark {
+
+  private static final int ENTRIES = 16;
+
+  @Param({ "false", "true" })
+  public boolean pipelined;
+
+  @Param({ "1048576", "16777216" })
+  public int size;
+
+  private CipherStreamFactory factory;
+  private byte[] plain;
+
+  @Setup
+  public void setUp() {
+    Properties prop = new Properties();
+    prop.setProperty("cipher.profiles", "zip");
+    prop.setProperty("cipher.profile.zip.algorithm", CipherAlgorithm.AES256CBC.name());
+    prop.setProperty("cipher.profile.zip.secretKey", Hex.encodeHexString(BenchmarkSupport.secretKey(CipherAlgorithm.AES256CBC)));
+    prop.setProperty("cipher.profile.zip.pipeline", String.valueOf(pipelined));
+    factory = new CipherStreamFactory(prop);
+    // 半分を圧縮可能なデータとする
+    plain = BenchmarkSupport.random(size);
+    for(int i = 0; i < plain.length; i += 2) plain[i] = 0;
+  }
+
+  @Benchmark
+  public long zip() throws Exception {
+    ZipOutputStream zip = factory.getZipOutputStream("zip", new BenchmarkSupport.NullOutputStream());
+    int length = plain.length / ENTRIES;
+    for(int i = 0; i < ENTRIES; i++) {
+      zip.putNextEntry(new ZipEntry("entry" + i));
+      zip.write(plain, i * length, length);
+      zip.closeEntry();
+    }
+    zip.close();
+    return plain.length;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.github.narh.cipher.sftp.SftpDecryptStreamer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SFTP サーバ上の暗号化アーカイブを復号化してダウンロードさせる
+ *
+ * 一時ファイルを作らず、SFTP から読み込んだ暗号文を復号化しながらレスポンスへ書き込む。
+ * {@link SftpDecryptStreamer} の Bean が定義されていない場合は 503 を、
+ * 参照できないファイル名(制御文字や引用符を含む名前等)の場合は 400 を返す。
+ *
+ * @author narita
+ *
+ */
+@Controller @Slf4j @RequestMapping("/archive")
+public class ArchiveDownloadController {
+
+  private static final String ENCRYPTED_SUFFIX = ".enc";
+
+  @Autowired(required = false)
+  private SftpDecryptStreamer streamer;
+
+  @RequestMapping(path="/download", method=RequestMethod.GET)
+  public void download(@RequestParam("name") final String name, final HttpServletResponse response)
+      throws IOException {
+    if(null == streamer) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    if(!SftpDecryptStreamer.isValidName(name) || -1 != name.indexOf('"')) {
+      if(log.isInfoEnabled()) log.info("bad archive name requested.");
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    String fileName = name.endsWith(ENCRYPTED_SUFFIX)
+        ? name.substring(0, name.length() - ENCRYPTED_SUFFIX.length()) : name;
+    response.setContentType("application/octet-stream");
+    response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+    try {
+      streamer.copyTo(name, response.getOutputStream());
+    }
+    catch (FileNotFoundException e) {
+      if(log.isInfoEnabled()) log.info("archive not found. {}", e.getLocalizedMessage());
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+  }
+}
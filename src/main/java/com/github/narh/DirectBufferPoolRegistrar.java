@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh;
+
+import javax.management.JMException;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import com.github.narh.cipher.DirectBufferPool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 共有の {@link DirectBufferPool} をアプリケーションの起動時に MBean として登録し、停止時に登録解除する
+ *
+ * 再デプロイ時に以前のクラスローダのプールが MBean サーバーに残らないよう、
+ * 登録はクラスの初期化ではなくアプリケーションコンテキストのライフサイクルで行う。
+ *
+ * @author narita
+ *
+ */
+@Component @Slf4j
+public class DirectBufferPoolRegistrar implements InitializingBean, DisposableBean {
+
+  /** 共有プールの登録名 */
+  public static final String NAME = "default";
+
+  private final DirectBufferPool pool;
+
+  public DirectBufferPoolRegistrar() {
+    this(DirectBufferPool.getDefault());
+  }
+
+  /**
+   * @param pool 登録するプール
+   */
+  public DirectBufferPoolRegistrar(final DirectBufferPool pool) {
+    this.pool = pool;
+  }
+
+  /* (非 Javadoc)
+   * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+   */
+  @Override
+  public void afterPropertiesSet() {
+    try {
+      pool.register(NAME);
+    }
+    catch (JMException e) {
+      if(log.isWarnEnabled()) log.warn("direct buffer pool is not registered. {}", e.getMessage());
+    }
+  }
+
+  /* (非 Javadoc)
+   * @see org.springframework.beans.factory.DisposableBean#destroy()
+   */
+  @Override
+  public void destroy() {
+    try {
+      pool.unregister();
+    }
+    catch (JMException e) {
+      if(log.isWarnEnabled()) log.warn("direct buffer pool is not unregistered. {}", e.getMessage());
+    }
+  }
+}
@@ -27,12 +27,14 @@
 
 package com.github.narh.cipher;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.lang.ArrayUtils;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -45,6 +47,26 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class CipherAESUtils {
 
+  private static final String DIGEST_MD5 = "MD5";
+  private static final byte[] PAYLOAD = {'S', 'a', 'l', 't', 'e', 'd', '_', '_'};
+
+  /** 導出済み鍵データのキャッシュ(null の場合はキャッシュしない) */
+  private static volatile DerivedKeyCache derivedKeyCache = DerivedKeyCache.getDefault();
+
+  /**
+   * 鍵導出で利用するキャッシュを設定する
+   * @param cache 導出済み鍵データのキャッシュ(null の場合はキャッシュしない)
+   */
+  public static void setDerivedKeyCache(final DerivedKeyCache cache) {
+    derivedKeyCache = cache;
+  }
+
+  /**
+   * @return 鍵導出で利用するキャッシュ
+   */
+  public static DerivedKeyCache getDerivedKeyCache() {
+    return derivedKeyCache;
+  }
 
   /**
    * OpenSSL によって暗号化されたデータファイルよりSALTを取得します。
@@ -60,6 +82,28 @@ public class CipherAESUtils {
     return salt;
   }
 
+  /**
+   * OpenSSL によって暗号化されたストリームの先頭16バイトのみを読み込み、SALTを取得します。
+   * 読み込み後のストリームは暗号文の先頭を指す。
+   *
+   * @param inputStream OpenSSL によって暗号化されたデータの入力元
+   * @return SALT データ
+   * @throws IOException ヘッダが読み込めない、または "Salted__" で始まらない場合
+   */
+  public static byte[] getSaltByOpenSSLCryptFiles(final InputStream inputStream) throws IOException {
+    byte[] header = new byte[PAYLOAD.length * 2];
+    int length = 0;
+    while(length < header.length) {
+      int read = inputStream.read(header, length, header.length - length);
+      if(-1 == read) throw new EOFException("header size error.");
+      length += read;
+    }
+    for(int i = 0; i < PAYLOAD.length; i++) {
+      if(PAYLOAD[i] != header[i]) throw new IOException("payload is not Salted__.");
+    }
+    return getSaltByOpenSSLCryptFiles(header);
+  }
+
   /**
    * OpenSSL 方式でパスフレーズとSALTから共通鍵を生成する
    * @param passphrase パスフレーズ
@@ -67,19 +111,17 @@ public class CipherAESUtils {
    * @return 共通鍵データ
    */
   public static byte[] generateSecretKey(final byte[] passphrase, final byte[] salt) {
-    byte[] secretKey = new byte[64];
-    byte[] secretKey1 = new byte[32];
-    byte[] secretKey2 = new byte[32];
-    if(null != salt) {
-      secretKey1 = DigestUtils.md5(ArrayUtils.addAll(passphrase, salt));
-      secretKey2 = DigestUtils.md5(ArrayUtils.addAll(secretKey1, ArrayUtils.addAll(passphrase, salt)));
-    }
-    else {
-      secretKey1 = DigestUtils.md5(passphrase);
-      secretKey2 = DigestUtils.md5(ArrayUtils.addAll(secretKey1, passphrase));
+    DerivedKeyCache cache = derivedKeyCache;
+    DerivedKeyCache.CacheKey cacheKey = null;
+    if(null != cache) {
+      cacheKey = cache.key("secretKey", DIGEST_MD5, 1, passphrase, salt);
+      byte[] cached = cache.get(cacheKey);
+      if(null != cached) return cached;
     }
-    secretKey = ArrayUtils.addAll(secretKey1, secretKey2);
+    byte[] secretKey = new byte[32];
+    EvpBytesToKey.derive(getMessageDigest(DIGEST_MD5), 1, passphrase, salt, secretKey, secretKey.length, null, 0);
     if(log.isTraceEnabled()) log.trace("SECRET KEY is {}.", Hex.encodeHexString(secretKey));
+    if(null != cache) cache.put(cacheKey, secretKey);
     return secretKey;
   }
 
@@ -91,33 +133,65 @@ public class CipherAESUtils {
    * @return 初期化ベクトルデータ
    */
   public static byte[] generateIV(final byte[] passphrase, final byte[] salt, final byte[] secretKey) {
-    byte[] iv = new byte[32];
-    byte[] secretKey2 = new byte[32];
-    secretKey2 = Arrays.copyOfRange(secretKey, 16, secretKey.length);
-    if(log.isTraceEnabled()) log.trace("SECRET KEY use {}.", Hex.encodeHexString(secretKey2));
-    iv = DigestUtils.md5(ArrayUtils.addAll(secretKey2, ArrayUtils.addAll(passphrase, salt)));
+    DerivedKeyCache cache = derivedKeyCache;
+    DerivedKeyCache.CacheKey cacheKey = null;
+    if(null != cache) {
+      cacheKey = cache.key("iv", DIGEST_MD5, 1, passphrase, salt, secretKey);
+      byte[] cached = cache.get(cacheKey);
+      if(null != cached) return cached;
+    }
+    byte[] iv = new byte[16];
+    try {
+      EvpBytesToKey.block(DIGEST_MD5, 1, secretKey, 16, secretKey.length - 16
+          , passphrase, salt, null == salt ? 0 : salt.length, iv, 0, iv.length);
+    }
+    catch (NoSuchAlgorithmException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
     if(log.isTraceEnabled()) log.trace("IV is {}.", Hex.encodeHexString(iv));
+    if(null != cache) cache.put(cacheKey, iv);
     return iv;
-   }
+  }
 
   /**
-   * OpenSSL のEVP_BytesToKeyをJavaのMessageDigest で実装する
+   * OpenSSL のEVP_BytesToKeyの1ブロック分をJavaのMessageDigest で実装する
+   * HASH^count(digest || passphrase || salt) を返す。
+   * 鍵データと初期化ベクトルをまとめて導出する場合は {@link EvpBytesToKey} を利用すること。
    *
    * @param passphrase パスフレーズ
    * @param salt SALT
-   * @param messageDigest 再起呼び出しするのでメッセージダイジェスト
+   * @param messageDigest メッセージダイジェスト
    * @param count ストレッチ回数
-   * @param digest 生成したダイジェスト(ストレッチ用）
+   * @param digest 直前に生成したダイジェスト(先頭ブロックの場合は null)
    * @return ストレッチしたダイジェスト
    */
   public static byte[] openSSLEvpBytesToKey(final byte[] passphrase, final byte[] salt, MessageDigest messageDigest, int count, byte[] digest) {
     if(null == passphrase || 0 == passphrase.length) throw new IllegalArgumentException("passphrase is empty.");
     if(null == salt || 8 > salt.length) throw new IllegalArgumentException("salt is empty or too short.");
-    messageDigest.reset();
-    if(null != digest) messageDigest.update(digest);
-    messageDigest.update(passphrase);
-    messageDigest.update(salt, 0, 8);
-    digest = messageDigest.digest();
-    return (1 < count) ? openSSLEvpBytesToKey(passphrase, salt, messageDigest, count--, digest) : digest;
+    DerivedKeyCache cache = derivedKeyCache;
+    DerivedKeyCache.CacheKey cacheKey = null;
+    if(null != cache) {
+      cacheKey = cache.key("evpBytesToKey", messageDigest.getAlgorithm(), count
+          , passphrase, salt, digest);
+      byte[] cached = cache.get(cacheKey);
+      if(null != cached) return cached;
+    }
+    if(1 > count) throw new IllegalArgumentException("count must be positive.");
+    byte[] result = new byte[messageDigest.getDigestLength()];
+    EvpBytesToKey.block(messageDigest, count, digest, 0, null == digest ? 0 : digest.length
+        , passphrase, salt, EvpBytesToKey.SALT_LENGTH, result, 0);
+    if(null != cache) cache.put(cacheKey, result);
+    return result;
+  }
+
+  private static MessageDigest getMessageDigest(final String digest) {
+    try {
+      return EvpBytesToKey.getMessageDigest(digest);
+    }
+    catch (NoSuchAlgorithmException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
   }
 }
@@ -34,9 +34,14 @@ package com.github.narh.cipher;
 public enum CipherAlgorithm {
     AES128CBC("AES/CBC/PKCS5PADDING", 128, true)
   , AES256CBC("AES/CBC/PKCS5PADDING", 256, true)
+  , AES128CTR("AES/CTR/NOPADDING", 128, true)
+  , AES256CTR("AES/CTR/NOPADDING", 256, true)
+  , AES128GCM("AES/GCM/NOPADDING", 128, false)      // セグメント単位の GCM 形式
+  , AES256GCM("AES/GCM/NOPADDING", 256, false)      // セグメント単位の GCM 形式
   ;
 
   public static final String SEPARATOR = "/";
+  public static final int BLOCK_SIZE = 16;
   public final String transration;
   public final long length;
   public final boolean useIV;
@@ -53,4 +58,29 @@ public enum CipherAlgorithm {
   public String algorithm() {
     return parseData[0];
   }
+
+  public String mode() {
+    return parseData[1];
+  }
+
+  public String padding() {
+    return parseData[2];
+  }
+
+  /**
+   * セグメント単位の GCM 形式({@link SegmentedGcmCipher})で処理するアルゴリズムか
+   * @return GCM モードの場合 true
+   */
+  public boolean isSegmented() {
+    return "GCM".equalsIgnoreCase(mode());
+  }
+
+  /**
+   * 暗号化後のデータ長を取得する
+   * @param length 平文のデータ長
+   * @return 暗号文のデータ長
+   */
+  public int getOutputSize(final int length) {
+    return "NOPADDING".equalsIgnoreCase(padding()) ? length : (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+  }
 }
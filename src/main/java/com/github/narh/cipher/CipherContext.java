@@ -46,6 +46,12 @@ public class CipherContext {
   private final byte[] secretKey;
   /** 初期化ベクトル */
   private final byte[] iv;
+  /** 鍵導出方式(鍵データ未設定の場合にパスフレーズとSALTから導出する) */
+  private final KeyDerivation keyDerivation;
+  /** 鍵導出のダイジェスト方式(null の場合は SHA-256) */
+  private final String digestAlgorithm;
+  /** 鍵導出の繰り返し回数(0 の場合は導出方式の既定値) */
+  private final int iterationCount;
   /** 対象データ */
   private byte[] origin;
   /** 暗号化・復号化後データ */
@@ -54,4 +60,23 @@ public class CipherContext {
   private String baseDirectoryName;
   /* 作成ファイル名 */
   private String writeFileName;
+
+  /**
+   * SALT のみ差し替えたコンテキストを作成する
+   * "Salted__" ヘッダの SALT で鍵を導出する場合に利用する。鍵データと鍵導出の設定は引き継ぐ。
+   * @param salt SALT
+   * @return 新しいコンテキスト
+   */
+  public CipherContext withSalt(final byte[] salt) {
+    return CipherContext.builder()
+        .cryptMode(cryptMode)
+        .passphrase(passphrase)
+        .salt(salt)
+        .secretKey(secretKey)
+        .iv(iv)
+        .keyDerivation(keyDerivation)
+        .digestAlgorithm(digestAlgorithm)
+        .iterationCount(iterationCount)
+        .build();
+  }
 }
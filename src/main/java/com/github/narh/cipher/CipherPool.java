@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 初期化済み {@link Cipher} のプール
+ *
+ * {@link CipherAlgorithm} と鍵のフィンガープリント単位で暗号器を保持し、
+ * 貸し出し時に初期化ベクトルのみ差し替えて再初期化する。
+ * 同じ鍵で再初期化した場合はプロバイダの検索と鍵スケジュールの展開が省略される。
+ * フィンガープリントはプールごとの乱数鍵による鍵データの HMAC-SHA256 とし、鍵データそのものは保持しない。
+ *
+ * 鍵の種類数は上限を超えると最も長く使われていないものから破棄し、
+ * 鍵ごとの待機数も上限を超えた分は返却時に破棄する。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class CipherPool {
+
+  public static final int DEFAULT_MAX_KEYS          = 64;
+  public static final int DEFAULT_MAX_IDLE_PER_KEY  = 8;
+
+  private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+  private static final int FINGERPRINT_KEY_LENGTH = 32;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static final CipherPool DEFAULT = new CipherPool(DEFAULT_MAX_KEYS, DEFAULT_MAX_IDLE_PER_KEY);
+
+  private final int maxKeys;
+  private final int maxIdlePerKey;
+  /** フィンガープリントの HMAC 鍵(プールごとの乱数) */
+  private final SecretKeySpec fingerprintKey;
+
+  /** スレッドごとのフィンガープリント用 HMAC */
+  private final ThreadLocal<Mac> fingerprint = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+        mac.init(fingerprintKey);
+        return mac;
+      }
+      catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+  };
+
+  /** 鍵ごとの待機中暗号器(アクセス順) */
+  private final LinkedHashMap<PoolKey, ArrayDeque<Cipher>> idle;
+  /** 貸し出し中の暗号器 */
+  private final Map<Cipher, PoolKey> borrowed = new WeakHashMap<Cipher, PoolKey>();
+
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * アプリケーション共有のプールを取得する
+   * @return 共有プール
+   */
+  public static CipherPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param maxKeys 保持する鍵の種類数の上限
+   * @param maxIdlePerKey 鍵ごとの待機数の上限
+   */
+  public CipherPool(final int maxKeys, final int maxIdlePerKey) {
+    if(1 > maxKeys || 1 > maxIdlePerKey) throw new IllegalArgumentException("pool size must be positive.");
+    this.maxKeys = maxKeys;
+    this.maxIdlePerKey = maxIdlePerKey;
+    byte[] secret = new byte[FINGERPRINT_KEY_LENGTH];
+    RANDOM.nextBytes(secret);
+    this.fingerprintKey = new SecretKeySpec(secret, FINGERPRINT_ALGORITHM);
+    Arrays.fill(secret, (byte) 0);
+    this.idle = new LinkedHashMap<PoolKey, ArrayDeque<Cipher>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<PoolKey, ArrayDeque<Cipher>> eldest) {
+        if(size() <= CipherPool.this.maxKeys) return false;
+        evictions.addAndGet(eldest.getValue().size());
+        return true;
+      }
+    };
+  }
+
+  /**
+   * 鍵データと初期化ベクトルから初期化済みの暗号器を借り出す
+   * @param algorithm 暗号アルゴリズム
+   * @param operation 暗号化モード
+   * @param secretKey 鍵データ
+   * @param iv 初期化ベクトル(利用しないアルゴリズムの場合は無視する)
+   * @return 初期化済みの暗号器
+   * @throws NoSuchAlgorithmException アルゴリズムがサポートされていない場合
+   * @throws NoSuchPaddingException パディングがサポートされていない場合
+   * @throws InvalidKeyException 鍵が不正な場合
+   * @throws InvalidAlgorithmParameterException 初期化ベクトルが不正な場合
+   */
+  public Cipher borrow(final CipherAlgorithm algorithm, final CipherOperationMode operation
+      , final byte[] secretKey, final byte[] iv) throws NoSuchAlgorithmException, NoSuchPaddingException
+      , InvalidKeyException, InvalidAlgorithmParameterException {
+    return borrow(algorithm, operation, new SecretKeySpec(secretKey, algorithm.algorithm())
+        , algorithm.useIV ? new IvParameterSpec(iv) : null);
+  }
+
+  /**
+   * 初期化済みの暗号器を借り出す
+   * @param algorithm 暗号アルゴリズム
+   * @param operation 暗号化モード
+   * @param key 共通鍵
+   * @param params 初期化ベクトル等のパラメータ(null の場合は鍵のみで初期化)
+   * @return 初期化済みの暗号器
+   * @throws NoSuchAlgorithmException アルゴリズムがサポートされていない場合
+   * @throws NoSuchPaddingException パディングがサポートされていない場合
+   * @throws InvalidKeyException 鍵が不正な場合
+   * @throws InvalidAlgorithmParameterException 初期化ベクトルが不正な場合
+   */
+  public Cipher borrow(final CipherAlgorithm algorithm, final CipherOperationMode operation
+      , final Key key, final AlgorithmParameterSpec params) throws NoSuchAlgorithmException, NoSuchPaddingException
+      , InvalidKeyException, InvalidAlgorithmParameterException {
+    return borrow(algorithm.transration, operation, key, params);
+  }
+
+  /**
+   * パディングを指定して初期化済みの暗号器を借り出す
+   * セグメントごとにパディングなしで並列処理する場合等、アルゴリズムの既定と異なるパディングで利用する。
+   * @param algorithm 暗号アルゴリズム
+   * @param padding パディング(例: "NoPadding")
+   * @param operation 暗号化モード
+   * @param key 共通鍵
+   * @param params 初期化ベクトル等のパラメータ(null の場合は鍵のみで初期化)
+   * @return 初期化済みの暗号器
+   * @throws NoSuchAlgorithmException アルゴリズムがサポートされていない場合
+   * @throws NoSuchPaddingException パディングがサポートされていない場合
+   * @throws InvalidKeyException 鍵が不正な場合
+   * @throws InvalidAlgorithmParameterException 初期化ベクトルが不正な場合
+   */
+  public Cipher borrow(final CipherAlgorithm algorithm, final String padding, final CipherOperationMode operation
+      , final Key key, final AlgorithmParameterSpec params) throws NoSuchAlgorithmException, NoSuchPaddingException
+      , InvalidKeyException, InvalidAlgorithmParameterException {
+    return borrow(algorithm.algorithm() + CipherAlgorithm.SEPARATOR + algorithm.mode()
+        + CipherAlgorithm.SEPARATOR + padding, operation, key, params);
+  }
+
+  private Cipher borrow(final String transformation, final CipherOperationMode operation
+      , final Key key, final AlgorithmParameterSpec params) throws NoSuchAlgorithmException, NoSuchPaddingException
+      , InvalidKeyException, InvalidAlgorithmParameterException {
+    PoolKey poolKey = new PoolKey(transformation, fingerprint(key));
+    Cipher cipher = null;
+    synchronized(this) {
+      ArrayDeque<Cipher> queue = idle.get(poolKey);
+      if(null != queue) cipher = queue.pollFirst();
+    }
+    if(null != cipher) {
+      hits.incrementAndGet();
+    }
+    else {
+      misses.incrementAndGet();
+      cipher = Cipher.getInstance(transformation);
+    }
+    if(null != params) cipher.init(operation.mode, key, params);
+    else cipher.init(operation.mode, key);
+    synchronized(this) {
+      borrowed.put(cipher, poolKey);
+    }
+    return cipher;
+  }
+
+  /**
+   * 借り出した暗号器を返却する
+   * プールで管理していない暗号器、二重の返却は無視する。
+   * @param cipher 暗号器
+   */
+  public synchronized void release(final Cipher cipher) {
+    if(null == cipher) return;
+    PoolKey poolKey = borrowed.remove(cipher);
+    if(null == poolKey) return;
+    ArrayDeque<Cipher> queue = idle.get(poolKey);
+    if(null == queue) {
+      queue = new ArrayDeque<Cipher>(maxIdlePerKey);
+      idle.put(poolKey, queue);
+    }
+    if(queue.size() < maxIdlePerKey) queue.offerFirst(cipher);
+    else evictions.incrementAndGet();
+  }
+
+  /**
+   * 待機中の暗号器をすべて破棄する
+   */
+  public synchronized void clear() {
+    for(Iterator<ArrayDeque<Cipher>> i = idle.values().iterator(); i.hasNext();) {
+      evictions.addAndGet(i.next().size());
+      i.remove();
+    }
+    if(log.isDebugEnabled()) log.debug("cipher pool cleared. {}", this);
+  }
+
+  /**
+   * @return 待機中の暗号器の数
+   */
+  public synchronized int getIdleCount() {
+    int count = 0;
+    for(ArrayDeque<Cipher> queue : idle.values()) count += queue.size();
+    return count;
+  }
+
+  /**
+   * @return 保持している鍵の種類数
+   */
+  public synchronized int getKeyCount() {
+    return idle.size();
+  }
+
+  /**
+   * @return 待機中の暗号器を再利用できた回数
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return 暗号器を新規に生成した回数
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return 上限超過により破棄した暗号器の数
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return ヒット率(貸し出し実績がない場合は 0)
+   */
+  public double getHitRate() {
+    long total = hits.get() + misses.get();
+    return (0 == total) ? 0d : (double) hits.get() / total;
+  }
+
+  /**
+   * 鍵データの HMAC を取得する(複製された鍵データはゼロで上書きする)
+   */
+  private byte[] fingerprint(final Key key) {
+    byte[] encoded = key.getEncoded();
+    try {
+      Mac mac = fingerprint.get();
+      mac.reset();
+      return mac.doFinal(encoded);
+    }
+    finally {
+      if(null != encoded) Arrays.fill(encoded, (byte) 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CipherPool(maxKeys=" + maxKeys + ", maxIdlePerKey=" + maxIdlePerKey
+        + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ")";
+  }
+
+  /**
+   * 変換名と鍵のフィンガープリントによるプールのキー
+   */
+  private static final class PoolKey {
+    private final String transformation;
+    private final byte[] fingerprint;
+    private final int hash;
+
+    PoolKey(final String transformation, final byte[] fingerprint) {
+      this.transformation = transformation.toUpperCase();
+      this.fingerprint = fingerprint;
+      this.hash = 31 * this.transformation.hashCode() + Arrays.hashCode(fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(this == obj) return true;
+      if(!(obj instanceof PoolKey)) return false;
+      PoolKey other = (PoolKey) obj;
+      return transformation.equals(other.transformation) && MessageDigest.isEqual(fingerprint, other.fingerprint);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher;
+
+import java.security.Key;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * {@link CipherStreamFactory} が起動時に解決する暗号プロファイル
+ *
+ * アルゴリズムの検証、鍵データの導出、プロバイダの解決を済ませた状態で保持し、
+ * ストリームの作成時には参照のみ行う。生成後は変更されないため複数スレッドから共有できる。
+ * 初期化ベクトルはストリームごとに生成するため保持しない。
+ *
+ * @author narita
+ *
+ */
+@Getter
+public final class CipherProfile {
+
+  /** プロファイル名 */
+  private final String name;
+  /** 暗号アルゴリズム */
+  private final CipherAlgorithm algorithm;
+  /** 暗号化・復号化の処理単位となるバッファ長 */
+  private final int bufferSize;
+  /** セグメント単位の GCM 形式の平文セグメント長 */
+  private final int segmentSize;
+  /** ZIP 圧縮レベル({@link java.util.zip.Deflater} のレベル) */
+  private final int compressionLevel;
+  /** ZIP の圧縮と暗号化を別スレッドで行うか */
+  private final boolean pipelined;
+  /** 圧縮の効果がない ZIP エントリを無圧縮で格納するか */
+  private final boolean detectIncompressible;
+  /** 共通鍵 */
+  @Getter(AccessLevel.NONE)
+  private final Key key;
+
+  CipherProfile(final String name, final CipherAlgorithm algorithm, final int bufferSize, final int segmentSize
+      , final int compressionLevel, final boolean pipelined, final boolean detectIncompressible, final Key key) {
+    this.name = name;
+    this.algorithm = algorithm;
+    this.bufferSize = bufferSize;
+    this.segmentSize = segmentSize;
+    this.compressionLevel = compressionLevel;
+    this.pipelined = pipelined;
+    this.detectIncompressible = detectIncompressible;
+    this.key = key;
+  }
+
+  Key key() {
+    return key;
+  }
+
+  @Override
+  public String toString() {
+    return "CipherProfile(name=" + name + ", algorithm=" + algorithm + ", bufferSize=" + bufferSize
+        + ", segmentSize=" + segmentSize + ", compressionLevel=" + compressionLevel + ", pipelined=" + pipelined
+        + ", detectIncompressible=" + detectIncompressible + ")";
+  }
+}
@@ -25,107 +25,396 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+
 package com.github.narh.cipher;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.zip.Deflater;
 import java.util.zip.ZipOutputStream;
 
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import com.github.narh.cipher.archive.AdaptiveZipOutputStream;
+import com.github.narh.cipher.archive.PipelinedOutputStream;
+import com.github.narh.cipher.archive.ZipEntryExtractor;
+import com.github.narh.cipher.stream.BufferedCipherInputStream;
+import com.github.narh.cipher.stream.IvPrefixedCipherInputStream;
+import com.github.narh.cipher.stream.IvPrefixedCipherOutputStream;
+import com.github.narh.cipher.stream.SeekableCbcDecryptChannel;
+import com.github.narh.cipher.stream.SegmentedGcmInputStream;
+import com.github.narh.cipher.stream.SegmentedGcmOutputStream;
 
-import com.github.narh.cipher.stream.CipherInputStreamBuilder;
-import com.github.narh.cipher.stream.CipherOutputStreamBuilder;
+import lombok.extern.slf4j.Slf4j;
 
 /**
+ * 名前付きの暗号プロファイルから暗号化・復号化ストリームを作成するファクトリ
+ *
+ * プロファイルは生成時にプロパティから一度だけ読み込み、アルゴリズムの検証、
+ * 鍵データの導出、プロバイダの解決を済ませた {@link CipherProfile} として保持する。
+ * ストリームの作成時には解析や検証を行わず、{@link CipherPool} から暗号器を借り出すのみとする。
+ * 生成後は状態を変更しないため、Spring のシングルトンとして複数スレッドから利用できる。
+ *
+ * プロファイルの鍵は全てのストリームで共有するため、初期化ベクトルをプロファイルに固定すると
+ * CTR モードでは鍵ストリームが再利用され、CBC モードでは平文の先頭の一致が暗号文から判別できる。
+ * このため CBC・CTR モードのストリームは暗号化ごとに乱数の初期化ベクトルを生成して暗号文の先頭ブロックに書き込み、
+ * 復号化時は先頭ブロックから読み込む({@link IvPrefixedCipherInputStream})。
+ * GCM モードのプロファイルはセグメント単位の GCM 形式のヘッダにストリームごとの nonce を書き込む。
+ *
+ * <pre>
+ * cipher.profiles=default,archive
+ * cipher.defaultProfile=default                      (省略時は先頭のプロファイル)
+ * cipher.profile.default.algorithm=AES256CBC
+ * cipher.profile.default.secretKey=(16進数)
+ * cipher.profile.archive.algorithm=AES256GCM
+ * cipher.profile.archive.passphrase=...              (または passphrase.env に環境変数名)
+ * cipher.profile.archive.salt=(16進数)
+ * cipher.profile.archive.keyDerivation=PBKDF2        (省略時は EVP_BYTES_TO_KEY)
+ * cipher.profile.archive.digest=SHA-256
+ * cipher.profile.archive.iterationCount=10000
+ * cipher.profile.archive.bufferSize=65536
+ * cipher.profile.archive.segmentSize=65536
+ * cipher.profile.archive.compressionLevel=6
+ * cipher.profile.archive.pipeline=true               (ZIP の圧縮と暗号化を別スレッドで行う)
+ * cipher.profile.archive.detectIncompressible=true   (圧縮の効果がないエントリを無圧縮で格納する、既定値 true)
+ * </pre>
+ *
  * @author narita
  *
  */
+@Slf4j
 public class CipherStreamFactory {
 
-  private final Properties prop;
+  public static final String PROFILES_KEY       = "cipher.profiles";
+  public static final String DEFAULT_PROFILE_KEY = "cipher.defaultProfile";
+  public static final String PROFILE_PREFIX     = "cipher.profile.";
+
+  private static final Charset PASSPHRASE_CHARSET = Charset.forName("UTF-8");
+
+  private final Map<String, CipherProfile> profiles;
+  private final CipherProfile defaultProfile;
+  private final CipherPool cipherPool;
+  private final KeyDerivationService keyDerivationService;
 
+  /**
+   * @param prop プロファイルを定義したプロパティ
+   */
   public CipherStreamFactory(final Properties prop) {
-    this.prop = prop;
+    this(prop, CipherPool.getDefault(), KeyDerivationService.getDefault());
   }
 
-  public CipherInputStream getEncryptInputStream(InputStream inputStream)
-    throws Exception {
-    try {
-      return new CipherInputStreamBuilder().build();
-    } catch (InvalidKeyException e) {
-      throw e;
-    } catch (NoSuchAlgorithmException e) {
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      throw e;
+  /**
+   * @param prop プロファイルを定義したプロパティ
+   * @param cipherPool 暗号器のプール
+   * @param keyDerivationService パスフレーズから鍵データを導出するサービス
+   */
+  public CipherStreamFactory(final Properties prop, final CipherPool cipherPool
+      , final KeyDerivationService keyDerivationService) {
+    if(null == prop || null == cipherPool || null == keyDerivationService)
+      throw new IllegalArgumentException("bad factory parameter.");
+    this.cipherPool = cipherPool;
+    this.keyDerivationService = keyDerivationService;
+    String names = prop.getProperty(PROFILES_KEY, "").trim();
+    if(names.isEmpty()) throw new IllegalArgumentException(PROFILES_KEY + " is not defined.");
+    Map<String, CipherProfile> map = new LinkedHashMap<String, CipherProfile>();
+    for(String name : names.split(",")) {
+      name = name.trim();
+      if(name.isEmpty()) continue;
+      if(map.containsKey(name)) throw new IllegalArgumentException("profile " + name + " is duplicated.");
+      map.put(name, resolve(name, prop, keyDerivationService));
     }
+    this.profiles = Collections.unmodifiableMap(map);
+    String defaultName = prop.getProperty(DEFAULT_PROFILE_KEY, map.keySet().iterator().next()).trim();
+    this.defaultProfile = getProfile(defaultName);
+    if(log.isInfoEnabled()) log.info("cipher profiles {} loaded. default is {}.", map.keySet(), defaultName);
+  }
+
+  /**
+   * プロファイル名の一覧を取得する
+   * @return プロファイル名(定義順)
+   */
+  public Set<String> getProfileNames() {
+    return profiles.keySet();
+  }
+
+  /**
+   * プロファイルを取得する
+   * @param name プロファイル名
+   * @return プロファイル
+   */
+  public CipherProfile getProfile(final String name) {
+    CipherProfile profile = profiles.get(name);
+    if(null == profile) throw new IllegalArgumentException("profile " + name + " is not defined.");
+    return profile;
+  }
+
+  /**
+   * 既定のプロファイルを取得する
+   * @return プロファイル
+   */
+  public CipherProfile getDefaultProfile() {
+    return defaultProfile;
+  }
+
+  public CipherInputStream getEncryptInputStream(final InputStream inputStream) {
+    return getInputStream(defaultProfile, CipherOperationMode.ENCRYPT, inputStream);
   }
 
-  public CipherInputStream getDecryptInputStream(InputStream inputStream)
-    throws Exception {
+  public CipherInputStream getEncryptInputStream(final String profile, final InputStream inputStream) {
+    return getInputStream(getProfile(profile), CipherOperationMode.ENCRYPT, inputStream);
+  }
+
+  public CipherInputStream getDecryptInputStream(final InputStream inputStream) {
+    return getInputStream(defaultProfile, CipherOperationMode.DECRYPT, inputStream);
+  }
+
+  public CipherInputStream getDecryptInputStream(final String profile, final InputStream inputStream) {
+    return getInputStream(getProfile(profile), CipherOperationMode.DECRYPT, inputStream);
+  }
+
+  public CipherOutputStream getEncryptOutputStream(final OutputStream outputStream) {
+    return getOutputStream(defaultProfile, CipherOperationMode.ENCRYPT, outputStream);
+  }
+
+  public CipherOutputStream getEncryptOutputStream(final String profile, final OutputStream outputStream) {
+    return getOutputStream(getProfile(profile), CipherOperationMode.ENCRYPT, outputStream);
+  }
+
+  public CipherOutputStream getDecryptOutputStream(final OutputStream outputStream) {
+    return getOutputStream(defaultProfile, CipherOperationMode.DECRYPT, outputStream);
+  }
+
+  public CipherOutputStream getDecryptOutputStream(final String profile, final OutputStream outputStream) {
+    return getOutputStream(getProfile(profile), CipherOperationMode.DECRYPT, outputStream);
+  }
+
+  public ZipOutputStream getZipOutputStream(final OutputStream outputStream) {
+    return getZipOutputStream(defaultProfile, outputStream);
+  }
+
+  /**
+   * 暗号化して出力する ZIP ストリームを作成する(圧縮レベルはプロファイルの値)
+   * 圧縮の効果の判定を有効にしたプロファイルでは、圧縮済みのデータを無圧縮で格納する。
+   * パイプラインを有効にしたプロファイルでは、圧縮を呼び出し元のスレッドで、暗号化を転送スレッドで行う。
+   * @param profile プロファイル名
+   * @param outputStream 出力先
+   * @return ZIP ストリーム
+   */
+  public ZipOutputStream getZipOutputStream(final String profile, final OutputStream outputStream) {
+    return getZipOutputStream(getProfile(profile), outputStream);
+  }
+
+  /**
+   * アーカイブの書き込み先となる暗号化ストリームを作成する
+   * パイプラインを有効にしたプロファイルでは、暗号化を転送スレッドで行うストリームとする。
+   * @param profile プロファイル名
+   * @param outputStream 出力先
+   * @return 暗号化ストリーム
+   */
+  public OutputStream getArchiveOutputStream(final String profile, final OutputStream outputStream) {
+    return getArchiveOutputStream(getProfile(profile), outputStream);
+  }
+
+  /**
+   * 暗号化された ZIP アーカイブから個別のエントリを展開する抽出器を作成する
+   * アーカイブ末尾の中央ディレクトリのみを復号化して読み込む。CBC モードのプロファイルのみ利用できる。
+   * 初期化ベクトルはアーカイブの先頭ブロックから読み込む。
+   * @param profile プロファイル名
+   * @param archive {@link #getZipOutputStream(String, OutputStream)} で作成したアーカイブのファイル
+   * @return 抽出器
+   * @throws IOException 入出力例外、またはアーカイブの形式が不正な場合
+   */
+  public ZipEntryExtractor getZipEntryExtractor(final String profile, final File archive) throws IOException {
+    CipherProfile cipherProfile = getProfile(profile);
+    if(!"CBC".equalsIgnoreCase(cipherProfile.getAlgorithm().mode()))
+      throw new IllegalArgumentException(profile + " is not a CBC profile.");
+    CipherContext context = CipherContext.builder()
+        .secretKey(cipherProfile.key().getEncoded())
+        .build();
+    return new ZipEntryExtractor(new SeekableCbcDecryptChannel(archive, cipherProfile.getAlgorithm(), context
+        , cipherProfile.getBufferSize(), keyDerivationService));
+  }
+
+  private OutputStream getArchiveOutputStream(final CipherProfile profile, final OutputStream outputStream) {
+    OutputStream encrypted = getOutputStream(profile, CipherOperationMode.ENCRYPT, outputStream);
+    return profile.isPipelined() ? new PipelinedOutputStream(encrypted) : encrypted;
+  }
+
+  /**
+   * アーカイブの書き込み先からプロファイルの圧縮レベルと格納方式の判定で ZIP ストリームを作成する
+   * @param profile プロファイル名
+   * @param archiveOutputStream {@link #getArchiveOutputStream(String, OutputStream)} で作成した出力先
+   * @return ZIP ストリーム
+   */
+  public ZipOutputStream newZipOutputStream(final String profile, final OutputStream archiveOutputStream) {
+    return newZipOutputStream(getProfile(profile), archiveOutputStream);
+  }
+
+  private ZipOutputStream getZipOutputStream(final CipherProfile profile, final OutputStream outputStream) {
+    return newZipOutputStream(profile, getArchiveOutputStream(profile, outputStream));
+  }
+
+  private ZipOutputStream newZipOutputStream(final CipherProfile profile, final OutputStream archiveOutputStream) {
+    ZipOutputStream zipOutputStream = profile.isDetectIncompressible()
+        ? new AdaptiveZipOutputStream(archiveOutputStream) : new ZipOutputStream(archiveOutputStream);
+    zipOutputStream.setLevel(profile.getCompressionLevel());
+    return zipOutputStream;
+  }
+
+  private CipherInputStream getInputStream(final CipherProfile profile, final CipherOperationMode operation
+      , final InputStream inputStream) {
+    if(null == inputStream) throw new IllegalArgumentException("input stream is null.");
+    if(profile.getAlgorithm().isSegmented()) {
+      return new SegmentedGcmInputStream(inputStream, operation, profile.key().getEncoded()
+          , profile.getSegmentSize());
+    }
+    return new IvPrefixedCipherInputStream(inputStream, profile.getAlgorithm(), operation, profile.key()
+        , profile.getBufferSize(), cipherPool, DirectBufferPool.getDefault());
+  }
+
+  private CipherOutputStream getOutputStream(final CipherProfile profile, final CipherOperationMode operation
+      , final OutputStream outputStream) {
+    if(null == outputStream) throw new IllegalArgumentException("output stream is null.");
+    if(profile.getAlgorithm().isSegmented()) {
+      return new SegmentedGcmOutputStream(outputStream, operation, profile.key().getEncoded()
+          , profile.getSegmentSize());
+    }
+    return new IvPrefixedCipherOutputStream(outputStream, profile.getAlgorithm(), operation, profile.key()
+        , profile.getBufferSize(), cipherPool, DirectBufferPool.getDefault());
+  }
+
+  /**
+   * プロパティからプロファイルを読み込み、鍵データとプロバイダを解決する
+   */
+  private CipherProfile resolve(final String name, final Properties prop
+      , final KeyDerivationService keyDerivationService) {
+    String prefix = PROFILE_PREFIX + name + ".";
+    CipherAlgorithm algorithm;
     try {
-      return new CipherInputStreamBuilder().build();
-    } catch (InvalidKeyException e) {
-      throw e;
-    } catch (NoSuchAlgorithmException e) {
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      throw e;
+      algorithm = CipherAlgorithm.valueOf(required(prop, prefix + "algorithm").toUpperCase());
+    }
+    catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(prefix + "algorithm is not supported.", e);
+    }
+    int bufferSize = positive(prop, prefix + "bufferSize", BufferedCipherInputStream.DEFAULT_BUFFER_SIZE);
+    int segmentSize = positive(prop, prefix + "segmentSize", SegmentedGcmCipher.DEFAULT_SEGMENT_SIZE);
+    if(SegmentedGcmCipher.MAX_SEGMENT_SIZE < segmentSize)
+      throw new IllegalArgumentException(prefix + "segmentSize is too large.");
+    int compressionLevel = integer(prop, prefix + "compressionLevel", Deflater.DEFAULT_COMPRESSION);
+    if(Deflater.DEFAULT_COMPRESSION > compressionLevel || Deflater.BEST_COMPRESSION < compressionLevel)
+      throw new IllegalArgumentException(prefix + "compressionLevel is out of range.");
+
+    boolean pipelined = Boolean.parseBoolean(prop.getProperty(prefix + "pipeline", "false").trim());
+    boolean detectIncompressible
+      = Boolean.parseBoolean(prop.getProperty(prefix + "detectIncompressible", "true").trim());
+
+    // 初期化ベクトルはストリームごとに生成するため、固定値の設定は受け付けない
+    if(null != prop.getProperty(prefix + "iv"))
+      throw new IllegalArgumentException(prefix + "iv is not supported. the iv is generated per stream.");
+    CipherContext context = keyDerivationService.resolve(keyContext(prefix, prop), algorithm);
+    int keyLength = (int) (algorithm.length / 8);
+    if(null == context.getSecretKey() || keyLength > context.getSecretKey().length)
+      throw new IllegalArgumentException(prefix + "secretKey is empty or too short.");
+
+    SecretKeySpec key = new SecretKeySpec(Arrays.copyOf(context.getSecretKey(), keyLength), algorithm.algorithm());
+    CipherProfile profile = new CipherProfile(name, algorithm, bufferSize, segmentSize, compressionLevel
+        , pipelined, detectIncompressible, key);
+    if(!algorithm.isSegmented()) warmUp(profile);
+    if(log.isDebugEnabled()) log.debug("{} resolved.", profile);
+    return profile;
+  }
+
+  /**
+   * プロバイダの解決と鍵の検証を済ませ、初期化済みの暗号器をプールしておく
+   */
+  private void warmUp(final CipherProfile profile) {
+    for(CipherOperationMode operation : CipherOperationMode.values()) {
+      try {
+        cipherPool.release(cipherPool.borrow(profile.getAlgorithm(), operation, profile.key()
+            , new IvParameterSpec(new byte[CipherAlgorithm.BLOCK_SIZE])));
+      }
+      catch (GeneralSecurityException e) {
+        if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+        throw new IllegalArgumentException(e);
+      }
     }
   }
 
-  public CipherOutputStream getEncryptOutputStream(OutputStream outputStream)
-    throws Exception {
+  private CipherContext keyContext(final String prefix, final Properties prop) {
+    String secretKey = prop.getProperty(prefix + "secretKey");
+    if(null != secretKey) {
+      return CipherContext.builder()
+          .secretKey(hex(prefix + "secretKey", secretKey))
+          .build();
+    }
+    String passphrase = prop.getProperty(prefix + "passphrase");
+    String env = prop.getProperty(prefix + "passphrase.env");
+    if(null == passphrase && null != env) passphrase = System.getenv(env.trim());
+    if(null == passphrase || passphrase.isEmpty())
+      throw new IllegalArgumentException(prefix + "secretKey or passphrase is not defined.");
+    KeyDerivation keyDerivation;
     try {
-      return new CipherOutputStreamBuilder().build();
-    } catch (InvalidKeyException e) {
-      throw e;
-    } catch (NoSuchAlgorithmException e) {
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      throw e;
+      keyDerivation = KeyDerivation.valueOf(
+          prop.getProperty(prefix + "keyDerivation", KeyDerivation.EVP_BYTES_TO_KEY.name()).trim().toUpperCase());
+    }
+    catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(prefix + "keyDerivation is not supported.", e);
     }
+    return CipherContext.builder()
+        .passphrase(passphrase.getBytes(PASSPHRASE_CHARSET))
+        .salt(hex(prefix + "salt", required(prop, prefix + "salt")))
+        .keyDerivation(keyDerivation)
+        .digestAlgorithm(prop.getProperty(prefix + "digest", KeyDerivation.DEFAULT_DIGEST).trim())
+        .iterationCount(integer(prop, prefix + "iterationCount", 0))
+        .build();
+  }
+
+  private static String required(final Properties prop, final String key) {
+    String value = prop.getProperty(key);
+    if(null == value || value.trim().isEmpty()) throw new IllegalArgumentException(key + " is not defined.");
+    return value.trim();
   }
 
-  public CipherOutputStream getDecryptOutputStream(OutputStream outputStream)
-    throws Exception {
+  private static int integer(final Properties prop, final String key, final int defaultValue) {
+    String value = prop.getProperty(key);
+    if(null == value) return defaultValue;
     try {
-      return new CipherOutputStreamBuilder().build();
-    } catch (InvalidKeyException e) {
-      throw e;
-    } catch (NoSuchAlgorithmException e) {
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      throw e;
+      return Integer.parseInt(value.trim());
     }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException(key + " is not a number.", e);
+    }
+  }
+
+  private static int positive(final Properties prop, final String key, final int defaultValue) {
+    int value = integer(prop, key, defaultValue);
+    if(1 > value) throw new IllegalArgumentException(key + " must be positive.");
+    return value;
   }
 
-  public ZipOutputStream getZipOutputStream(OutputStream outputStream)
-    throws Exception {
+  private static byte[] hex(final String key, final String value) {
+    if(null == value) return null;
     try {
-      return new ZipOutputStream(new CipherOutputStreamBuilder().build());
-    } catch (InvalidKeyException e) {
-      throw e;
-    } catch (NoSuchAlgorithmException e) {
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      throw e;
+      return Hex.decodeHex(value.trim().toCharArray());
+    }
+    catch (DecoderException e) {
+      throw new IllegalArgumentException(key + " is not a hex string.", e);
     }
   }
 }
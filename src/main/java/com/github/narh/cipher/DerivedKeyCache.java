@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * パスフレーズとSALTから導出した鍵データのキャッシュ
+ *
+ * パスフレーズ、SALT、ダイジェスト方式、ストレッチ回数の HMAC-SHA256 をキーとして
+ * 導出済みの鍵データを保持する。パスフレーズそのものは保持しない。
+ * HMAC の鍵はインスタンスごとに乱数で生成するため、メモリ上のキーから
+ * パスフレーズの候補を総当たりで照合することはできない。
+ *
+ * 件数の上限を超えると最も長く使われていないものから破棄し、
+ * 有効期限を過ぎたものは参照時に破棄する。破棄した鍵データはゼロで上書きする。
+ * 呼び出し元との間では常に複製を受け渡すため、呼び出し元が保持する配列には影響しない。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class DerivedKeyCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 256;
+  public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+  private static final int FINGERPRINT_KEY_LENGTH = 32;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static final DerivedKeyCache DEFAULT = new DerivedKeyCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  /** フィンガープリントの HMAC 鍵(インスタンスごとの乱数) */
+  private final SecretKeySpec fingerprintKey;
+
+  /** スレッドごとのフィンガープリント用 HMAC */
+  private final ThreadLocal<Mac> fingerprint = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+        mac.init(fingerprintKey);
+        return mac;
+      }
+      catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+  };
+
+  /** 導出済み鍵データ(アクセス順) */
+  private final LinkedHashMap<CacheKey, Entry> entries;
+
+  private final AtomicLong hits        = new AtomicLong();
+  private final AtomicLong misses      = new AtomicLong();
+  private final AtomicLong evictions   = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  /**
+   * アプリケーション共有のキャッシュを取得する
+   * @return 共有キャッシュ
+   */
+  public static DerivedKeyCache getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param maxEntries 保持する件数の上限
+   * @param ttlMillis 有効期限(ミリ秒)
+   */
+  public DerivedKeyCache(final int maxEntries, final long ttlMillis) {
+    if(1 > maxEntries) throw new IllegalArgumentException("max entries must be positive.");
+    if(1 > ttlMillis) throw new IllegalArgumentException("ttl must be positive.");
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    byte[] secret = new byte[FINGERPRINT_KEY_LENGTH];
+    RANDOM.nextBytes(secret);
+    this.fingerprintKey = new SecretKeySpec(secret, FINGERPRINT_ALGORITHM);
+    Arrays.fill(secret, (byte) 0);
+    this.entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+        if(size() <= DerivedKeyCache.this.maxEntries) return false;
+        eldest.getValue().destroy();
+        evictions.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * 導出条件からキャッシュのキーを生成する
+   * キーはこのインスタンスの HMAC 鍵によるため、他のインスタンスのキーとは一致しない。
+   * @param label 導出データの種別(鍵、初期化ベクトル等)
+   * @param digest ダイジェスト方式
+   * @param count ストレッチ回数
+   * @param parts パスフレーズ、SALT 等の導出元データ(null 可)
+   * @return キャッシュのキー
+   */
+  public CacheKey key(final String label, final String digest, final int count, final byte[]... parts) {
+    Mac mac = fingerprint.get();
+    mac.reset();
+    update(mac, null == label ? null : label.getBytes());
+    update(mac, null == digest ? null : digest.getBytes());
+    updateInt(mac, count);
+    for(byte[] part : parts) update(mac, part);
+    return new CacheKey(mac.doFinal());
+  }
+
+  /**
+   * 導出済みの鍵データを取得する
+   * @param key キャッシュのキー
+   * @return 鍵データの複製(存在しない、または有効期限切れの場合は null)
+   */
+  public byte[] get(final CacheKey key) {
+    synchronized(this) {
+      Entry entry = entries.get(key);
+      if(null != entry) {
+        if(!entry.isExpired(System.nanoTime())) {
+          hits.incrementAndGet();
+          return entry.material.clone();
+        }
+        entries.remove(key);
+        entry.destroy();
+        expirations.incrementAndGet();
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * 導出した鍵データを登録する
+   * @param key キャッシュのキー
+   * @param material 鍵データ(複製して保持する)
+   */
+  public void put(final CacheKey key, final byte[] material) {
+    if(null == key || null == material) return;
+    Entry entry = new Entry(material.clone(), System.nanoTime() + ttlNanos);
+    synchronized(this) {
+      Entry previous = entries.put(key, entry);
+      if(null != previous) previous.destroy();
+    }
+  }
+
+  /**
+   * 有効期限切れの鍵データを破棄する
+   * @return 破棄した件数
+   */
+  public synchronized int purgeExpired() {
+    long now = System.nanoTime();
+    int count = 0;
+    for(Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+      Entry entry = i.next();
+      if(!entry.isExpired(now)) continue;
+      entry.destroy();
+      i.remove();
+      count++;
+    }
+    expirations.addAndGet(count);
+    return count;
+  }
+
+  /**
+   * 保持しているすべての鍵データを破棄する
+   */
+  public synchronized void clear() {
+    for(Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+      i.next().destroy();
+      i.remove();
+      evictions.incrementAndGet();
+    }
+    if(log.isDebugEnabled()) log.debug("derived key cache cleared. {}", this);
+  }
+
+  /**
+   * @return 保持している件数
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return キャッシュから取得できた回数
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return キャッシュに存在しなかった回数
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return 上限超過、または明示的な消去により破棄した件数
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return 有効期限切れにより破棄した件数
+   */
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  /**
+   * @return ヒット率(参照実績がない場合は 0)
+   */
+  public double getHitRate() {
+    long total = hits.get() + misses.get();
+    return (0 == total) ? 0d : (double) hits.get() / total;
+  }
+
+  @Override
+  public String toString() {
+    return "DerivedKeyCache(maxEntries=" + maxEntries + ", ttlMillis=" + TimeUnit.NANOSECONDS.toMillis(ttlNanos)
+        + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+        + ", expirations=" + getExpirations() + ")";
+  }
+
+  private static void update(final Mac mac, final byte[] data) {
+    if(null == data) {
+      updateInt(mac, -1);
+      return;
+    }
+    updateInt(mac, data.length);
+    mac.update(data);
+  }
+
+  private static void updateInt(final Mac mac, final int value) {
+    mac.update((byte) (value >>> 24));
+    mac.update((byte) (value >>> 16));
+    mac.update((byte) (value >>> 8));
+    mac.update((byte) value);
+  }
+
+  /**
+   * 導出条件の HMAC によるキャッシュのキー
+   */
+  public static final class CacheKey {
+    private final byte[] fingerprint;
+    private final int hash;
+
+    CacheKey(final byte[] fingerprint) {
+      this.fingerprint = fingerprint;
+      this.hash = Arrays.hashCode(fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(this == obj) return true;
+      if(!(obj instanceof CacheKey)) return false;
+      return MessageDigest.isEqual(fingerprint, ((CacheKey) obj).fingerprint);
+    }
+  }
+
+  /**
+   * 鍵データと有効期限
+   */
+  private static final class Entry {
+    private final byte[] material;
+    private final long expiresAt;
+
+    Entry(final byte[] material, final long expiresAt) {
+      this.material = material;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(final long now) {
+      return 0 <= now - expiresAt;
+    }
+
+    void destroy() {
+      Arrays.fill(material, (byte) 0);
+    }
+  }
+}
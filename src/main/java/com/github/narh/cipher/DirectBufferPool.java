@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * サイズ区分ごとのダイレクトバッファのプール
+ *
+ * 要求された長さ以上で最小のサイズ区分からバッファを貸し出し、返却されたバッファを再利用する。
+ * 確保するダイレクトバッファの合計は上限を超えないように管理し、
+ * 上限に達した場合や最大のサイズ区分を超える長さの場合はヒープ上のバッファで代替する。
+ * {@link javax.crypto.Cipher} や入出力ストリームへ配列で渡す利用者向けに、
+ * ヒープ上のバッファも {@link #acquireHeap(int)} で同じサイズ区分から貸し出す。
+ *
+ * 貸し出したバッファは弱参照で追跡し、返却されないままガベージコレクションされた場合に
+ * リークとして警告を出力する(ダイレクトバッファのメモリは JVM が解放する)。
+ * 使用状況は {@link DirectBufferPoolMXBean} として公開する。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class DirectBufferPool implements DirectBufferPoolMXBean {
+
+  /** 既定のサイズ区分(8KiB, 64KiB, 1MiB) */
+  public static final int[] DEFAULT_SIZE_CLASSES = { 8 * 1024, 64 * 1024, 1024 * 1024 };
+  /** 既定のダイレクトバッファの上限(64MiB) */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+  /** MXBean の登録名 */
+  public static final String OBJECT_NAME = "com.github.narh.cipher:type=DirectBufferPool";
+
+  private static final DirectBufferPool DEFAULT = new DirectBufferPool(DEFAULT_SIZE_CLASSES, DEFAULT_MAX_BYTES);
+
+  private final int[] sizeClasses;
+  private final long maxBytes;
+
+  /** サイズ区分ごとの待機中のダイレクトバッファ */
+  private final List<ArrayDeque<ByteBuffer>> idle;
+  /** サイズ区分ごとの待機中のヒープ上のバッファ */
+  private final List<ArrayDeque<ByteBuffer>> heapIdle;
+  /** 貸し出し中のバッファ(識別ハッシュごと) */
+  private final Map<Integer, List<Lease>> leased = new HashMap<Integer, List<Lease>>();
+  /** 返却されずにガベージコレクションされたバッファの通知先 */
+  private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+  private long allocatedBytes = 0;
+  private long leasedBytes = 0;
+  private int leasedCount = 0;
+  private long idleBytes = 0;
+  private long heapIdleBytes = 0;
+  private volatile boolean recordStackTrace = false;
+  private ObjectName objectName = null;
+
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+  private final AtomicLong leaks     = new AtomicLong();
+
+  /**
+   * アプリケーション共有のプールを取得する
+   * @return 共有プール
+   */
+  public static DirectBufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param sizeClasses サイズ区分
+   * @param maxBytes 確保するダイレクトバッファの合計の上限(待機させるヒープ上のバッファの合計の上限を兼ねる)
+   */
+  public DirectBufferPool(final int[] sizeClasses, final long maxBytes) {
+    if(null == sizeClasses || 0 == sizeClasses.length) throw new IllegalArgumentException("size classes is empty.");
+    if(1 > maxBytes) throw new IllegalArgumentException("pool size must be positive.");
+    this.sizeClasses = sizeClasses.clone();
+    Arrays.sort(this.sizeClasses);
+    if(1 > this.sizeClasses[0]) throw new IllegalArgumentException("size class must be positive.");
+    this.maxBytes = maxBytes;
+    this.idle = new ArrayList<ArrayDeque<ByteBuffer>>(this.sizeClasses.length);
+    this.heapIdle = new ArrayList<ArrayDeque<ByteBuffer>>(this.sizeClasses.length);
+    for(int i = 0; i < this.sizeClasses.length; i++) {
+      idle.add(new ArrayDeque<ByteBuffer>());
+      heapIdle.add(new ArrayDeque<ByteBuffer>());
+    }
+  }
+
+  /**
+   * ダイレクトバッファを借り出す
+   * 容量は要求した長さ以上のサイズ区分となり、位置 0、リミットは容量で返す。
+   * @param capacity 必要な長さ
+   * @return バッファ(上限超過の場合はヒープ上のバッファ)
+   */
+  public ByteBuffer acquire(final int capacity) {
+    if(1 > capacity) throw new IllegalArgumentException("capacity must be positive.");
+    int index = sizeClassIndex(capacity);
+    if(0 > index) return fallback(capacity, "size class exceeded");
+    int size = sizeClasses[index];
+    ByteBuffer buffer;
+    synchronized(this) {
+      expunge();
+      buffer = idle.get(index).pollFirst();
+      if(null != buffer) {
+        idleBytes -= size;
+        hits.incrementAndGet();
+      }
+      else if(allocatedBytes + size <= maxBytes) {
+        buffer = ByteBuffer.allocateDirect(size);
+        allocatedBytes += size;
+        misses.incrementAndGet();
+      }
+      if(null != buffer) lease(buffer, index, true);
+    }
+    if(null == buffer) return fallback(capacity, "max bytes exceeded");
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * 配列を持つヒープ上のバッファを借り出す
+   * 容量は要求した長さ以上のサイズ区分となり、位置 0、リミットは容量で返す。
+   * @param capacity 必要な長さ
+   * @return バッファ({@link ByteBuffer#array()} を利用できる)
+   */
+  public ByteBuffer acquireHeap(final int capacity) {
+    if(1 > capacity) throw new IllegalArgumentException("capacity must be positive.");
+    int index = sizeClassIndex(capacity);
+    if(0 > index) return fallback(capacity, "size class exceeded");
+    ByteBuffer buffer;
+    synchronized(this) {
+      expunge();
+      buffer = heapIdle.get(index).pollFirst();
+      if(null != buffer) {
+        heapIdleBytes -= sizeClasses[index];
+        hits.incrementAndGet();
+      }
+      else {
+        buffer = ByteBuffer.allocate(sizeClasses[index]);
+        misses.incrementAndGet();
+      }
+      lease(buffer, index, false);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * 借り出したバッファを返却する
+   * プールで管理していないバッファ、二重の返却は無視する。
+   * ヒープ上のバッファは平文や鍵データを次の利用者へ渡さないよう、ゼロで上書きしてから待機させる。
+   * @param buffer バッファ
+   */
+  public void release(final ByteBuffer buffer) {
+    if(null == buffer) return;
+    synchronized(this) {
+      Lease lease = unlease(buffer);
+      if(null == lease) {
+        if(log.isDebugEnabled()) log.debug("buffer is not leased from this pool. {}", buffer);
+        return;
+      }
+      int size = sizeClasses[lease.sizeClass];
+      buffer.clear();
+      if(lease.direct) {
+        idle.get(lease.sizeClass).offerFirst(buffer);
+        idleBytes += size;
+      }
+      else if(heapIdleBytes + size <= maxBytes) {
+        Arrays.fill(buffer.array(), (byte) 0);
+        heapIdle.get(lease.sizeClass).offerFirst(buffer);
+        heapIdleBytes += size;
+      }
+      expunge();
+    }
+  }
+
+  /* (非 Javadoc)
+   * @see com.github.narh.cipher.DirectBufferPoolMXBean#detectLeaks()
+   */
+  @Override
+  public int detectLeaks() {
+    synchronized(this) {
+      return expunge();
+    }
+  }
+
+  /**
+   * 待機中のバッファをすべて破棄する
+   */
+  public synchronized void clear() {
+    for(ArrayDeque<ByteBuffer> queue : idle) queue.clear();
+    for(ArrayDeque<ByteBuffer> queue : heapIdle) queue.clear();
+    allocatedBytes -= idleBytes;
+    idleBytes = 0;
+    heapIdleBytes = 0;
+    if(log.isDebugEnabled()) log.debug("direct buffer pool cleared. {}", this);
+  }
+
+  /**
+   * リーク検出時に出力するため、貸し出し箇所のスタックトレースを記録するか設定する
+   * @param recordStackTrace 記録する場合 true
+   */
+  public void setRecordStackTrace(final boolean recordStackTrace) {
+    this.recordStackTrace = recordStackTrace;
+  }
+
+  /**
+   * プラットフォーム MBean サーバーへ登録する
+   * @param name 登録名
+   * @return 登録したオブジェクト名
+   * @throws JMException 登録に失敗した場合
+   */
+  public synchronized ObjectName register(final String name) throws JMException {
+    if(null != objectName) throw new IllegalStateException("already registered. " + objectName);
+    ObjectName registering = new ObjectName(OBJECT_NAME + ",name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, registering);
+    objectName = registering;
+    return objectName;
+  }
+
+  /**
+   * {@link #register(String)} で登録した MBean を登録解除する(未登録の場合は何もしない)
+   * @throws JMException 登録解除に失敗した場合
+   */
+  public synchronized void unregister() throws JMException {
+    if(null == objectName) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+    finally {
+      objectName = null;
+    }
+  }
+
+  @Override
+  public synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  @Override
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public synchronized long getLeasedBytes() {
+    return leasedBytes;
+  }
+
+  @Override
+  public synchronized long getIdleBytes() {
+    return idleBytes + heapIdleBytes;
+  }
+
+  @Override
+  public synchronized int getLeasedCount() {
+    return leasedCount;
+  }
+
+  @Override
+  public synchronized int getIdleCount() {
+    int count = 0;
+    for(ArrayDeque<ByteBuffer> queue : idle) count += queue.size();
+    for(ArrayDeque<ByteBuffer> queue : heapIdle) count += queue.size();
+    return count;
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  @Override
+  public long getLeaks() {
+    return leaks.get();
+  }
+
+  @Override
+  public String toString() {
+    return "DirectBufferPool(sizeClasses=" + Arrays.toString(sizeClasses) + ", maxBytes=" + maxBytes
+        + ", allocatedBytes=" + getAllocatedBytes() + ", leasedBytes=" + getLeasedBytes()
+        + ", hits=" + getHits() + ", misses=" + getMisses() + ", fallbacks=" + getFallbacks()
+        + ", leaks=" + getLeaks() + ")";
+  }
+
+  private int sizeClassIndex(final int capacity) {
+    for(int i = 0; i < sizeClasses.length; i++) {
+      if(capacity <= sizeClasses[i]) return i;
+    }
+    return -1;
+  }
+
+  private ByteBuffer fallback(final int capacity, final String reason) {
+    fallbacks.incrementAndGet();
+    if(log.isDebugEnabled()) log.debug("{}, use heap buffer ({} bytes).", reason, capacity);
+    return ByteBuffer.allocate(capacity);
+  }
+
+  private void lease(final ByteBuffer buffer, final int sizeClass, final boolean direct) {
+    Lease lease = new Lease(buffer, collected, sizeClass, direct
+        , recordStackTrace ? new Throwable("buffer acquired here") : null);
+    List<Lease> bucket = leased.get(lease.hash);
+    if(null == bucket) {
+      bucket = new ArrayList<Lease>(1);
+      leased.put(lease.hash, bucket);
+    }
+    bucket.add(lease);
+    leasedBytes += sizeClasses[sizeClass];
+    leasedCount++;
+  }
+
+  /**
+   * 貸し出し中のバッファの追跡を終了する
+   * @return 貸し出し情報(貸し出し中でない場合は null)
+   */
+  private Lease unlease(final ByteBuffer buffer) {
+    int hash = System.identityHashCode(buffer);
+    List<Lease> bucket = leased.get(hash);
+    if(null == bucket) return null;
+    for(int i = 0; i < bucket.size(); i++) {
+      Lease lease = bucket.get(i);
+      if(lease.get() != buffer) continue;
+      lease.clear();
+      remove(bucket, i, hash, lease);
+      return lease;
+    }
+    return null;
+  }
+
+  private void remove(final List<Lease> bucket, final int index, final int hash, final Lease lease) {
+    bucket.remove(index);
+    if(bucket.isEmpty()) leased.remove(hash);
+    leasedBytes -= sizeClasses[lease.sizeClass];
+    leasedCount--;
+  }
+
+  /**
+   * 返却されずにガベージコレクションされたバッファをリークとして処理する
+   * @return 検出したリーク数
+   */
+  private int expunge() {
+    int count = 0;
+    Reference<? extends ByteBuffer> reference;
+    while(null != (reference = collected.poll())) {
+      Lease lease = (Lease) reference;
+      List<Lease> bucket = leased.get(lease.hash);
+      int index = (null == bucket) ? -1 : bucket.indexOf(lease);
+      if(0 > index) continue;
+      remove(bucket, index, lease.hash, lease);
+      int size = sizeClasses[lease.sizeClass];
+      if(lease.direct) allocatedBytes -= size;
+      count++;
+      if(log.isWarnEnabled()) log.warn("{} buffer ({} bytes) was garbage collected without being returned."
+          , lease.direct ? "direct" : "heap", size, lease.site);
+    }
+    leaks.addAndGet(count);
+    return count;
+  }
+
+  /**
+   * 貸し出し中のバッファの情報
+   */
+  private static final class Lease extends WeakReference<ByteBuffer> {
+    private final int hash;
+    private final int sizeClass;
+    private final boolean direct;
+    private final Throwable site;
+
+    Lease(final ByteBuffer buffer, final ReferenceQueue<ByteBuffer> queue, final int sizeClass
+        , final boolean direct, final Throwable site) {
+      super(buffer, queue);
+      this.hash = System.identityHashCode(buffer);
+      this.sizeClass = sizeClass;
+      this.direct = direct;
+      this.site = site;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+/**
+ * {@link DirectBufferPool} の使用状況を公開する MXBean
+ *
+ * @author narita
+ *
+ */
+public interface DirectBufferPoolMXBean {
+
+  /**
+   * @return 確保済みのダイレクトバッファの合計バイト数(ヒープ上のバッファを含まない)
+   */
+  long getAllocatedBytes();
+
+  /**
+   * @return 確保できるダイレクトバッファの上限バイト数
+   */
+  long getMaxBytes();
+
+  /**
+   * @return 貸し出し中のバイト数
+   */
+  long getLeasedBytes();
+
+  /**
+   * @return 待機中のバイト数
+   */
+  long getIdleBytes();
+
+  /**
+   * @return 貸し出し中のバッファ数
+   */
+  int getLeasedCount();
+
+  /**
+   * @return 待機中のバッファ数
+   */
+  int getIdleCount();
+
+  /**
+   * @return 待機中のバッファを再利用できた回数
+   */
+  long getHits();
+
+  /**
+   * @return ダイレクトバッファを新規に確保した回数
+   */
+  long getMisses();
+
+  /**
+   * @return 上限超過、またはサイズ超過によりヒープ上のバッファで代替した回数
+   */
+  long getFallbacks();
+
+  /**
+   * @return 返却されないままガベージコレクションされたバッファとして検出した数
+   */
+  long getLeaks();
+
+  /**
+   * 返却されないままガベージコレクションされたバッファを検出する
+   * @return 前回の検出以降に新たに検出したバッファ数
+   */
+  int detectLeaks();
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * OpenSSL の EVP_BytesToKey の反復実装
+ *
+ * D_i = HASH^count(D_(i-1) || パスフレーズ || SALT) を必要な長さまで繰り返し、
+ * 先頭から鍵データ、続けて初期化ベクトルに割り当てる。
+ * {@link MessageDigest} と作業領域はスレッドごとに再利用するため、
+ * 出力先を呼び出し元が用意する場合は導出中に配列を生成しない。
+ *
+ * @author narita
+ *
+ */
+public final class EvpBytesToKey {
+
+  /** OpenSSL の SALT 長(PKCS5_SALT_LEN) */
+  public static final int SALT_LENGTH = 8;
+  /** 作業領域の長さ(SHA-512 のダイジェスト長) */
+  private static final int MAX_DIGEST_LENGTH = 64;
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private EvpBytesToKey() {
+  }
+
+  /**
+   * 鍵データと初期化ベクトルを1回の導出で生成する
+   * @param digest ダイジェスト方式(MD5, SHA-1, SHA-256 等)
+   * @param count ダイジェストの繰り返し回数
+   * @param passphrase パスフレーズ
+   * @param salt SALT(先頭8バイトを利用する。null の場合は SALT なし)
+   * @param key 鍵データの出力先(配列長分を導出する)
+   * @param iv 初期化ベクトルの出力先(配列長分を導出する。null 可)
+   * @throws NoSuchAlgorithmException ダイジェスト方式がサポートされていない場合
+   */
+  public static void derive(final String digest, final int count, final byte[] passphrase, final byte[] salt
+      , final byte[] key, final byte[] iv) throws NoSuchAlgorithmException {
+    if(null != salt && SALT_LENGTH > salt.length) throw new IllegalArgumentException("salt is empty or too short.");
+    Scratch scratch = SCRATCH.get();
+    derive(scratch.getDigest(digest), scratch.block, count, passphrase, salt, null == salt ? 0 : SALT_LENGTH
+        , key, null == key ? 0 : key.length, iv, null == iv ? 0 : iv.length);
+  }
+
+  /**
+   * 鍵データと初期化ベクトルを連結したデータを導出する
+   * @param digest ダイジェスト方式
+   * @param count ダイジェストの繰り返し回数
+   * @param passphrase パスフレーズ
+   * @param salt SALT(先頭8バイトを利用する。null の場合は SALT なし)
+   * @param length 導出するデータ長
+   * @return 導出したデータ
+   * @throws NoSuchAlgorithmException ダイジェスト方式がサポートされていない場合
+   */
+  public static byte[] derive(final String digest, final int count, final byte[] passphrase, final byte[] salt
+      , final int length) throws NoSuchAlgorithmException {
+    byte[] result = new byte[length];
+    derive(digest, count, passphrase, salt, result, null);
+    return result;
+  }
+
+  /**
+   * SALT 全体を利用して鍵データと初期化ベクトルを導出する
+   * @param messageDigest 利用するダイジェスト
+   * @param count ダイジェストの繰り返し回数
+   * @param passphrase パスフレーズ(null の場合は空)
+   * @param salt SALT(null の場合は SALT なし)
+   * @param key 鍵データの出力先
+   * @param keyLength 鍵データ長
+   * @param iv 初期化ベクトルの出力先
+   * @param ivLength 初期化ベクトル長
+   */
+  static void derive(final MessageDigest messageDigest, final int count, final byte[] passphrase, final byte[] salt
+      , final byte[] key, final int keyLength, final byte[] iv, final int ivLength) {
+    derive(messageDigest, SCRATCH.get().block, count, passphrase, salt, null == salt ? 0 : salt.length
+        , key, keyLength, iv, ivLength);
+  }
+
+  /**
+   * 1ブロック分のダイジェスト D_i を導出する
+   * @param messageDigest 利用するダイジェスト
+   * @param count ダイジェストの繰り返し回数
+   * @param previous 直前のブロック(null の場合は先頭ブロック)
+   * @param previousOffset 直前のブロックの開始位置
+   * @param previousLength 直前のブロックの長さ
+   * @param passphrase パスフレーズ(null の場合は空)
+   * @param salt SALT(null の場合は SALT なし)
+   * @param saltLength 利用する SALT の長さ
+   * @param output 出力先(開始位置からダイジェスト長以上の領域が必要)
+   * @param offset 出力先の開始位置
+   * @return ダイジェスト長
+   */
+  static int block(final MessageDigest messageDigest, final int count
+      , final byte[] previous, final int previousOffset, final int previousLength
+      , final byte[] passphrase, final byte[] salt, final int saltLength, final byte[] output, final int offset) {
+    int size = messageDigest.getDigestLength();
+    try {
+      messageDigest.reset();
+      if(null != previous) messageDigest.update(previous, previousOffset, previousLength);
+      if(null != passphrase) messageDigest.update(passphrase);
+      if(null != salt) messageDigest.update(salt, 0, saltLength);
+      messageDigest.digest(output, offset, size);
+      for(int i = 1; i < count; i++) {
+        messageDigest.update(output, offset, size);
+        messageDigest.digest(output, offset, size);
+      }
+    }
+    catch (DigestException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    return size;
+  }
+
+  /**
+   * スレッドの作業領域を利用して1ブロック分のダイジェストを導出する
+   * @param digest ダイジェスト方式
+   * @param count ダイジェストの繰り返し回数
+   * @param previous 直前のブロック(null の場合は先頭ブロック)
+   * @param previousOffset 直前のブロックの開始位置
+   * @param previousLength 直前のブロックの長さ
+   * @param passphrase パスフレーズ(null の場合は空)
+   * @param salt SALT(null の場合は SALT なし)
+   * @param saltLength 利用する SALT の長さ
+   * @param output 出力先
+   * @param offset 出力先の開始位置
+   * @param length 出力する長さ(ダイジェスト長以下)
+   * @throws NoSuchAlgorithmException ダイジェスト方式がサポートされていない場合
+   */
+  static void block(final String digest, final int count
+      , final byte[] previous, final int previousOffset, final int previousLength
+      , final byte[] passphrase, final byte[] salt, final int saltLength
+      , final byte[] output, final int offset, final int length) throws NoSuchAlgorithmException {
+    Scratch scratch = SCRATCH.get();
+    int size = block(scratch.getDigest(digest), count, previous, previousOffset, previousLength
+        , passphrase, salt, saltLength, scratch.block, 0);
+    if(length > size) throw new IllegalArgumentException("length is longer than digest.");
+    System.arraycopy(scratch.block, 0, output, offset, length);
+    Arrays.fill(scratch.block, 0, size, (byte) 0);
+  }
+
+  /**
+   * スレッドごとの {@link MessageDigest} を取得する
+   * @param digest ダイジェスト方式
+   * @return 初期化済みのダイジェスト
+   * @throws NoSuchAlgorithmException ダイジェスト方式がサポートされていない場合
+   */
+  static MessageDigest getMessageDigest(final String digest) throws NoSuchAlgorithmException {
+    return SCRATCH.get().getDigest(digest);
+  }
+
+  private static void derive(final MessageDigest messageDigest, final byte[] block, final int count
+      , final byte[] passphrase, final byte[] salt, final int saltLength
+      , final byte[] key, final int keyLength, final byte[] iv, final int ivLength) {
+    if(1 > count) throw new IllegalArgumentException("count must be positive.");
+    int keyOffset = 0;
+    int ivOffset = 0;
+    int size = 0;
+    while(keyOffset < keyLength || ivOffset < ivLength) {
+      size = block(messageDigest, count, block, 0, size, passphrase, salt, saltLength, block, 0);
+      int position = Math.min(keyLength - keyOffset, size);
+      if(0 < position) {
+        System.arraycopy(block, 0, key, keyOffset, position);
+        keyOffset += position;
+      }
+      int copy = Math.min(ivLength - ivOffset, size - position);
+      if(0 < copy) {
+        System.arraycopy(block, position, iv, ivOffset, copy);
+        ivOffset += copy;
+      }
+    }
+    Arrays.fill(block, 0, size, (byte) 0);
+  }
+
+  /**
+   * スレッドごとのダイジェストと作業領域
+   */
+  private static final class Scratch {
+    private final byte[] block = new byte[MAX_DIGEST_LENGTH];
+    private final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>(4);
+
+    MessageDigest getDigest(final String digest) throws NoSuchAlgorithmException {
+      MessageDigest messageDigest = digests.get(digest);
+      if(null == messageDigest) {
+        messageDigest = MessageDigest.getInstance(digest);
+        if(MAX_DIGEST_LENGTH < messageDigest.getDigestLength())
+          throw new NoSuchAlgorithmException(digest + " is not supported.");
+        digests.put(digest, messageDigest);
+      }
+      return messageDigest;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.MD5Digest;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * パスフレーズとSALTから鍵データと初期化ベクトルを導出する方式
+ *
+ * 導出結果は鍵データ、初期化ベクトルの順に連結したものとなる。
+ *
+ * @author narita
+ *
+ */
+public enum KeyDerivation {
+    /** OpenSSL の EVP_BytesToKey(openssl enc の既定) */
+    EVP_BYTES_TO_KEY(1) {
+      @Override
+      public byte[] derive(final String digest, final int iterationCount
+          , final byte[] passphrase, final byte[] salt, final int length) throws NoSuchAlgorithmException {
+        return EvpBytesToKey.derive(digest, iterationCount, passphrase, salt, length);
+      }
+    }
+    /** PKCS#5 v2.0 PBKDF2(openssl enc -pbkdf2 -iter) */
+  , PBKDF2(10000) {
+      @Override
+      public byte[] derive(final String digest, final int iterationCount
+          , final byte[] passphrase, final byte[] salt, final int length) throws NoSuchAlgorithmException {
+        if(null == salt) throw new IllegalArgumentException("salt is empty or too short.");
+        PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(getDigest(digest));
+        generator.init(passphrase, Arrays.copyOf(salt, SALT_LENGTH), iterationCount);
+        return ((KeyParameter) generator.generateDerivedParameters(length * 8)).getKey();
+      }
+    }
+  ;
+
+  /** OpenSSL 1.1.0 以降の既定のダイジェスト方式 */
+  public static final String DEFAULT_DIGEST = "SHA-256";
+
+  private static final int SALT_LENGTH = 8;
+
+  /** 繰り返し回数を指定しない場合の既定値 */
+  public final int defaultIterationCount;
+
+  private KeyDerivation(final int defaultIterationCount) {
+    this.defaultIterationCount = defaultIterationCount;
+  }
+
+  /**
+   * 鍵データと初期化ベクトルを導出する
+   * @param digest ダイジェスト方式
+   * @param iterationCount 繰り返し回数
+   * @param passphrase パスフレーズ
+   * @param salt SALT(先頭8バイトを利用する)
+   * @param length 導出するデータ長(鍵データ長 + 初期化ベクトル長)
+   * @return 導出したデータ
+   * @throws NoSuchAlgorithmException ダイジェスト方式がサポートされていない場合
+   */
+  public abstract byte[] derive(final String digest, final int iterationCount
+      , final byte[] passphrase, final byte[] salt, final int length) throws NoSuchAlgorithmException;
+
+  private static Digest getDigest(final String digest) throws NoSuchAlgorithmException {
+    String name = digest.replace("-", "").toUpperCase();
+    if("SHA256".equals(name)) return new SHA256Digest();
+    if("SHA1".equals(name)) return new SHA1Digest();
+    if("SHA512".equals(name)) return new SHA512Digest();
+    if("MD5".equals(name)) return new MD5Digest();
+    throw new NoSuchAlgorithmException(digest + " is not supported.");
+  }
+}
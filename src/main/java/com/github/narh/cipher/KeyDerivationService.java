@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 鍵導出を専用のスレッドプールで非同期に実行するサービス
+ *
+ * PBKDF2 のように繰り返し回数の多い導出をリクエスト処理のスレッドから切り離し、
+ * 事前に開始した導出の結果を {@link Future} で受け取れるようにする。
+ * 同じ導出条件の要求が並行した場合は実行中の導出を共有し、
+ * 完了した結果は {@link DerivedKeyCache} に登録する。
+ *
+ * 待ち行列が上限に達した場合、および {@link #shutdown()} の後は要求元のスレッドで導出する。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class KeyDerivationService {
+
+  public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+  public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+  private static final KeyDerivationService DEFAULT
+      = new KeyDerivationService(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, DerivedKeyCache.getDefault());
+
+  private final ThreadPoolExecutor executor;
+  private final DerivedKeyCache cache;
+  /** 実行中の導出のキーを生成するキャッシュ(キャッシュしない場合はキーの生成のみに利用する) */
+  private final DerivedKeyCache keys;
+
+  /** 実行中の導出 */
+  private final ConcurrentMap<DerivedKeyCache.CacheKey, FutureTask<byte[]>> inFlight
+      = new ConcurrentHashMap<DerivedKeyCache.CacheKey, FutureTask<byte[]>>();
+
+  private final AtomicLong derivations = new AtomicLong();
+  private final AtomicLong shared      = new AtomicLong();
+
+  /**
+   * アプリケーション共有のサービスを取得する
+   * @return 共有サービス
+   */
+  public static KeyDerivationService getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param threads 導出スレッド数
+   * @param queueCapacity 待ち行列の上限
+   * @param cache 導出結果のキャッシュ(null の場合はキャッシュしない)
+   */
+  public KeyDerivationService(final int threads, final int queueCapacity, final DerivedKeyCache cache) {
+    if(1 > threads || 1 > queueCapacity) throw new IllegalArgumentException("pool size must be positive.");
+    this.cache = cache;
+    this.keys = (null != cache) ? cache : new DerivedKeyCache(1, DerivedKeyCache.DEFAULT_TTL_MILLIS);
+    this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS
+        , new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory(), new CallerRuns());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * 鍵データと初期化ベクトルの導出を開始する
+   * @param derivation 導出方式
+   * @param digest ダイジェスト方式(null の場合は {@link KeyDerivation#DEFAULT_DIGEST})
+   * @param iterationCount 繰り返し回数(0 以下の場合は導出方式の既定値)
+   * @param passphrase パスフレーズ
+   * @param salt SALT
+   * @param length 導出するデータ長(鍵データ長 + 初期化ベクトル長)
+   * @return 鍵データと初期化ベクトルを連結したデータ
+   */
+  public Future<byte[]> derive(final KeyDerivation derivation, final String digest, final int iterationCount
+      , final byte[] passphrase, final byte[] salt, final int length) {
+    if(null == derivation) throw new IllegalArgumentException("key derivation is empty.");
+    if(null == passphrase || 0 == passphrase.length) throw new IllegalArgumentException("passphrase is empty.");
+    final String digestAlgorithm = (null == digest) ? KeyDerivation.DEFAULT_DIGEST : digest;
+    final int count = (0 < iterationCount) ? iterationCount : derivation.defaultIterationCount;
+    final byte[] passphraseCopy = passphrase.clone();
+    final byte[] saltCopy = (null == salt) ? null : salt.clone();
+    final DerivedKeyCache.CacheKey cacheKey = keys.key(derivation.name() + ":" + length
+        , digestAlgorithm, count, passphrase, salt);
+
+    if(null != cache) {
+      byte[] cached = cache.get(cacheKey);
+      if(null != cached) return completed(cached);
+    }
+
+    FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        try {
+          derivations.incrementAndGet();
+          byte[] material = derivation.derive(digestAlgorithm, count, passphraseCopy, saltCopy, length);
+          if(null != cache) cache.put(cacheKey, material);
+          return material;
+        }
+        finally {
+          inFlight.remove(cacheKey);
+        }
+      }
+    });
+    FutureTask<byte[]> running = inFlight.putIfAbsent(cacheKey, task);
+    if(null != running) {
+      shared.incrementAndGet();
+      return running;
+    }
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * 暗号アルゴリズムに応じた長さの鍵データと初期化ベクトルの導出を開始する
+   * @param context 導出方式、パスフレーズ、SALTを設定したコンテキスト
+   * @param algorithm 暗号アルゴリズム
+   * @return 鍵データと初期化ベクトルを連結したデータ
+   */
+  public Future<byte[]> derive(final CipherContext context, final CipherAlgorithm algorithm) {
+    return derive(context.getKeyDerivation(), context.getDigestAlgorithm(), context.getIterationCount()
+        , context.getPassphrase(), context.getSalt(), getKeyLength(algorithm) + getIvLength(algorithm));
+  }
+
+  /**
+   * コンテキストの導出方式に従って鍵データと初期化ベクトルを設定したコンテキストを取得する
+   * 鍵データが設定済み、または導出方式が未設定の場合はそのまま返す。
+   * @param context コンテキスト
+   * @param algorithm 暗号アルゴリズム
+   * @return 鍵データと初期化ベクトルを設定したコンテキスト
+   */
+  public CipherContext resolve(final CipherContext context, final CipherAlgorithm algorithm) {
+    if(null != context.getSecretKey() || null == context.getKeyDerivation()) return context;
+    byte[] material;
+    try {
+      material = derive(context, algorithm).get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    catch (ExecutionException e) {
+      if(log.isErrorEnabled()) log.error(e.getCause().getLocalizedMessage(), e.getCause());
+      if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IllegalArgumentException(e.getCause());
+    }
+    int keyLength = getKeyLength(algorithm);
+    byte[] secretKey = new byte[keyLength];
+    byte[] iv = new byte[getIvLength(algorithm)];
+    System.arraycopy(material, 0, secretKey, 0, keyLength);
+    System.arraycopy(material, keyLength, iv, 0, iv.length);
+    return CipherContext.builder()
+        .cryptMode(context.getCryptMode())
+        .passphrase(context.getPassphrase())
+        .salt(context.getSalt())
+        .secretKey(secretKey)
+        .iv(iv)
+        .keyDerivation(context.getKeyDerivation())
+        .digestAlgorithm(context.getDigestAlgorithm())
+        .iterationCount(context.getIterationCount())
+        .origin(context.getOrigin())
+        .contents(context.getContents())
+        .baseDirectoryName(context.getBaseDirectoryName())
+        .writeFileName(context.getWriteFileName())
+        .build();
+  }
+
+  /**
+   * 導出スレッドを停止する(以降の導出は要求元のスレッドで実行する)
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * @return 実行中の導出の数
+   */
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  /**
+   * @return 実際に導出を実行した回数
+   */
+  public long getDerivations() {
+    return derivations.get();
+  }
+
+  /**
+   * @return 実行中の導出を共有した回数
+   */
+  public long getShared() {
+    return shared.get();
+  }
+
+  @Override
+  public String toString() {
+    return "KeyDerivationService(threads=" + executor.getMaximumPoolSize() + ", queued=" + executor.getQueue().size()
+        + ", inFlight=" + getInFlightCount() + ", derivations=" + getDerivations() + ", shared=" + getShared() + ")";
+  }
+
+  private static int getKeyLength(final CipherAlgorithm algorithm) {
+    return (int) (algorithm.length / 8);
+  }
+
+  private static int getIvLength(final CipherAlgorithm algorithm) {
+    return algorithm.useIV ? CipherAlgorithm.BLOCK_SIZE : 0;
+  }
+
+  private static Future<byte[]> completed(final byte[] material) {
+    FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return material;
+      }
+    });
+    task.run();
+    return task;
+  }
+
+  /**
+   * 受け付けられなかった導出を要求元のスレッドで実行する
+   * {@link ThreadPoolExecutor.CallerRunsPolicy} は停止後の要求を破棄するため、
+   * 結果を待つ要求元が終了せず、実行中の導出も削除されない。停止後も含めて常に実行する。
+   */
+  private static final class CallerRuns implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+      if(executor.isShutdown() && log.isDebugEnabled())
+        log.debug("key derivation service is shut down, derive in caller.");
+      runnable.run();
+    }
+  }
+
+  /**
+   * 導出スレッドを生成する
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable, "key-derivation-" + sequence.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * セグメント単位で AES-GCM を適用するファイル形式の暗号器
+ *
+ * <pre>
+ * ヘッダ(20bytes) : "GCMSeg__"(8) | バージョン(1) | セグメント長(4) | nonce プレフィックス(7)
+ * セグメント      : 暗号文(セグメント長、最終セグメントのみ 0〜セグメント長) | 認証タグ(16)
+ * nonce           : nonce プレフィックス(7) | セグメント番号(4) | 最終セグメントフラグ(1)
+ * </pre>
+ *
+ * 各セグメントはヘッダを追加認証データとして個別に認証するため、
+ * 改ざんはセグメント単位で検出でき、セグメントを並列に処理できる。
+ * nonce に最終セグメントフラグを含めるため、セグメント境界での切り詰めも検出する。
+ *
+ * インスタンスはスレッドセーフではない。並列処理では {@link #copy()} で複製して利用する。
+ *
+ * @author narita
+ *
+ */
+public class SegmentedGcmCipher {
+
+  public static final String MAGIC              = "GCMSeg__";
+  public static final int VERSION               = 1;
+  public static final int HEADER_LENGTH         = 20;
+  public static final int NONCE_PREFIX_LENGTH   = 7;
+  public static final int NONCE_LENGTH          = 12;
+  public static final int TAG_LENGTH            = 16;
+  public static final int DEFAULT_SEGMENT_SIZE  = 64 * 1024;
+  /** 平文のセグメント長の上限(復号化時はヘッダの値を認証前にバッファ長とするため制限する) */
+  public static final int MAX_SEGMENT_SIZE      = 16 * 1024 * 1024;
+  public static final long MAX_SEGMENTS         = 0xffffffffL;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final KeyParameter key;
+  private final byte[] header;
+  private final int segmentSize;
+  private final GCMBlockCipher gcm = new GCMBlockCipher(new AESEngine());
+  private final byte[] nonce = new byte[NONCE_LENGTH];
+  private boolean keyInitialized = false;
+
+  private SegmentedGcmCipher(final KeyParameter key, final byte[] header) {
+    this.key = key;
+    this.header = header;
+    this.segmentSize = ByteBuffer.wrap(header, MAGIC.length() + 1, 4).getInt();
+    System.arraycopy(header, HEADER_LENGTH - NONCE_PREFIX_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+  }
+
+  /**
+   * 暗号化用の暗号器を生成する
+   * nonce プレフィックスは乱数で生成する。
+   * @param secretKey 鍵データ(16, 24, 32 bytes)
+   * @param segmentSize 平文のセグメント長(1 以上 {@link #MAX_SEGMENT_SIZE} 以下)
+   * @return 暗号器
+   */
+  public static SegmentedGcmCipher forEncryption(final byte[] secretKey, final int segmentSize) {
+    if(0 >= segmentSize) throw new IllegalArgumentException("segment size must be positive.");
+    if(MAX_SEGMENT_SIZE < segmentSize) throw new IllegalArgumentException("segment size is too large.");
+    byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+    RANDOM.nextBytes(prefix);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.put(MAGIC.getBytes()).put((byte) VERSION).putInt(segmentSize).put(prefix);
+    return new SegmentedGcmCipher(keyParameter(secretKey), header.array());
+  }
+
+  /**
+   * ヘッダを解析して復号化用の暗号器を生成する
+   * セグメント長が {@link #MAX_SEGMENT_SIZE} を超えるヘッダは、認証前に巨大なバッファを確保しないよう拒否する。
+   * @param secretKey 鍵データ(16, 24, 32 bytes)
+   * @param header ヘッダ
+   * @return 暗号器
+   */
+  public static SegmentedGcmCipher forDecryption(final byte[] secretKey, final byte[] header) {
+    if(null == header || HEADER_LENGTH > header.length
+        || !MAGIC.equals(new String(header, 0, MAGIC.length())))
+      throw new IllegalArgumentException("payload is not " + MAGIC + ".");
+    if(VERSION != header[MAGIC.length()])
+      throw new IllegalArgumentException("not supported version (" + header[MAGIC.length()] + ")");
+    int segmentSize = ByteBuffer.wrap(header, MAGIC.length() + 1, 4).getInt();
+    if(0 >= segmentSize || MAX_SEGMENT_SIZE < segmentSize)
+      throw new IllegalArgumentException("segment size error (" + segmentSize + ")");
+    return new SegmentedGcmCipher(keyParameter(secretKey), Arrays.copyOf(header, HEADER_LENGTH));
+  }
+
+  /**
+   * 同じ鍵とヘッダを持つ暗号器を複製する
+   * @return 暗号器
+   */
+  public SegmentedGcmCipher copy() {
+    return new SegmentedGcmCipher(key, header);
+  }
+
+  /**
+   * @return ヘッダ
+   */
+  public byte[] getHeader() {
+    return header.clone();
+  }
+
+  /**
+   * @return 平文のセグメント長
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * @return 暗号文のセグメント長(認証タグを含む)
+   */
+  public int getEncryptedSegmentSize() {
+    return segmentSize + TAG_LENGTH;
+  }
+
+  /**
+   * 平文長からセグメント数を取得する(空データでも最終セグメントを1つ持つ)
+   * @param length 平文長
+   * @return セグメント数
+   */
+  public long getSegmentCount(final long length) {
+    return (0 == length) ? 1 : (length + segmentSize - 1) / segmentSize;
+  }
+
+  /**
+   * 平文長から暗号化後のデータ長(ヘッダを含む)を取得する
+   * @param length 平文長
+   * @return 暗号文長
+   */
+  public long getEncryptedLength(final long length) {
+    return HEADER_LENGTH + length + getSegmentCount(length) * TAG_LENGTH;
+  }
+
+  /**
+   * セグメントを暗号化する
+   * @param index セグメント番号
+   * @param last 最終セグメントか
+   * @param input 平文
+   * @param inputOffset 平文の開始位置
+   * @param length 平文長(セグメント長以下)
+   * @param output 出力先
+   * @param outputOffset 出力先の開始位置
+   * @return 出力したバイト数(平文長 + 認証タグ長)
+   */
+  public int encryptSegment(final long index, final boolean last, final byte[] input, final int inputOffset
+      , final int length, final byte[] output, final int outputOffset) {
+    if(segmentSize < length) throw new IllegalArgumentException("segment is too long.");
+    init(true, index, last);
+    try {
+      int written = gcm.processBytes(input, inputOffset, length, output, outputOffset);
+      return written + gcm.doFinal(output, outputOffset + written);
+    }
+    catch (InvalidCipherTextException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * セグメントを復号化し、認証タグを検証する
+   * @param index セグメント番号
+   * @param last 最終セグメントか
+   * @param input 暗号文
+   * @param inputOffset 暗号文の開始位置
+   * @param length 暗号文長(認証タグを含む)
+   * @param output 出力先
+   * @param outputOffset 出力先の開始位置
+   * @return 出力したバイト数
+   * @throws BadPaddingException 認証に失敗した場合
+   */
+  public int decryptSegment(final long index, final boolean last, final byte[] input, final int inputOffset
+      , final int length, final byte[] output, final int outputOffset) throws BadPaddingException {
+    if(TAG_LENGTH > length || getEncryptedSegmentSize() < length)
+      throw new BadPaddingException("segment " + index + " size error.");
+    init(false, index, last);
+    try {
+      int written = gcm.processBytes(input, inputOffset, length, output, outputOffset);
+      return written + gcm.doFinal(output, outputOffset + written);
+    }
+    catch (InvalidCipherTextException e) {
+      throw new BadPaddingException("segment " + index + " authentication failed.");
+    }
+  }
+
+  private void init(final boolean encrypt, final long index, final boolean last) {
+    if(0 > index || MAX_SEGMENTS < index) throw new IllegalArgumentException("too many segments.");
+    nonce[NONCE_PREFIX_LENGTH]     = (byte) (index >>> 24);
+    nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+    nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+    nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+    nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+    gcm.init(encrypt, new AEADParameters(keyInitialized ? null : key, TAG_LENGTH * 8, nonce.clone(), header));
+    keyInitialized = true;
+  }
+
+  private static KeyParameter keyParameter(final byte[] secretKey) {
+    if(null == secretKey || (16 != secretKey.length && 24 != secretKey.length && 32 != secretKey.length))
+      throw new IllegalArgumentException("secret key length error.");
+    return new KeyParameter(secretKey);
+  }
+}
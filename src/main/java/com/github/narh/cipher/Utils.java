@@ -30,9 +30,13 @@ package com.github.narh.cipher;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.compress.utils.IOUtils;
 
@@ -75,6 +79,46 @@ public class Utils {
     return results;
   }
 
+  /**
+   * 指定したディレクトリ配下のファイルを再帰的に取得する(隠しファイル・隠しディレクトリは除く)
+   * 各ディレクトリ内は名前順とし、ディレクトリ自体は含めない。
+   * シンボリックリンクによる循環で終了しなくならないよう、正規パスが同じディレクトリは最初の1回のみ辿る。
+   * @param directory 対象ディレクトリ(ファイルの場合はそのファイルのみ)
+   * @return ファイルの一覧
+   */
+  public static List<File> getTree(final File directory) {
+    List<File> results = new ArrayList<File>();
+    Set<String> visited = new HashSet<String>();
+    ArrayDeque<File> stack = new ArrayDeque<File>();
+    stack.push(directory);
+    while(!stack.isEmpty()) {
+      File current = stack.pop();
+      if(!current.isDirectory()) {
+        results.add(current);
+        continue;
+      }
+      try {
+        if(!visited.add(current.getCanonicalPath())) {
+          if(log.isWarnEnabled()) log.warn("{} is already visited, skip the linked directory.", current);
+          continue;
+        }
+      }
+      catch (IOException e) {
+        if(log.isWarnEnabled()) log.warn("{} is not resolvable. {}", current, e.getMessage());
+        continue;
+      }
+      File[] children = current.listFiles();
+      if(null == children) {
+        if(log.isWarnEnabled()) log.warn("{} is not readable.", current);
+        continue;
+      }
+      List<File> list = fileHiddenFilter(Arrays.asList(children));
+      Collections.sort(list);
+      for(int i = list.size() - 1; i >= 0; i--) stack.push(list.get(i));
+    }
+    return results;
+  }
+
   /**
    * @param context
    */
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * エントリごとに圧縮の効果を推定し、格納方式と圧縮レベルを切り替える ZIP 出力ストリーム
+ *
+ * 格納方式を指定していないエントリは先頭のサンプル分のデータを保留し、
+ * {@link CompressibilityEstimator} で圧縮の効果を推定してからエントリを開始する。
+ * 効果がない場合、サンプル内に収まるエントリは無圧縮(STORED)で格納し、
+ * それより大きなエントリは圧縮レベル {@link Deflater#NO_COMPRESSION} で格納する。
+ * 効果がある場合は {@link #setLevel(int)} のレベルで圧縮する。
+ *
+ * @author narita
+ *
+ */
+public class AdaptiveZipOutputStream extends ZipOutputStream {
+
+  private final CompressibilityEstimator estimator;
+  private final byte[] sample;
+  private int level = Deflater.DEFAULT_COMPRESSION;
+
+  /** 判定待ちのエントリ */
+  private ZipEntry pending;
+  private int sampleLength = 0;
+
+  private long storedEntries = 0;
+  private long deflatedEntries = 0;
+
+  /**
+   * @param outputStream 出力先
+   */
+  public AdaptiveZipOutputStream(final OutputStream outputStream) {
+    this(outputStream, CompressibilityEstimator.getDefault());
+  }
+
+  /**
+   * @param outputStream 出力先
+   * @param estimator 圧縮の効果の推定器
+   */
+  public AdaptiveZipOutputStream(final OutputStream outputStream, final CompressibilityEstimator estimator) {
+    super(outputStream);
+    if(null == estimator) throw new IllegalArgumentException("estimator is null.");
+    this.estimator = estimator;
+    this.sample = new byte[estimator.getSampleSize()];
+  }
+
+  @Override
+  public void setLevel(final int level) {
+    super.setLevel(level);
+    this.level = level;
+  }
+
+  @Override
+  public void putNextEntry(final ZipEntry entry) throws IOException {
+    flushPending(false);
+    if(-1 != entry.getMethod()) {
+      super.setLevel(level);
+      super.putNextEntry(entry);
+      return;
+    }
+    pending = entry;
+    sampleLength = 0;
+  }
+
+  @Override
+  public void write(final byte[] b, int off, int len) throws IOException {
+    if(null != pending) {
+      if(0 > off || 0 > len || b.length - off < len) throw new IndexOutOfBoundsException();
+      int length = Math.min(len, sample.length - sampleLength);
+      System.arraycopy(b, off, sample, sampleLength, length);
+      sampleLength += length;
+      off += length;
+      len -= length;
+      if(sampleLength < sample.length) return;
+      flushPending(false);
+    }
+    if(0 < len) super.write(b, off, len);
+  }
+
+  @Override
+  public void closeEntry() throws IOException {
+    if(null != pending) {
+      flushPending(true);
+    }
+    super.closeEntry();
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if(null != pending) closeEntry();
+    super.finish();
+  }
+
+  /**
+   * @return 無圧縮または圧縮レベル 0 で格納したエントリ数
+   */
+  public long getStoredEntries() {
+    return storedEntries;
+  }
+
+  /**
+   * @return 圧縮して格納したエントリ数
+   */
+  public long getDeflatedEntries() {
+    return deflatedEntries;
+  }
+
+  /**
+   * 保留中のエントリの格納方式を決定してエントリを開始し、サンプルを書き込む
+   * @param complete エントリのデータがサンプル内で完結している場合 true
+   */
+  private void flushPending(final boolean complete) throws IOException {
+    if(null == pending) return;
+    ZipEntry entry = pending;
+    pending = null;
+    if(estimator.isCompressible(sample, 0, sampleLength)) {
+      deflatedEntries++;
+      super.setLevel(level);
+    }
+    else if(complete) {
+      storedEntries++;
+      CRC32 crc = new CRC32();
+      crc.update(sample, 0, sampleLength);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(sampleLength);
+      entry.setCompressedSize(sampleLength);
+      entry.setCrc(crc.getValue());
+    }
+    else {
+      storedEntries++;
+      super.setLevel(Deflater.NO_COMPRESSION);
+    }
+    super.putNextEntry(entry);
+    if(0 < sampleLength) super.write(sample, 0, sampleLength);
+    sampleLength = 0;
+  }
+}
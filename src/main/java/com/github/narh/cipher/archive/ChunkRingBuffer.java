@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.narh.cipher.DirectBufferPool;
+
+/**
+ * 生成時に {@link DirectBufferPool} から借り出した固定長チャンクを循環して受け渡すリングバッファ
+ *
+ * 書き込み側は空きチャンクを {@link #claim()} で取得して書き込み、{@link #publish(int)} で公開する。
+ * 読み込み側は {@link #take()} で公開済みのチャンクを取得し、処理後に {@link #free()} で解放する。
+ * 空きチャンクがない場合は書き込み側を、公開済みのチャンクがない場合は読み込み側を待機させる。
+ * 書き込み側と読み込み側はそれぞれ1スレッドとする。
+ * チャンクの配列はサイズ区分によりチャンク長より長い場合があるため、{@link #getChunkSize()} までを利用する。
+ * 利用後は {@link #release()} でチャンクをプールへ返却する。
+ *
+ * @author narita
+ *
+ */
+public class ChunkRingBuffer {
+
+  private final DirectBufferPool bufferPool;
+  private final ByteBuffer[] leases;
+  private final byte[][] chunks;
+  private final int[] lengths;
+  private final int chunkSize;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final Condition notEmpty = lock.newCondition();
+
+  /** 次に読み込むチャンク */
+  private int head = 0;
+  /** 次に書き込むチャンク */
+  private int tail = 0;
+  /** 公開済みで未解放のチャンク数 */
+  private int count = 0;
+  private boolean finished = false;
+  private boolean aborted = false;
+
+  /**
+   * @param chunkSize チャンク長
+   * @param capacity チャンク数
+   */
+  public ChunkRingBuffer(final int chunkSize, final int capacity) {
+    this(chunkSize, capacity, DirectBufferPool.getDefault());
+  }
+
+  /**
+   * @param chunkSize チャンク長
+   * @param capacity チャンク数
+   * @param bufferPool チャンクを借り出すプール
+   */
+  public ChunkRingBuffer(final int chunkSize, final int capacity, final DirectBufferPool bufferPool) {
+    if(1 > chunkSize || 1 > capacity) throw new IllegalArgumentException("chunk size and capacity must be positive.");
+    if(null == bufferPool) throw new IllegalArgumentException("buffer pool is null.");
+    this.bufferPool = bufferPool;
+    this.chunkSize = chunkSize;
+    this.leases = new ByteBuffer[capacity];
+    this.chunks = new byte[capacity][];
+    for(int i = 0; i < capacity; i++) {
+      leases[i] = bufferPool.acquireHeap(chunkSize);
+      chunks[i] = leases[i].array();
+    }
+    this.lengths = new int[capacity];
+  }
+
+  /**
+   * 書き込み用の空きチャンクを取得する(空きがない場合は待機する)
+   * @return 空きチャンク
+   * @throws IOException 中断された場合
+   */
+  public byte[] claim() throws IOException {
+    lock.lock();
+    try {
+      while(!aborted && count == chunks.length) notFull.await();
+      if(aborted) throw new IOException("ring buffer aborted.");
+      return chunks[tail];
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a free chunk.");
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@link #claim()} で取得したチャンクを公開する
+   * @param length 書き込んだバイト数
+   */
+  public void publish(final int length) {
+    lock.lock();
+    try {
+      lengths[tail] = length;
+      tail = (tail + 1) % chunks.length;
+      count++;
+      notEmpty.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 書き込みの終了を通知する
+   */
+  public void finish() {
+    lock.lock();
+    try {
+      finished = true;
+      notEmpty.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 処理を中断し、待機中のスレッドを解放する
+   */
+  public void abort() {
+    lock.lock();
+    try {
+      aborted = true;
+      notFull.signalAll();
+      notEmpty.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 公開済みのチャンクを待機して取得する
+   * @return 先頭チャンク({@link #head()})のバイト数(終了または中断した場合は -1)
+   * @throws InterruptedIOException 待機中に割り込まれた場合
+   */
+  public int take() throws InterruptedIOException {
+    lock.lock();
+    try {
+      while(!aborted && !finished && 0 == count) notEmpty.await();
+      if(aborted || 0 == count) return -1;
+      return lengths[head];
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a chunk.");
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@link #take()} で取得したチャンクのデータ
+   * @return チャンク
+   */
+  public byte[] head() {
+    lock.lock();
+    try {
+      return chunks[head];
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 先頭チャンクを解放する
+   */
+  public void free() {
+    lock.lock();
+    try {
+      head = (head + 1) % chunks.length;
+      count--;
+      notFull.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * チャンクをプールへ返却する
+   * 書き込み側と読み込み側の双方がチャンクを参照しなくなってから呼び出すこと。
+   */
+  public void release() {
+    lock.lock();
+    try {
+      for(ByteBuffer lease : leases) bufferPool.release(lease);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return チャンク長
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return チャンク数
+   */
+  public int getCapacity() {
+    return chunks.length;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import java.util.zip.Deflater;
+
+/**
+ * データの先頭を試験的に圧縮し、圧縮の効果があるかを推定する
+ *
+ * JPEG、PDF、ZIP 等の圧縮済みデータは DEFLATE で圧縮しても縮まないため、
+ * 先頭のサンプルを {@link Deflater#BEST_SPEED} で圧縮した長さが閾値を超える場合は
+ * 圧縮の効果がないものとし、無圧縮(STORED)で格納する判断に利用する。
+ * 作業領域はスレッドごとに保持するため、複数スレッドから同時に利用できる。
+ *
+ * @author narita
+ *
+ */
+public class CompressibilityEstimator {
+
+  /** 既定のサンプル長 */
+  public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+  /** 既定の閾値(圧縮後の長さが元の長さに占める割合) */
+  public static final double DEFAULT_THRESHOLD = 0.9;
+  /** サンプルがこの長さ未満の場合は判定せず圧縮する */
+  public static final int MIN_SAMPLE_SIZE = 512;
+
+  private static final CompressibilityEstimator DEFAULT
+    = new CompressibilityEstimator(DEFAULT_SAMPLE_SIZE, DEFAULT_THRESHOLD);
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private final int sampleSize;
+  private final double threshold;
+
+  /**
+   * アプリケーション共有の推定器を取得する
+   * @return 共有の推定器
+   */
+  public static CompressibilityEstimator getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param sampleSize 試験的に圧縮するサンプル長
+   * @param threshold 圧縮後の長さが元の長さに占める割合の閾値(0 より大きく 1 以下)
+   */
+  public CompressibilityEstimator(final int sampleSize, final double threshold) {
+    if(MIN_SAMPLE_SIZE > sampleSize) throw new IllegalArgumentException("sample size is too short.");
+    if(0 >= threshold || 1 < threshold) throw new IllegalArgumentException("threshold is out of range.");
+    this.sampleSize = sampleSize;
+    this.threshold = threshold;
+  }
+
+  /**
+   * @return サンプル長
+   */
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * データに圧縮の効果があるかを推定する(先頭のサンプル長分のみを利用する)
+   * @param b データ
+   * @param off 開始位置
+   * @param len データ長
+   * @return 圧縮の効果がある場合 true
+   */
+  public boolean isCompressible(final byte[] b, final int off, final int len) {
+    int length = Math.min(len, sampleSize);
+    if(MIN_SAMPLE_SIZE > length) return true;
+    Scratch scratch = SCRATCH.get();
+    Deflater deflater = scratch.deflater;
+    deflater.reset();
+    deflater.setInput(b, off, length);
+    deflater.finish();
+    long limit = (long) (length * threshold);
+    while(!deflater.finished() && deflater.getTotalOut() < limit) deflater.deflate(scratch.output);
+    return deflater.getTotalOut() < limit;
+  }
+
+  @Override
+  public String toString() {
+    return "CompressibilityEstimator(sampleSize=" + sampleSize + ", threshold=" + threshold + ")";
+  }
+
+  /**
+   * スレッドごとの作業領域
+   */
+  private static final class Scratch {
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final byte[] output = new byte[8 * 1024];
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.utils.IOUtils;
+
+import com.github.narh.cipher.CipherStreamFactory;
+import com.github.narh.cipher.DirectBufferPool;
+import com.github.narh.cipher.Utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ディレクトリ配下のファイルを再帰的に1つの暗号化 ZIP アーカイブへまとめるアーカイバ
+ *
+ * 隠しファイルを除いたファイルを {@link Utils#getTree(File)} の順に ZIP へ書き込む。
+ * ファイルの読み込みは入出力スレッドで書き込み位置より先行して行い、
+ * 書き込みスレッドがエントリ間でディスクの読み込みを待たないようにする。
+ * 先読みは {@link #prefetch(int)} 件までとし、{@link #maxPrefetchSize(int)} を超えるファイルは
+ * 先読みせずに書き込み時に読み込む。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class DirectoryArchiver {
+
+  /** 既定の入出力スレッド数 */
+  public static final int DEFAULT_IO_THREADS        = 4;
+  /** 既定の先読み件数 */
+  public static final int DEFAULT_PREFETCH          = 16;
+  /** 既定の先読みするファイル長の上限 */
+  public static final int DEFAULT_MAX_PREFETCH_SIZE = 4 * 1024 * 1024;
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final CipherStreamFactory factory;
+  private final String profile;
+  private int ioThreads = DEFAULT_IO_THREADS;
+  private int prefetch = DEFAULT_PREFETCH;
+  private int maxPrefetchSize = DEFAULT_MAX_PREFETCH_SIZE;
+  private DirectBufferPool bufferPool = DirectBufferPool.getDefault();
+
+  /**
+   * @param factory 暗号化ストリームのファクトリ
+   * @param profile 暗号プロファイル名
+   */
+  public DirectoryArchiver(final CipherStreamFactory factory, final String profile) {
+    if(null == factory) throw new IllegalArgumentException("factory is null.");
+    factory.getProfile(profile);
+    this.factory = factory;
+    this.profile = profile;
+  }
+
+  /**
+   * 入出力スレッド数を設定する
+   * @param ioThreads スレッド数
+   * @return アーカイバ
+   */
+  public DirectoryArchiver ioThreads(final int ioThreads) {
+    if(1 > ioThreads) throw new IllegalArgumentException("io threads must be positive.");
+    this.ioThreads = ioThreads;
+    return this;
+  }
+
+  /**
+   * 先読み件数を設定する
+   * @param prefetch 書き込み位置より先に読み込むファイル数
+   * @return アーカイバ
+   */
+  public DirectoryArchiver prefetch(final int prefetch) {
+    if(1 > prefetch) throw new IllegalArgumentException("prefetch must be positive.");
+    this.prefetch = prefetch;
+    return this;
+  }
+
+  /**
+   * 先読みするファイル長の上限を設定する(先読みのメモリは最大で先読み件数 × 上限となる)
+   * @param maxPrefetchSize ファイル長の上限
+   * @return アーカイバ
+   */
+  public DirectoryArchiver maxPrefetchSize(final int maxPrefetchSize) {
+    if(0 > maxPrefetchSize) throw new IllegalArgumentException("max prefetch size must not be negative.");
+    this.maxPrefetchSize = maxPrefetchSize;
+    return this;
+  }
+
+  /**
+   * 先読みしないファイルの複写に使うバッファを借り出すプールを設定する
+   * @param bufferPool バッファのプール
+   * @return アーカイバ
+   */
+  public DirectoryArchiver bufferPool(final DirectBufferPool bufferPool) {
+    if(null == bufferPool) throw new IllegalArgumentException("buffer pool is null.");
+    this.bufferPool = bufferPool;
+    return this;
+  }
+
+  /**
+   * ディレクトリ配下のファイルをアーカイブし、暗号化して出力する
+   * @param root 対象ディレクトリ(エントリ名はこのディレクトリからの相対パス)
+   * @param outputStream 出力先(出力後に閉じる)
+   * @return アーカイブしたエントリ数
+   * @throws IOException 入出力例外
+   */
+  public int archive(final File root, final OutputStream outputStream) throws IOException {
+    if(null == root || !root.isDirectory()) throw new IllegalArgumentException("directory not found. [" + root + "]");
+    List<File> files = Utils.getTree(root);
+    String base = root.getAbsolutePath();
+    ExecutorService executor = Executors.newFixedThreadPool(ioThreads, new DaemonThreadFactory());
+    ArrayDeque<Future<byte[]>> window = new ArrayDeque<Future<byte[]>>(prefetch);
+    OutputStream archive = factory.getArchiveOutputStream(profile, outputStream);
+    ZipOutputStream zipOutputStream = factory.newZipOutputStream(profile, archive);
+    ByteBuffer lease = bufferPool.acquireHeap(COPY_BUFFER_SIZE);
+    boolean completed = false;
+    try {
+      byte[] buffer = lease.array();
+      int next = 0;
+      for(int i = 0; i < files.size(); i++) {
+        while(next < files.size() && window.size() < prefetch) window.add(executor.submit(read(files.get(next++))));
+        File file = files.get(i);
+        byte[] contents = get(window.poll());
+        ZipEntry entry = new ZipEntry(entryName(base, file));
+        entry.setTime(file.lastModified());
+        zipOutputStream.putNextEntry(entry);
+        if(null != contents) zipOutputStream.write(contents);
+        else copy(file, zipOutputStream, buffer);
+        zipOutputStream.closeEntry();
+      }
+      zipOutputStream.close();
+      completed = true;
+      if(log.isDebugEnabled()) log.debug("{} files archived from {}.", files.size(), root);
+      return files.size();
+    }
+    finally {
+      for(Future<byte[]> future : window) future.cancel(true);
+      executor.shutdownNow();
+      bufferPool.release(lease);
+      // 失敗時は中央ディレクトリを書き込まずに閉じる
+      if(!completed) IOUtils.closeQuietly(archive);
+    }
+  }
+
+  /**
+   * 先読みするファイルを読み込む処理(上限を超えるファイルは null とし書き込み時に読み込む)
+   */
+  private Callable<byte[]> read(final File file) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        if(file.length() > maxPrefetchSize) return null;
+        InputStream in = new FileInputStream(file);
+        try {
+          return IOUtils.toByteArray(in);
+        }
+        finally {
+          in.close();
+        }
+      }
+    };
+  }
+
+  private static byte[] get(final Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while reading files.");
+    }
+    catch (ExecutionException e) {
+      if(log.isErrorEnabled()) log.error(e.getCause().getLocalizedMessage(), e.getCause());
+      if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static void copy(final File file, final OutputStream out, final byte[] buffer) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      int length;
+      while(-1 != (length = in.read(buffer))) out.write(buffer, 0, length);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * 基準ディレクトリからの相対パスを ZIP のエントリ名とする
+   * ルートディレクトリのように基準が区切り文字で終わる場合も、区切り文字を除いて相対パスを求める。
+   */
+  static String entryName(final String base, final File file) {
+    String prefix = base.endsWith(File.separator) ? base.substring(0, base.length() - 1) : base;
+    return file.getAbsolutePath().substring(prefix.length() + 1).replace(File.separatorChar, '/');
+  }
+
+  /**
+   * 入出力スレッドを生成する
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable, "archive-prefetch-" + SEQUENCE.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
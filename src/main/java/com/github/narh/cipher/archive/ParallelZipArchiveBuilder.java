@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.ScatterStatistics;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.InputStreamSupplier;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStoreSupplier;
+import org.apache.commons.compress.utils.IOUtils;
+
+import com.github.narh.cipher.CipherStreamFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * エントリを複数スレッドで並行して圧縮し、暗号化した ZIP アーカイブを作成するビルダー
+ *
+ * 追加したエントリは {@link ParallelScatterZipCreator} により即座に圧縮を開始し、
+ * スレッドごとのスキャッタファイルへ書き込む。{@link #writeTo(OutputStream)} で全エントリの圧縮を待ち、
+ * スキャッタファイルを結合して {@link CipherStreamFactory} のプロファイルで暗号化して出力する。
+ * エントリはスキャッタファイル単位で結合するため、アーカイブ内の順序は追加順とはならない。
+ * 圧縮の効果の判定を有効にしたプロファイルでは、圧縮スレッドで先頭のサンプルを試験的に圧縮し、
+ * 効果がないエントリは無圧縮(STORED)で格納する。
+ * commons-compress 1.12 の {@link ParallelScatterZipCreator} は圧縮レベルを指定できないため、
+ * 圧縮するエントリは既定のレベルとなる。
+ * スキャッタファイルは成否によらず出力後に削除する。
+ *
+ * ビルダーは1つのアーカイブの作成にのみ利用でき、複数スレッドから同時に利用することはできない。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class ParallelZipArchiveBuilder {
+
+  /** 既定の圧縮スレッド数 */
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+  private final CipherStreamFactory factory;
+  private final String profile;
+  private int threads = DEFAULT_THREADS;
+  private File scatterDirectory;
+
+  private final boolean detectIncompressible;
+  private final CompressibilityEstimator estimator = CompressibilityEstimator.getDefault();
+  private final AtomicInteger storedEntries = new AtomicInteger();
+
+  private ParallelScatterZipCreator creator;
+  private ExecutorService executor;
+  private final List<ScatterGatherBackingStore> stores
+    = Collections.synchronizedList(new ArrayList<ScatterGatherBackingStore>());
+  private int entries = 0;
+  private boolean written = false;
+
+  /**
+   * @param factory 暗号化ストリームのファクトリ
+   * @param profile 暗号プロファイル名
+   */
+  public ParallelZipArchiveBuilder(final CipherStreamFactory factory, final String profile) {
+    if(null == factory) throw new IllegalArgumentException("factory is null.");
+    factory.getProfile(profile);
+    this.factory = factory;
+    this.profile = profile;
+    this.detectIncompressible = factory.getProfile(profile).isDetectIncompressible();
+  }
+
+  /**
+   * 圧縮スレッド数を設定する(エントリの追加前のみ)
+   * @param threads スレッド数
+   * @return ビルダー
+   */
+  public ParallelZipArchiveBuilder threads(final int threads) {
+    if(1 > threads) throw new IllegalArgumentException("threads must be positive.");
+    if(null != creator) throw new IllegalStateException("entries are already added.");
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * スキャッタファイルを作成するディレクトリを設定する(エントリの追加前のみ)
+   * @param scatterDirectory ディレクトリ(null の場合はシステムの一時ディレクトリ)
+   * @return ビルダー
+   */
+  public ParallelZipArchiveBuilder scatterDirectory(final File scatterDirectory) {
+    if(null != creator) throw new IllegalStateException("entries are already added.");
+    this.scatterDirectory = scatterDirectory;
+    return this;
+  }
+
+  /**
+   * ファイルをエントリとして追加する
+   * @param name エントリ名
+   * @param file 対象ファイル
+   * @return ビルダー
+   */
+  public ParallelZipArchiveBuilder addEntry(final String name, final File file) {
+    if(null == file || !file.isFile()) throw new IllegalArgumentException("file not found. [" + file + "]");
+    return addEntry(name, file.lastModified(), new InputStreamSupplier() {
+      @Override
+      public InputStream get() {
+        try {
+          return new FileInputStream(file);
+        }
+        catch (FileNotFoundException e) {
+          if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+          throw new IllegalArgumentException(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * データをエントリとして追加する
+   * @param name エントリ名
+   * @param contents 対象データ
+   * @return ビルダー
+   */
+  public ParallelZipArchiveBuilder addEntry(final String name, final byte[] contents) {
+    if(null == contents) throw new IllegalArgumentException("contents is null.");
+    return addEntry(name, System.currentTimeMillis(), new InputStreamSupplier() {
+      @Override
+      public InputStream get() {
+        return new ByteArrayInputStream(contents);
+      }
+    });
+  }
+
+  /**
+   * 圧縮スレッドで開く入力元をエントリとして追加する
+   * @param name エントリ名
+   * @param time 更新日時
+   * @param supplier 入力元(圧縮スレッドで取得し、読み込み後に閉じる)
+   * @return ビルダー
+   */
+  public ParallelZipArchiveBuilder addEntry(final String name, final long time, final InputStreamSupplier supplier) {
+    if(null == name || name.isEmpty() || null == supplier) throw new IllegalArgumentException("bad entry parameter.");
+    if(written) throw new IllegalStateException("archive is already written.");
+    final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+    entry.setMethod(ZipEntry.DEFLATED);
+    entry.setTime(time);
+    if(detectIncompressible) creator().submit(adaptive(entry, supplier));
+    else creator().addArchiveEntry(entry, supplier);
+    entries++;
+    return this;
+  }
+
+  /**
+   * @return 圧縮の効果がないため無圧縮で格納したエントリ数
+   */
+  public int getStoredEntries() {
+    return storedEntries.get();
+  }
+
+  /**
+   * 圧縮スレッドで先頭のサンプルから格納方式を決定してからエントリを圧縮する処理
+   */
+  private Callable<Object> adaptive(final ZipArchiveEntry entry, final InputStreamSupplier supplier) {
+    return new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        InputStream in = supplier.get();
+        byte[] sample = new byte[estimator.getSampleSize()];
+        int length;
+        try {
+          length = IOUtils.readFully(in, sample);
+        }
+        catch (IOException e) {
+          IOUtils.closeQuietly(in);
+          throw e;
+        }
+        if(!estimator.isCompressible(sample, 0, length)) {
+          entry.setMethod(ZipEntry.STORED);
+          storedEntries.incrementAndGet();
+        }
+        final InputStream payload = new SequenceInputStream(new ByteArrayInputStream(sample, 0, length), in);
+        return creator.createCallable(entry, new InputStreamSupplier() {
+          @Override
+          public InputStream get() {
+            return payload;
+          }
+        }).call();
+      }
+    };
+  }
+
+  /**
+   * 全エントリの圧縮を待ち、結合したアーカイブを暗号化して出力する
+   * @param outputStream 出力先(出力後に閉じる)
+   * @return 圧縮と結合の所要時間
+   * @throws IOException 入出力例外、またはエントリの圧縮に失敗した場合
+   */
+  public ScatterStatistics writeTo(final OutputStream outputStream) throws IOException {
+    if(written) throw new IllegalStateException("archive is already written.");
+    written = true;
+    OutputStream archive = factory.getArchiveOutputStream(profile, outputStream);
+    ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(archive);
+    try {
+      creator().writeTo(zipOutputStream);
+      zipOutputStream.close();
+      ScatterStatistics statistics = creator.getStatisticsMessage();
+      if(log.isDebugEnabled()) log.debug("{} entries archived. {}", entries, statistics);
+      return statistics;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while compressing entries.");
+    }
+    catch (ExecutionException e) {
+      if(log.isErrorEnabled()) log.error(e.getCause().getLocalizedMessage(), e.getCause());
+      if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+    finally {
+      shutdown();
+      // 失敗時は中央ディレクトリを書き込まずに閉じる
+      IOUtils.closeQuietly(archive);
+      synchronized(stores) {
+        for(ScatterGatherBackingStore store : stores) IOUtils.closeQuietly(store);
+        stores.clear();
+      }
+    }
+  }
+
+  /**
+   * 圧縮スレッドを停止し、スキャッタファイルを作成中のスレッドの終了を待つ
+   */
+  private void shutdown() {
+    executor.shutdownNow();
+    try {
+      if(!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS) && log.isWarnEnabled())
+        log.warn("zip scatter threads are not terminated.");
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private ParallelScatterZipCreator creator() {
+    if(null == creator) {
+      executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+      creator = new ParallelScatterZipCreator(executor, new ScatterGatherBackingStoreSupplier() {
+        @Override
+        public ScatterGatherBackingStore get() throws IOException {
+          File file = File.createTempFile("scatter", ".tmp", scatterDirectory);
+          ScatterGatherBackingStore store = new FileBasedScatterGatherBackingStore(file);
+          stores.add(store);
+          return store;
+        }
+      });
+    }
+    return creator;
+  }
+
+  /**
+   * 圧縮スレッドを生成する
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable, "zip-scatter-" + SEQUENCE.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.utils.IOUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 書き込みと出力先への転送を別スレッドで行う出力ストリーム
+ *
+ * 書き込まれたデータは {@link ChunkRingBuffer} のチャンクに詰めて公開し、
+ * 転送スレッドが出力先(暗号化ストリーム等)へ書き込む。
+ * ZIP の圧縮を書き込みスレッドで、暗号化と入出力を転送スレッドで行うことで
+ * 圧縮と暗号化を別のコアで並行して処理する。
+ * 空きチャンクがない場合は書き込みスレッドを待機させる。
+ *
+ * 出力先は転送スレッドからのみ操作し、{@link #close()} で転送の完了を待ってから閉じる。
+ * チャンクは {@link com.github.narh.cipher.DirectBufferPool} から借り出し、転送の完了後に返却する。
+ * {@link #flush()} は書き込み中のチャンクを公開するのみで、出力先のフラッシュは行わない。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class PipelinedOutputStream extends OutputStream {
+
+  /** 既定のチャンク長 */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  /** 既定のチャンク数 */
+  public static final int DEFAULT_CHUNKS     = 8;
+
+  private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+  private final OutputStream outputStream;
+  private final ChunkRingBuffer ring;
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private byte[] current;
+  private int position = 0;
+  private boolean closed = false;
+  private volatile IOException failure;
+
+  /**
+   * @param outputStream 出力先
+   */
+  public PipelinedOutputStream(final OutputStream outputStream) {
+    this(outputStream, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS, DEFAULT_EXECUTOR);
+  }
+
+  /**
+   * @param outputStream 出力先
+   * @param chunkSize チャンク長
+   * @param chunks チャンク数
+   * @param executor 転送スレッドを実行するエグゼキュータ
+   */
+  public PipelinedOutputStream(final OutputStream outputStream, final int chunkSize, final int chunks
+      , final Executor executor) {
+    if(null == outputStream || null == executor) throw new IllegalArgumentException("bad stream parameter.");
+    this.outputStream = outputStream;
+    this.ring = new ChunkRingBuffer(chunkSize, chunks);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        transfer();
+      }
+    });
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    ensureOpen();
+    if(null == current) current = claim();
+    current[position++] = (byte) b;
+    if(position == ring.getChunkSize()) publish();
+  }
+
+  @Override
+  public void write(final byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(final byte[] b, int off, int len) throws IOException {
+    if(0 > off || 0 > len || b.length - off < len) throw new IndexOutOfBoundsException();
+    ensureOpen();
+    while(0 < len) {
+      if(null == current) current = claim();
+      int length = Math.min(len, ring.getChunkSize() - position);
+      System.arraycopy(b, off, current, position, length);
+      position += length;
+      off += length;
+      len -= length;
+      if(position == ring.getChunkSize()) publish();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    if(0 < position) publish();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    try {
+      if(null == failure && 0 < position) publish();
+    }
+    finally {
+      ring.finish();
+    }
+    try {
+      done.await();
+    }
+    catch (InterruptedException e) {
+      // 転送スレッドがチャンクを参照している可能性があるため返却しない
+      ring.abort();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for the pipeline.");
+    }
+    current = null;
+    ring.release();
+    if(null != failure) throw failure;
+  }
+
+  private byte[] claim() throws IOException {
+    try {
+      return ring.claim();
+    }
+    catch (IOException e) {
+      if(null != failure) throw failure;
+      throw e;
+    }
+  }
+
+  private void publish() {
+    ring.publish(position);
+    current = null;
+    position = 0;
+  }
+
+  private void ensureOpen() throws IOException {
+    if(null != failure) throw failure;
+    if(closed) throw new IOException("stream closed.");
+  }
+
+  /**
+   * 公開されたチャンクを出力先へ書き込み、終了時に出力先を閉じる
+   */
+  private void transfer() {
+    try {
+      int length;
+      while(-1 != (length = ring.take())) {
+        outputStream.write(ring.head(), 0, length);
+        ring.free();
+      }
+      outputStream.close();
+    }
+    catch (IOException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      failure = e;
+      ring.abort();
+      IOUtils.closeQuietly(outputStream);
+    }
+    catch (RuntimeException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      failure = new IOException(e);
+      ring.abort();
+      IOUtils.closeQuietly(outputStream);
+    }
+    finally {
+      done.countDown();
+    }
+  }
+
+  /**
+   * 転送スレッドを生成する
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable, "cipher-pipeline-" + sequence.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
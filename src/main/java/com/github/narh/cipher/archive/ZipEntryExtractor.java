@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.github.narh.cipher.stream.SeekableCbcDecryptChannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 暗号化された ZIP アーカイブから指定したエントリのみを展開する
+ *
+ * {@link SeekableCbcDecryptChannel} でアーカイブ末尾の中央ディレクトリのみを復号化して読み込み、
+ * 指定したエントリのローカルヘッダの位置から圧縮データの範囲のみを復号化して展開する。
+ * アーカイブ全体を復号化しないため、大きなアーカイブからも1ファイルを短時間で取り出せる。
+ * ZIP64 形式の中央ディレクトリにも対応する。
+ *
+ * チャネルの読み込み位置を利用するため、複数スレッドから同時に利用することはできない。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class ZipEntryExtractor implements Closeable {
+
+  private static final int EOCD_SIGNATURE          = 0x06054b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_EOCD_SIGNATURE    = 0x06064b50;
+  private static final int CENTRAL_SIGNATURE       = 0x02014b50;
+  private static final int LOCAL_SIGNATURE         = 0x04034b50;
+  private static final int EOCD_LENGTH             = 22;
+  private static final int ZIP64_LOCATOR_LENGTH    = 20;
+  private static final int ZIP64_EOCD_LENGTH       = 56;
+  private static final int CENTRAL_HEADER_LENGTH   = 46;
+  private static final int LOCAL_HEADER_LENGTH     = 30;
+  private static final int MAX_COMMENT_LENGTH      = 0xffff;
+  private static final int ZIP64_EXTRA_ID          = 0x0001;
+  private static final long ZIP64_MAGIC            = 0xffffffffL;
+  private static final int BUFFER_SIZE             = 64 * 1024;
+
+  private final SeekableCbcDecryptChannel channel;
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+  /**
+   * アーカイブ末尾の中央ディレクトリを読み込む
+   * @param channel アーカイブの復号化チャネル(閉じる際に閉じる)
+   * @throws IOException 入出力例外、または ZIP 形式でない場合
+   */
+  public ZipEntryExtractor(final SeekableCbcDecryptChannel channel) throws IOException {
+    if(null == channel) throw new IllegalArgumentException("channel is null.");
+    this.channel = channel;
+    readCentralDirectory();
+    if(log.isDebugEnabled()) log.debug("{} entries found in central directory.", entries.size());
+  }
+
+  /**
+   * @return エントリ名の一覧(中央ディレクトリの順)
+   */
+  public List<String> getEntryNames() {
+    return new ArrayList<String>(entries.keySet());
+  }
+
+  /**
+   * 指定したエントリの展開後の長さを取得する
+   * @param name エントリ名
+   * @return 展開後の長さ
+   * @throws FileNotFoundException エントリがない場合
+   */
+  public long getSize(final String name) throws FileNotFoundException {
+    return entry(name).size;
+  }
+
+  /**
+   * 指定したエントリを展開して読み込む入力ストリームを取得する
+   * 読み込みの終端で CRC を検証する。
+   * @param name エントリ名
+   * @return 入力ストリーム
+   * @throws IOException 入出力例外、またはエントリがない場合
+   */
+  public InputStream getInputStream(final String name) throws IOException {
+    Entry entry = entry(name);
+    ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_LENGTH);
+    if(LOCAL_SIGNATURE != header.getInt(0)) throw new ZipException("bad local header. [" + name + "]");
+    long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_LENGTH
+        + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    InputStream raw = new BufferedInputStream(new RangeInputStream(dataOffset, entry.compressedSize), BUFFER_SIZE);
+    if(ZipEntry.STORED == entry.method) return new CheckedEntryInputStream(raw, null, entry);
+    if(ZipEntry.DEFLATED != entry.method)
+      throw new ZipException("not supported compression method " + entry.method + ". [" + name + "]");
+    Inflater inflater = new Inflater(true);
+    return new CheckedEntryInputStream(new InflaterInputStream(raw, inflater, BUFFER_SIZE), inflater, entry);
+  }
+
+  /**
+   * 指定したエントリを展開して出力する
+   * @param name エントリ名
+   * @param outputStream 出力先(閉じない)
+   * @return 展開したバイト数
+   * @throws IOException 入出力例外、またはエントリがない場合
+   */
+  public long extract(final String name, final OutputStream outputStream) throws IOException {
+    InputStream in = getInputStream(name);
+    long total = 0;
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while(-1 != (length = in.read(buffer))) {
+        outputStream.write(buffer, 0, length);
+        total += length;
+      }
+    }
+    finally {
+      in.close();
+    }
+    return total;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private Entry entry(final String name) throws FileNotFoundException {
+    Entry entry = entries.get(name);
+    if(null == entry) throw new FileNotFoundException("entry not found. [" + name + "]");
+    return entry;
+  }
+
+  /**
+   * 末尾から終端レコードを探し、中央ディレクトリのエントリを読み込む
+   */
+  private void readCentralDirectory() throws IOException {
+    long size = channel.size();
+    int tailLength = (int) Math.min(size, EOCD_LENGTH + MAX_COMMENT_LENGTH);
+    ByteBuffer tail = read(size - tailLength, tailLength);
+    int eocd = -1;
+    for(int i = tailLength - EOCD_LENGTH; i >= 0; i--) {
+      if(EOCD_SIGNATURE == tail.getInt(i)) {
+        eocd = i;
+        break;
+      }
+    }
+    if(0 > eocd) throw new ZipException("end of central directory not found.");
+    long eocdOffset = size - tailLength + eocd;
+    long count = tail.getShort(eocd + 10) & 0xffff;
+    long directorySize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+    long directoryOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+
+    if(ZIP64_LOCATOR_LENGTH <= eocdOffset) {
+      ByteBuffer locator = read(eocdOffset - ZIP64_LOCATOR_LENGTH, ZIP64_LOCATOR_LENGTH);
+      if(ZIP64_LOCATOR_SIGNATURE == locator.getInt(0)) {
+        ByteBuffer zip64 = read(locator.getLong(8), ZIP64_EOCD_LENGTH);
+        if(ZIP64_EOCD_SIGNATURE != zip64.getInt(0)) throw new ZipException("bad zip64 end of central directory.");
+        count = zip64.getLong(32);
+        directorySize = zip64.getLong(40);
+        directoryOffset = zip64.getLong(48);
+      }
+    }
+    if(Integer.MAX_VALUE < directorySize) throw new ZipException("central directory is too large.");
+
+    ByteBuffer directory = read(directoryOffset, (int) directorySize);
+    int position = 0;
+    for(long i = 0; i < count; i++) {
+      if(CENTRAL_SIGNATURE != directory.getInt(position)) throw new ZipException("bad central directory header.");
+      int method = directory.getShort(position + 10) & 0xffff;
+      long crc = directory.getInt(position + 16) & ZIP64_MAGIC;
+      long compressedSize = directory.getInt(position + 20) & ZIP64_MAGIC;
+      long entrySize = directory.getInt(position + 24) & ZIP64_MAGIC;
+      int nameLength = directory.getShort(position + 28) & 0xffff;
+      int extraLength = directory.getShort(position + 30) & 0xffff;
+      int commentLength = directory.getShort(position + 32) & 0xffff;
+      long localHeaderOffset = directory.getInt(position + 42) & ZIP64_MAGIC;
+      byte[] name = new byte[nameLength];
+      directory.position(position + CENTRAL_HEADER_LENGTH);
+      directory.get(name);
+
+      // ZIP64 拡張フィールドには上限値となった項目のみが、展開後の長さ、圧縮後の長さ、位置の順に格納される
+      int extra = position + CENTRAL_HEADER_LENGTH + nameLength;
+      int extraEnd = extra + extraLength;
+      while(extra + 4 <= extraEnd) {
+        int id = directory.getShort(extra) & 0xffff;
+        int length = directory.getShort(extra + 2) & 0xffff;
+        if(ZIP64_EXTRA_ID == id) {
+          int field = extra + 4;
+          if(ZIP64_MAGIC == entrySize) { entrySize = directory.getLong(field); field += 8; }
+          if(ZIP64_MAGIC == compressedSize) { compressedSize = directory.getLong(field); field += 8; }
+          if(ZIP64_MAGIC == localHeaderOffset) localHeaderOffset = directory.getLong(field);
+        }
+        extra += 4 + length;
+      }
+      entries.put(new String(name, "UTF-8")
+          , new Entry(method, crc, compressedSize, entrySize, localHeaderOffset));
+      position += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+    }
+  }
+
+  /**
+   * 平文の指定範囲を復号化して読み込む
+   */
+  private ByteBuffer read(final long offset, final int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    channel.position(offset);
+    while(buffer.hasRemaining()) {
+      if(-1 == channel.read(buffer)) throw new ZipException("unexpected end of archive.");
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * 中央ディレクトリのエントリ情報
+   */
+  private static final class Entry {
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localHeaderOffset;
+
+    private Entry(final int method, final long crc, final long compressedSize, final long size
+        , final long localHeaderOffset) {
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+
+  /**
+   * 圧縮データの範囲のみをチャネルから読み込む入力ストリーム
+   */
+  private final class RangeInputStream extends InputStream {
+    private long position;
+    private final long end;
+
+    private RangeInputStream(final long offset, final long length) {
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (-1 == read(b, 0, 1)) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if(position >= end) return -1;
+      if(0 == len) return 0;
+      channel.position(position);
+      int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)));
+      if(-1 == read) throw new ZipException("unexpected end of archive.");
+      position += read;
+      return read;
+    }
+  }
+
+  /**
+   * 展開したデータの長さと CRC を終端で検証する入力ストリーム
+   * 閉じる際に展開器のネイティブメモリを解放する。
+   */
+  private static final class CheckedEntryInputStream extends InputStream {
+    private final InputStream in;
+    /** 展開器(無圧縮の場合は null) */
+    private final Inflater inflater;
+    private final Entry entry;
+    private final CRC32 crc = new CRC32();
+    private long total = 0;
+
+    private CheckedEntryInputStream(final InputStream in, final Inflater inflater, final Entry entry) {
+      this.in = in;
+      this.inflater = inflater;
+      this.entry = entry;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (-1 == read(b, 0, 1)) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int read = in.read(b, off, len);
+      if(-1 == read) {
+        if(total != entry.size || crc.getValue() != entry.crc) throw new ZipException("crc or size mismatch.");
+        return -1;
+      }
+      crc.update(b, off, read);
+      total += read;
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        in.close();
+      }
+      finally {
+        // 指定した Inflater は InflaterInputStream#close() で解放されない
+        if(null != inflater) inflater.end();
+      }
+    }
+  }
+}
@@ -33,6 +33,7 @@ import java.security.NoSuchAlgorithmException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import com.github.narh.cipher.CipherAlgorithm;
 import com.github.narh.cipher.CipherContext;
 
 import lombok.Data;
@@ -51,11 +52,11 @@ public class AES256CBCCryptCommand extends AbstractAESCryptCommand implements Cr
   public boolean USE_MESSAGE_DIGEST         = false;
 
   /* (非 Javadoc)
-   * @see com.github.narh.cipher.command.AbstractAESCryptCommand#getEncodingMode()
+   * @see com.github.narh.cipher.command.AbstractAESCryptCommand#getAlgorithm()
    */
   @Override
-  protected String getEncodingMode() {
-    return ENCODING_MODE;
+  protected CipherAlgorithm getAlgorithm() {
+    return CipherAlgorithm.AES256CBC;
   }
 
   /* (非 Javadoc)
@@ -27,8 +27,12 @@
 
 package com.github.narh.cipher.command;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -36,13 +40,17 @@ import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.lang.ArrayUtils;
 
+import com.github.narh.cipher.CipherAlgorithm;
 import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+import com.github.narh.cipher.KeyDerivationService;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -51,9 +59,18 @@ import lombok.extern.slf4j.Slf4j;
  *
  */
 @Slf4j
-public abstract class AbstractAESCryptCommand implements CryptCommand {
+public abstract class AbstractAESCryptCommand implements StreamCryptCommand {
 
   public static final String PAYLOAD_STRING = "Salted__";
+  public static final int SALT_LENGTH       = 8;
+  public static final int HEADER_LENGTH     = 16;
+  public static final int BUFFER_SIZE       = 8192;
+
+  private static final byte[] PAYLOAD = {'S', 'a', 'l', 't', 'e', 'd', '_', '_'};
+
+  private CipherPool cipherPool = CipherPool.getDefault();
+  private KeyDerivationService keyDerivationService = KeyDerivationService.getDefault();
+  private DirectBufferPool bufferPool = DirectBufferPool.getDefault();
 
   /* (非 Javadoc)
    * @see com.github.narh.cipher.command.CryptCommand#encrypt(com.github.narh.cipher.CipherContext)
@@ -75,42 +92,219 @@ public abstract class AbstractAESCryptCommand implements CryptCommand {
     if(log.isDebugEnabled()) log.debug("AES256 decrypt result... {}", Hex.encodeHexString(context.getContents()));
   }
 
-  /**
-   * @param context
-   * @return
+  /* (非 Javadoc)
+   * @see com.github.narh.cipher.command.CryptCommand#getEncryptedLength(com.github.narh.cipher.CipherContext, int)
    */
-  private byte[] getGraph(final CipherContext context) {
+  public int getEncryptedLength(CipherContext context, int length) {
+    return HEADER_LENGTH + getAlgorithm().getOutputSize(length);
+  }
+
+  /* (非 Javadoc)
+   * @see com.github.narh.cipher.command.CryptCommand#encrypt(com.github.narh.cipher.CipherContext, java.nio.ByteBuffer, java.nio.ByteBuffer)
+   */
+  public int encrypt(CipherContext context, ByteBuffer source, ByteBuffer destination) {
+    if(null == context.getSalt() || SALT_LENGTH > context.getSalt().length)
+      throw new IllegalArgumentException("salt is empty or too short.");
+    if(destination.remaining() < getEncryptedLength(context, source.remaining()))
+      throw new IllegalArgumentException("destination buffer is too small.");
+    Cipher cipher = getCipher(context, CipherOperationMode.ENCRYPT);
     try {
-      Cipher cipher = getCipher();
-      cipher.init(context.getCryptMode().mode, getSecretKeySpec(context), getIvParameterSpec(context));
-      if(log.isDebugEnabled())
-        log.debug("===> AES256 passphrase:{}, iv:{}", new String(context.getPassphrase()), Hex.encodeHexString(context.getIv()));
+      int start = destination.position();
+      destination.put(PAYLOAD);
+      destination.put(context.getSalt(), 0, SALT_LENGTH);
+      cipher.doFinal(source, destination);
+      return destination.position() - start;
+    }
+    catch (ShortBufferException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (IllegalBlockSizeException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (BadPaddingException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    finally {
+      cipherPool.release(cipher);
+    }
+  }
 
-      byte[] origin;
-      if(null != context.getCryptMode() && Cipher.DECRYPT_MODE == context.getCryptMode().mode) {
-        int offset = PAYLOAD_STRING.getBytes().length + context.getSalt().length;
-        origin = Arrays.copyOfRange(context.getOrigin(), offset, context.getOrigin().length);
-        return (0 == origin.length) ? origin : cipher.doFinal(origin);
+  /* (非 Javadoc)
+   * @see com.github.narh.cipher.command.CryptCommand#decrypt(com.github.narh.cipher.CipherContext, java.nio.ByteBuffer, java.nio.ByteBuffer)
+   */
+  public int decrypt(CipherContext context, ByteBuffer source, ByteBuffer destination) {
+    CipherContext keyContext = validHeader(context, source, source.position());
+    source.position(source.position() + HEADER_LENGTH);
+    Cipher cipher = getCipher(keyContext, CipherOperationMode.DECRYPT);
+    try {
+      return cipher.doFinal(source, destination);
+    }
+    catch (ShortBufferException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (IllegalBlockSizeException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (BadPaddingException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    finally {
+      cipherPool.release(cipher);
+    }
+  }
+
+  /* (非 Javadoc)
+   * @see com.github.narh.cipher.command.CryptCommand#decrypt(com.github.narh.cipher.CipherContext, java.nio.ByteBuffer)
+   */
+  public int decrypt(CipherContext context, ByteBuffer buffer) {
+    int start = buffer.position();
+    CipherContext keyContext = validHeader(context, buffer, start);
+    int offset = start + HEADER_LENGTH;
+    int length = buffer.limit() - offset;
+    Cipher cipher = getCipher(keyContext, CipherOperationMode.DECRYPT);
+    try {
+      int written;
+      if(buffer.hasArray()) {
+        byte[] array = buffer.array();
+        int arrayOffset = buffer.arrayOffset() + offset;
+        written = cipher.doFinal(array, arrayOffset, length, array, arrayOffset);
       }
       else {
-        byte[] payload = PAYLOAD_STRING.getBytes();
-        byte[] header = ArrayUtils.addAll(payload, context.getSalt());
-        origin = ArrayUtils.addAll(header, cipher.doFinal(context.getOrigin()));
-        return origin;
+        ByteBuffer input = buffer.duplicate();
+        input.position(offset);
+        ByteBuffer output = buffer.duplicate();
+        output.position(offset);
+        written = cipher.doFinal(input, output);
       }
+      buffer.limit(offset + written);
+      buffer.position(offset);
+      return written;
     }
-    catch (NoSuchAlgorithmException e) {
+    catch (ShortBufferException e) {
       if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
       throw new IllegalArgumentException(e);
     }
-    catch (NoSuchPaddingException e) {
+    catch (IllegalBlockSizeException e) {
       if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
       throw new IllegalArgumentException(e);
     }
-    catch (InvalidKeyException e) {
+    catch (BadPaddingException e) {
       if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
       throw new IllegalArgumentException(e);
     }
+    finally {
+      cipherPool.release(cipher);
+    }
+  }
+
+  /**
+   * バッファの指定位置にある "Salted__" ヘッダを検証する
+   * コンテキストに SALT が設定されている場合は一致することも確認し、
+   * 設定されていない場合はヘッダの SALT で鍵を導出するコンテキストを返す。
+   * @param context 復号化コンテキスト
+   * @param buffer 暗号文のバッファ
+   * @param offset ヘッダの開始位置
+   * @return 鍵の導出に利用するコンテキスト
+   */
+  private CipherContext validHeader(final CipherContext context, final ByteBuffer buffer, final int offset) {
+    if(buffer.limit() - offset < HEADER_LENGTH)
+      throw new IllegalArgumentException("data size error.");
+    for(int i = 0; i < PAYLOAD.length; i++)
+      if(PAYLOAD[i] != buffer.get(offset + i))
+        throw new IllegalArgumentException("payload is not " + PAYLOAD_STRING + ".");
+    if(null == context.getSalt()) {
+      byte[] salt = new byte[SALT_LENGTH];
+      for(int i = 0; i < SALT_LENGTH; i++) salt[i] = buffer.get(offset + PAYLOAD.length + i);
+      return context.withSalt(salt);
+    }
+    for(int i = 0; i < SALT_LENGTH; i++)
+      if(context.getSalt()[i] != buffer.get(offset + PAYLOAD.length + i))
+        throw new IllegalArgumentException("salt is not match.");
+    return context;
+  }
+
+  /* (非 Javadoc)
+   * @see com.github.narh.cipher.command.StreamCryptCommand#encrypt(com.github.narh.cipher.CipherContext, java.io.InputStream, java.io.OutputStream)
+   */
+  public void encrypt(CipherContext context, InputStream source, OutputStream sink) throws IOException {
+    if(null == context.getSalt() || SALT_LENGTH > context.getSalt().length)
+      throw new IllegalArgumentException("salt is empty or too short.");
+    Cipher cipher = getCipher(context, CipherOperationMode.ENCRYPT);
+    try {
+      sink.write(PAYLOAD);
+      sink.write(context.getSalt(), 0, SALT_LENGTH);
+      transfer(cipher, source, sink);
+    }
+    finally {
+      cipherPool.release(cipher);
+    }
+  }
+
+  /* (非 Javadoc)
+   * @see com.github.narh.cipher.command.StreamCryptCommand#decrypt(com.github.narh.cipher.CipherContext, java.io.InputStream, java.io.OutputStream)
+   */
+  public void decrypt(CipherContext context, InputStream source, OutputStream sink) throws IOException {
+    byte[] header = new byte[HEADER_LENGTH];
+    readHeader(source, header);
+    CipherContext keyContext = validHeader(context, ByteBuffer.wrap(header), 0);
+    Cipher cipher = getCipher(keyContext, CipherOperationMode.DECRYPT);
+    try {
+      transfer(cipher, source, sink);
+    }
+    finally {
+      cipherPool.release(cipher);
+    }
+  }
+
+  /**
+   * ストリームより "Salted__" ヘッダを読み込む
+   * @param source 暗号文の入力ストリーム
+   * @param header ヘッダ格納先
+   * @throws IOException ヘッダ長に満たない場合
+   */
+  private void readHeader(final InputStream source, final byte[] header) throws IOException {
+    int offset = 0;
+    while(offset < header.length) {
+      int len = source.read(header, offset, header.length - offset);
+      if(0 > len) throw new EOFException("header is too short.");
+      offset += len;
+    }
+  }
+
+  /**
+   * プールから借り出した固定長のバッファで入力ストリームを暗号処理して出力する
+   * @param cipher 初期化済みの暗号器
+   * @param source 入力ストリーム
+   * @param sink 出力ストリーム
+   * @throws IOException 入出力例外
+   */
+  private void transfer(final Cipher cipher, final InputStream source, final OutputStream sink) throws IOException {
+    // パディング分を除いて読み込み、出力がバッファ長のサイズ区分を超えないようにする
+    int readLength = BUFFER_SIZE - CipherAlgorithm.BLOCK_SIZE * 2;
+    ByteBuffer inputLease = bufferPool.acquireHeap(readLength);
+    ByteBuffer outputLease = bufferPool.acquireHeap(cipher.getOutputSize(readLength));
+    byte[] input = inputLease.array();
+    byte[] output = outputLease.array();
+    try {
+      int len;
+      while((len = source.read(input, 0, readLength)) != -1) {
+        int written = cipher.update(input, 0, len, output, 0);
+        if(0 < written) sink.write(output, 0, written);
+      }
+      int written = cipher.doFinal(output, 0);
+      if(0 < written) sink.write(output, 0, written);
+      sink.flush();
+    }
+    catch (ShortBufferException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalStateException(e);
+    }
     catch (IllegalBlockSizeException e) {
       if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
       throw new IllegalArgumentException(e);
@@ -119,7 +313,26 @@ public abstract class AbstractAESCryptCommand implements CryptCommand {
       if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
       throw new IllegalArgumentException(e);
     }
-    catch (InvalidAlgorithmParameterException e) {
+    finally {
+      bufferPool.release(inputLease);
+      bufferPool.release(outputLease);
+    }
+  }
+
+  /**
+   * 指定したモードで初期化した暗号器をプールより取得する
+   * 鍵データが未設定で鍵導出方式が設定されている場合は、パスフレーズとSALTから導出する。
+   * 利用後は {@link CipherPool#release(Cipher)} で返却すること。
+   * @param context 暗号化コンテキスト
+   * @param operation 暗号化モード
+   * @return 初期化済みの暗号器
+   */
+  private Cipher getCipher(final CipherContext context, final CipherOperationMode operation) {
+    CipherContext keyContext = keyDerivationService.resolve(context, getAlgorithm());
+    try {
+      return cipherPool.borrow(getAlgorithm(), operation, getSecretKeySpec(keyContext), getIvParameterSpec(keyContext));
+    }
+    catch (GeneralSecurityException e) {
       if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
       throw new IllegalArgumentException(e);
     }
@@ -128,17 +341,76 @@ public abstract class AbstractAESCryptCommand implements CryptCommand {
   /**
    * @param context
    * @return
-   * @throws NoSuchPaddingException
-   * @throws NoSuchAlgorithmException
    */
-  private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
-    return Cipher.getInstance(getEncodingMode());
+  private byte[] getGraph(final CipherContext context) {
+    boolean decrypt = null != context.getCryptMode() && Cipher.DECRYPT_MODE == context.getCryptMode().mode;
+    Cipher cipher = getCipher(decrypt ? validHeader(context, ByteBuffer.wrap(context.getOrigin()), 0) : context
+        , context.getCryptMode());
+    try {
+      if(log.isDebugEnabled())
+        log.debug("===> AES256 passphrase:{}, iv:{}", new String(context.getPassphrase())
+            , null == context.getIv() ? context.getKeyDerivation() : Hex.encodeHexString(context.getIv()));
+
+      byte[] origin = context.getOrigin();
+      if(decrypt) {
+        int length = origin.length - HEADER_LENGTH;
+        return (0 == length) ? new byte[0] : cipher.doFinal(origin, HEADER_LENGTH, length);
+      }
+      else {
+        byte[] salt = context.getSalt();
+        int offset = PAYLOAD.length + salt.length;
+        byte[] contents = new byte[offset + cipher.getOutputSize(origin.length)];
+        System.arraycopy(PAYLOAD, 0, contents, 0, PAYLOAD.length);
+        System.arraycopy(salt, 0, contents, PAYLOAD.length, salt.length);
+        int written = cipher.doFinal(origin, 0, origin.length, contents, offset);
+        return (contents.length == offset + written) ? contents : Arrays.copyOf(contents, offset + written);
+      }
+    }
+    catch (ShortBufferException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (IllegalBlockSizeException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (BadPaddingException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    finally {
+      cipherPool.release(cipher);
+    }
+  }
+
+  /**
+   * 暗号器の取得に利用するプールを設定する
+   * @param cipherPool 暗号器プール
+   */
+  public void setCipherPool(final CipherPool cipherPool) {
+    this.cipherPool = cipherPool;
+  }
+
+  /**
+   * 鍵データの導出に利用するサービスを設定する
+   * @param keyDerivationService 鍵導出サービス
+   */
+  public void setKeyDerivationService(final KeyDerivationService keyDerivationService) {
+    this.keyDerivationService = keyDerivationService;
+  }
+
+  /**
+   * ストリームの暗号処理に利用するバッファのプールを設定する
+   * @param bufferPool バッファのプール
+   */
+  public void setBufferPool(final DirectBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
   }
 
   /**
    * @return
    */
-  protected abstract String getEncodingMode();
+  protected abstract CipherAlgorithm getAlgorithm();
 
   /**
    * @return
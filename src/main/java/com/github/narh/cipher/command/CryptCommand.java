@@ -27,6 +27,8 @@
 
 package com.github.narh.cipher.command;
 
+import java.nio.ByteBuffer;
+
 import com.github.narh.cipher.CipherContext;
 
 /**
@@ -46,4 +48,44 @@ public interface CryptCommand {
    * @param context 復号化対象データコンテキスト
    */
   public void decrypt(CipherContext context);
+
+  /**
+   * 暗号化後のデータ長("Salted__" ヘッダを含む)を取得する
+   * 出力バッファを事前に確保する場合に利用する。
+   * @param context 暗号化対象データコンテキスト
+   * @param length 平文のデータ長
+   * @return 暗号化後のデータ長
+   */
+  public int getEncryptedLength(CipherContext context, int length);
+
+  /**
+   * source の position から limit までを暗号化し、destination の position 以降へ
+   * "Salted__" ヘッダと暗号文を続けて書き込む
+   * ヒープ、ダイレクトいずれのバッファも利用でき、中間データは確保しない。
+   * @param context 暗号化対象データコンテキスト
+   * @param source 平文のバッファ
+   * @param destination 出力先バッファ({@link #getEncryptedLength} 以上の残りが必要)
+   * @return 書き込んだバイト数
+   */
+  public int encrypt(CipherContext context, ByteBuffer source, ByteBuffer destination);
+
+  /**
+   * source の position から始まる "Salted__" ヘッダ付きデータを復号化し、
+   * destination の position 以降へ平文を書き込む
+   * @param context 復号化対象データコンテキスト
+   * @param source 暗号文のバッファ
+   * @param destination 出力先バッファ
+   * @return 書き込んだバイト数
+   */
+  public int decrypt(CipherContext context, ByteBuffer source, ByteBuffer destination);
+
+  /**
+   * buffer の position から始まる "Salted__" ヘッダ付きデータを同じバッファ上で復号化する
+   * 平文はヘッダの直後から書き込まれ、復号後の buffer は position がヘッダ直後、
+   * limit が平文の終端を指す。
+   * @param context 復号化対象データコンテキスト
+   * @param buffer 暗号文のバッファ
+   * @return 平文のバイト数
+   */
+  public int decrypt(CipherContext context, ByteBuffer buffer);
 }
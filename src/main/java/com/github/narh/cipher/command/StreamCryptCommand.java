@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.narh.cipher.CipherContext;
+
+/**
+ * 入出力ストリームを対象とする暗号コマンド
+ *
+ * データ全体をメモリに保持せず、一定サイズのバッファで逐次処理する。
+ * "Salted__" ヘッダの書き込み・読み飛ばしはコマンド側で行う。
+ *
+ * @author narita
+ *
+ */
+public interface StreamCryptCommand extends CryptCommand {
+
+  /**
+   * 入力ストリームのデータを暗号化して出力ストリームへ書き込む
+   * @param context 暗号化コンテキスト(鍵、初期化ベクトル、SALT)
+   * @param source 平文の入力ストリーム
+   * @param sink 暗号文("Salted__" ヘッダ付き)の出力先
+   * @throws IOException 入出力例外
+   */
+  public void encrypt(CipherContext context, InputStream source, OutputStream sink) throws IOException;
+
+  /**
+   * "Salted__" ヘッダ付きの入力ストリームを復号化して出力ストリームへ書き込む
+   * @param context 復号化コンテキスト(鍵、初期化ベクトル、SALT)
+   * @param source 暗号文の入力ストリーム
+   * @param sink 平文の出力先
+   * @throws IOException 入出力例外
+   */
+  public void decrypt(CipherContext context, InputStream source, OutputStream sink) throws IOException;
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherPool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * データをセグメントに分割して複数スレッドで暗号処理するエンジンの基底クラス
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public abstract class AbstractParallelCipherEngine {
+
+  public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  protected final ExecutorService executor;
+  protected final int segmentSize;
+  protected CipherPool cipherPool = CipherPool.getDefault();
+
+  /** 自身で生成したスレッドプールか */
+  private final boolean ownExecutor;
+
+  /**
+   * @param executor セグメントを処理するスレッドプール(終了は呼び出し側で行う)
+   * @param segmentSize セグメント長(ブロック長の倍数)
+   */
+  protected AbstractParallelCipherEngine(final ExecutorService executor, final int segmentSize) {
+    if(null == executor) throw new IllegalArgumentException("executor is null.");
+    if(0 >= segmentSize || 0 != segmentSize % CipherAlgorithm.BLOCK_SIZE)
+      throw new IllegalArgumentException("segment size must be a multiple of " + CipherAlgorithm.BLOCK_SIZE + ".");
+    this.executor = executor;
+    this.segmentSize = segmentSize;
+    this.ownExecutor = false;
+  }
+
+  /**
+   * 指定したスレッド数のスレッドプールを生成する
+   * @param threads スレッド数
+   */
+  protected AbstractParallelCipherEngine(final int threads) {
+    if(1 > threads) throw new IllegalArgumentException("threads must be positive.");
+    this.executor = Executors.newFixedThreadPool(threads, new EngineThreadFactory(getClass().getSimpleName()));
+    this.segmentSize = DEFAULT_SEGMENT_SIZE;
+    this.ownExecutor = true;
+  }
+
+  /**
+   * 暗号器の取得に利用するプールを設定する
+   * @param cipherPool 暗号器プール
+   */
+  public void setCipherPool(final CipherPool cipherPool) {
+    this.cipherPool = cipherPool;
+  }
+
+  /**
+   * @return セグメント長
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * 自身で生成したスレッドプールを終了する
+   */
+  public void shutdown() {
+    if(ownExecutor) executor.shutdown();
+  }
+
+  /**
+   * すべてのタスクを実行し、完了を待つ
+   * いずれかのタスクが失敗した場合は、その原因となった例外を送出する。
+   * @param tasks タスク
+   * @throws IOException 入出力例外
+   */
+  protected void invokeAll(final List<? extends Callable<Void>> tasks) throws IOException {
+    try {
+      List<Future<Void>> futures = executor.invokeAll(tasks);
+      for(Future<Void> future : futures) future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted.");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException) throw (IOException) cause;
+      if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if(cause instanceof Error) throw (Error) cause;
+      if(log.isErrorEnabled()) log.error(cause.getLocalizedMessage(), cause);
+      if(cause instanceof GeneralSecurityException) throw new IllegalArgumentException(cause);
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * メモリ上のデータのみを扱うタスクを実行する
+   * @param tasks タスク
+   */
+  protected void invokeAllInMemory(final List<? extends Callable<Void>> tasks) {
+    try {
+      invokeAll(tasks);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * 指定位置からバッファが満たされるまで読み込む
+   * @param channel ファイルチャネル
+   * @param buffer 読み込み先
+   * @param position 読み込み開始位置
+   * @throws IOException 終端に達した場合
+   */
+  protected static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+      throws IOException {
+    long offset = position;
+    while(buffer.hasRemaining()) {
+      int len = channel.read(buffer, offset);
+      if(0 > len) throw new EOFException("unexpected end of file at " + offset + ".");
+      offset += len;
+    }
+  }
+
+  /**
+   * 指定位置へバッファの残りをすべて書き込む
+   * @param channel ファイルチャネル
+   * @param buffer 書き込むデータ
+   * @param position 書き込み開始位置
+   * @throws IOException 入出力例外
+   */
+  protected static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+      throws IOException {
+    long offset = position;
+    while(buffer.hasRemaining()) offset += channel.write(buffer, offset);
+  }
+
+  /**
+   * デーモンスレッドを生成するスレッドファクトリ
+   */
+  private static final class EngineThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    EngineThreadFactory(final String prefix) {
+      this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + "-" + sequence.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+import com.github.narh.cipher.KeyDerivationService;
+import com.github.narh.cipher.command.AbstractAESCryptCommand;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link FileChannel} とメモリマップによりファイルからファイルへ暗号化・復号化するエンジン
+ *
+ * 入力ファイルをウィンドウ長単位で {@link MappedByteBuffer} に割り当て、
+ * {@link Cipher#update(ByteBuffer, ByteBuffer)} で {@link DirectBufferPool} から借りたダイレクトバッファへ変換して
+ * 出力チャネルへ書き込む。
+ * ファイルの内容を Java ヒープ上の配列へ読み込まないため、大きなファイルでもヒープを消費しない。
+ *
+ * 暗号化では "Salted__" と SALT のヘッダを付与し、復号化ではヘッダを検証して読み飛ばす。
+ * セグメント単位の GCM 形式には対応しない。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class MappedFileCipherEngine {
+
+  /** 既定のマップするウィンドウ長 */
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+  /** 既定の1回の変換長(出力がプールの 1MiB のバッファに収まる長さ) */
+  public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024 - CipherAlgorithm.BLOCK_SIZE * 2;
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final int windowSize;
+  private final int bufferSize;
+
+  private CipherPool cipherPool = CipherPool.getDefault();
+  private DirectBufferPool bufferPool = DirectBufferPool.getDefault();
+  private KeyDerivationService keyDerivationService = KeyDerivationService.getDefault();
+
+  public MappedFileCipherEngine() {
+    this(DEFAULT_WINDOW_SIZE, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param windowSize 一度にマップするウィンドウ長
+   * @param bufferSize 1回の変換長(出力用ダイレクトバッファの大きさ)
+   */
+  public MappedFileCipherEngine(final int windowSize, final int bufferSize) {
+    if(1 > windowSize || 1 > bufferSize) throw new IllegalArgumentException("buffer size must be positive.");
+    this.windowSize = windowSize;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * 暗号器の取得に利用するプールを設定する
+   * @param cipherPool 暗号器プール
+   */
+  public void setCipherPool(final CipherPool cipherPool) {
+    this.cipherPool = cipherPool;
+  }
+
+  /**
+   * 出力バッファの取得に利用するプールを設定する
+   * @param bufferPool ダイレクトバッファのプール
+   */
+  public void setBufferPool(final DirectBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * 鍵データの導出に利用するサービスを設定する
+   * @param keyDerivationService 鍵導出サービス
+   */
+  public void setKeyDerivationService(final KeyDerivationService keyDerivationService) {
+    this.keyDerivationService = keyDerivationService;
+  }
+
+  /**
+   * ファイルを暗号化し、"Salted__" ヘッダ付きで別ファイルへ書き込む
+   * @param algorithm 暗号アルゴリズム
+   * @param context 暗号化コンテキスト(SALT、鍵、初期化ベクトル)
+   * @param source 平文のファイル
+   * @param destination 暗号文の出力先ファイル
+   * @return 出力したバイト数(ヘッダを含む)
+   * @throws IOException 入出力例外
+   */
+  public long encrypt(final CipherAlgorithm algorithm, final CipherContext context
+      , final File source, final File destination) throws IOException {
+    validAlgorithm(algorithm);
+    if(null == context.getSalt() || AbstractAESCryptCommand.SALT_LENGTH > context.getSalt().length)
+      throw new IllegalArgumentException("salt is empty or too short.");
+    Cipher cipher = getCipher(algorithm, context, CipherOperationMode.ENCRYPT);
+    FileInputStream in = null;
+    FileOutputStream out = null;
+    try {
+      in = new FileInputStream(source);
+      out = new FileOutputStream(destination);
+      FileChannel outChannel = out.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(AbstractAESCryptCommand.HEADER_LENGTH);
+      header.put(AbstractAESCryptCommand.PAYLOAD_STRING.getBytes());
+      header.put(context.getSalt(), 0, AbstractAESCryptCommand.SALT_LENGTH);
+      header.flip();
+      long written = drain(outChannel, header);
+      written += transfer(cipher, in.getChannel(), 0, outChannel);
+      if(log.isDebugEnabled()) log.debug("{} encrypted {} bytes to {}.", algorithm, written, destination);
+      return written;
+    }
+    finally {
+      cipherPool.release(cipher);
+      try {
+        if(null != out) out.close();
+      }
+      finally {
+        if(null != in) in.close();
+      }
+    }
+  }
+
+  /**
+   * "Salted__" ヘッダ付きのファイルを復号化して別ファイルへ書き込む
+   * @param algorithm 暗号アルゴリズム
+   * @param context 復号化コンテキスト(SALT、鍵、初期化ベクトル)
+   * @param source 暗号文のファイル
+   * @param destination 平文の出力先ファイル
+   * @return 平文のバイト数
+   * @throws IOException 入出力例外
+   */
+  public long decrypt(final CipherAlgorithm algorithm, final CipherContext context
+      , final File source, final File destination) throws IOException {
+    validAlgorithm(algorithm);
+    FileInputStream in = new FileInputStream(source);
+    FileOutputStream out = null;
+    Cipher cipher = null;
+    try {
+      FileChannel inChannel = in.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(AbstractAESCryptCommand.HEADER_LENGTH);
+      while(header.hasRemaining()) {
+        if(-1 == inChannel.read(header, header.position())) break;
+      }
+      CipherContext keyContext = validHeader(context, header);
+      out = new FileOutputStream(destination);
+      cipher = getCipher(algorithm, keyContext, CipherOperationMode.DECRYPT);
+      long written = transfer(cipher, inChannel, AbstractAESCryptCommand.HEADER_LENGTH, out.getChannel());
+      if(log.isDebugEnabled()) log.debug("{} decrypted {} bytes to {}.", algorithm, written, destination);
+      return written;
+    }
+    finally {
+      if(null != cipher) cipherPool.release(cipher);
+      if(null != out) out.close();
+      in.close();
+    }
+  }
+
+  /**
+   * 入力チャネルの指定位置から終端までを変換して出力チャネルへ書き込む
+   * @param cipher 初期化済みの暗号器
+   * @param in 入力チャネル
+   * @param position 変換を開始する位置
+   * @param out 出力チャネル
+   * @return 出力したバイト数
+   * @throws IOException 入出力例外
+   */
+  protected long transfer(final Cipher cipher, final FileChannel in, final long position, final FileChannel out)
+      throws IOException {
+    // 暗号器内に保留されたブロックとブロック境界への切り上げ分を加算する
+    ByteBuffer output = bufferPool.acquire(bufferSize + CipherAlgorithm.BLOCK_SIZE * 2);
+    long size = in.size();
+    long written = 0;
+    try {
+      for(long offset = position; offset < size; offset += windowSize) {
+        MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, size - offset));
+        while(window.position() < window.capacity()) {
+          window.limit(Math.min(window.position() + bufferSize, window.capacity()));
+          output.clear();
+          cipher.update(window, output);
+          output.flip();
+          written += drain(out, output);
+        }
+      }
+      output.clear();
+      cipher.doFinal(EMPTY.duplicate(), output);
+      output.flip();
+      written += drain(out, output);
+    }
+    catch (ShortBufferException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (IllegalBlockSizeException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (BadPaddingException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    finally {
+      bufferPool.release(output);
+    }
+    return written;
+  }
+
+  private Cipher getCipher(final CipherAlgorithm algorithm, final CipherContext context
+      , final CipherOperationMode operation) {
+    CipherContext keyContext = keyDerivationService.resolve(context, algorithm);
+    try {
+      return cipherPool.borrow(algorithm, operation, keyContext.getSecretKey(), keyContext.getIv());
+    }
+    catch (GeneralSecurityException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static long drain(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+    long written = 0;
+    while(buffer.hasRemaining()) written += channel.write(buffer);
+    return written;
+  }
+
+  private void validAlgorithm(final CipherAlgorithm algorithm) {
+    if(null == algorithm || algorithm.isSegmented())
+      throw new IllegalArgumentException("not supported algorithm (" + algorithm + ")");
+  }
+
+  private CipherContext validHeader(final CipherContext context, final ByteBuffer header) {
+    if(header.hasRemaining()
+        || !AbstractAESCryptCommand.PAYLOAD_STRING.equals(new String(header.array(), 0, 8)))
+      throw new IllegalArgumentException("payload is not " + AbstractAESCryptCommand.PAYLOAD_STRING + ".");
+    if(null == context.getSalt()) return context.withSalt(
+        Arrays.copyOfRange(header.array(), 8, AbstractAESCryptCommand.HEADER_LENGTH));
+    for(int i = 0; i < AbstractAESCryptCommand.SALT_LENGTH; i++) {
+      if(context.getSalt()[i] != header.get(AbstractAESCryptCommand.SALT_LENGTH + i))
+        throw new IllegalArgumentException("salt is not match.");
+    }
+    return context;
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.KeyDerivationService;
+import com.github.narh.cipher.command.AbstractAESCryptCommand;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * AES-CBC の暗号文を複数スレッドで復号化するエンジン
+ *
+ * CBC の復号は平文ブロックが直前の暗号文ブロックにのみ依存するため、
+ * 暗号文をブロック境界で分割し、各セグメントの直前の暗号文ブロックを
+ * 初期化ベクトルとして独立に復号化できる。
+ * 各セグメントはパディングなしで復号化し、PKCS#5 パディングは最終セグメントでのみ除去する。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class ParallelCbcDecryptEngine extends AbstractParallelCipherEngine {
+
+  public static final String PADDING = "NoPadding";
+
+  /**
+   * @param executor セグメントを処理するスレッドプール
+   * @param segmentSize セグメント長(ブロック長の倍数)
+   */
+  public ParallelCbcDecryptEngine(final ExecutorService executor, final int segmentSize) {
+    super(executor, segmentSize);
+  }
+
+  /**
+   * @param threads スレッド数
+   */
+  public ParallelCbcDecryptEngine(final int threads) {
+    super(threads);
+  }
+
+  /**
+   * "Salted__" ヘッダ付きのデータ(コンテキストの origin)を復号化し、コンテキストの contents に設定する
+   * @param algorithm CBC モードの暗号アルゴリズム
+   * @param context 復号化コンテキスト
+   */
+  public void decrypt(final CipherAlgorithm algorithm, final CipherContext context) {
+    byte[] origin = context.getOrigin();
+    CipherContext headerContext = validHeader(context, origin);
+    int length = origin.length - AbstractAESCryptCommand.HEADER_LENGTH;
+    byte[] contents = new byte[length];
+    CipherContext keyContext = KeyDerivationService.getDefault().resolve(headerContext, algorithm);
+    int written = decrypt(algorithm, keyContext.getSecretKey(), keyContext.getIv()
+        , origin, AbstractAESCryptCommand.HEADER_LENGTH, length, contents, 0);
+    context.setContents(Arrays.copyOf(contents, written));
+  }
+
+  /**
+   * 配列の暗号文を復号化する
+   * 出力先には暗号文長以上の領域が必要となる。
+   * 各セグメントは直前の暗号文ブロックを参照するため、入力と出力に同じ配列は指定できない。
+   * @param algorithm CBC モードの暗号アルゴリズム
+   * @param secretKey 鍵データ
+   * @param iv 初期化ベクトル
+   * @param input 暗号文
+   * @param inputOffset 暗号文の開始位置
+   * @param length 暗号文長(ブロック長の倍数)
+   * @param output 出力先
+   * @param outputOffset 出力先の開始位置
+   * @return パディングを除いた平文のバイト数
+   */
+  public int decrypt(final CipherAlgorithm algorithm, final byte[] secretKey, final byte[] iv
+      , final byte[] input, final int inputOffset, final int length, final byte[] output, final int outputOffset) {
+    validAlgorithm(algorithm);
+    validLength(length);
+    if(input == output) throw new IllegalArgumentException("input and output must be different arrays.");
+    final SecretKeySpec key = new SecretKeySpec(secretKey, algorithm.algorithm());
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(long offset = 0; offset < length; offset += segmentSize) {
+      final int position = (int) offset;
+      final int segmentLength = (int) Math.min(segmentSize, length - offset);
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          IvParameterSpec params = (0 == position) ? new IvParameterSpec(iv, 0, CipherAlgorithm.BLOCK_SIZE)
+              : new IvParameterSpec(input, inputOffset + position - CipherAlgorithm.BLOCK_SIZE, CipherAlgorithm.BLOCK_SIZE);
+          Cipher cipher = borrow(algorithm, key, params);
+          try {
+            cipher.doFinal(input, inputOffset + position, segmentLength, output, outputOffset + position);
+          }
+          finally {
+            cipherPool.release(cipher);
+          }
+          return null;
+        }
+      });
+    }
+    invokeAllInMemory(tasks);
+    return length - paddingLength(output, outputOffset + length - CipherAlgorithm.BLOCK_SIZE);
+  }
+
+  /**
+   * "Salted__" ヘッダ付きのファイルを復号化して別ファイルへ書き込む
+   * 復号化に失敗した場合は、検証前の平文を残さないよう出力先ファイルを削除する。
+   * @param algorithm CBC モードの暗号アルゴリズム
+   * @param context 復号化コンテキスト(鍵、初期化ベクトル)
+   * @param source 暗号文のファイル
+   * @param destination 平文の出力先ファイル
+   * @return 平文のバイト数
+   * @throws IOException 入出力例外
+   */
+  public long decrypt(final CipherAlgorithm algorithm, final CipherContext context
+      , final File source, final File destination) throws IOException {
+    validAlgorithm(algorithm);
+    RandomAccessFile in = null;
+    RandomAccessFile out = null;
+    boolean completed = false;
+    try {
+      in = new RandomAccessFile(source, "r");
+      out = new RandomAccessFile(destination, "rw");
+      final FileChannel inChannel = in.getChannel();
+      final FileChannel outChannel = out.getChannel();
+      byte[] header = new byte[AbstractAESCryptCommand.HEADER_LENGTH];
+      readFully(inChannel, ByteBuffer.wrap(header), 0);
+      CipherContext keyContext = KeyDerivationService.getDefault().resolve(validHeader(context, header), algorithm);
+      final SecretKeySpec key = new SecretKeySpec(keyContext.getSecretKey(), algorithm.algorithm());
+      final byte[] iv = keyContext.getIv();
+      final long base = AbstractAESCryptCommand.HEADER_LENGTH;
+      final long length = inChannel.size() - base;
+      validLength(length);
+      outChannel.truncate(length);
+
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for(long offset = 0; offset < length; offset += segmentSize) {
+        final long position = offset;
+        final int segmentLength = (int) Math.min(segmentSize, length - offset);
+        tasks.add(new Callable<Void>() {
+          public Void call() throws Exception {
+            int ivLength = (0 == position) ? 0 : CipherAlgorithm.BLOCK_SIZE;
+            byte[] buffer = new byte[ivLength + segmentLength];
+            readFully(inChannel, ByteBuffer.wrap(buffer), base + position - ivLength);
+            IvParameterSpec params = (0 == position) ? new IvParameterSpec(iv, 0, CipherAlgorithm.BLOCK_SIZE)
+                : new IvParameterSpec(buffer, 0, CipherAlgorithm.BLOCK_SIZE);
+            Cipher cipher = borrow(algorithm, key, params);
+            int written;
+            try {
+              written = cipher.doFinal(buffer, ivLength, segmentLength, buffer, 0);
+            }
+            finally {
+              cipherPool.release(cipher);
+            }
+            writeFully(outChannel, ByteBuffer.wrap(buffer, 0, written), position);
+            return null;
+          }
+        });
+      }
+      invokeAll(tasks);
+
+      byte[] last = new byte[CipherAlgorithm.BLOCK_SIZE];
+      readFully(outChannel, ByteBuffer.wrap(last), length - CipherAlgorithm.BLOCK_SIZE);
+      long plainLength = length - paddingLength(last, 0);
+      outChannel.truncate(plainLength);
+      completed = true;
+      if(log.isDebugEnabled()) log.debug("CBC decrypted {} bytes in {} segments.", plainLength, tasks.size());
+      return plainLength;
+    }
+    finally {
+      try {
+        if(null != out) out.close();
+      }
+      finally {
+        if(null != in) in.close();
+        if(!completed && null != out && !destination.delete() && log.isWarnEnabled())
+          log.warn("failed to delete {}.", destination);
+      }
+    }
+  }
+
+  /**
+   * パディングなしの CBC 暗号器をプールより借り出す(利用後は返却すること)
+   */
+  private Cipher borrow(final CipherAlgorithm algorithm, final SecretKeySpec key, final IvParameterSpec params)
+      throws GeneralSecurityException {
+    return cipherPool.borrow(algorithm, PADDING, CipherOperationMode.DECRYPT, key, params);
+  }
+
+  /**
+   * 最終ブロックの PKCS#5 パディングを検証してパディング長を取得する
+   * @param block 最終ブロック
+   * @param offset 最終ブロックの開始位置
+   * @return パディング長
+   */
+  private int paddingLength(final byte[] block, final int offset) {
+    int padding = block[offset + CipherAlgorithm.BLOCK_SIZE - 1] & 0xff;
+    boolean valid = (0 < padding && CipherAlgorithm.BLOCK_SIZE >= padding);
+    for(int i = CipherAlgorithm.BLOCK_SIZE - padding; valid && i < CipherAlgorithm.BLOCK_SIZE; i++)
+      valid = (padding == (block[offset + i] & 0xff));
+    if(!valid) throw new IllegalArgumentException("bad padding.");
+    return padding;
+  }
+
+  private void validAlgorithm(final CipherAlgorithm algorithm) {
+    if(!"CBC".equalsIgnoreCase(algorithm.mode()))
+      throw new IllegalArgumentException("not supported algorithm (" + algorithm + ")");
+  }
+
+  private void validLength(final long length) {
+    if(CipherAlgorithm.BLOCK_SIZE > length || 0 != length % CipherAlgorithm.BLOCK_SIZE)
+      throw new IllegalArgumentException("data size error.");
+  }
+
+  /**
+   * "Salted__" ヘッダを検証する
+   * コンテキストに SALT が設定されていない場合は、ヘッダの SALT で鍵を導出するコンテキストを返す。
+   * @param context 復号化コンテキスト
+   * @param header ヘッダを含むデータ
+   * @return 鍵の導出に利用するコンテキスト
+   */
+  private CipherContext validHeader(final CipherContext context, final byte[] header) {
+    if(null == header || AbstractAESCryptCommand.HEADER_LENGTH > header.length
+        || !AbstractAESCryptCommand.PAYLOAD_STRING.equals(new String(header, 0, 8)))
+      throw new IllegalArgumentException("payload is not " + AbstractAESCryptCommand.PAYLOAD_STRING + ".");
+    if(null != context.getSalt()) return context;
+    return context.withSalt(Arrays.copyOfRange(header, 8, AbstractAESCryptCommand.HEADER_LENGTH));
+  }
+}
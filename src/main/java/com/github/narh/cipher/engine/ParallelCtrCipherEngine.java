@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Cipher;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * AES-CTR を複数スレッドで処理するエンジン
+ *
+ * 入力を固定長のセグメントに分割し、セグメント先頭のブロック番号だけ
+ * 進めたカウンタで各セグメントを独立に暗号処理する。
+ * 出力は単一スレッドで CTR 処理した結果とバイト単位で一致する。
+ * CTR は暗号化と復号化が同じ処理となるため、いずれも {@link #process} を利用する。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class ParallelCtrCipherEngine extends AbstractParallelCipherEngine {
+
+  /**
+   * @param executor セグメントを処理するスレッドプール
+   * @param segmentSize セグメント長(ブロック長の倍数)
+   */
+  public ParallelCtrCipherEngine(final ExecutorService executor, final int segmentSize) {
+    super(executor, segmentSize);
+  }
+
+  /**
+   * @param threads スレッド数
+   */
+  public ParallelCtrCipherEngine(final int threads) {
+    super(threads);
+  }
+
+  /**
+   * 配列のデータを CTR 処理する
+   * @param algorithm CTR モードの暗号アルゴリズム
+   * @param secretKey 鍵データ
+   * @param iv 初期カウンタ
+   * @param input 入力データ
+   * @return 処理結果
+   */
+  public byte[] process(final CipherAlgorithm algorithm, final byte[] secretKey, final byte[] iv, final byte[] input) {
+    byte[] output = new byte[input.length];
+    process(algorithm, secretKey, iv, input, 0, input.length, output, 0);
+    return output;
+  }
+
+  /**
+   * 配列のデータを CTR 処理する
+   * 入力と出力に同じ配列を指定した場合は同じ位置に上書きする。
+   * @param algorithm CTR モードの暗号アルゴリズム
+   * @param secretKey 鍵データ
+   * @param iv 初期カウンタ
+   * @param input 入力データ
+   * @param inputOffset 入力データの開始位置
+   * @param length 処理するデータ長
+   * @param output 出力先
+   * @param outputOffset 出力先の開始位置
+   */
+  public void process(final CipherAlgorithm algorithm, final byte[] secretKey, final byte[] iv
+      , final byte[] input, final int inputOffset, final int length, final byte[] output, final int outputOffset) {
+    validAlgorithm(algorithm);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(long offset = 0; offset < length; offset += segmentSize) {
+      final int position = (int) offset;
+      final int segmentLength = (int) Math.min(segmentSize, length - offset);
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          Cipher cipher = cipherPool.borrow(algorithm, CipherOperationMode.ENCRYPT
+              , secretKey, counterAt(iv, position / CipherAlgorithm.BLOCK_SIZE));
+          try {
+            cipher.doFinal(input, inputOffset + position, segmentLength, output, outputOffset + position);
+          }
+          finally {
+            cipherPool.release(cipher);
+          }
+          return null;
+        }
+      });
+    }
+    invokeAllInMemory(tasks);
+  }
+
+  /**
+   * ファイルを CTR 処理して別ファイルへ書き込む
+   * 各セグメントは位置指定の読み書きで処理するため、ファイル全体をメモリに保持しない。
+   * @param algorithm CTR モードの暗号アルゴリズム
+   * @param secretKey 鍵データ
+   * @param iv 初期カウンタ
+   * @param source 入力ファイル
+   * @param destination 出力ファイル
+   * @throws IOException 入出力例外
+   */
+  public void process(final CipherAlgorithm algorithm, final byte[] secretKey, final byte[] iv
+      , final File source, final File destination) throws IOException {
+    validAlgorithm(algorithm);
+    RandomAccessFile in = new RandomAccessFile(source, "r");
+    RandomAccessFile out = new RandomAccessFile(destination, "rw");
+    try {
+      final FileChannel inChannel = in.getChannel();
+      final FileChannel outChannel = out.getChannel();
+      final long size = inChannel.size();
+      outChannel.truncate(size);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for(long offset = 0; offset < size; offset += segmentSize) {
+        final long position = offset;
+        final int segmentLength = (int) Math.min(segmentSize, size - offset);
+        tasks.add(new Callable<Void>() {
+          public Void call() throws Exception {
+            byte[] buffer = new byte[segmentLength];
+            readFully(inChannel, ByteBuffer.wrap(buffer), position);
+            Cipher cipher = cipherPool.borrow(algorithm, CipherOperationMode.ENCRYPT
+                , secretKey, counterAt(iv, position / CipherAlgorithm.BLOCK_SIZE));
+            try {
+              cipher.doFinal(buffer, 0, segmentLength, buffer, 0);
+            }
+            finally {
+              cipherPool.release(cipher);
+            }
+            writeFully(outChannel, ByteBuffer.wrap(buffer), position);
+            return null;
+          }
+        });
+      }
+      invokeAll(tasks);
+      if(log.isDebugEnabled()) log.debug("CTR processed {} bytes in {} segments.", size, tasks.size());
+    }
+    finally {
+      out.close();
+      in.close();
+    }
+  }
+
+  /**
+   * 初期カウンタを指定したブロック数だけ進めたカウンタを取得する
+   * カウンタは 128bit のビッグエンディアン整数として桁上がりする。
+   * @param iv 初期カウンタ
+   * @param blocks 進めるブロック数
+   * @return カウンタ
+   */
+  public static byte[] counterAt(final byte[] iv, final long blocks) {
+    byte[] counter = new byte[CipherAlgorithm.BLOCK_SIZE];
+    System.arraycopy(iv, 0, counter, 0, CipherAlgorithm.BLOCK_SIZE);
+    long carry = blocks;
+    for(int i = counter.length - 1; 0 <= i && 0 != carry; i--) {
+      long sum = (counter[i] & 0xffL) + (carry & 0xffL);
+      counter[i] = (byte) sum;
+      carry = (carry >>> 8) + (sum >>> 8);
+    }
+    return counter;
+  }
+
+  private void validAlgorithm(final CipherAlgorithm algorithm) {
+    if(!"CTR".equalsIgnoreCase(algorithm.mode()))
+      throw new IllegalArgumentException("not supported algorithm (" + algorithm + ")");
+  }
+}
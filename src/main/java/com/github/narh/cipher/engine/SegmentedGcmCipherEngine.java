@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import com.github.narh.cipher.SegmentedGcmCipher;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * セグメント単位の AES-GCM 形式を複数スレッドで暗号化・復号化するエンジン
+ *
+ * 各セグメントは独立した nonce と認証タグを持つため、セグメントごとに並列処理できる。
+ * 暗号化時の平文セグメント長はエンジンのセグメント長、復号化時はヘッダの値を利用する。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class SegmentedGcmCipherEngine extends AbstractParallelCipherEngine {
+
+  /**
+   * @param executor セグメントを処理するスレッドプール
+   * @param segmentSize 暗号化時の平文セグメント長(ブロック長の倍数)
+   */
+  public SegmentedGcmCipherEngine(final ExecutorService executor, final int segmentSize) {
+    super(executor, segmentSize);
+  }
+
+  /**
+   * @param threads スレッド数
+   */
+  public SegmentedGcmCipherEngine(final int threads) {
+    super(threads);
+  }
+
+  /**
+   * 配列のデータを暗号化する
+   * @param secretKey 鍵データ
+   * @param input 平文
+   * @return ヘッダ付きの暗号文
+   */
+  public byte[] encrypt(final byte[] secretKey, final byte[] input) {
+    final SegmentedGcmCipher cipher = SegmentedGcmCipher.forEncryption(secretKey, segmentSize);
+    final byte[] output = new byte[(int) cipher.getEncryptedLength(input.length)];
+    System.arraycopy(cipher.getHeader(), 0, output, 0, SegmentedGcmCipher.HEADER_LENGTH);
+    final long segments = cipher.getSegmentCount(input.length);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(long i = 0; i < segments; i++) {
+      final long index = i;
+      final int position = (int) (index * segmentSize);
+      final int length = Math.min(segmentSize, input.length - position);
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          cipher.copy().encryptSegment(index, index == segments - 1, input, position, length
+              , output, SegmentedGcmCipher.HEADER_LENGTH + (int) (index * cipher.getEncryptedSegmentSize()));
+          return null;
+        }
+      });
+    }
+    invokeAllInMemory(tasks);
+    return output;
+  }
+
+  /**
+   * ヘッダ付きの暗号文を復号化する
+   * @param secretKey 鍵データ
+   * @param input ヘッダ付きの暗号文
+   * @return 平文
+   */
+  public byte[] decrypt(final byte[] secretKey, final byte[] input) {
+    final SegmentedGcmCipher cipher = SegmentedGcmCipher.forDecryption(secretKey, input);
+    final long length = input.length - SegmentedGcmCipher.HEADER_LENGTH;
+    final long segments = segmentCount(cipher, length);
+    final byte[] output = new byte[(int) (length - segments * SegmentedGcmCipher.TAG_LENGTH)];
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(long i = 0; i < segments; i++) {
+      final long index = i;
+      final int position = SegmentedGcmCipher.HEADER_LENGTH + (int) (index * cipher.getEncryptedSegmentSize());
+      final int segmentLength = Math.min(cipher.getEncryptedSegmentSize(), input.length - position);
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          cipher.copy().decryptSegment(index, index == segments - 1, input, position, segmentLength
+              , output, (int) (index * cipher.getSegmentSize()));
+          return null;
+        }
+      });
+    }
+    invokeAllInMemory(tasks);
+    return output;
+  }
+
+  /**
+   * ファイルを暗号化して別ファイルへ書き込む
+   * @param secretKey 鍵データ
+   * @param source 平文のファイル
+   * @param destination 暗号文の出力先ファイル
+   * @throws IOException 入出力例外
+   */
+  public void encrypt(final byte[] secretKey, final File source, final File destination) throws IOException {
+    final SegmentedGcmCipher cipher = SegmentedGcmCipher.forEncryption(secretKey, segmentSize);
+    RandomAccessFile in = new RandomAccessFile(source, "r");
+    RandomAccessFile out = new RandomAccessFile(destination, "rw");
+    try {
+      final FileChannel inChannel = in.getChannel();
+      final FileChannel outChannel = out.getChannel();
+      final long size = inChannel.size();
+      final long segments = cipher.getSegmentCount(size);
+      outChannel.truncate(cipher.getEncryptedLength(size));
+      writeFully(outChannel, ByteBuffer.wrap(cipher.getHeader()), 0);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for(long i = 0; i < segments; i++) {
+        final long index = i;
+        final long position = index * segmentSize;
+        final int length = (int) Math.min(segmentSize, size - position);
+        tasks.add(new Callable<Void>() {
+          public Void call() throws Exception {
+            byte[] buffer = new byte[cipher.getEncryptedSegmentSize()];
+            readFully(inChannel, ByteBuffer.wrap(buffer, 0, length), position);
+            int written = cipher.copy().encryptSegment(index, index == segments - 1, buffer, 0, length, buffer, 0);
+            writeFully(outChannel, ByteBuffer.wrap(buffer, 0, written)
+                , SegmentedGcmCipher.HEADER_LENGTH + index * cipher.getEncryptedSegmentSize());
+            return null;
+          }
+        });
+      }
+      invokeAll(tasks);
+      if(log.isDebugEnabled()) log.debug("GCM encrypted {} bytes in {} segments.", size, segments);
+    }
+    finally {
+      out.close();
+      in.close();
+    }
+  }
+
+  /**
+   * ヘッダ付きの暗号文ファイルを復号化して別ファイルへ書き込む
+   * 認証に失敗した場合は、未認証のセグメントを含む出力先ファイルを削除する。
+   * @param secretKey 鍵データ
+   * @param source 暗号文のファイル
+   * @param destination 平文の出力先ファイル
+   * @return 平文のバイト数
+   * @throws IOException 入出力例外
+   */
+  public long decrypt(final byte[] secretKey, final File source, final File destination) throws IOException {
+    RandomAccessFile in = null;
+    RandomAccessFile out = null;
+    boolean completed = false;
+    try {
+      in = new RandomAccessFile(source, "r");
+      out = new RandomAccessFile(destination, "rw");
+      final FileChannel inChannel = in.getChannel();
+      final FileChannel outChannel = out.getChannel();
+      byte[] header = new byte[SegmentedGcmCipher.HEADER_LENGTH];
+      readFully(inChannel, ByteBuffer.wrap(header), 0);
+      final SegmentedGcmCipher cipher = SegmentedGcmCipher.forDecryption(secretKey, header);
+      final long size = inChannel.size();
+      final long length = size - SegmentedGcmCipher.HEADER_LENGTH;
+      final long segments = segmentCount(cipher, length);
+      final long plainLength = length - segments * SegmentedGcmCipher.TAG_LENGTH;
+      outChannel.truncate(plainLength);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for(long i = 0; i < segments; i++) {
+        final long index = i;
+        final long position = SegmentedGcmCipher.HEADER_LENGTH + index * cipher.getEncryptedSegmentSize();
+        final int segmentLength = (int) Math.min(cipher.getEncryptedSegmentSize(), size - position);
+        tasks.add(new Callable<Void>() {
+          public Void call() throws Exception {
+            byte[] buffer = new byte[segmentLength];
+            readFully(inChannel, ByteBuffer.wrap(buffer), position);
+            int written = cipher.copy().decryptSegment(index, index == segments - 1, buffer, 0, segmentLength, buffer, 0);
+            writeFully(outChannel, ByteBuffer.wrap(buffer, 0, written), index * cipher.getSegmentSize());
+            return null;
+          }
+        });
+      }
+      invokeAll(tasks);
+      completed = true;
+      return plainLength;
+    }
+    finally {
+      try {
+        if(null != out) out.close();
+      }
+      finally {
+        if(null != in) in.close();
+        if(!completed && null != out && !destination.delete() && log.isWarnEnabled())
+          log.warn("failed to delete {}.", destination);
+      }
+    }
+  }
+
+  /**
+   * 暗号文長(ヘッダを除く)からセグメント数を取得する
+   */
+  private long segmentCount(final SegmentedGcmCipher cipher, final long length) {
+    if(SegmentedGcmCipher.TAG_LENGTH > length) throw new IllegalArgumentException("data size error.");
+    long segments = (length + cipher.getEncryptedSegmentSize() - 1) / cipher.getEncryptedSegmentSize();
+    long last = length - (segments - 1) * cipher.getEncryptedSegmentSize();
+    if(SegmentedGcmCipher.TAG_LENGTH > last) throw new IllegalArgumentException("data size error.");
+    return segments;
+  }
+}
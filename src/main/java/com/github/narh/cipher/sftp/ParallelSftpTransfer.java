@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ファイルをバイト範囲に分割し、複数の SFTP チャネルで並列に転送する
+ *
+ * 単一チャネルの転送はチャネルのウィンドウサイズで頭打ちになるため、
+ * 範囲ごとに {@link SftpSessionPool} から別のチャネルを借り出して同時に転送する。
+ *
+ * <dl>
+ * <dt>アップロード</dt>
+ * <dd>SFTP(JSch)では既存ファイルを切り詰めずに任意の位置へ書き込むことができないため、
+ * 範囲ごとに分割ファイル(転送先 + {@link #PART_SUFFIX} + 連番)へ {@link ChannelSftp#RESUME} で書き込み、
+ * 範囲の構成をマニフェスト(転送先 + {@link #MANIFEST_SUFFIX})に記録する。
+ * 中断した場合は、同じ長さと更新日時のファイルであればマニフェストの構成を再利用し、
+ * 完了した範囲を飛ばして、途中の範囲は書き込み済みの位置から再開する。</dd>
+ * <dt>ダウンロード</dt>
+ * <dd>単一のファイル、またはアップロードした分割ファイルの組から、範囲ごとに位置を指定して読み込み、
+ * ローカルファイルの対応する位置へ書き込む。
+ * 完了した範囲はジャーナル(転送先 + {@link #JOURNAL_SUFFIX})に記録し、中断した場合は未完了の範囲のみ転送する。
+ * 完了するとジャーナルを削除する。</dd>
+ * </dl>
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class ParallelSftpTransfer {
+
+  public static final int DEFAULT_STREAMS     = 4;
+  public static final long DEFAULT_RANGE_SIZE = 32 * 1024 * 1024L;
+  public static final String PART_SUFFIX      = ".part";
+  public static final String MANIFEST_SUFFIX  = ".parts";
+  public static final String JOURNAL_SUFFIX   = ".ranges";
+
+  private static final String SIZE_KEY          = "size";
+  private static final String RANGE_SIZE_KEY    = "rangeSize";
+  private static final String LAST_MODIFIED_KEY = "lastModified";
+  private static final String COMPLETED_KEY     = "completed";
+  private static final int BUFFER_SIZE          = 64 * 1024;
+
+  private final SftpSessionPool pool;
+  private final SftpEndpoint endpoint;
+  private int streams = DEFAULT_STREAMS;
+  private long rangeSize = DEFAULT_RANGE_SIZE;
+
+  /**
+   * @param pool チャネルを借り出すプール(接続先ごとの上限は並列数以上とする)
+   * @param endpoint 接続先
+   */
+  public ParallelSftpTransfer(final SftpSessionPool pool, final SftpEndpoint endpoint) {
+    if(null == pool || null == endpoint) throw new IllegalArgumentException("bad transfer parameter.");
+    this.pool = pool;
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * 並列に転送するチャネル数を設定する
+   * @param streams チャネル数
+   * @return this
+   */
+  public ParallelSftpTransfer streams(final int streams) {
+    if(1 > streams) throw new IllegalArgumentException("streams must be positive.");
+    this.streams = streams;
+    return this;
+  }
+
+  /**
+   * 範囲の長さを設定する(中断したアップロードの再開時はマニフェストの値を優先する)
+   * @param rangeSize 範囲の長さ
+   * @return this
+   */
+  public ParallelSftpTransfer rangeSize(final long rangeSize) {
+    if(1 > rangeSize) throw new IllegalArgumentException("rangeSize must be positive.");
+    this.rangeSize = rangeSize;
+    return this;
+  }
+
+  /**
+   * 分割ファイルの名前を取得する
+   * @param remote 転送先
+   * @param index 範囲の番号
+   * @return 分割ファイルの名前
+   */
+  public static String partName(final String remote, final int index) {
+    return remote + PART_SUFFIX + String.format("%05d", index);
+  }
+
+  /**
+   * ファイルを範囲ごとに分割ファイルとして並列にアップロードする
+   * @param source 転送元のファイル
+   * @param destination 転送先
+   * @return 転送の結果
+   * @throws IOException 入出力例外、または転送に失敗した場合
+   */
+  public TransferStatistics upload(final File source, final String destination) throws IOException {
+    if(!source.isFile()) throw new FileNotFoundException(source.getPath());
+    long start = System.currentTimeMillis();
+    final long size = source.length();
+    String manifestName = destination + MANIFEST_SUFFIX;
+    Properties manifest = readRemote(manifestName);
+    if(null == manifest || size != number(manifest, SIZE_KEY)
+        || source.lastModified() != number(manifest, LAST_MODIFIED_KEY)) {
+      if(null != manifest) removeParts(destination, number(manifest, SIZE_KEY), number(manifest, RANGE_SIZE_KEY));
+      manifest = new Properties();
+      manifest.setProperty(SIZE_KEY, String.valueOf(size));
+      manifest.setProperty(RANGE_SIZE_KEY, String.valueOf(rangeSize));
+      manifest.setProperty(LAST_MODIFIED_KEY, String.valueOf(source.lastModified()));
+      writeRemote(manifestName, manifest);
+    }
+    else if(log.isInfoEnabled()) {
+      log.info("resume upload {} from manifest.", destination);
+    }
+
+    final RandomAccessFile file = new RandomAccessFile(source, "r");
+    try {
+      List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+      for(final Range range : ranges(size, number(manifest, RANGE_SIZE_KEY), destination, true)) {
+        tasks.add(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            return upload(file.getChannel(), range);
+          }
+        });
+      }
+      return run(tasks, size, start);
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  /**
+   * 単一のファイル、または分割ファイルの組を範囲ごとに並列にダウンロードする
+   * @param source 転送元(分割ファイルの組の場合はアップロード時の転送先)
+   * @param destination 転送先のファイル
+   * @return 転送の結果
+   * @throws IOException 入出力例外、または転送に失敗した場合
+   */
+  public TransferStatistics download(final String source, final File destination) throws IOException {
+    long start = System.currentTimeMillis();
+    Properties manifest = readRemote(source + MANIFEST_SUFFIX);
+    boolean parted = null != manifest;
+    long size = parted ? number(manifest, SIZE_KEY) : remoteSize(source);
+    long layout = parted ? number(manifest, RANGE_SIZE_KEY) : rangeSize;
+    if(0 > size) throw new FileNotFoundException(source);
+
+    final File journalFile = new File(destination.getPath() + JOURNAL_SUFFIX);
+    final Properties journal = new Properties();
+    final Set<Integer> completed = new TreeSet<Integer>();
+    if(journalFile.isFile() && destination.isFile()) {
+      Properties previous = load(journalFile);
+      if(size == number(previous, SIZE_KEY) && layout == number(previous, RANGE_SIZE_KEY)) {
+        for(String index : previous.getProperty(COMPLETED_KEY, "").split(",")) {
+          if(!index.isEmpty()) completed.add(Integer.valueOf(index));
+        }
+        if(log.isInfoEnabled()) log.info("resume download {} from {} ranges.", source, completed.size());
+      }
+    }
+    journal.setProperty(SIZE_KEY, String.valueOf(size));
+    journal.setProperty(RANGE_SIZE_KEY, String.valueOf(layout));
+    journal.setProperty(COMPLETED_KEY, join(completed));
+    store(journal, journalFile);
+
+    final RandomAccessFile file = new RandomAccessFile(destination, "rw");
+    try {
+      file.setLength(size);
+      List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+      for(final Range range : ranges(size, layout, source, parted)) {
+        if(completed.contains(range.index)) {
+          tasks.add(null);
+          continue;
+        }
+        tasks.add(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            long length = download(range, file.getChannel());
+            // 範囲のデータを永続化してから完了を記録し、障害後の再開で未書き込みの範囲を完了扱いにしない
+            file.getChannel().force(false);
+            synchronized(journal) {
+              completed.add(range.index);
+              journal.setProperty(COMPLETED_KEY, join(completed));
+              store(journal, journalFile);
+            }
+            return length;
+          }
+        });
+      }
+      TransferStatistics statistics = run(tasks, size, start);
+      file.getFD().sync();
+      journalFile.delete();
+      return statistics;
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  /**
+   * 範囲を分割ファイルへ書き込む
+   * @return 転送したバイト数(完了済みの場合は 0)
+   */
+  private long upload(final FileChannel file, final Range range) throws IOException {
+    PooledSftpChannel sftp = borrow();
+    boolean succeeded = false;
+    try {
+      ChannelSftp channel = sftp.getChannel();
+      long written = size(channel, range.remotePath);
+      if(range.length == written) {
+        succeeded = true;
+        return 0;
+      }
+      if(range.length < written) {
+        channel.rm(range.remotePath);
+        written = 0;
+      }
+      // RESUME は書き込み済みの長さだけ入力を読み飛ばして追記する
+      channel.put(new RangeInputStream(file, range.offset, range.length), range.remotePath, ChannelSftp.RESUME);
+      if(range.length != size(channel, range.remotePath))
+        throw new IOException("part size mismatch. [" + range.remotePath + "]");
+      succeeded = true;
+      if(log.isDebugEnabled()) log.debug("{} uploaded from {}.", range.remotePath, Math.max(written, 0));
+      return range.length - Math.max(written, 0);
+    }
+    catch (SftpException e) {
+      throw new IOException(e.getLocalizedMessage() + " [" + range.remotePath + "]", e);
+    }
+    finally {
+      if(succeeded) sftp.close();
+      else sftp.invalidate();
+    }
+  }
+
+  /**
+   * 範囲を位置を指定して読み込み、ローカルファイルの対応する位置へ書き込む
+   * @return 転送したバイト数
+   */
+  private long download(final Range range, final FileChannel file) throws IOException {
+    PooledSftpChannel sftp = borrow();
+    boolean succeeded = false;
+    try {
+      InputStream in = sftp.getChannel().get(range.remotePath, null, range.remoteOffset);
+      try {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, range.length)];
+        long position = 0;
+        while(position < range.length) {
+          int length = in.read(buffer, 0, (int) Math.min(buffer.length, range.length - position));
+          if(-1 == length) throw new IOException("unexpected end of file. [" + range.remotePath + "]");
+          ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+          while(data.hasRemaining()) file.write(data, range.offset + position + data.position());
+          position += length;
+        }
+      }
+      finally {
+        in.close();
+      }
+      succeeded = true;
+      return range.length;
+    }
+    catch (SftpException e) {
+      throw new IOException(e.getLocalizedMessage() + " [" + range.remotePath + "]", e);
+    }
+    finally {
+      if(succeeded) sftp.close();
+      else sftp.invalidate();
+    }
+  }
+
+  /**
+   * 範囲ごとの転送を並列に実行する(null の要素は完了済みの範囲)
+   */
+  private TransferStatistics run(final List<Callable<Long>> tasks, final long size, final long start)
+      throws IOException {
+    int threads = Math.max(1, Math.min(streams, tasks.size()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+    try {
+      List<Future<Long>> futures = new ArrayList<Future<Long>>();
+      for(Callable<Long> task : tasks) {
+        if(null != task) futures.add(executor.submit(task));
+      }
+      int transferred = 0;
+      long bytes = 0;
+      for(Future<Long> future : futures) {
+        long length = future.get();
+        if(0 < length) transferred++;
+        bytes += length;
+      }
+      TransferStatistics statistics = new TransferStatistics(tasks.size(), transferred
+          , tasks.size() - transferred, size, bytes, System.currentTimeMillis() - start);
+      if(log.isInfoEnabled()) log.info("{} {}", endpoint.getHost(), statistics);
+      return statistics;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("transfer interrupted.", e);
+    }
+    catch (ExecutionException e) {
+      if(log.isErrorEnabled()) log.error(e.getCause().getLocalizedMessage(), e.getCause());
+      if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<Range> ranges(final long size, final long layout, final String remote, final boolean parted) {
+    List<Range> ranges = new ArrayList<Range>();
+    for(long offset = 0; offset < size; offset += layout) {
+      int index = ranges.size();
+      ranges.add(new Range(index, offset, Math.min(layout, size - offset)
+          , parted ? partName(remote, index) : remote, parted ? 0 : offset));
+    }
+    return ranges;
+  }
+
+  private void removeParts(final String destination, final long size, final long layout) throws IOException {
+    if(0 >= layout) return;
+    PooledSftpChannel sftp = borrow();
+    try {
+      for(Range range : ranges(size, layout, destination, true)) {
+        if(0 <= size(sftp.getChannel(), range.remotePath)) sftp.getChannel().rm(range.remotePath);
+      }
+    }
+    catch (SftpException e) {
+      throw new IOException(e.getLocalizedMessage() + " [" + destination + "]", e);
+    }
+    finally {
+      sftp.close();
+    }
+  }
+
+  private long remoteSize(final String path) throws IOException {
+    PooledSftpChannel sftp = borrow();
+    try {
+      return size(sftp.getChannel(), path);
+    }
+    catch (SftpException e) {
+      throw new IOException(e.getLocalizedMessage() + " [" + path + "]", e);
+    }
+    finally {
+      sftp.close();
+    }
+  }
+
+  private Properties readRemote(final String path) throws IOException {
+    PooledSftpChannel sftp = borrow();
+    try {
+      if(0 > size(sftp.getChannel(), path)) return null;
+      InputStream in = sftp.getChannel().get(path);
+      try {
+        Properties prop = new Properties();
+        prop.load(in);
+        return prop;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (SftpException e) {
+      throw new IOException(e.getLocalizedMessage() + " [" + path + "]", e);
+    }
+    finally {
+      sftp.close();
+    }
+  }
+
+  private void writeRemote(final String path, final Properties prop) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    prop.store(out, null);
+    PooledSftpChannel sftp = borrow();
+    try {
+      sftp.getChannel().put(new ByteArrayInputStream(out.toByteArray()), path, ChannelSftp.OVERWRITE);
+    }
+    catch (SftpException e) {
+      throw new IOException(e.getLocalizedMessage() + " [" + path + "]", e);
+    }
+    finally {
+      sftp.close();
+    }
+  }
+
+  private PooledSftpChannel borrow() throws IOException {
+    try {
+      return pool.borrow(endpoint);
+    }
+    catch (JSchException e) {
+      throw new IOException(e.getLocalizedMessage(), e);
+    }
+  }
+
+  /**
+   * @return リモートファイルの長さ(存在しない場合は -1)
+   */
+  private static long size(final ChannelSftp channel, final String path) throws SftpException {
+    try {
+      return channel.stat(path).getSize();
+    }
+    catch (SftpException e) {
+      if(ChannelSftp.SSH_FX_NO_SUCH_FILE == e.id) return -1;
+      throw e;
+    }
+  }
+
+  private static long number(final Properties prop, final String key) {
+    try {
+      return Long.parseLong(prop.getProperty(key, "-1").trim());
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String join(final Set<Integer> values) {
+    StringBuilder builder = new StringBuilder();
+    for(Integer value : values) {
+      if(0 < builder.length()) builder.append(',');
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  private static Properties load(final File file) throws IOException {
+    Properties prop = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      prop.load(in);
+    }
+    finally {
+      in.close();
+    }
+    return prop;
+  }
+
+  private static void store(final Properties prop, final File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      prop.store(out, null);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * 転送するバイト範囲
+   */
+  private static final class Range {
+    private final int index;
+    private final long offset;
+    private final long length;
+    private final String remotePath;
+    private final long remoteOffset;
+
+    private Range(final int index, final long offset, final long length, final String remotePath
+        , final long remoteOffset) {
+      this.index = index;
+      this.offset = offset;
+      this.length = length;
+      this.remotePath = remotePath;
+      this.remoteOffset = remoteOffset;
+    }
+  }
+
+  /**
+   * ファイルの範囲を位置指定で読み込む入力ストリーム(スレッド間でチャネルを共有する)
+   */
+  private static final class RangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    private RangeInputStream(final FileChannel channel, final long offset, final long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (-1 == read(b, 0, 1)) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if(position >= end) return -1;
+      if(0 == len) return 0;
+      int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+      if(-1 == read) throw new IOException("file truncated while uploading.");
+      position += read;
+      return read;
+    }
+
+    @Override
+    public long skip(final long n) {
+      long skipped = Math.max(0, Math.min(n, end - position));
+      position += skipped;
+      return skipped;
+    }
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable, "sftp-transfer-" + SEQUENCE.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
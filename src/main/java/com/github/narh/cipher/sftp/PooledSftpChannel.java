@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import java.io.Closeable;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+
+/**
+ * {@link SftpSessionPool} から借り出した認証済みのセッションと SFTP チャネル
+ *
+ * 閉じるとチャネルを切断せずにプールへ返却する。
+ * 転送中に例外が発生してチャネルの状態が不明になった場合は {@link #invalidate()} で破棄する。
+ *
+ * @author narita
+ *
+ */
+public class PooledSftpChannel implements Closeable {
+
+  private final SftpSessionPool pool;
+  private final SftpEndpoint endpoint;
+  private final Session session;
+  private final ChannelSftp channel;
+  private final long createdTime;
+  private volatile long lastUsedTime;
+  private volatile boolean borrowed = false;
+
+  PooledSftpChannel(final SftpSessionPool pool, final SftpEndpoint endpoint, final Session session
+      , final ChannelSftp channel) {
+    this.pool = pool;
+    this.endpoint = endpoint;
+    this.session = session;
+    this.channel = channel;
+    this.createdTime = System.currentTimeMillis();
+    this.lastUsedTime = createdTime;
+  }
+
+  /**
+   * @return 接続先
+   */
+  public SftpEndpoint getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * @return 接続済みの SFTP チャネル
+   */
+  public ChannelSftp getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return 認証済みのセッション
+   */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * @return 接続した時刻
+   */
+  public long getCreatedTime() {
+    return createdTime;
+  }
+
+  /**
+   * @return 最後に返却した時刻
+   */
+  public long getLastUsedTime() {
+    return lastUsedTime;
+  }
+
+  /**
+   * @return セッションとチャネルが接続されている場合は true
+   */
+  public boolean isConnected() {
+    return session.isConnected() && channel.isConnected() && !channel.isClosed();
+  }
+
+  /**
+   * チャネルを破棄してプールから取り除く
+   */
+  public void invalidate() {
+    pool.invalidate(this);
+  }
+
+  /**
+   * プールへ返却する(二重の返却は無視する)
+   */
+  @Override
+  public void close() {
+    pool.release(this);
+  }
+
+  boolean isBorrowed() {
+    return borrowed;
+  }
+
+  void setBorrowed(final boolean borrowed) {
+    this.borrowed = borrowed;
+    if(!borrowed) lastUsedTime = System.currentTimeMillis();
+  }
+
+  /**
+   * チャネルとセッションを切断する
+   */
+  void disconnect() {
+    channel.disconnect();
+    session.disconnect();
+  }
+}
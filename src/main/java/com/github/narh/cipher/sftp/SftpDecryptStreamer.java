@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.KeyDerivationService;
+import com.github.narh.cipher.stream.BufferedCipherInputStream;
+import com.github.narh.cipher.stream.OpenSSLDecryptInputStream;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SFTP サーバ上の "Salted__" 形式の暗号化ファイルを、一時ファイルを作らずに復号化して出力する
+ *
+ * {@link ChannelSftp#get(String)} の入力ストリームを {@link OpenSSLDecryptInputStream} で復号化しながら読み込み、
+ * バッファ長単位で出力先(サーブレットのレスポンス等)へ書き込む。
+ * 利用するメモリは JSch の先読みと復号化および転送のバッファ分のみで、ファイル長に依存しない。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class SftpDecryptStreamer {
+
+  public static final int DEFAULT_BUFFER_SIZE = BufferedCipherInputStream.DEFAULT_BUFFER_SIZE;
+
+  private final SftpSessionPool pool;
+  private final SftpEndpoint endpoint;
+  private final CipherAlgorithm algorithm;
+  private final CipherContext context;
+  private String directory = null;
+  private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+  /**
+   * @param pool チャネルを借り出すプール
+   * @param endpoint 接続先
+   * @param algorithm 暗号アルゴリズム(CBC または CTR)
+   * @param context パスフレーズと鍵導出方式を設定したコンテキスト(SALT はヘッダの値を利用する)
+   */
+  public SftpDecryptStreamer(final SftpSessionPool pool, final SftpEndpoint endpoint
+      , final CipherAlgorithm algorithm, final CipherContext context) {
+    if(null == pool || null == endpoint || null == algorithm || algorithm.isSegmented() || null == context
+        || null == context.getPassphrase() || null == context.getKeyDerivation())
+      throw new IllegalArgumentException("bad streamer parameter.");
+    this.pool = pool;
+    this.endpoint = endpoint;
+    this.algorithm = algorithm;
+    this.context = context;
+  }
+
+  /**
+   * 暗号化ファイルを配置したディレクトリを設定する
+   * @param directory リモートのディレクトリ(null の場合はログイン時のディレクトリ)
+   * @return this
+   */
+  public SftpDecryptStreamer directory(final String directory) {
+    this.directory = directory;
+    return this;
+  }
+
+  /**
+   * 復号化と転送のバッファ長を設定する
+   * @param bufferSize バッファ長
+   * @return this
+   */
+  public SftpDecryptStreamer bufferSize(final int bufferSize) {
+    if(1 > bufferSize) throw new IllegalArgumentException("bufferSize must be positive.");
+    this.bufferSize = bufferSize;
+    return this;
+  }
+
+  /**
+   * 暗号化ファイルを復号化しながら読み込む入力ストリームを開く
+   * 閉じるとチャネルをプールへ返却し、読み込みに失敗していた場合は破棄する。
+   * @param name ファイル名(ディレクトリの区切りを含まない)
+   * @return 平文の入力ストリーム
+   * @throws FileNotFoundException ファイルが存在しない場合
+   * @throws IOException 接続に失敗した場合
+   */
+  public InputStream openStream(final String name) throws IOException {
+    String path = path(name);
+    PooledSftpChannel sftp;
+    try {
+      sftp = pool.borrow(endpoint);
+    }
+    catch (JSchException e) {
+      throw new IOException(e.getLocalizedMessage(), e);
+    }
+    InputStream encrypted;
+    try {
+      encrypted = sftp.getChannel().get(path);
+    }
+    catch (SftpException e) {
+      if(ChannelSftp.SSH_FX_NO_SUCH_FILE == e.id) {
+        sftp.close();
+        throw new FileNotFoundException(path);
+      }
+      sftp.invalidate();
+      throw new IOException(e.getLocalizedMessage() + " [" + path + "]", e);
+    }
+    boolean opened = false;
+    try {
+      InputStream decrypted = new OpenSSLDecryptInputStream(new ChannelInputStream(encrypted, sftp), algorithm
+          , context, bufferSize, CipherPool.getDefault(), KeyDerivationService.getDefault());
+      opened = true;
+      return decrypted;
+    }
+    finally {
+      // 復号化ストリームを返せない場合は閉じる手段がないためチャネルごと破棄する
+      if(!opened) sftp.invalidate();
+    }
+  }
+
+  /**
+   * 暗号化ファイルを復号化しながら出力先へ書き込む
+   * @param name ファイル名(ディレクトリの区切りを含まない)
+   * @param outputStream 出力先(閉じない)
+   * @return 書き込んだ平文のバイト数
+   * @throws FileNotFoundException ファイルが存在しない場合(出力先へは何も書き込まない)
+   * @throws IOException 転送、復号化に失敗した場合
+   */
+  public long copyTo(final String name, final OutputStream outputStream) throws IOException {
+    long start = System.currentTimeMillis();
+    InputStream in = openStream(name);
+    long total = 0;
+    try {
+      byte[] buffer = new byte[bufferSize];
+      int length;
+      while(-1 != (length = in.read(buffer))) {
+        outputStream.write(buffer, 0, length);
+        total += length;
+      }
+    }
+    finally {
+      in.close();
+    }
+    if(log.isInfoEnabled())
+      log.info("{} decrypted {} bytes in {} ms.", name, total, System.currentTimeMillis() - start);
+    return total;
+  }
+
+  /**
+   * 参照できるファイル名か判定する
+   * 空、"." で始まる名前、ディレクトリの区切りおよび制御文字(CR/LF を含む)を含む名前は参照できない。
+   * @param name ファイル名
+   * @return 参照できる場合は true
+   */
+  public static boolean isValidName(final String name) {
+    if(null == name || name.isEmpty() || name.startsWith(".")) return false;
+    for(int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if('/' == c || '\\' == c || Character.isISOControl(c)) return false;
+    }
+    return true;
+  }
+
+  private String path(final String name) {
+    if(!isValidName(name)) throw new IllegalArgumentException("bad file name. [" + name + "]");
+    return (null == directory) ? name : directory + "/" + name;
+  }
+
+  /**
+   * 閉じる際にチャネルをプールへ返却する入力ストリーム
+   */
+  private static final class ChannelInputStream extends FilterInputStream {
+    private final PooledSftpChannel sftp;
+    private boolean failed = false;
+
+    private ChannelInputStream(final InputStream in, final PooledSftpChannel sftp) {
+      super(in);
+      this.sftp = sftp;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return super.read();
+      }
+      catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      try {
+        return super.read(b, off, len);
+      }
+      catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      }
+      catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+      finally {
+        if(failed) sftp.invalidate();
+        else sftp.close();
+      }
+    }
+  }
+}
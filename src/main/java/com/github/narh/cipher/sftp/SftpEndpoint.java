@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.ToString;
+
+/**
+ * SFTP の接続先と認証情報
+ *
+ * {@link SftpSessionPool} はこの値が等しい接続先ごとにセッションをプールする。
+ * ホスト鍵は {@link #knownHostsFile} で検証し、未設定の場合は接続できない。
+ *
+ * @author narita
+ *
+ */
+@Data @Builder
+@ToString(exclude = { "password", "identityPassphrase" })
+public class SftpEndpoint {
+  public static final int DEFAULT_PORT = 22;
+
+  /** ホスト名 */
+  private final String host;
+  /** ポート番号 */
+  @Builder.Default
+  private final int port = DEFAULT_PORT;
+  /** ログインユーザ */
+  private final String user;
+  /** パスワード(公開鍵認証のみの場合は null) */
+  private final String password;
+  /** 秘密鍵ファイル(パスワード認証のみの場合は null) */
+  private final String identityFile;
+  /** 秘密鍵のパスフレーズ */
+  private final byte[] identityPassphrase;
+  /** known_hosts ファイル(ホスト鍵の検証に必須) */
+  private final String knownHostsFile;
+  /**
+   * ホスト鍵を検証せずに接続する場合は true(テスト専用、中間者攻撃を防げない)
+   */
+  @Builder.Default
+  private final boolean insecureSkipHostKeyVerification = false;
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ZIP → 暗号化 → SFTP の連結に向けた SFTP 書き込みストリーム
+ *
+ * 書き込みをバッチサイズまで溜めてから JSch の書き込みストリームへ渡す。
+ * JSch は渡されたデータを最大パケット長の WRITE 要求に分割して応答を待たずに送信し、
+ * 応答は flush 時にまとめて確認するため、flush しない限り複数の要求が送信中のまま転送が進む。
+ *
+ * 上流の ZIP ストリームや暗号化ストリームからの {@link #flush()} は無視し、
+ * 応答の確認はエントリやファイルの境界で呼び出す {@link #sync()} と {@link #close()} でのみ行う。
+ * 転送したバイト数と転送速度を取得できる。
+ *
+ * <pre>
+ * SftpOutputStream sink = SftpOutputStream.open(pool, endpoint, "archive.zip.enc");
+ * ZipOutputStream zip = factory.getZipOutputStream("archive", sink);
+ * ...
+ * zip.close();
+ * log.info("{} bytes/sec", sink.getBytesPerSecond());
+ * </pre>
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class SftpOutputStream extends OutputStream {
+
+  public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+
+  private final OutputStream out;
+  private final String remote;
+  private final PooledSftpChannel pooled;
+  private final byte[] buffer;
+  private int count = 0;
+
+  private final long startTime = System.nanoTime();
+  private long bytes = 0;
+  private long batches = 0;
+  private long syncs = 0;
+  private long elapsedNanos = -1;
+  private boolean failed = false;
+  private boolean closed = false;
+
+  /**
+   * @param channel 接続済みの SFTP チャネル(閉じない)
+   * @param remote 書き込み先
+   * @throws IOException 書き込み先を開けない場合
+   */
+  public SftpOutputStream(final ChannelSftp channel, final String remote) throws IOException {
+    this(channel, remote, ChannelSftp.OVERWRITE, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param channel 接続済みの SFTP チャネル(閉じない)
+   * @param remote 書き込み先
+   * @param mode {@link ChannelSftp#OVERWRITE}, {@link ChannelSftp#RESUME}, {@link ChannelSftp#APPEND}
+   * @param batchSize JSch へ渡す単位
+   * @throws IOException 書き込み先を開けない場合
+   */
+  public SftpOutputStream(final ChannelSftp channel, final String remote, final int mode, final int batchSize)
+      throws IOException {
+    this(channel, remote, mode, batchSize, null);
+  }
+
+  private SftpOutputStream(final ChannelSftp channel, final String remote, final int mode, final int batchSize
+      , final PooledSftpChannel pooled) throws IOException {
+    if(null == channel || null == remote || 1 > batchSize) throw new IllegalArgumentException("bad sink parameter.");
+    this.remote = remote;
+    this.pooled = pooled;
+    this.buffer = new byte[batchSize];
+    try {
+      this.out = channel.put(remote, mode);
+    }
+    catch (SftpException e) {
+      throw new IOException(e.getLocalizedMessage() + " [" + remote + "]", e);
+    }
+  }
+
+  /**
+   * プールから借り出したチャネルで書き込む
+   * 閉じるとチャネルを返却し、書き込みに失敗していた場合は破棄する。
+   * @param pool チャネルのプール
+   * @param endpoint 接続先
+   * @param remote 書き込み先
+   * @return 書き込みストリーム
+   * @throws IOException 接続できない場合、または書き込み先を開けない場合
+   */
+  public static SftpOutputStream open(final SftpSessionPool pool, final SftpEndpoint endpoint, final String remote)
+      throws IOException {
+    PooledSftpChannel sftp;
+    try {
+      sftp = pool.borrow(endpoint);
+    }
+    catch (JSchException e) {
+      throw new IOException(e.getLocalizedMessage(), e);
+    }
+    try {
+      return new SftpOutputStream(sftp.getChannel(), remote, ChannelSftp.OVERWRITE, DEFAULT_BATCH_SIZE, sftp);
+    }
+    catch (IOException e) {
+      sftp.invalidate();
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    ensureOpen();
+    if(count == buffer.length) send();
+    buffer[count++] = (byte) b;
+    bytes++;
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    ensureOpen();
+    if(len >= buffer.length) {
+      // バッチサイズ以上はコピーせずにそのまま渡す
+      send();
+      write(b, off, len, true);
+      return;
+    }
+    if(len > buffer.length - count) send();
+    System.arraycopy(b, off, buffer, count, len);
+    count += len;
+    bytes += len;
+  }
+
+  /**
+   * 上流からの flush は無視する(送信は溜めたデータがバッチサイズに達した時点で行う)
+   */
+  @Override
+  public void flush() {
+  }
+
+  /**
+   * 溜めたデータを送信し、送信中の要求の応答を待つ
+   * ZIP のエントリやファイルの境界など、書き込み済みであることを確定させる場合に呼び出す。
+   * @throws IOException 送信に失敗した場合
+   */
+  public void sync() throws IOException {
+    ensureOpen();
+    send();
+    try {
+      out.flush();
+      syncs++;
+    }
+    catch (IOException e) {
+      failed = true;
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    try {
+      if(!failed) {
+        send();
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      failed = true;
+      throw e;
+    }
+    finally {
+      elapsedNanos = System.nanoTime() - startTime;
+      if(failed) closeQuietly();
+      if(null != pooled) {
+        if(failed) pooled.invalidate();
+        else pooled.close();
+      }
+      if(log.isInfoEnabled())
+        log.info("{} {} bytes, {} batches, {} bytes/sec.", remote, bytes, batches, getBytesPerSecond());
+    }
+  }
+
+  /**
+   * @return 書き込まれたバイト数
+   */
+  public long getBytesWritten() {
+    return bytes;
+  }
+
+  /**
+   * @return JSch へ渡した回数
+   */
+  public long getBatches() {
+    return batches;
+  }
+
+  /**
+   * @return 応答を待った回数(閉じる際を除く)
+   */
+  public long getSyncs() {
+    return syncs;
+  }
+
+  /**
+   * @return 開いてから(閉じた場合は閉じるまで)の平均転送速度
+   */
+  public double getBytesPerSecond() {
+    long elapsed = (0 <= elapsedNanos) ? elapsedNanos : System.nanoTime() - startTime;
+    return (0 >= elapsed) ? 0d : bytes * 1000000000d / elapsed;
+  }
+
+  private void send() throws IOException {
+    if(0 == count) return;
+    int length = count;
+    count = 0;
+    write(buffer, 0, length, false);
+  }
+
+  private void write(final byte[] b, final int off, final int len, final boolean direct) throws IOException {
+    try {
+      out.write(b, off, len);
+      batches++;
+      if(direct) bytes += len;
+    }
+    catch (IOException e) {
+      failed = true;
+      throw e;
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      out.close();
+    }
+    catch (IOException e) {
+      if(log.isDebugEnabled()) log.debug(e.getLocalizedMessage(), e);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    if(failed) throw new IOException("previous write failed. [" + remote + "]");
+  }
+}
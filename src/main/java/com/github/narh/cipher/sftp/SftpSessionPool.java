@@ -0,0 +1,639 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 認証済みの JSch セッションと SFTP チャネルのプール
+ *
+ * 接続先({@link SftpEndpoint})ごとに、鍵交換と認証を済ませたセッションとチャネルの組を保持して再利用する。
+ * 接続先ごとの総数が上限に達した場合は、返却されるまで最大待機時間だけ待つ。
+ *
+ * 定期的な保守処理で、アイドル時間を超えた待機中の接続を最小待機数まで破棄し、
+ * 残りの接続には keep-alive を送って応答しないものを破棄したうえで、最小待機数まで接続を補充する。
+ * 貸し出し時は接続状態を確認し、切断されていれば破棄して別の接続を貸し出す。
+ *
+ * <pre>
+ * SftpSessionPool pool = new SftpSessionPool().maxTotal(4).minIdle(1);
+ * PooledSftpChannel sftp = pool.borrow(endpoint);
+ * try {
+ *   sftp.getChannel().put(inputStream, "remote.zip.enc");
+ * }
+ * catch (SftpException e) {
+ *   sftp.invalidate();
+ *   throw e;
+ * }
+ * finally {
+ *   sftp.close();
+ * }
+ * </pre>
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class SftpSessionPool implements Closeable {
+
+  public static final int DEFAULT_MIN_IDLE              = 0;
+  public static final int DEFAULT_MAX_TOTAL             = 8;
+  public static final long DEFAULT_MAX_WAIT             = 30 * 1000L;
+  public static final long DEFAULT_IDLE_TIMEOUT         = 5 * 60 * 1000L;
+  public static final long DEFAULT_MAINTENANCE_INTERVAL = 30 * 1000L;
+  public static final int DEFAULT_KEEP_ALIVE_INTERVAL   = 60 * 1000;
+  public static final int DEFAULT_CONNECT_TIMEOUT       = 15 * 1000;
+
+  private static final String CHANNEL_TYPE = "sftp";
+
+  private int minIdle = DEFAULT_MIN_IDLE;
+  private int maxTotal = DEFAULT_MAX_TOTAL;
+  private long maxWait = DEFAULT_MAX_WAIT;
+  private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  private long maintenanceInterval = DEFAULT_MAINTENANCE_INTERVAL;
+  private int keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+  private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private boolean testOnBorrow = false;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<SftpEndpoint, EndpointPool> pools = new HashMap<SftpEndpoint, EndpointPool>();
+  private ScheduledExecutorService maintenance;
+  private boolean closed = false;
+
+  private final AtomicLong created             = new AtomicLong();
+  private final AtomicLong destroyed           = new AtomicLong();
+  private final AtomicLong borrowed            = new AtomicLong();
+  private final AtomicLong returned            = new AtomicLong();
+  private final AtomicLong healthCheckFailures = new AtomicLong();
+  private final AtomicLong waitTimeouts        = new AtomicLong();
+
+  /**
+   * 接続先ごとの最小待機数を設定する
+   * @param minIdle 最小待機数(保守処理で補充する)
+   * @return this
+   */
+  public SftpSessionPool minIdle(final int minIdle) {
+    if(0 > minIdle) throw new IllegalArgumentException("minIdle must not be negative.");
+    this.minIdle = minIdle;
+    return this;
+  }
+
+  /**
+   * 接続先ごとの総数の上限を設定する
+   * @param maxTotal 貸し出し中と待機中の合計の上限
+   * @return this
+   */
+  public SftpSessionPool maxTotal(final int maxTotal) {
+    if(1 > maxTotal) throw new IllegalArgumentException("maxTotal must be positive.");
+    this.maxTotal = maxTotal;
+    return this;
+  }
+
+  /**
+   * 上限に達した場合の最大待機時間を設定する
+   * @param maxWait 最大待機時間(ミリ秒、0 の場合は待たない)
+   * @return this
+   */
+  public SftpSessionPool maxWait(final long maxWait) {
+    if(0 > maxWait) throw new IllegalArgumentException("maxWait must not be negative.");
+    this.maxWait = maxWait;
+    return this;
+  }
+
+  /**
+   * 待機中の接続を破棄するまでのアイドル時間を設定する
+   * @param idleTimeout アイドル時間(ミリ秒)
+   * @return this
+   */
+  public SftpSessionPool idleTimeout(final long idleTimeout) {
+    if(0 > idleTimeout) throw new IllegalArgumentException("idleTimeout must not be negative.");
+    this.idleTimeout = idleTimeout;
+    return this;
+  }
+
+  /**
+   * 保守処理の実行間隔を設定する(最初の貸し出しより前に設定する)
+   * @param maintenanceInterval 実行間隔(ミリ秒、0 の場合は {@link #maintain()} を明示的に呼び出す)
+   * @return this
+   */
+  public SftpSessionPool maintenanceInterval(final long maintenanceInterval) {
+    if(0 > maintenanceInterval) throw new IllegalArgumentException("maintenanceInterval must not be negative.");
+    this.maintenanceInterval = maintenanceInterval;
+    return this;
+  }
+
+  /**
+   * セッションの keep-alive 間隔を設定する
+   * @param keepAliveInterval keep-alive 間隔(ミリ秒、0 の場合は送らない)
+   * @return this
+   */
+  public SftpSessionPool keepAliveInterval(final int keepAliveInterval) {
+    if(0 > keepAliveInterval) throw new IllegalArgumentException("keepAliveInterval must not be negative.");
+    this.keepAliveInterval = keepAliveInterval;
+    return this;
+  }
+
+  /**
+   * 接続のタイムアウトを設定する
+   * @param connectTimeout タイムアウト(ミリ秒)
+   * @return this
+   */
+  public SftpSessionPool connectTimeout(final int connectTimeout) {
+    if(0 > connectTimeout) throw new IllegalArgumentException("connectTimeout must not be negative.");
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  /**
+   * 貸し出し時にサーバへの問い合わせで接続を検証するか設定する
+   * @param testOnBorrow 検証する場合は true
+   * @return this
+   */
+  public SftpSessionPool testOnBorrow(final boolean testOnBorrow) {
+    this.testOnBorrow = testOnBorrow;
+    return this;
+  }
+
+  /**
+   * 接続済みの SFTP チャネルを借り出す
+   * @param endpoint 接続先
+   * @return 借り出したチャネル(閉じると返却する)
+   * @throws JSchException 接続、認証に失敗した場合、または最大待機時間を過ぎた場合
+   */
+  public PooledSftpChannel borrow(final SftpEndpoint endpoint) throws JSchException {
+    if(null == endpoint) throw new IllegalArgumentException("endpoint is null.");
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+    while(true) {
+      EndpointPool pool;
+      PooledSftpChannel channel = null;
+      lock.lock();
+      try {
+        if(closed) throw new IllegalStateException("pool is closed.");
+        startMaintenance();
+        pool = pool(endpoint);
+        while(null == (channel = pool.idle.pollFirst()) && pool.total >= maxTotal) {
+          long remaining = deadline - System.nanoTime();
+          if(0 >= remaining) {
+            waitTimeouts.incrementAndGet();
+            throw new JSchException("timeout waiting for sftp channel. " + endpoint);
+          }
+          pool.available.awaitNanos(remaining);
+          if(closed) throw new IllegalStateException("pool is closed.");
+        }
+        if(null == channel) pool.total++;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new JSchException("interrupted waiting for sftp channel.", e);
+      }
+      finally {
+        lock.unlock();
+      }
+
+      if(null == channel) {
+        channel = connect(pool);
+      }
+      else if(!validate(channel, testOnBorrow)) {
+        healthCheckFailures.incrementAndGet();
+        destroy(channel);
+        continue;
+      }
+      channel.setBorrowed(true);
+      borrowed.incrementAndGet();
+      return channel;
+    }
+  }
+
+  /**
+   * 借り出したチャネルを返却する
+   * 二重の返却は無視し、切断されているチャネルは破棄する。
+   * @param channel 借り出したチャネル
+   */
+  public void release(final PooledSftpChannel channel) {
+    if(null == channel || !channel.isBorrowed()) return;
+    channel.setBorrowed(false);
+    returned.incrementAndGet();
+    lock.lock();
+    try {
+      if(!closed && channel.isConnected()) {
+        EndpointPool pool = pool(channel.getEndpoint());
+        pool.idle.offerFirst(channel);
+        pool.available.signal();
+        return;
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    destroy(channel);
+  }
+
+  /**
+   * 借り出したチャネルを破棄する
+   * @param channel 借り出したチャネル
+   */
+  public void invalidate(final PooledSftpChannel channel) {
+    if(null == channel || !channel.isBorrowed()) return;
+    channel.setBorrowed(false);
+    destroy(channel);
+  }
+
+  /**
+   * 保守処理を実行する
+   * アイドル時間を超えた待機中の接続を最小待機数まで破棄し、残りの接続を keep-alive で検証したうえで、
+   * 最小待機数まで接続を補充する。
+   */
+  public void maintain() {
+    List<EndpointPool> targets;
+    lock.lock();
+    try {
+      if(closed) return;
+      targets = new ArrayList<EndpointPool>(pools.values());
+    }
+    finally {
+      lock.unlock();
+    }
+    for(EndpointPool pool : targets) {
+      maintain(pool);
+    }
+  }
+
+  /**
+   * 待機中の接続をすべて切断し、以降の貸し出しを停止する
+   * 貸し出し中の接続は返却時に切断する。
+   */
+  @Override
+  public void close() {
+    List<PooledSftpChannel> channels = new ArrayList<PooledSftpChannel>();
+    lock.lock();
+    try {
+      if(closed) return;
+      closed = true;
+      if(null != maintenance) maintenance.shutdownNow();
+      for(EndpointPool pool : pools.values()) {
+        channels.addAll(pool.idle);
+        pool.idle.clear();
+        pool.available.signalAll();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    for(PooledSftpChannel channel : channels) destroy(channel);
+    if(log.isInfoEnabled()) log.info("sftp session pool closed. {}", this);
+  }
+
+  /**
+   * @return 貸し出し中の接続数
+   */
+  public int getActiveCount() {
+    lock.lock();
+    try {
+      int count = 0;
+      for(EndpointPool pool : pools.values()) count += pool.total - pool.idle.size();
+      return count;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return 待機中の接続数
+   */
+  public int getIdleCount() {
+    lock.lock();
+    try {
+      int count = 0;
+      for(EndpointPool pool : pools.values()) count += pool.idle.size();
+      return count;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return 接続(鍵交換と認証)した回数
+   */
+  public long getCreatedCount() {
+    return created.get();
+  }
+
+  /**
+   * @return 切断した回数
+   */
+  public long getDestroyedCount() {
+    return destroyed.get();
+  }
+
+  /**
+   * @return 貸し出した回数
+   */
+  public long getBorrowedCount() {
+    return borrowed.get();
+  }
+
+  /**
+   * @return 返却された回数
+   */
+  public long getReturnedCount() {
+    return returned.get();
+  }
+
+  /**
+   * @return 検証に失敗して破棄した回数
+   */
+  public long getHealthCheckFailures() {
+    return healthCheckFailures.get();
+  }
+
+  /**
+   * @return 最大待機時間を過ぎた回数
+   */
+  public long getWaitTimeouts() {
+    return waitTimeouts.get();
+  }
+
+  @Override
+  public String toString() {
+    return "SftpSessionPool(minIdle=" + minIdle + ", maxTotal=" + maxTotal
+        + ", active=" + getActiveCount() + ", idle=" + getIdleCount()
+        + ", created=" + getCreatedCount() + ", destroyed=" + getDestroyedCount()
+        + ", borrowed=" + getBorrowedCount() + ", healthCheckFailures=" + getHealthCheckFailures()
+        + ", waitTimeouts=" + getWaitTimeouts() + ")";
+  }
+
+  private EndpointPool pool(final SftpEndpoint endpoint) {
+    EndpointPool pool = pools.get(endpoint);
+    if(null == pool) {
+      pool = new EndpointPool(endpoint);
+      pools.put(endpoint, pool);
+    }
+    return pool;
+  }
+
+  private void startMaintenance() {
+    if(null != maintenance || 0 == maintenanceInterval) return;
+    maintenance = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    maintenance.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          maintain();
+        }
+        catch (RuntimeException e) {
+          if(log.isWarnEnabled()) log.warn(e.getLocalizedMessage(), e);
+        }
+      }
+    }, maintenanceInterval, maintenanceInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private void maintain(final EndpointPool pool) {
+    List<PooledSftpChannel> checks;
+    lock.lock();
+    try {
+      // 検証中の接続は貸し出さないよう、待機列から取り出す
+      checks = new ArrayList<PooledSftpChannel>(pool.idle);
+      pool.idle.clear();
+    }
+    finally {
+      lock.unlock();
+    }
+
+    long now = System.currentTimeMillis();
+    int keep = checks.size();
+    // 待機列の末尾ほど長く使われていない
+    for(int i = checks.size() - 1; i >= 0; i--) {
+      PooledSftpChannel channel = checks.get(i);
+      boolean expired = keep > minIdle && idleTimeout <= now - channel.getLastUsedTime();
+      if(expired || !validate(channel, true)) {
+        if(!expired) healthCheckFailures.incrementAndGet();
+        keep--;
+        checks.remove(i);
+        destroy(channel);
+      }
+    }
+
+    boolean active;
+    lock.lock();
+    try {
+      active = !closed;
+      if(active) {
+        for(PooledSftpChannel channel : checks) pool.idle.offerLast(channel);
+        pool.available.signalAll();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    if(!active) {
+      for(PooledSftpChannel channel : checks) destroy(channel);
+      return;
+    }
+
+    while(true) {
+      lock.lock();
+      try {
+        if(closed || pool.idle.size() >= minIdle || pool.total >= maxTotal) return;
+        pool.total++;
+      }
+      finally {
+        lock.unlock();
+      }
+      PooledSftpChannel channel;
+      try {
+        channel = connect(pool);
+      }
+      catch (JSchException e) {
+        if(log.isWarnEnabled()) log.warn("failed to refill sftp channel. " + pool.endpoint, e);
+        return;
+      }
+      lock.lock();
+      try {
+        if(!closed) {
+          pool.idle.offerLast(channel);
+          pool.available.signal();
+          continue;
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+      destroy(channel);
+      return;
+    }
+  }
+
+  /**
+   * 接続を検証する
+   * @param deep サーバへの問い合わせで検証する場合は true
+   */
+  private boolean validate(final PooledSftpChannel channel, final boolean deep) {
+    if(!channel.isConnected()) return false;
+    if(!deep) return true;
+    try {
+      channel.getSession().sendKeepAliveMsg();
+      channel.getChannel().stat(".");
+      return true;
+    }
+    catch (SftpException e) {
+      if(log.isDebugEnabled()) log.debug("sftp health check failed. " + channel.getEndpoint(), e);
+      return false;
+    }
+    catch (Exception e) {
+      if(log.isDebugEnabled()) log.debug("ssh keep-alive failed. " + channel.getEndpoint(), e);
+      return false;
+    }
+  }
+
+  /**
+   * 予約済みの枠で接続する(失敗した場合は枠を解放する)
+   */
+  private PooledSftpChannel connect(final EndpointPool pool) throws JSchException {
+    SftpEndpoint endpoint = pool.endpoint;
+    Session session = null;
+    try {
+      session = pool.jsch.getSession(endpoint.getUser(), endpoint.getHost(), endpoint.getPort());
+      if(null != endpoint.getPassword()) session.setPassword(endpoint.getPassword());
+      session.setConfig("StrictHostKeyChecking", endpoint.isInsecureSkipHostKeyVerification() ? "no" : "yes");
+      // keep-alive の間隔はソケットのタイムアウトとして設定されるため、setTimeout で上書きしない
+      session.setServerAliveInterval(keepAliveInterval);
+      session.connect(connectTimeout);
+      ChannelSftp channel = (ChannelSftp) session.openChannel(CHANNEL_TYPE);
+      channel.connect(connectTimeout);
+      created.incrementAndGet();
+      if(log.isDebugEnabled()) log.debug("sftp channel connected. {}", endpoint);
+      return new PooledSftpChannel(this, endpoint, session, channel);
+    }
+    catch (JSchException e) {
+      if(null != session) session.disconnect();
+      cancel(pool);
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw e;
+    }
+    catch (RuntimeException e) {
+      if(null != session) session.disconnect();
+      cancel(pool);
+      throw e;
+    }
+  }
+
+  private void destroy(final PooledSftpChannel channel) {
+    channel.disconnect();
+    destroyed.incrementAndGet();
+    lock.lock();
+    try {
+      EndpointPool pool = pool(channel.getEndpoint());
+      pool.total--;
+      pool.available.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+    if(log.isDebugEnabled()) log.debug("sftp channel disconnected. {}", channel.getEndpoint());
+  }
+
+  /**
+   * 接続先の予約した枠を取り消す
+   */
+  private void cancel(final EndpointPool pool) {
+    lock.lock();
+    try {
+      pool.total--;
+      pool.available.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 接続先ごとのプール
+   */
+  private final class EndpointPool {
+    private final SftpEndpoint endpoint;
+    private final JSch jsch = new JSch();
+    /** 待機中の接続(先頭ほど最近返却された) */
+    private final ArrayDeque<PooledSftpChannel> idle = new ArrayDeque<PooledSftpChannel>();
+    private final Condition available = lock.newCondition();
+    /** 貸し出し中、待機中、接続中の合計 */
+    private int total = 0;
+
+    private EndpointPool(final SftpEndpoint endpoint) {
+      this.endpoint = endpoint;
+      if(endpoint.isInsecureSkipHostKeyVerification()) {
+        if(log.isWarnEnabled()) log.warn("host key verification is disabled. {}", endpoint);
+      }
+      else if(null == endpoint.getKnownHostsFile()) {
+        throw new IllegalArgumentException("known_hosts file is not configured. " + endpoint);
+      }
+      try {
+        if(null != endpoint.getIdentityFile())
+          jsch.addIdentity(endpoint.getIdentityFile(), endpoint.getIdentityPassphrase());
+        if(null != endpoint.getKnownHostsFile()) jsch.setKnownHosts(endpoint.getKnownHostsFile());
+      }
+      catch (JSchException e) {
+        if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+        throw new IllegalArgumentException(e);
+      }
+    }
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable, "sftp-pool-maintenance-" + SEQUENCE.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
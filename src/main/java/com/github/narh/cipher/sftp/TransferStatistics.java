@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+/**
+ * 分割転送の結果
+ *
+ * @author narita
+ *
+ */
+public final class TransferStatistics {
+
+  private final int ranges;
+  private final int transferredRanges;
+  private final int resumedRanges;
+  private final long bytes;
+  private final long transferredBytes;
+  private final long elapsedMillis;
+
+  TransferStatistics(final int ranges, final int transferredRanges, final int resumedRanges, final long bytes
+      , final long transferredBytes, final long elapsedMillis) {
+    this.ranges = ranges;
+    this.transferredRanges = transferredRanges;
+    this.resumedRanges = resumedRanges;
+    this.bytes = bytes;
+    this.transferredBytes = transferredBytes;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * @return 範囲の数
+   */
+  public int getRanges() {
+    return ranges;
+  }
+
+  /**
+   * @return 今回転送した範囲の数
+   */
+  public int getTransferredRanges() {
+    return transferredRanges;
+  }
+
+  /**
+   * @return 前回までに完了していたため転送しなかった範囲の数
+   */
+  public int getResumedRanges() {
+    return resumedRanges;
+  }
+
+  /**
+   * @return ファイルの長さ
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return 今回転送したバイト数
+   */
+  public long getTransferredBytes() {
+    return transferredBytes;
+  }
+
+  /**
+   * @return 所要時間(ミリ秒)
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "TransferStatistics(ranges=" + ranges + ", transferredRanges=" + transferredRanges
+        + ", resumedRanges=" + resumedRanges + ", bytes=" + bytes + ", transferredBytes=" + transferredBytes
+        + ", elapsedMillis=" + elapsedMillis + ")";
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+
+/**
+ * 大きなブロック単位で暗号化・復号化して読み込む入力ストリーム
+ *
+ * 入力元からバッファ長単位で読み込み、{@link Cipher#update(byte[], int, int, byte[], int)} で
+ * 再利用する出力バッファへ直接書き込む。読み込みごとの配列の生成は行わない。
+ * 入出力のバッファは {@link DirectBufferPool} から借り出し、閉じる際に返却する。
+ * {@link #available()} は復号化済みで読み込み可能なバイト数を、
+ * {@link #skip(long)} は指定したバイト数まで暗号化・復号化を進めて読み飛ばす。
+ *
+ * 暗号器は閉じる際にプールへ返却する。
+ *
+ * @author narita
+ *
+ */
+public class BufferedCipherInputStream extends CipherInputStream {
+
+  /** 既定のバッファ長 */
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream input;
+  private final Cipher cipher;
+  private final CipherPool cipherPool;
+  private final DirectBufferPool bufferPool;
+  private final ByteBuffer inputLease;
+  private final byte[] inputBuffer;
+  /** 1回に読み込む長さ(暗号化・復号化の結果が出力バッファのサイズ区分に収まる長さ) */
+  private final int readLength;
+
+  private ByteBuffer outputLease;
+  private byte[] outputBuffer;
+  private int outputPosition = 0;
+  private int outputLength = 0;
+  private boolean finished = false;
+  private boolean closed = false;
+
+  /**
+   * @param inputStream 入力元
+   * @param cipher 初期化済みの暗号器
+   * @param bufferSize バッファ長
+   * @param cipherPool 閉じる際に暗号器を返却するプール(null の場合は返却しない)
+   */
+  public BufferedCipherInputStream(final InputStream inputStream, final Cipher cipher, final int bufferSize
+      , final CipherPool cipherPool) {
+    this(inputStream, cipher, bufferSize, cipherPool, DirectBufferPool.getDefault());
+  }
+
+  /**
+   * @param inputStream 入力元
+   * @param cipher 初期化済みの暗号器
+   * @param bufferSize バッファ長
+   * @param cipherPool 閉じる際に暗号器を返却するプール(null の場合は返却しない)
+   * @param bufferPool 入出力のバッファを借り出すプール
+   */
+  public BufferedCipherInputStream(final InputStream inputStream, final Cipher cipher, final int bufferSize
+      , final CipherPool cipherPool, final DirectBufferPool bufferPool) {
+    super(inputStream);
+    if(1 > bufferSize) throw new IllegalArgumentException("buffer size must be positive.");
+    if(null == bufferPool) throw new IllegalArgumentException("buffer pool is null.");
+    this.input = inputStream;
+    this.cipher = cipher;
+    this.cipherPool = cipherPool;
+    this.bufferPool = bufferPool;
+    // パディング分を除いて読み込み、出力がバッファ長のサイズ区分を超えないようにする
+    this.readLength = (bufferSize > CipherAlgorithm.BLOCK_SIZE * 2)
+        ? bufferSize - CipherAlgorithm.BLOCK_SIZE * 2 : bufferSize;
+    this.inputLease = bufferPool.acquireHeap(readLength);
+    this.inputBuffer = inputLease.array();
+    this.outputLease = bufferPool.acquireHeap(cipher.getOutputSize(readLength));
+    this.outputBuffer = outputLease.array();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if(!fill()) return -1;
+    return outputBuffer[outputPosition++] & 0xff;
+  }
+
+  @Override
+  public int read(final byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if(0 > off || 0 > len || b.length - off < len) throw new IndexOutOfBoundsException();
+    if(0 == len) return 0;
+    if(!fill()) return -1;
+    int length = Math.min(len, outputLength - outputPosition);
+    System.arraycopy(outputBuffer, outputPosition, b, off, length);
+    outputPosition += length;
+    return length;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    long skipped = 0;
+    while(skipped < n && fill()) {
+      int length = (int) Math.min(n - skipped, outputLength - outputPosition);
+      outputPosition += length;
+      skipped += length;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    return outputLength - outputPosition;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    try {
+      input.close();
+    }
+    finally {
+      if(null != cipherPool) cipherPool.release(cipher);
+      bufferPool.release(inputLease);
+      bufferPool.release(outputLease);
+    }
+  }
+
+  /**
+   * 読み込み可能なデータがなければ次のブロックを暗号化・復号化する
+   * @return 読み込み可能なデータがある場合 true
+   * @throws IOException 入出力例外、または復号化に失敗した場合
+   */
+  private boolean fill() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    while(outputPosition >= outputLength) {
+      if(finished) return false;
+      outputPosition = 0;
+      int length = input.read(inputBuffer, 0, readLength);
+      try {
+        if(-1 == length) {
+          finished = true;
+          ensureOutputBuffer(cipher.getOutputSize(0));
+          outputLength = cipher.doFinal(outputBuffer, 0);
+        }
+        else {
+          ensureOutputBuffer(cipher.getOutputSize(length));
+          outputLength = cipher.update(inputBuffer, 0, length, outputBuffer, 0);
+        }
+      }
+      catch (ShortBufferException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+      catch (IllegalBlockSizeException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+      catch (BadPaddingException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+    return true;
+  }
+
+  private void ensureOutputBuffer(final int size) {
+    if(outputBuffer.length >= size) return;
+    bufferPool.release(outputLease);
+    outputLease = bufferPool.acquireHeap(size);
+    outputBuffer = outputLease.array();
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+
+/**
+ * 大きなブロック単位で暗号化・復号化して書き込む出力ストリーム
+ *
+ * 書き込まれたデータを入力バッファに集め、バッファ長に達した時点で
+ * {@link Cipher#update(byte[], int, int, byte[], int)} に渡して出力バッファから出力先へ書き込む。
+ * 小さな書き込みが続いても、暗号器と出力先の呼び出しはバッファ長単位となる。
+ * バッファ長以上の書き込みは入力バッファを経由せずに処理する。
+ * {@link #flush()} は集めたデータを暗号化・復号化して出力先へ書き込み、出力先をフラッシュする。
+ * 閉じる際に最終ブロックを書き込み、暗号器をプールへ返却する。
+ * 入出力のバッファは {@link DirectBufferPool} から借り出し、閉じる際に返却する。
+ *
+ * @author narita
+ *
+ */
+public class BufferedCipherOutputStream extends CipherOutputStream {
+
+  /** 既定のバッファ長 */
+  public static final int DEFAULT_BUFFER_SIZE = BufferedCipherInputStream.DEFAULT_BUFFER_SIZE;
+
+  private final OutputStream output;
+  private final Cipher cipher;
+  private final CipherPool cipherPool;
+  private final DirectBufferPool bufferPool;
+  /** 1回に暗号化・復号化する長さ(結果が出力バッファのサイズ区分に収まる長さ) */
+  private final int bufferSize;
+  private final ByteBuffer inputLease;
+  private final byte[] inputBuffer;
+  /** 入力バッファに集めたバイト数 */
+  private int inputLength = 0;
+
+  private ByteBuffer outputLease;
+  private byte[] outputBuffer;
+  private boolean closed = false;
+
+  /**
+   * @param outputStream 出力先
+   * @param cipher 初期化済みの暗号器
+   * @param bufferSize バッファ長
+   * @param cipherPool 閉じる際に暗号器を返却するプール(null の場合は返却しない)
+   */
+  public BufferedCipherOutputStream(final OutputStream outputStream, final Cipher cipher, final int bufferSize
+      , final CipherPool cipherPool) {
+    this(outputStream, cipher, bufferSize, cipherPool, DirectBufferPool.getDefault());
+  }
+
+  /**
+   * @param outputStream 出力先
+   * @param cipher 初期化済みの暗号器
+   * @param bufferSize バッファ長
+   * @param cipherPool 閉じる際に暗号器を返却するプール(null の場合は返却しない)
+   * @param bufferPool 入出力のバッファを借り出すプール
+   */
+  public BufferedCipherOutputStream(final OutputStream outputStream, final Cipher cipher, final int bufferSize
+      , final CipherPool cipherPool, final DirectBufferPool bufferPool) {
+    super(outputStream);
+    if(1 > bufferSize) throw new IllegalArgumentException("buffer size must be positive.");
+    if(null == bufferPool) throw new IllegalArgumentException("buffer pool is null.");
+    this.output = outputStream;
+    this.cipher = cipher;
+    this.cipherPool = cipherPool;
+    this.bufferPool = bufferPool;
+    // パディング分を除いて処理し、出力がバッファ長のサイズ区分を超えないようにする
+    this.bufferSize = (bufferSize > CipherAlgorithm.BLOCK_SIZE * 2)
+        ? bufferSize - CipherAlgorithm.BLOCK_SIZE * 2 : bufferSize;
+    this.inputLease = bufferPool.acquireHeap(this.bufferSize);
+    this.inputBuffer = inputLease.array();
+    this.outputLease = bufferPool.acquireHeap(cipher.getOutputSize(this.bufferSize));
+    this.outputBuffer = outputLease.array();
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    inputBuffer[inputLength++] = (byte) b;
+    if(inputLength == bufferSize) drain();
+  }
+
+  @Override
+  public void write(final byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    if(0 > off || 0 > len || b.length - off < len) throw new IndexOutOfBoundsException();
+    if(closed) throw new IOException("stream closed.");
+    int offset = off;
+    int remaining = len;
+    while(0 < remaining) {
+      if(0 == inputLength && remaining >= bufferSize) {
+        update(b, offset, bufferSize);
+        offset += bufferSize;
+        remaining -= bufferSize;
+        continue;
+      }
+      int length = Math.min(remaining, bufferSize - inputLength);
+      System.arraycopy(b, offset, inputBuffer, inputLength, length);
+      inputLength += length;
+      offset += length;
+      remaining -= length;
+      if(inputLength == bufferSize) drain();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    drain();
+    output.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    try {
+      ensureOutputBuffer(cipher.getOutputSize(inputLength));
+      int written = cipher.doFinal(inputBuffer, 0, inputLength, outputBuffer, 0);
+      inputLength = 0;
+      if(0 < written) output.write(outputBuffer, 0, written);
+      output.flush();
+    }
+    catch (ShortBufferException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    catch (IllegalBlockSizeException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    catch (BadPaddingException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    finally {
+      try {
+        output.close();
+      }
+      finally {
+        if(null != cipherPool) cipherPool.release(cipher);
+        bufferPool.release(inputLease);
+        bufferPool.release(outputLease);
+      }
+    }
+  }
+
+  /**
+   * 入力バッファに集めたデータを暗号化・復号化して出力先へ書き込む
+   */
+  private void drain() throws IOException {
+    if(0 == inputLength) return;
+    update(inputBuffer, 0, inputLength);
+    inputLength = 0;
+  }
+
+  private void update(final byte[] b, final int off, final int len) throws IOException {
+    try {
+      ensureOutputBuffer(cipher.getOutputSize(len));
+      int written = cipher.update(b, off, len, outputBuffer, 0);
+      if(0 < written) output.write(outputBuffer, 0, written);
+    }
+    catch (ShortBufferException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  private void ensureOutputBuffer(final int size) {
+    if(outputBuffer.length >= size) return;
+    bufferPool.release(outputLease);
+    outputLease = bufferPool.acquireHeap(size);
+    outputBuffer = outputLease.array();
+  }
+}
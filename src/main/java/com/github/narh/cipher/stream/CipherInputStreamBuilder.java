@@ -31,15 +31,17 @@ import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import com.github.narh.cipher.CipherAlgorithm;
 import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+import com.github.narh.cipher.SegmentedGcmCipher;
 
 import lombok.ToString;
 
@@ -47,7 +49,7 @@ import lombok.ToString;
  * @author narita
  *
  */
-@ToString
+@ToString(exclude={ "cipherPool", "bufferPool" })
 public class CipherInputStreamBuilder {
 
   protected CipherOperationMode operation;
@@ -55,6 +57,10 @@ public class CipherInputStreamBuilder {
   protected byte[] secretkey;
   protected byte[] iv;
   protected InputStream inputStream;
+  protected CipherPool cipherPool = CipherPool.getDefault();
+  protected DirectBufferPool bufferPool = DirectBufferPool.getDefault();
+  protected int segmentSize = SegmentedGcmCipher.DEFAULT_SEGMENT_SIZE;
+  protected int bufferSize = BufferedCipherInputStream.DEFAULT_BUFFER_SIZE;
 
   public CipherInputStreamBuilder algorithm(final CipherAlgorithm algorithm) {
     this.algorithm = algorithm;
@@ -76,6 +82,41 @@ public class CipherInputStreamBuilder {
     return this;
   }
 
+  /**
+   * セグメント単位の GCM 形式で暗号化する場合の平文セグメント長を設定する
+   * @param segmentSize セグメント長
+   * @return ビルダー
+   */
+  public CipherInputStreamBuilder segmentSize(final int segmentSize) {
+    this.segmentSize = segmentSize;
+    return this;
+  }
+
+  /**
+   * 暗号化・復号化の処理単位となるバッファ長を設定する(64KiB ～ 1MiB 程度)
+   * @param bufferSize バッファ長
+   * @return ビルダー
+   */
+  public CipherInputStreamBuilder bufferSize(final int bufferSize) {
+    this.bufferSize = bufferSize;
+    return this;
+  }
+
+  public CipherInputStreamBuilder cipherPool(final CipherPool cipherPool) {
+    this.cipherPool = cipherPool;
+    return this;
+  }
+
+  /**
+   * 暗号化・復号化のバッファを借り出すプールを設定する
+   * @param bufferPool バッファのプール
+   * @return ビルダー
+   */
+  public CipherInputStreamBuilder bufferPool(final DirectBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+    return this;
+  }
+
   public CipherInputStreamBuilder inputStream(InputStream inputStream) {
     this.inputStream = inputStream;
     return this;
@@ -84,18 +125,19 @@ public class CipherInputStreamBuilder {
    public CipherInputStream build() throws NoSuchAlgorithmException, NoSuchPaddingException
      , InvalidKeyException, InvalidAlgorithmParameterException {
      valid();
-     Cipher cipher = Cipher.getInstance(algorithm.transration);
-     if(algorithm.useIV) {
-       cipher.init(operation.mode, new SecretKeySpec(secretkey, algorithm.algorithm()), new IvParameterSpec(iv));
+     if(algorithm.isSegmented()) {
+       return new SegmentedGcmInputStream(inputStream, operation
+           , Arrays.copyOf(secretkey, (int) (algorithm.length / 8)), segmentSize);
      }
-     else {
-       cipher.init(operation.mode, new SecretKeySpec(secretkey, algorithm.algorithm()));
-     }
-     return new CipherInputStream(inputStream, cipher);
+     final Cipher cipher = cipherPool.borrow(algorithm, operation, secretkey, iv);
+     return new BufferedCipherInputStream(inputStream, cipher, bufferSize, cipherPool, bufferPool);
    }
 
    protected void valid() {
-     if(validAlgorithm() && validOperationMode() && validSecretkey() && validIv() && validInputStream()) {
+     if(validAlgorithm() && validOperationMode() && validSecretkey() && validIv() && validInputStream() && validCipherPool()
+         && validBufferPool()
+         && validSegmentSize()
+         && validBufferSize()) {
        return;
      }
      throw new IllegalArgumentException("bad context parameter.[" + toString() + "]");
@@ -115,6 +157,34 @@ public class CipherInputStreamBuilder {
     return (null != operation);
   }
 
+  /**
+   * @return
+   */
+  private boolean validCipherPool() {
+    return (null != cipherPool);
+  }
+
+  /**
+   * @return
+   */
+  private boolean validBufferPool() {
+    return (null != bufferPool);
+  }
+
+  /**
+   * @return
+   */
+  private boolean validSegmentSize() {
+    return !algorithm.isSegmented() || (0 < segmentSize && SegmentedGcmCipher.MAX_SEGMENT_SIZE >= segmentSize);
+  }
+
+  /**
+   * @return
+   */
+  private boolean validBufferSize() {
+    return 0 < bufferSize;
+  }
+
   /**
    * @return
    */
@@ -126,7 +196,7 @@ public class CipherInputStreamBuilder {
    * @return
    */
   protected boolean validIv() {
-    return (null != iv && 16 <= iv.length);
+    return !algorithm.useIV || (null != iv && 16 <= iv.length);
   }
 
   /**
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 先頭ブロックを初期化ベクトルとする形式で暗号化・復号化して読み込む入力ストリーム
+ *
+ * 同じ鍵で暗号化するストリーム間で初期化ベクトルを共有しないよう、
+ * 暗号化ではストリームごとに乱数の初期化ベクトルを生成し、暗号文の前に出力する。
+ * 復号化では入力元の先頭ブロックを初期化ベクトルとして読み込んでから暗号器を初期化する。
+ * 暗号化・復号化は {@link BufferedCipherInputStream} で行う。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class IvPrefixedCipherInputStream extends CipherInputStream {
+
+  /** 初期化ベクトルのヘッダ長 */
+  public static final int HEADER_LENGTH = CipherAlgorithm.BLOCK_SIZE;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final InputStream input;
+  private final CipherAlgorithm algorithm;
+  private final CipherOperationMode operation;
+  private final Key key;
+  private final int bufferSize;
+  private final CipherPool cipherPool;
+  private final DirectBufferPool bufferPool;
+  /** 暗号化時に出力する初期化ベクトル */
+  private final byte[] header;
+  private int headerPosition = 0;
+
+  private BufferedCipherInputStream delegate;
+  private boolean closed = false;
+
+  /**
+   * @param inputStream 入力元
+   * @param algorithm 初期化ベクトルを利用する暗号アルゴリズム
+   * @param operation 暗号化モード
+   * @param key 共通鍵
+   * @param bufferSize バッファ長
+   * @param cipherPool 暗号器を借り出すプール
+   * @param bufferPool 入出力のバッファを借り出すプール
+   */
+  public IvPrefixedCipherInputStream(final InputStream inputStream, final CipherAlgorithm algorithm
+      , final CipherOperationMode operation, final Key key, final int bufferSize, final CipherPool cipherPool
+      , final DirectBufferPool bufferPool) {
+    super(inputStream);
+    if(null == inputStream || null == algorithm || !algorithm.useIV || null == operation || null == key
+        || 1 > bufferSize || null == cipherPool || null == bufferPool)
+      throw new IllegalArgumentException("bad stream parameter.");
+    this.input = inputStream;
+    this.algorithm = algorithm;
+    this.operation = operation;
+    this.key = key;
+    this.bufferSize = bufferSize;
+    this.cipherPool = cipherPool;
+    this.bufferPool = bufferPool;
+    if(CipherOperationMode.ENCRYPT == operation) {
+      this.header = new byte[HEADER_LENGTH];
+      RANDOM.nextBytes(header);
+      try {
+        this.delegate = open(header);
+      }
+      catch (GeneralSecurityException e) {
+        if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+        throw new IllegalArgumentException(e);
+      }
+    }
+    else {
+      this.header = new byte[0];
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    if(headerPosition < header.length) return header[headerPosition++] & 0xff;
+    return delegate().read();
+  }
+
+  @Override
+  public int read(final byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if(0 > off || 0 > len || b.length - off < len) throw new IndexOutOfBoundsException();
+    if(closed) throw new IOException("stream closed.");
+    if(0 == len) return 0;
+    if(headerPosition < header.length) {
+      int length = Math.min(len, header.length - headerPosition);
+      System.arraycopy(header, headerPosition, b, off, length);
+      headerPosition += length;
+      return length;
+    }
+    return delegate().read(b, off, len);
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    if(0 >= n) return 0;
+    if(headerPosition < header.length) {
+      int length = (int) Math.min(n, header.length - headerPosition);
+      headerPosition += length;
+      return length;
+    }
+    return delegate().skip(n);
+  }
+
+  @Override
+  public int available() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    if(headerPosition < header.length) return header.length - headerPosition;
+    return (null == delegate) ? 0 : delegate.available();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    if(null != delegate) delegate.close();
+    else input.close();
+  }
+
+  /**
+   * 復号化では先頭ブロックの初期化ベクトルを読み込んでから暗号化・復号化のストリームを作成する
+   */
+  private BufferedCipherInputStream delegate() throws IOException {
+    if(null != delegate) return delegate;
+    byte[] iv = new byte[HEADER_LENGTH];
+    for(int offset = 0; offset < iv.length;) {
+      int length = input.read(iv, offset, iv.length - offset);
+      if(-1 == length) throw new EOFException("iv header is missing.");
+      offset += length;
+    }
+    try {
+      delegate = open(iv);
+    }
+    catch (GeneralSecurityException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IOException(e.getMessage(), e);
+    }
+    return delegate;
+  }
+
+  private BufferedCipherInputStream open(final byte[] iv) throws GeneralSecurityException {
+    return new BufferedCipherInputStream(input
+        , cipherPool.borrow(algorithm, operation, key, new IvParameterSpec(iv)), bufferSize, cipherPool, bufferPool);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 先頭ブロックを初期化ベクトルとする形式で暗号化・復号化して書き込む出力ストリーム
+ *
+ * 暗号化ではストリームごとに乱数の初期化ベクトルを生成し、最初の書き込みの前に出力先へ書き込む。
+ * 復号化では書き込まれた先頭ブロックを初期化ベクトルとして集めてから暗号器を初期化する。
+ * 形式は {@link IvPrefixedCipherInputStream} と同じ。暗号化・復号化は {@link BufferedCipherOutputStream} で行う。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class IvPrefixedCipherOutputStream extends CipherOutputStream {
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final OutputStream output;
+  private final CipherAlgorithm algorithm;
+  private final CipherOperationMode operation;
+  private final Key key;
+  private final int bufferSize;
+  private final CipherPool cipherPool;
+  private final DirectBufferPool bufferPool;
+  /** 暗号化では出力する、復号化では集める初期化ベクトル */
+  private final byte[] header = new byte[IvPrefixedCipherInputStream.HEADER_LENGTH];
+  /** 暗号化では出力済み、復号化では集めたヘッダのバイト数 */
+  private int headerLength = 0;
+
+  private BufferedCipherOutputStream delegate;
+  private boolean closed = false;
+
+  /**
+   * @param outputStream 出力先
+   * @param algorithm 初期化ベクトルを利用する暗号アルゴリズム
+   * @param operation 暗号化モード
+   * @param key 共通鍵
+   * @param bufferSize バッファ長
+   * @param cipherPool 暗号器を借り出すプール
+   * @param bufferPool 入出力のバッファを借り出すプール
+   */
+  public IvPrefixedCipherOutputStream(final OutputStream outputStream, final CipherAlgorithm algorithm
+      , final CipherOperationMode operation, final Key key, final int bufferSize, final CipherPool cipherPool
+      , final DirectBufferPool bufferPool) {
+    super(outputStream);
+    if(null == outputStream || null == algorithm || !algorithm.useIV || null == operation || null == key
+        || 1 > bufferSize || null == cipherPool || null == bufferPool)
+      throw new IllegalArgumentException("bad stream parameter.");
+    this.output = outputStream;
+    this.algorithm = algorithm;
+    this.operation = operation;
+    this.key = key;
+    this.bufferSize = bufferSize;
+    this.cipherPool = cipherPool;
+    this.bufferPool = bufferPool;
+    if(CipherOperationMode.ENCRYPT == operation) {
+      RANDOM.nextBytes(header);
+      try {
+        this.delegate = open();
+      }
+      catch (GeneralSecurityException e) {
+        if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+        throw new IllegalArgumentException(e);
+      }
+    }
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(final byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    if(0 > off || 0 > len || b.length - off < len) throw new IndexOutOfBoundsException();
+    if(closed) throw new IOException("stream closed.");
+    int offset = off;
+    int remaining = len;
+    if(null == delegate) {
+      int length = Math.min(remaining, header.length - headerLength);
+      System.arraycopy(b, offset, header, headerLength, length);
+      headerLength += length;
+      offset += length;
+      remaining -= length;
+      if(headerLength < header.length) return;
+      try {
+        delegate = open();
+      }
+      catch (GeneralSecurityException e) {
+        if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+    writeHeader();
+    if(0 < remaining) delegate.write(b, offset, remaining);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    if(null == delegate) {
+      output.flush();
+      return;
+    }
+    writeHeader();
+    delegate.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    if(null == delegate) {
+      output.close();
+      throw new IOException("iv header is missing.");
+    }
+    try {
+      writeHeader();
+    }
+    finally {
+      delegate.close();
+    }
+  }
+
+  /**
+   * 暗号化で初期化ベクトルを出力していなければ出力先へ書き込む
+   */
+  private void writeHeader() throws IOException {
+    if(CipherOperationMode.ENCRYPT != operation || headerLength == header.length) return;
+    output.write(header);
+    headerLength = header.length;
+  }
+
+  private BufferedCipherOutputStream open() throws GeneralSecurityException {
+    return new BufferedCipherOutputStream(output
+        , cipherPool.borrow(algorithm, operation, key, new IvParameterSpec(header)), bufferSize, cipherPool
+        , bufferPool);
+  }
+}
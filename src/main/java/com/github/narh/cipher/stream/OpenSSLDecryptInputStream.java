@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.stream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import com.github.narh.cipher.CipherAESUtils;
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.KeyDerivation;
+import com.github.narh.cipher.KeyDerivationService;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * OpenSSL 形式("Salted__" + SALT + 暗号文)のデータを復号化して読み込む入力ストリーム
+ *
+ * 最初の読み込み時に先頭16バイトのヘッダのみを読み込み、ヘッダの SALT とパスフレーズから
+ * 鍵データと初期化ベクトルを導出する。以降は {@link BufferedCipherInputStream} で
+ * バッファ長単位に復号化するため、データ長によらずヘッダとバッファ分のメモリで処理できる。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class OpenSSLDecryptInputStream extends FilterInputStream {
+
+  /** パスフレーズのみを指定した場合のダイジェスト方式(OpenSSL 1.1.0 より前の既定値、暗号化コマンドと同じ) */
+  public static final String DEFAULT_DIGEST = "MD5";
+
+  private final CipherAlgorithm algorithm;
+  private final CipherContext context;
+  private final int bufferSize;
+  private final CipherPool cipherPool;
+  private final KeyDerivationService keyDerivationService;
+
+  private InputStream plain;
+  private byte[] salt;
+  private boolean closed = false;
+
+  /**
+   * EVP_BytesToKey と {@link #DEFAULT_DIGEST} で鍵データを導出する
+   * @param inputStream 暗号文の入力元
+   * @param algorithm 暗号アルゴリズム(CBC または CTR)
+   * @param passphrase パスフレーズ
+   */
+  public OpenSSLDecryptInputStream(final InputStream inputStream, final CipherAlgorithm algorithm
+      , final byte[] passphrase) {
+    this(inputStream, algorithm, CipherContext.builder()
+        .passphrase(passphrase)
+        .keyDerivation(KeyDerivation.EVP_BYTES_TO_KEY)
+        .digestAlgorithm(DEFAULT_DIGEST)
+        .build());
+  }
+
+  /**
+   * @param inputStream 暗号文の入力元
+   * @param algorithm 暗号アルゴリズム(CBC または CTR)
+   * @param context パスフレーズと鍵導出方式を設定したコンテキスト(SALT はヘッダの値を利用する)
+   */
+  public OpenSSLDecryptInputStream(final InputStream inputStream, final CipherAlgorithm algorithm
+      , final CipherContext context) {
+    this(inputStream, algorithm, context, BufferedCipherInputStream.DEFAULT_BUFFER_SIZE
+        , CipherPool.getDefault(), KeyDerivationService.getDefault());
+  }
+
+  /**
+   * @param inputStream 暗号文の入力元
+   * @param algorithm 暗号アルゴリズム(CBC または CTR)
+   * @param context パスフレーズと鍵導出方式を設定したコンテキスト(SALT はヘッダの値を利用する)
+   * @param bufferSize 復号化の処理単位となるバッファ長
+   * @param cipherPool 暗号器のプール
+   * @param keyDerivationService 鍵導出サービス
+   */
+  public OpenSSLDecryptInputStream(final InputStream inputStream, final CipherAlgorithm algorithm
+      , final CipherContext context, final int bufferSize, final CipherPool cipherPool
+      , final KeyDerivationService keyDerivationService) {
+    super(inputStream);
+    if(null == inputStream || null == algorithm || algorithm.isSegmented() || null == context
+        || null == context.getPassphrase() || null == context.getKeyDerivation() || 1 > bufferSize
+        || null == cipherPool || null == keyDerivationService)
+      throw new IllegalArgumentException("bad stream parameter.");
+    this.algorithm = algorithm;
+    this.context = context;
+    this.bufferSize = bufferSize;
+    this.cipherPool = cipherPool;
+    this.keyDerivationService = keyDerivationService;
+  }
+
+  /**
+   * ヘッダから取得した SALT を取得する
+   * @return SALT(ヘッダの読み込み前は null)
+   */
+  public byte[] getSalt() {
+    return null == salt ? null : salt.clone();
+  }
+
+  @Override
+  public int read() throws IOException {
+    return open().read();
+  }
+
+  @Override
+  public int read(final byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    return open().read(b, off, len);
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    return open().skip(n);
+  }
+
+  @Override
+  public int available() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    return null == plain ? 0 : plain.available();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(final int readlimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported.");
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    if(null != plain) plain.close();
+    else in.close();
+  }
+
+  /**
+   * ヘッダを読み込み、復号化ストリームを準備する
+   */
+  private InputStream open() throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    if(null != plain) return plain;
+    salt = CipherAESUtils.getSaltByOpenSSLCryptFiles(in);
+    Cipher cipher;
+    try {
+      CipherContext keyContext = keyDerivationService.resolve(CipherContext.builder()
+          .cryptMode(CipherOperationMode.DECRYPT)
+          .passphrase(context.getPassphrase())
+          .salt(salt)
+          .keyDerivation(context.getKeyDerivation())
+          .digestAlgorithm(context.getDigestAlgorithm())
+          .iterationCount(context.getIterationCount())
+          .build(), algorithm);
+      cipher = cipherPool.borrow(algorithm, CipherOperationMode.DECRYPT, keyContext.getSecretKey()
+          , keyContext.getIv());
+    }
+    catch (GeneralSecurityException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IOException(e);
+    }
+    catch (IllegalArgumentException e) {
+      throw new IOException(e);
+    }
+    plain = new BufferedCipherInputStream(in, cipher, bufferSize, cipherPool);
+    if(log.isDebugEnabled()) log.debug("{} stream opened.", algorithm);
+    return plain;
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.stream;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.KeyDerivationService;
+import com.github.narh.cipher.command.AbstractAESCryptCommand;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * CBC モードで暗号化されたファイルを任意の位置から復号化して読み込むチャネル
+ *
+ * CBC ではブロック n の初期化ベクトルは暗号文のブロック n-1 となるため、
+ * 平文の位置に対応する暗号文ブロックとその直前のブロックのみを読み込んで復号化する。
+ * パディングは生成時に最終ブロックのみを復号化して検証し、平文長から除く。
+ * "Salted__" ヘッダ付きのファイルはヘッダの SALT から鍵データを導出する。
+ * 初期化ベクトルが解決できない場合は、暗号文の先頭ブロックを初期化ベクトルとして読み込む
+ * ({@link IvPrefixedCipherOutputStream} の形式)。
+ *
+ * java.nio.channels.SeekableByteChannel と同じ操作({@link #position(long)}, {@link #size()})を提供する。
+ * 読み込み位置を保持するため、複数スレッドから同時に利用することはできない。
+ *
+ * @author narita
+ *
+ */
+@Slf4j
+public class SeekableCbcDecryptChannel implements ReadableByteChannel {
+
+  /** 1回の読み込みで復号化する最大長 */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  private static final int BLOCK_SIZE = CipherAlgorithm.BLOCK_SIZE;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final Cipher cipher;
+  private final SecretKeySpec key;
+  private final byte[] iv;
+  /** 暗号文の開始位置 */
+  private final long dataOffset;
+  /** 平文長 */
+  private final long size;
+  private final byte[] input;
+  private final byte[] output;
+
+  private long position = 0;
+
+  /**
+   * @param source 暗号文のファイル
+   * @param algorithm CBC モードの暗号アルゴリズム
+   * @param context 鍵データと初期化ベクトル、またはパスフレーズと鍵導出方式を設定したコンテキスト
+   * @throws IOException 入出力例外、またはファイルの形式が不正な場合
+   */
+  public SeekableCbcDecryptChannel(final File source, final CipherAlgorithm algorithm, final CipherContext context)
+      throws IOException {
+    this(source, algorithm, context, DEFAULT_CHUNK_SIZE, KeyDerivationService.getDefault());
+  }
+
+  /**
+   * @param source 暗号文のファイル
+   * @param algorithm CBC モードの暗号アルゴリズム
+   * @param context 鍵データと初期化ベクトル(省略時は先頭ブロック)、またはパスフレーズと鍵導出方式を設定したコンテキスト
+   * @param chunkSize 1回の読み込みで復号化する最大長
+   * @param keyDerivationService 鍵導出サービス
+   * @throws IOException 入出力例外、またはファイルの形式が不正な場合
+   */
+  public SeekableCbcDecryptChannel(final File source, final CipherAlgorithm algorithm, final CipherContext context
+      , final int chunkSize, final KeyDerivationService keyDerivationService) throws IOException {
+    if(null == source || null == algorithm || !"CBC".equalsIgnoreCase(algorithm.mode()) || null == context
+        || BLOCK_SIZE > chunkSize || null == keyDerivationService)
+      throw new IllegalArgumentException("bad channel parameter.");
+    int blocks = chunkSize / BLOCK_SIZE;
+    // 読み込み位置がブロック境界でない場合の1ブロックと、初期化ベクトルとする直前の1ブロックを加える
+    this.input = new byte[(blocks + 2) * BLOCK_SIZE];
+    this.output = new byte[(blocks + 1) * BLOCK_SIZE];
+    this.file = new RandomAccessFile(source, "r");
+    this.channel = file.getChannel();
+    try {
+      byte[] header = new byte[AbstractAESCryptCommand.HEADER_LENGTH];
+      boolean salted = (header.length <= channel.size()) && readFully(header, 0, header.length, 0)
+          && AbstractAESCryptCommand.PAYLOAD_STRING.equals(new String(header, 0, 8));
+      CipherContext keyContext = keyDerivationService.resolve(salted && null == context.getSalt()
+          ? context.withSalt(Arrays.copyOfRange(header, 8, AbstractAESCryptCommand.HEADER_LENGTH)) : context
+          , algorithm);
+      if(null == keyContext.getSecretKey())
+        throw new IllegalArgumentException("secret key is not resolved.");
+      this.key = new SecretKeySpec(keyContext.getSecretKey(), 0, (int) (algorithm.length / 8), algorithm.algorithm());
+      long offset = salted ? AbstractAESCryptCommand.HEADER_LENGTH : 0;
+      if(null != keyContext.getIv()) {
+        this.iv = Arrays.copyOf(keyContext.getIv(), BLOCK_SIZE);
+      }
+      else {
+        this.iv = new byte[BLOCK_SIZE];
+        if(!readFully(iv, 0, BLOCK_SIZE, offset)) throw new IOException("iv header is missing.");
+        offset += BLOCK_SIZE;
+      }
+      this.dataOffset = offset;
+      long length = channel.size() - dataOffset;
+      if(BLOCK_SIZE > length || 0 != length % BLOCK_SIZE) throw new IOException("data size error.");
+      this.cipher = Cipher.getInstance(algorithm.algorithm() + CipherAlgorithm.SEPARATOR + algorithm.mode()
+          + CipherAlgorithm.SEPARATOR + "NoPadding");
+      this.size = length - paddingLength(length / BLOCK_SIZE - 1);
+    }
+    catch (GeneralSecurityException e) {
+      file.close();
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IllegalArgumentException(e);
+    }
+    catch (IOException e) {
+      file.close();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * 平文の読み込み位置を取得する
+   * @return 読み込み位置
+   */
+  public long position() {
+    return position;
+  }
+
+  /**
+   * 平文の読み込み位置を設定する(平文長を超える位置の場合は読み込み時に終端となる)
+   * @param newPosition 読み込み位置
+   * @return このチャネル
+   * @throws IOException チャネルが閉じている場合
+   */
+  public SeekableCbcDecryptChannel position(final long newPosition) throws IOException {
+    ensureOpen();
+    if(0 > newPosition) throw new IllegalArgumentException("position must not be negative.");
+    this.position = newPosition;
+    return this;
+  }
+
+  /**
+   * パディングを除いた平文長を取得する
+   * @return 平文長
+   * @throws IOException チャネルが閉じている場合
+   */
+  public long size() throws IOException {
+    ensureOpen();
+    return size;
+  }
+
+  @Override
+  public int read(final ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if(position >= size) return -1;
+    if(!dst.hasRemaining()) return 0;
+    long end = Math.min(size, position + Math.min(dst.remaining(), output.length - BLOCK_SIZE));
+    long firstBlock = position / BLOCK_SIZE;
+    long lastBlock = (end - 1) / BLOCK_SIZE;
+    int length = decrypt(firstBlock, (int) (lastBlock - firstBlock + 1));
+    int offset = (int) (position % BLOCK_SIZE);
+    int count = (int) Math.min(end - position, length - offset);
+    dst.put(output, offset, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * 指定したブロックを復号化して出力バッファへ書き込む
+   * @param firstBlock 先頭ブロックの番号
+   * @param blocks ブロック数
+   * @return 復号化したバイト数
+   */
+  private int decrypt(final long firstBlock, final int blocks) throws IOException {
+    int length = blocks * BLOCK_SIZE;
+    // 先頭ブロック以外は直前の暗号文ブロックを初期化ベクトルとして合わせて読み込む
+    int ivLength = (0 == firstBlock) ? 0 : BLOCK_SIZE;
+    if(!readFully(input, 0, ivLength + length, dataOffset + firstBlock * BLOCK_SIZE - ivLength))
+      throw new EOFException("unexpected end of file.");
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, key, (0 == firstBlock) ? new IvParameterSpec(iv)
+          : new IvParameterSpec(input, 0, BLOCK_SIZE));
+      return cipher.doFinal(input, ivLength, length, output, 0);
+    }
+    catch (GeneralSecurityException e) {
+      if(log.isErrorEnabled()) log.error(e.getLocalizedMessage(), e);
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * 最終ブロックのみを復号化して PKCS#5 パディングを検証し、パディング長を取得する
+   */
+  private int paddingLength(final long lastBlock) throws IOException {
+    decrypt(lastBlock, 1);
+    int padding = output[BLOCK_SIZE - 1] & 0xff;
+    boolean valid = (0 < padding && BLOCK_SIZE >= padding);
+    for(int i = BLOCK_SIZE - padding; valid && i < BLOCK_SIZE; i++) valid = (padding == (output[i] & 0xff));
+    if(!valid) throw new IOException("bad padding.");
+    return padding;
+  }
+
+  private boolean readFully(final byte[] buffer, final int offset, final int length, final long filePosition)
+      throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+    long current = filePosition;
+    while(target.hasRemaining()) {
+      int read = channel.read(target, current);
+      if(-1 == read) return false;
+      current += read;
+    }
+    return true;
+  }
+
+  private void ensureOpen() throws IOException {
+    if(!channel.isOpen()) throw new ClosedChannelException();
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.CipherInputStream;
+
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.SegmentedGcmCipher;
+
+/**
+ * セグメント単位の AES-GCM 形式で暗号化・復号化して読み込む入力ストリーム
+ *
+ * 復号化ではヘッダを読み込んだ後、セグメントごとに認証してから平文を返す。
+ * 改ざんされたセグメントに到達した時点で、そのセグメント番号を含む例外を送出する。
+ * 最終セグメントの判定には1バイトの先読みを利用する。
+ *
+ * @author narita
+ *
+ */
+public class SegmentedGcmInputStream extends CipherInputStream {
+
+  private final CipherOperationMode operation;
+  private final byte[] secretKey;
+  private final int segmentSize;
+
+  private SegmentedGcmCipher cipher;
+  private byte[] input;
+  private byte[] output;
+  private int outputPosition = 0;
+  private int outputLength = 0;
+  private int lookahead = -1;
+  private long index = 0;
+  private boolean finished = false;
+
+  /**
+   * @param inputStream 入力元
+   * @param operation 暗号化モード
+   * @param secretKey 鍵データ
+   * @param segmentSize 暗号化時の平文セグメント長(復号化時はヘッダの値を利用する)
+   */
+  public SegmentedGcmInputStream(final InputStream inputStream, final CipherOperationMode operation
+      , final byte[] secretKey, final int segmentSize) {
+    super(inputStream);
+    this.operation = operation;
+    this.secretKey = secretKey;
+    this.segmentSize = segmentSize;
+  }
+
+  @Override
+  public int read() throws IOException {
+    while(outputPosition >= outputLength) {
+      if(!fill()) return -1;
+    }
+    return output[outputPosition++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if(0 == len) return 0;
+    while(outputPosition >= outputLength) {
+      if(!fill()) return -1;
+    }
+    int n = Math.min(len, outputLength - outputPosition);
+    System.arraycopy(output, outputPosition, b, off, n);
+    outputPosition += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while(skipped < n) {
+      if(outputPosition >= outputLength && !fill()) break;
+      int step = (int) Math.min(n - skipped, outputLength - outputPosition);
+      outputPosition += step;
+      skipped += step;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return outputLength - outputPosition;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * 次のセグメントを処理して出力バッファへ格納する
+   * @return 終端に達した場合 false
+   * @throws IOException 入出力例外、またはセグメントの認証に失敗した場合
+   */
+  private boolean fill() throws IOException {
+    if(finished) return false;
+    if(null == cipher) {
+      if(CipherOperationMode.ENCRYPT == operation) {
+        cipher = SegmentedGcmCipher.forEncryption(secretKey, segmentSize);
+        allocate();
+        byte[] header = cipher.getHeader();
+        System.arraycopy(header, 0, output, 0, header.length);
+        outputPosition = 0;
+        outputLength = header.length;
+        return true;
+      }
+      byte[] header = new byte[SegmentedGcmCipher.HEADER_LENGTH];
+      if(header.length != readFully(header, 0, header.length)) throw new EOFException("header is too short.");
+      try {
+        cipher = SegmentedGcmCipher.forDecryption(secretKey, header);
+      }
+      catch (IllegalArgumentException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+      allocate();
+    }
+
+    int length = readFully(input, 0, input.length);
+    boolean last = (length < input.length);
+    if(!last) {
+      lookahead = in.read();
+      last = (-1 == lookahead);
+    }
+    if(CipherOperationMode.ENCRYPT == operation) {
+      outputLength = cipher.encryptSegment(index, last, input, 0, length, output, 0);
+    }
+    else {
+      try {
+        outputLength = cipher.decryptSegment(index, last, input, 0, length, output, 0);
+      }
+      catch (BadPaddingException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+    outputPosition = 0;
+    finished = last;
+    index++;
+    return true;
+  }
+
+  private void allocate() {
+    input = new byte[CipherOperationMode.ENCRYPT == operation
+        ? cipher.getSegmentSize() : cipher.getEncryptedSegmentSize()];
+    output = new byte[Math.max(cipher.getEncryptedSegmentSize(), SegmentedGcmCipher.HEADER_LENGTH)];
+  }
+
+  /**
+   * 先読みしたバイトを含めて、指定長に達するか終端まで読み込む
+   */
+  private int readFully(final byte[] b, final int off, final int len) throws IOException {
+    int total = 0;
+    if(-1 != lookahead && 0 < len) {
+      b[off] = (byte) lookahead;
+      lookahead = -1;
+      total++;
+    }
+    while(total < len) {
+      int n = in.read(b, off + total, len - total);
+      if(-1 == n) break;
+      total += n;
+    }
+    return total;
+  }
+}
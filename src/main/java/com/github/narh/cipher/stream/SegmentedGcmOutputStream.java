@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.CipherOutputStream;
+
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.SegmentedGcmCipher;
+
+/**
+ * セグメント単位の AES-GCM 形式で暗号化・復号化して書き込む出力ストリーム
+ *
+ * 暗号化ではヘッダに続けて、セグメント長ごとに暗号化したデータを書き込む。
+ * 復号化では書き込まれたヘッダを解析し、セグメント単位で認証した平文を書き込む。
+ * 最終セグメントは {@link #close()} で確定するため、必ずクローズすること。
+ *
+ * @author narita
+ *
+ */
+public class SegmentedGcmOutputStream extends CipherOutputStream {
+
+  private final CipherOperationMode operation;
+  private final byte[] secretKey;
+
+  private SegmentedGcmCipher cipher;
+  private byte[] header = new byte[SegmentedGcmCipher.HEADER_LENGTH];
+  private int headerLength = 0;
+  private byte[] input;
+  private int inputLength = 0;
+  private byte[] output;
+  private long index = 0;
+  private boolean closed = false;
+
+  /**
+   * @param outputStream 出力先
+   * @param operation 暗号化モード
+   * @param secretKey 鍵データ
+   * @param segmentSize 暗号化時の平文セグメント長(復号化時はヘッダの値を利用する)
+   */
+  public SegmentedGcmOutputStream(final OutputStream outputStream, final CipherOperationMode operation
+      , final byte[] secretKey, final int segmentSize) {
+    super(outputStream);
+    this.operation = operation;
+    this.secretKey = secretKey;
+    if(CipherOperationMode.ENCRYPT == operation) {
+      cipher = SegmentedGcmCipher.forEncryption(secretKey, segmentSize);
+      header = cipher.getHeader();
+      allocate();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if(closed) throw new IOException("stream closed.");
+    while(0 < len) {
+      if(null == cipher) {
+        int n = Math.min(len, header.length - headerLength);
+        System.arraycopy(b, off, header, headerLength, n);
+        headerLength += n;
+        off += n;
+        len -= n;
+        if(header.length == headerLength) {
+          try {
+            cipher = SegmentedGcmCipher.forDecryption(secretKey, header);
+          }
+          catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+          }
+          allocate();
+        }
+        continue;
+      }
+      if(input.length == inputLength) writeSegment(false);
+      int n = Math.min(len, input.length - inputLength);
+      System.arraycopy(b, off, input, inputLength, n);
+      inputLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * 未完成のセグメントは書き込まず、下位ストリームのみフラッシュする
+   */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * 最終セグメントを書き込み、下位ストリームをクローズする
+   */
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    try {
+      if(null == cipher) throw new IOException("header is too short.");
+      writeSegment(true);
+      out.flush();
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private void allocate() {
+    input = new byte[CipherOperationMode.ENCRYPT == operation
+        ? cipher.getSegmentSize() : cipher.getEncryptedSegmentSize()];
+    output = new byte[cipher.getEncryptedSegmentSize()];
+  }
+
+  private void writeSegment(final boolean last) throws IOException {
+    if(0 == index && CipherOperationMode.ENCRYPT == operation) out.write(header);
+    int written;
+    if(CipherOperationMode.ENCRYPT == operation) {
+      written = cipher.encryptSegment(index, last, input, 0, inputLength, output, 0);
+    }
+    else {
+      try {
+        written = cipher.decryptSegment(index, last, input, 0, inputLength, output, 0);
+      }
+      catch (BadPaddingException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+    out.write(output, 0, written);
+    inputLength = 0;
+    index++;
+  }
+}
@@ -30,10 +30,13 @@ package com.github.narh.cipher;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Hex;
@@ -46,6 +49,7 @@ import org.slf4j.LoggerFactory;
 
 import com.github.narh.cipher.command.AES256CBCCryptCommand;
 import com.github.narh.cipher.command.CryptCommand;
+import com.github.narh.cipher.command.StreamCryptCommand;
 
 /**
  * @author narita
@@ -183,10 +187,158 @@ public class AES256CBCTest {
         , is(Hex.encodeHexString(encoded)));
   }
 
+  @Test
+  public void testStreamEncryptAndDecrypt() throws Exception {
+    File file = new File(getClass().getClassLoader().getResource(FILE_256_NAME).toURI());
+    byte[] encoded = Utils.getContentsByFile(file);
+    byte[] salt = CipherAESUtils.getSaltByOpenSSLCryptFiles(encoded);
+    byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE.getBytes(), salt);
+    byte[] iv = CipherAESUtils.generateIV(PASSPHRASE.getBytes(), salt, secretKey);
+    byte[] origin = Utils.getContentsByFile(
+        new File(getClass().getClassLoader().getResource(ORIGIN_NAME).toURI()));
+
+    CipherContext context = CipherContext.builder()
+        .passphrase(PASSPHRASE.getBytes())
+        .salt(salt)
+        .secretKey(secretKey)
+        .iv(iv)
+        .build();
+    StreamCryptCommand command = new AES256CBCCryptCommand();
+
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    command.encrypt(context, new FileInputStream(
+        new File(getClass().getClassLoader().getResource(ORIGIN_NAME).toURI())), encrypted);
+    assertThat("OpenSSL で暗号化したデータと同じであること"
+        , Hex.encodeHexString(encrypted.toByteArray()), is(Hex.encodeHexString(encoded)));
+
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    command.decrypt(context, new ByteArrayInputStream(encoded), decrypted);
+    assertThat("元データと同じであること"
+        , Hex.encodeHexString(decrypted.toByteArray()), is(Hex.encodeHexString(origin)));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testStreamDecryptSaltMismatch() throws Exception {
+    File file = new File(getClass().getClassLoader().getResource(FILE_256_NAME).toURI());
+    byte[] encoded = Utils.getContentsByFile(file);
+    byte[] salt = Hex.decodeHex("0000000000000000".toCharArray());
+    byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE.getBytes(), salt);
+    byte[] iv = CipherAESUtils.generateIV(PASSPHRASE.getBytes(), salt, secretKey);
+
+    CipherContext context = CipherContext.builder()
+        .salt(salt)
+        .secretKey(secretKey)
+        .iv(iv)
+        .build();
+    new AES256CBCCryptCommand().decrypt(context, new ByteArrayInputStream(encoded), new ByteArrayOutputStream());
+  }
+
+  @Test
+  public void testByteBufferEncryptAndDecrypt() throws Exception {
+    File file = new File(getClass().getClassLoader().getResource(FILE_256_NAME).toURI());
+    byte[] encoded = Utils.getContentsByFile(file);
+    byte[] salt = CipherAESUtils.getSaltByOpenSSLCryptFiles(encoded);
+    byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE.getBytes(), salt);
+    byte[] iv = CipherAESUtils.generateIV(PASSPHRASE.getBytes(), salt, secretKey);
+    byte[] origin = Utils.getContentsByFile(
+        new File(getClass().getClassLoader().getResource(ORIGIN_NAME).toURI()));
+
+    CipherContext context = CipherContext.builder()
+        .salt(salt)
+        .secretKey(secretKey)
+        .iv(iv)
+        .build();
+    CryptCommand command = new AES256CBCCryptCommand();
+
+    int length = command.getEncryptedLength(context, origin.length);
+    assertThat("暗号化後のデータ長が一致すること", length, is(encoded.length));
+
+    ByteBuffer source = ByteBuffer.allocateDirect(origin.length);
+    source.put(origin).flip();
+    ByteBuffer destination = ByteBuffer.allocateDirect(length + 4);
+    destination.position(4);
+    int written = command.encrypt(context, source, destination);
+    assertThat("暗号化後のデータ長を書き込むこと", written, is(length));
+    byte[] encrypted = new byte[written];
+    destination.flip();
+    destination.position(4);
+    destination.get(encrypted);
+    assertThat("OpenSSL で暗号化したデータと同じであること"
+        , Hex.encodeHexString(encrypted), is(Hex.encodeHexString(encoded)));
+
+    ByteBuffer plain = ByteBuffer.allocate(encoded.length);
+    int decrypted = command.decrypt(context, ByteBuffer.wrap(encoded), plain);
+    assertThat("元データと同じサイズであること", decrypted, is(origin.length));
+    assertThat("元データと同じであること"
+        , Hex.encodeHexString(Arrays.copyOf(plain.array(), decrypted)), is(Hex.encodeHexString(origin)));
+  }
+
+  @Test
+  public void testByteBufferDecryptInPlace() throws Exception {
+    File file = new File(getClass().getClassLoader().getResource(FILE_256_NAME).toURI());
+    byte[] encoded = Utils.getContentsByFile(file);
+    byte[] salt = CipherAESUtils.getSaltByOpenSSLCryptFiles(encoded);
+    byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE.getBytes(), salt);
+    byte[] iv = CipherAESUtils.generateIV(PASSPHRASE.getBytes(), salt, secretKey);
+    byte[] origin = Utils.getContentsByFile(
+        new File(getClass().getClassLoader().getResource(ORIGIN_NAME).toURI()));
+
+    CipherContext context = CipherContext.builder()
+        .salt(salt)
+        .secretKey(secretKey)
+        .iv(iv)
+        .build();
+    CryptCommand command = new AES256CBCCryptCommand();
+
+    ByteBuffer heap = ByteBuffer.wrap(encoded.clone());
+    assertThat("元データと同じサイズであること", command.decrypt(context, heap), is(origin.length));
+    byte[] plain = new byte[heap.remaining()];
+    heap.get(plain);
+    assertThat("元データと同じであること", Hex.encodeHexString(plain), is(Hex.encodeHexString(origin)));
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+    direct.put(encoded).flip();
+    assertThat("元データと同じサイズであること", command.decrypt(context, direct), is(origin.length));
+    plain = new byte[direct.remaining()];
+    direct.get(plain);
+    assertThat("元データと同じであること", Hex.encodeHexString(plain), is(Hex.encodeHexString(origin)));
+  }
+
   public byte[] convertFile(File file) throws IOException {
     FileInputStream inputStream = new FileInputStream(file);
     byte[] contents = IOUtils.toByteArray(inputStream);
     inputStream.close();
     return contents;
    }
+
+  @Test
+  public void testパスフレーズのみでヘッダのSALTから鍵を導出して復号化すること() throws Exception {
+    byte[] encoded = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream("OpenSSLPbkdf2File.enc"));
+    CipherContext context = CipherContext.builder()
+        .cryptMode(CipherOperationMode.DECRYPT)
+        .passphrase("12345678".getBytes())
+        .keyDerivation(KeyDerivation.PBKDF2)
+        .iterationCount(1000)
+        .origin(encoded)
+        .build();
+    String expected = "PBKDF2 derived key test data.\nopenssl enc -aes-256-cbc -pbkdf2 -iter 1000\n";
+    AES256CBCCryptCommand command = new AES256CBCCryptCommand();
+
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    command.decrypt(context, new ByteArrayInputStream(encoded), sink);
+    assertThat("ストリームで復号化できること", new String(sink.toByteArray()), is(expected));
+
+    ByteBuffer destination = ByteBuffer.allocate(encoded.length);
+    command.decrypt(context, ByteBuffer.wrap(encoded), destination);
+    destination.flip();
+    assertThat("バッファへ復号化できること", new String(destination.array(), 0, destination.limit()), is(expected));
+
+    ByteBuffer buffer = ByteBuffer.wrap(encoded.clone());
+    command.decrypt(context, buffer);
+    assertThat("バッファ内で復号化できること"
+        , new String(buffer.array(), buffer.position(), buffer.remaining()), is(expected));
+
+    command.decrypt(context);
+    assertThat("配列を復号化できること", new String(context.getContents()), is(expected));
+  }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class CipherPoolTest {
+
+  private static final byte[] SECRET_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+  private static final byte[] OTHER_KEY  = "fedcba9876543210fedcba9876543210".getBytes();
+  private static final byte[] IV1 = "aaaaaaaaaaaaaaaa".getBytes();
+  private static final byte[] IV2 = "bbbbbbbbbbbbbbbb".getBytes();
+  private static final byte[] PLAIN = "pooled cipher test data".getBytes();
+
+  @Test
+  public void test返却した暗号器を別のIVで再利用すること() throws Exception {
+    CipherPool pool = new CipherPool(4, 2);
+    Cipher first = pool.borrow(CipherAlgorithm.AES256CBC, CipherOperationMode.ENCRYPT, SECRET_KEY, IV1);
+    byte[] encrypted1 = first.doFinal(PLAIN);
+    pool.release(first);
+
+    Cipher second = pool.borrow(CipherAlgorithm.AES256CBC, CipherOperationMode.ENCRYPT, SECRET_KEY, IV2);
+    byte[] encrypted2 = second.doFinal(PLAIN);
+    pool.release(second);
+    log.info("{}", pool);
+
+    assertThat("同じインスタンスを再利用すること", second, is(sameInstance(first)));
+    assertThat("1回ミスすること", pool.getMisses(), is(1L));
+    assertThat("1回ヒットすること", pool.getHits(), is(1L));
+    assertThat("IV1 で暗号化されていること"
+        , Hex.encodeHexString(encrypted1), is(Hex.encodeHexString(expected(IV1))));
+    assertThat("IV2 で暗号化されていること"
+        , Hex.encodeHexString(encrypted2), is(Hex.encodeHexString(expected(IV2))));
+  }
+
+  @Test
+  public void test鍵が異なる場合は再利用しないこと() throws Exception {
+    CipherPool pool = new CipherPool(4, 2);
+    Cipher first = pool.borrow(CipherAlgorithm.AES256CBC, CipherOperationMode.ENCRYPT, SECRET_KEY, IV1);
+    pool.release(first);
+    Cipher second = pool.borrow(CipherAlgorithm.AES256CBC, CipherOperationMode.ENCRYPT, OTHER_KEY, IV1);
+    pool.release(second);
+
+    assertThat("別のインスタンスであること", second, is(not(sameInstance(first))));
+    assertThat("2回ミスすること", pool.getMisses(), is(2L));
+    assertThat("鍵が2種類保持されること", pool.getKeyCount(), is(2));
+  }
+
+  @Test
+  public void test上限を超えた暗号器を破棄すること() throws Exception {
+    CipherPool pool = new CipherPool(1, 1);
+    Cipher c1 = pool.borrow(CipherAlgorithm.AES256CBC, CipherOperationMode.ENCRYPT, SECRET_KEY, IV1);
+    Cipher c2 = pool.borrow(CipherAlgorithm.AES256CBC, CipherOperationMode.ENCRYPT, SECRET_KEY, IV1);
+    pool.release(c1);
+    pool.release(c2);
+    assertThat("鍵ごとの上限を超えた分は破棄されること", pool.getEvictions(), is(1L));
+    assertThat("待機数が上限であること", pool.getIdleCount(), is(1));
+
+    Cipher c3 = pool.borrow(CipherAlgorithm.AES256CBC, CipherOperationMode.ENCRYPT, OTHER_KEY, IV1);
+    pool.release(c3);
+    assertThat("古い鍵が破棄されること", pool.getKeyCount(), is(1));
+    assertThat("破棄数が加算されること", pool.getEvictions(), is(2L));
+
+    pool.release(c3);
+    assertThat("二重の返却は無視されること", pool.getIdleCount(), is(1));
+  }
+
+  private byte[] expected(final byte[] iv) throws Exception {
+    Cipher cipher = Cipher.getInstance(CipherAlgorithm.AES256CBC.transration);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SECRET_KEY, "AES"), new IvParameterSpec(iv));
+    return cipher.doFinal(PLAIN);
+  }
+}
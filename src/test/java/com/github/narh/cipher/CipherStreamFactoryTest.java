@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class CipherStreamFactoryTest {
+
+  private static final byte[] SECRET_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+  private static final byte[] SALT = "saltsalt".getBytes();
+
+  private static Properties properties() {
+    Properties prop = new Properties();
+    prop.setProperty("cipher.profiles", "raw, openssl, archive");
+    prop.setProperty("cipher.profile.raw.algorithm", "AES256CBC");
+    prop.setProperty("cipher.profile.raw.secretKey", Hex.encodeHexString(SECRET_KEY));
+    prop.setProperty("cipher.profile.raw.bufferSize", "4096");
+    prop.setProperty("cipher.profile.openssl.algorithm", "aes256cbc");
+    prop.setProperty("cipher.profile.openssl.passphrase", "12345678");
+    prop.setProperty("cipher.profile.openssl.salt", Hex.encodeHexString(SALT));
+    prop.setProperty("cipher.profile.openssl.digest", "MD5");
+    prop.setProperty("cipher.profile.archive.algorithm", "AES256GCM");
+    prop.setProperty("cipher.profile.archive.passphrase", "12345678");
+    prop.setProperty("cipher.profile.archive.salt", Hex.encodeHexString(SALT));
+    prop.setProperty("cipher.profile.archive.keyDerivation", "PBKDF2");
+    prop.setProperty("cipher.profile.archive.iterationCount", "1000");
+    prop.setProperty("cipher.profile.archive.segmentSize", "1024");
+    prop.setProperty("cipher.profile.archive.compressionLevel", "9");
+    prop.setProperty("cipher.profile.archive.pipeline", "true");
+    return prop;
+  }
+
+  @Test
+  public void testプロファイルを定義順に読み込み先頭を既定とすること() {
+    CipherStreamFactory factory = new CipherStreamFactory(properties());
+    assertThat("プロファイル名", new ArrayList<String>(factory.getProfileNames())
+        , is(Arrays.asList("raw", "openssl", "archive")));
+    assertThat("既定のプロファイル", factory.getDefaultProfile().getName(), is("raw"));
+    assertThat("バッファ長", factory.getProfile("raw").getBufferSize(), is(4096));
+    assertThat("圧縮レベル", factory.getProfile("archive").getCompressionLevel(), is(9));
+    assertThat("パイプライン", factory.getProfile("archive").isPipelined(), is(true));
+    assertThat("パイプラインの既定値", factory.getProfile("raw").isPipelined(), is(false));
+    assertThat("格納方式の判定の既定値", factory.getProfile("raw").isDetectIncompressible(), is(true));
+    assertThat("文字列表現に鍵を含まないこと", factory.getProfile("raw").toString().contains("key="), is(false));
+    log.info("{}", factory.getProfile("archive"));
+  }
+
+  @Test
+  public void test鍵データとパスフレーズのプロファイルがJDKの暗号器と同じ結果となること() throws Exception {
+    CipherStreamFactory factory = new CipherStreamFactory(properties());
+    byte[] plain = random(100000, 1L);
+    byte[] encrypted = encrypt(factory, "raw", plain);
+    assertThat("鍵データのプロファイル", Arrays.equals(Arrays.copyOfRange(encrypted, 16, encrypted.length)
+        , jdk(SECRET_KEY, Arrays.copyOf(encrypted, 16), plain)), is(true));
+
+    byte[] material = EvpBytesToKey.derive("MD5", 1, "12345678".getBytes(), SALT, 48);
+    encrypted = encrypt(factory, "openssl", plain);
+    assertThat("パスフレーズのプロファイル", Arrays.equals(Arrays.copyOfRange(encrypted, 16, encrypted.length)
+        , jdk(Arrays.copyOf(material, 32), Arrays.copyOf(encrypted, 16), plain)), is(true));
+  }
+
+  @Test
+  public void test暗号化ごとに初期化ベクトルを生成すること() throws Exception {
+    CipherStreamFactory factory = new CipherStreamFactory(properties());
+    byte[] plain = random(5000, 2L);
+    for(String profile : new String[] { "raw", "openssl" }) {
+      byte[] first = encrypt(factory, profile, plain);
+      byte[] second = encrypt(factory, profile, plain);
+      assertThat("初期化ベクトルが異なること(" + profile + ")"
+          , Arrays.equals(Arrays.copyOf(first, 16), Arrays.copyOf(second, 16)), is(false));
+      assertThat("先頭ブロックの暗号文が異なること(" + profile + ")"
+          , Arrays.equals(Arrays.copyOfRange(first, 16, 32), Arrays.copyOfRange(second, 16, 32)), is(false));
+
+      ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+      OutputStream output = factory.getDecryptOutputStream(profile, decrypted);
+      for(int i = 0; i < second.length; i += 7) output.write(second, i, Math.min(7, second.length - i));
+      output.close();
+      assertThat("出力ストリームで復号化できること(" + profile + ")"
+          , Arrays.equals(decrypted.toByteArray(), plain), is(true));
+
+      InputStream input = factory.getEncryptInputStream(profile, new ByteArrayInputStream(plain));
+      byte[] encrypted = IOUtils.toByteArray(input);
+      input.close();
+      input = factory.getDecryptInputStream(profile, new ByteArrayInputStream(encrypted));
+      assertThat("入力ストリームで暗号化したデータを復号化できること(" + profile + ")"
+          , Arrays.equals(IOUtils.toByteArray(input), plain), is(true));
+      input.close();
+    }
+  }
+
+  @Test
+  public void test固定の初期化ベクトルは例外となること() {
+    Properties prop = properties();
+    prop.setProperty("cipher.profile.raw.iv", "00000000000000000000000000000000");
+    try {
+      new CipherStreamFactory(prop);
+      assertThat("例外となること", false, is(true));
+    }
+    catch (IllegalArgumentException e) {
+      assertThat("メッセージ", e.getMessage()
+          , is("cipher.profile.raw.iv is not supported. the iv is generated per stream."));
+    }
+  }
+
+  @Test
+  public void test不正な定義は生成時に例外となること() {
+    String[][] cases = {
+        { "cipher.profile.raw.algorithm", "DES" }
+      , { "cipher.profile.raw.secretKey", "0123" }
+      , { "cipher.profile.raw.iv", "xyz" }
+      , { "cipher.profile.raw.bufferSize", "0" }
+      , { "cipher.profile.archive.compressionLevel", "10" }
+      , { "cipher.profile.archive.keyDerivation", "SCRYPT" }
+      , { "cipher.defaultProfile", "unknown" }
+    };
+    for(String[] c : cases) {
+      Properties prop = properties();
+      prop.setProperty(c[0], c[1]);
+      try {
+        new CipherStreamFactory(prop);
+        assertThat(c[0] + " が例外となること", false, is(true));
+      }
+      catch (IllegalArgumentException e) {
+        log.info("{}", e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void test複数スレッドから同時に利用できること() throws Exception {
+    final CipherStreamFactory factory = new CipherStreamFactory(properties());
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for(int i = 0; i < 64; i++) {
+        final String profile = new String[] { "raw", "openssl", "archive" }[i % 3];
+        final byte[] plain = random(1000 + i * 997, i);
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            byte[] encrypted = encrypt(factory, profile, plain);
+            InputStream input = factory.getDecryptInputStream(profile, new ByteArrayInputStream(encrypted));
+            byte[] decrypted = IOUtils.toByteArray(input);
+            input.close();
+            return Arrays.equals(decrypted, plain);
+          }
+        }));
+      }
+      for(Future<Boolean> result : results) {
+        assertThat("復号化したデータが一致すること", result.get(), is(true));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testプロファイルの圧縮レベルでZIPを暗号化すること() throws Exception {
+    CipherStreamFactory factory = new CipherStreamFactory(properties());
+    byte[] plain = new byte[50000];
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    ZipOutputStream zip = factory.getZipOutputStream("archive", encrypted);
+    zip.putNextEntry(new ZipEntry("hoge.txt"));
+    zip.write(plain);
+    zip.closeEntry();
+    zip.close();
+    assertThat("圧縮されていること", encrypted.size() < plain.length, is(true));
+
+    ZipInputStream input = new ZipInputStream(
+        factory.getDecryptInputStream("archive", new ByteArrayInputStream(encrypted.toByteArray())));
+    assertThat("エントリ名", input.getNextEntry().getName(), is("hoge.txt"));
+    assertThat("展開したデータが一致すること", Arrays.equals(IOUtils.toByteArray(input), plain), is(true));
+    input.close();
+  }
+
+  private static byte[] encrypt(final CipherStreamFactory factory, final String profile, final byte[] plain)
+      throws Exception {
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    OutputStream output = factory.getEncryptOutputStream(profile, encrypted);
+    output.write(plain);
+    output.close();
+    return encrypted.toByteArray();
+  }
+
+  private static byte[] jdk(final byte[] secretKey, final byte[] iv, final byte[] plain) throws Exception {
+    Cipher cipher = Cipher.getInstance(CipherAlgorithm.AES256CBC.transration);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secretKey, "AES"), new IvParameterSpec(iv));
+    return cipher.doFinal(plain);
+  }
+
+  private static byte[] random(final int length, final long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
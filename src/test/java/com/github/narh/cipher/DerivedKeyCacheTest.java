@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class DerivedKeyCacheTest {
+
+  private static final byte[] PASSPHRASE = "passphrase".getBytes();
+  private static final byte[] SALT1 = "saltsalt".getBytes();
+  private static final byte[] SALT2 = "pepper!!".getBytes();
+
+  @Test
+  public void test同じ導出条件の鍵データを複製で返すこと() {
+    DerivedKeyCache cache = new DerivedKeyCache(4, 60000L);
+    byte[] material = new byte[] { 1, 2, 3, 4 };
+    cache.put(cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT1), material);
+    material[0] = 9;
+
+    byte[] cached = cache.get(cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT1));
+    assertThat("登録時の値を返すこと", Arrays.equals(cached, new byte[] { 1, 2, 3, 4 }), is(true));
+    cached[1] = 9;
+    assertThat("返却値の変更が影響しないこと"
+        , cache.get(cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT1))[1], is((byte) 2));
+    assertThat("SALT が異なる場合は存在しないこと"
+        , cache.get(cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT2)), is(nullValue()));
+    assertThat("ストレッチ回数が異なる場合は存在しないこと"
+        , cache.get(cache.key("secretKey", "MD5", 2, PASSPHRASE, SALT1)), is(nullValue()));
+    assertThat("ダイジェスト方式が異なる場合は存在しないこと"
+        , cache.get(cache.key("secretKey", "SHA-256", 1, PASSPHRASE, SALT1)), is(nullValue()));
+    log.info("{}", cache);
+    assertThat("2回ヒットすること", cache.getHits(), is(2L));
+    assertThat("3回ミスすること", cache.getMisses(), is(3L));
+    assertThat("ヒット率が計算されること", cache.getHitRate(), is(0.4d));
+  }
+
+  @Test
+  public void testキーはインスタンスごとのHMAC鍵で生成すること() {
+    DerivedKeyCache cache = new DerivedKeyCache(4, 60000L);
+    DerivedKeyCache other = new DerivedKeyCache(4, 60000L);
+    assertThat("同じインスタンスでは一致すること", cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT1)
+        , is(cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT1)));
+    assertThat("異なるインスタンスでは一致しないこと", cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT1)
+        , is(not(other.key("secretKey", "MD5", 1, PASSPHRASE, SALT1))));
+  }
+
+  @Test
+  public void test上限を超えると最も古い鍵データを破棄すること() {
+    DerivedKeyCache cache = new DerivedKeyCache(2, 60000L);
+    DerivedKeyCache.CacheKey key1 = cache.key("secretKey", "MD5", 1, PASSPHRASE, "salt0001".getBytes());
+    DerivedKeyCache.CacheKey key2 = cache.key("secretKey", "MD5", 1, PASSPHRASE, "salt0002".getBytes());
+    DerivedKeyCache.CacheKey key3 = cache.key("secretKey", "MD5", 1, PASSPHRASE, "salt0003".getBytes());
+    cache.put(key1, new byte[] { 1 });
+    cache.put(key2, new byte[] { 2 });
+    cache.get(key1);
+    cache.put(key3, new byte[] { 3 });
+
+    assertThat("上限件数を保持すること", cache.size(), is(2));
+    assertThat("1件破棄すること", cache.getEvictions(), is(1L));
+    assertThat("参照した鍵データは残ること", cache.get(key1)[0], is((byte) 1));
+    assertThat("最も古い鍵データを破棄すること", cache.get(key2), is(nullValue()));
+  }
+
+  @Test
+  public void test有効期限切れの鍵データを破棄すること() throws Exception {
+    DerivedKeyCache cache = new DerivedKeyCache(4, 20L);
+    DerivedKeyCache.CacheKey key = cache.key("secretKey", "MD5", 1, PASSPHRASE, SALT1);
+    cache.put(key, new byte[] { 1 });
+    Thread.sleep(50L);
+    assertThat("有効期限切れは存在しないこと", cache.get(key), is(nullValue()));
+    assertThat("期限切れとして計上すること", cache.getExpirations(), is(1L));
+    assertThat("保持していないこと", cache.size(), is(0));
+  }
+
+  @Test
+  public void test鍵生成結果をキャッシュから返すこと() {
+    DerivedKeyCache cache = new DerivedKeyCache(16, 60000L);
+    DerivedKeyCache previous = CipherAESUtils.getDerivedKeyCache();
+    CipherAESUtils.setDerivedKeyCache(null);
+    try {
+      byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE, SALT1);
+      byte[] iv = CipherAESUtils.generateIV(PASSPHRASE, SALT1, secretKey);
+
+      CipherAESUtils.setDerivedKeyCache(cache);
+      for(int i = 0; i < 3; i++) {
+        byte[] cachedKey = CipherAESUtils.generateSecretKey(PASSPHRASE, SALT1);
+        assertThat("鍵データが一致すること", Arrays.equals(cachedKey, secretKey), is(true));
+        assertThat("初期化ベクトルが一致すること"
+            , Arrays.equals(CipherAESUtils.generateIV(PASSPHRASE, SALT1, cachedKey), iv), is(true));
+      }
+      assertThat("初回のみミスすること", cache.getMisses(), is(2L));
+      assertThat("2回目以降はヒットすること", cache.getHits(), is(4L));
+    }
+    finally {
+      CipherAESUtils.setDerivedKeyCache(previous);
+    }
+  }
+}
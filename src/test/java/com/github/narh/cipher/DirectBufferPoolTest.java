@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.github.narh.DirectBufferPoolRegistrar;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class DirectBufferPoolTest {
+
+  private static final int[] SIZE_CLASSES = { 1024, 8192 };
+
+  @Test
+  public void test要求長以上の最小のサイズ区分から貸し出し再利用すること() {
+    DirectBufferPool pool = new DirectBufferPool(SIZE_CLASSES, 1024 * 1024);
+    ByteBuffer small = pool.acquire(100);
+    ByteBuffer large = pool.acquire(1025);
+    assertThat("ダイレクトバッファであること", small.isDirect(), is(true));
+    assertThat("1KiB の区分であること", small.capacity(), is(1024));
+    assertThat("8KiB の区分であること", large.capacity(), is(8192));
+    assertThat("貸し出し中のバイト数", pool.getLeasedBytes(), is(1024L + 8192L));
+
+    small.put((byte) 1);
+    pool.release(small);
+    pool.release(small);
+    assertThat("二重の返却は無視すること", pool.getIdleCount(), is(1));
+    ByteBuffer reused = pool.acquire(1000);
+    assertThat("同じバッファを再利用すること", reused, is(sameInstance(small)));
+    assertThat("位置が初期化されていること", reused.position(), is(0));
+    assertThat("リミットが容量であること", reused.limit(), is(1024));
+    log.info("{}", pool);
+    assertThat("1回ヒットすること", pool.getHits(), is(1L));
+    assertThat("2回確保すること", pool.getMisses(), is(2L));
+  }
+
+  @Test
+  public void test上限を超える場合はヒープ上のバッファで代替すること() {
+    DirectBufferPool pool = new DirectBufferPool(SIZE_CLASSES, 8192 + 1024);
+    pool.acquire(8192);
+    pool.acquire(1024);
+    ByteBuffer overflow = pool.acquire(1024);
+    ByteBuffer oversize = pool.acquire(10000);
+    assertThat("上限超過はヒープ上のバッファであること", overflow.isDirect(), is(false));
+    assertThat("サイズ超過はヒープ上のバッファであること", oversize.isDirect(), is(false));
+    assertThat("要求した長さであること", oversize.capacity(), is(10000));
+    assertThat("確保済みは上限以下であること", pool.getAllocatedBytes(), is(8192L + 1024L));
+    assertThat("2回代替すること", pool.getFallbacks(), is(2L));
+    pool.release(overflow);
+    assertThat("代替したバッファは返却対象外", pool.getIdleCount(), is(0));
+  }
+
+  @Test
+  public void testヒープ上のバッファも同じサイズ区分から貸し出し再利用すること() {
+    DirectBufferPool pool = new DirectBufferPool(SIZE_CLASSES, 1024 * 1024);
+    ByteBuffer heap = pool.acquireHeap(2000);
+    assertThat("配列を持つこと", heap.hasArray(), is(true));
+    assertThat("8KiB の区分であること", heap.capacity(), is(8192));
+    assertThat("ダイレクトバッファの確保に数えないこと", pool.getAllocatedBytes(), is(0L));
+    Arrays.fill(heap.array(), (byte) 0x5a);
+    pool.release(heap);
+    assertThat("同じバッファを再利用すること", pool.acquireHeap(8000), is(sameInstance(heap)));
+    assertThat("返却時にゼロで上書きすること", Arrays.equals(heap.array(), new byte[8192]), is(true));
+    assertThat("ダイレクトバッファとは区別すること", pool.acquire(8000).isDirect(), is(true));
+  }
+
+  @Test
+  public void test返却されずに回収されたバッファをリークとして検出すること() throws Exception {
+    DirectBufferPool pool = new DirectBufferPool(SIZE_CLASSES, 1024 * 1024);
+    pool.setRecordStackTrace(true);
+    ByteBuffer held = pool.acquire(10);
+    pool.acquire(10);
+    pool.acquireHeap(10);
+    pool.release(pool.acquire(10));
+    int detected = 0;
+    for(int i = 0; i < 100 && detected < 2; i++) {
+      System.gc();
+      Thread.sleep(10L);
+      detected += pool.detectLeaks();
+    }
+    assertThat("回収された2件を検出すること", detected, is(2));
+    assertThat("リーク数が公開されること", pool.getLeaks(), is(2L));
+    assertThat("貸し出し中は参照の残るバッファのみ", pool.getLeasedCount(), is(1));
+    assertThat("回収されたダイレクトバッファを確保済みから除くこと", pool.getAllocatedBytes(), is(1024L * 2));
+    pool.release(held);
+    assertThat("参照の残るバッファはリークとしないこと", pool.getLeaks(), is(2L));
+    assertThat("返却したバッファを再利用すること", pool.getIdleCount(), is(2));
+  }
+
+  @Test
+  public void testMXBeanとして使用状況を公開すること() throws Exception {
+    DirectBufferPool pool = new DirectBufferPool(SIZE_CLASSES, 1024 * 1024);
+    ObjectName name = pool.register("test");
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      pool.acquire(2000);
+      assertThat("貸し出し中のバイト数を取得できること", server.getAttribute(name, "LeasedBytes"), is((Object) 8192L));
+      assertThat("上限を取得できること", server.getAttribute(name, "MaxBytes"), is((Object) (1024L * 1024)));
+    }
+    finally {
+      pool.unregister();
+    }
+    assertThat("登録解除すること", server.isRegistered(name), is(false));
+  }
+
+  @Test
+  public void test共有プールをアプリケーションのライフサイクルで登録すること() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(DirectBufferPool.OBJECT_NAME + ",name=" + ObjectName.quote("default"));
+    DirectBufferPool.getDefault();
+    assertThat("クラスの初期化では登録しないこと", server.isRegistered(name), is(false));
+    DirectBufferPoolRegistrar registrar = new DirectBufferPoolRegistrar();
+    registrar.afterPropertiesSet();
+    try {
+      assertThat("起動時に登録すること", server.isRegistered(name), is(true));
+    }
+    finally {
+      registrar.destroy();
+    }
+    assertThat("停止時に登録解除すること", server.isRegistered(name), is(false));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+/**
+ * @author narita
+ *
+ */
+public class EvpBytesToKeyTest {
+
+  private static final byte[] PASSPHRASE = "12345678".getBytes();
+  private static final String SALT = "06A8EE4D903FE34B";
+
+  @Test
+  public void testOpenSSLと同じ鍵データと初期化ベクトルを導出すること() throws Exception {
+    assertDerive("MD5", "1F00E8AD6E406FCD4670FA420F2B511F457B073D5A202FD2AC7E2851232A8D49"
+        , "81C09D62AD7D3492D7CBBFA1D006C1EC");
+    assertDerive("SHA-1", "E09CBC716E52D83950730120F94FD48436E7CB03EB7C562AB9A8F5D7F3DC9C1E"
+        , "21E67020BAF93AE0D23EA95F1C87FA3F");
+    assertDerive("SHA-256", "766F67BA226C360F0D70E183FD52CC279DF9826FF969E15DC39A547C8B9BAA5F"
+        , "1E3E89317C7E22D3D7E626B018D5A117");
+  }
+
+  @Test
+  public void test複数回のストレッチで導出が完了すること() throws Exception {
+    byte[] salt = Hex.decodeHex(SALT.toCharArray());
+    for(String digest : new String[] { "MD5", "SHA-1", "SHA-256" }) {
+      for(int count : new int[] { 2, 3, 1000 }) {
+        byte[][] expected = OpenSSLFileTest.EVP_BytesToKey(32, 16, MessageDigest.getInstance(digest)
+            , salt, PASSPHRASE, count);
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        EvpBytesToKey.derive(digest, count, PASSPHRASE, salt, key, iv);
+        assertThat(digest + " x " + count + " の鍵データが一致すること"
+            , Hex.encodeHexString(key), is(Hex.encodeHexString(expected[0])));
+        assertThat(digest + " x " + count + " の IV が一致すること"
+            , Hex.encodeHexString(iv), is(Hex.encodeHexString(expected[1])));
+      }
+    }
+  }
+
+  @Test
+  public void testブロック単位の導出が連結した導出と一致すること() throws Exception {
+    DerivedKeyCache previous = CipherAESUtils.getDerivedKeyCache();
+    CipherAESUtils.setDerivedKeyCache(null);
+    try {
+      byte[] salt = Hex.decodeHex(SALT.toCharArray());
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] expected = EvpBytesToKey.derive("SHA-256", 3, PASSPHRASE, salt, 64);
+      byte[] first = CipherAESUtils.openSSLEvpBytesToKey(PASSPHRASE, salt, md, 3, null);
+      byte[] second = CipherAESUtils.openSSLEvpBytesToKey(PASSPHRASE, salt, md, 3, first);
+      assertThat("1ブロック目が一致すること", Arrays.equals(first, Arrays.copyOf(expected, 32)), is(true));
+      assertThat("2ブロック目が一致すること", Arrays.equals(second, Arrays.copyOfRange(expected, 32, 64)), is(true));
+
+      byte[] md5 = EvpBytesToKey.derive("MD5", 1, PASSPHRASE, salt, 48);
+      byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE, salt);
+      byte[] iv = CipherAESUtils.generateIV(PASSPHRASE, salt, secretKey);
+      assertThat("共通鍵が MD5 の導出と一致すること", Arrays.equals(secretKey, Arrays.copyOf(md5, 32)), is(true));
+      assertThat("IV が MD5 の導出と一致すること", Arrays.equals(iv, Arrays.copyOfRange(md5, 32, 48)), is(true));
+    }
+    finally {
+      CipherAESUtils.setDerivedKeyCache(previous);
+    }
+  }
+
+  private void assertDerive(final String digest, final String expectedKey, final String expectedIv) throws Exception {
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    EvpBytesToKey.derive(digest, 1, PASSPHRASE, Hex.decodeHex(SALT.toCharArray()), key, iv);
+    assertThat(digest + " の鍵データが期待値であること", Hex.encodeHexString(key).toUpperCase(), is(expectedKey));
+    assertThat(digest + " の IV が期待値であること", Hex.encodeHexString(iv).toUpperCase(), is(expectedIv));
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import com.github.narh.cipher.command.AES256CBCCryptCommand;
+import com.github.narh.cipher.command.CryptCommand;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class KeyDerivationServiceTest {
+
+  private static final String FILE_NAME = "OpenSSLPbkdf2File.enc";
+  private static final byte[] PASSPHRASE = "12345678".getBytes();
+  private static final String PLAIN_TEXT = "PBKDF2 derived key test data.\nopenssl enc -aes-256-cbc -pbkdf2 -iter 1000\n";
+
+  @Test
+  public void testPBKDF2で暗号化されたOpenSSLファイルを復号化できること() throws Exception {
+    File file = new File(getClass().getClassLoader().getResource(FILE_NAME).toURI());
+    byte[] origin = Utils.getContentsByFile(file);
+    CipherContext context = CipherContext.builder()
+        .cryptMode(CipherOperationMode.DECRYPT)
+        .passphrase(PASSPHRASE)
+        .salt(CipherAESUtils.getSaltByOpenSSLCryptFiles(origin))
+        .keyDerivation(KeyDerivation.PBKDF2)
+        .iterationCount(1000)
+        .origin(origin)
+        .build();
+
+    CryptCommand command = new AES256CBCCryptCommand();
+    command.decrypt(context);
+    assertThat("平文に戻ること", new String(context.getContents()), is(PLAIN_TEXT));
+  }
+
+  @Test
+  public void testOpenSSLと同じ鍵データと初期化ベクトルを導出すること() throws Exception {
+    byte[] salt = Hex.decodeHex("AAD8DC0CE39E38A0".toCharArray());
+    byte[] pbkdf2 = KeyDerivation.PBKDF2.derive("SHA-256", 1000, PASSPHRASE, salt, 48);
+    assertThat("PBKDF2 の鍵データが期待値であること", Hex.encodeHexString(Arrays.copyOf(pbkdf2, 32)).toUpperCase()
+        , is("5750FD9C8BBB4410C7A6EC8A22E07D686A1D9F60F24642DC788A88491754C058"));
+    assertThat("PBKDF2 の IV が期待値であること", Hex.encodeHexString(Arrays.copyOfRange(pbkdf2, 32, 48)).toUpperCase()
+        , is("2BDE2DA87E9A832BF9D7FAF27798D827"));
+
+    byte[] evp = KeyDerivation.EVP_BYTES_TO_KEY.derive("SHA-256", 1, PASSPHRASE
+        , Hex.decodeHex("06A8EE4D903FE34B".toCharArray()), 48);
+    assertThat("EVP_BytesToKey の鍵データが期待値であること", Hex.encodeHexString(Arrays.copyOf(evp, 32)).toUpperCase()
+        , is("766F67BA226C360F0D70E183FD52CC279DF9826FF969E15DC39A547C8B9BAA5F"));
+    assertThat("EVP_BytesToKey の IV が期待値であること", Hex.encodeHexString(Arrays.copyOfRange(evp, 32, 48)).toUpperCase()
+        , is("1E3E89317C7E22D3D7E626B018D5A117"));
+  }
+
+  @Test
+  public void test同じ導出条件の並行した要求は導出を共有すること() throws Exception {
+    final KeyDerivationService service = new KeyDerivationService(2, 16, new DerivedKeyCache(16, 60000L));
+    final byte[] salt = "saltsalt".getBytes();
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService requests = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      for(int i = 0; i < 8; i++) {
+        results.add(requests.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            start.await();
+            return service.derive(KeyDerivation.PBKDF2, null, 200000, PASSPHRASE, salt, 48).get();
+          }
+        }));
+      }
+      start.countDown();
+      byte[] expected = results.get(0).get();
+      for(Future<byte[]> result : results)
+        assertThat("同じ導出結果であること", Arrays.equals(result.get(), expected), is(true));
+      log.info("{}", service);
+      assertThat("導出は1回のみ実行すること", service.getDerivations(), is(1L));
+      assertThat("実行中の導出が残らないこと", service.getInFlightCount(), is(0));
+    }
+    finally {
+      requests.shutdown();
+      service.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void test停止後は要求元のスレッドで導出すること() throws Exception {
+    KeyDerivationService service = new KeyDerivationService(1, 1, null);
+    service.shutdown();
+    byte[] material = service.derive(KeyDerivation.PBKDF2, null, 1000, PASSPHRASE, "saltsalt".getBytes(), 48).get();
+    assertThat("導出できること", material.length, is(48));
+    assertThat("導出を実行すること", service.getDerivations(), is(1L));
+    assertThat("実行中の導出が残らないこと", service.getInFlightCount(), is(0));
+  }
+}
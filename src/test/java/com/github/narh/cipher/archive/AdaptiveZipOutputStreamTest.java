@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+/**
+ * @author narita
+ *
+ */
+public class AdaptiveZipOutputStreamTest {
+
+  @Test
+  public void test圧縮済みのデータは圧縮せずに格納すること() throws Exception {
+    byte[] small = random(10000);
+    byte[] large = random(300000);
+    byte[] text = new byte[300000];
+    for(int i = 0; i < text.length; i++) text[i] = (byte) ('a' + i % 7);
+
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    AdaptiveZipOutputStream zip = new AdaptiveZipOutputStream(archive);
+    zip.setLevel(Deflater.BEST_COMPRESSION);
+    write(zip, "small.jpg", small);
+    write(zip, "large.zip", large);
+    write(zip, "text.txt", text);
+    write(zip, "empty", new byte[0]);
+    ZipEntry explicit = new ZipEntry("explicit.bin");
+    explicit.setMethod(ZipEntry.DEFLATED);
+    zip.putNextEntry(explicit);
+    zip.write(small);
+    zip.putNextEntry(new ZipEntry("last.jpg"));
+    for(byte b : small) zip.write(b);
+    zip.close();
+    assertThat("無圧縮で格納したエントリ数", zip.getStoredEntries(), is(3L));
+    assertThat("圧縮したエントリ数", zip.getDeflatedEntries(), is(2L));
+    assertThat("圧縮可能なデータは圧縮すること", archive.size() < small.length * 3 + large.length + text.length / 10
+        , is(true));
+
+    ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()));
+    verify(input, "small.jpg", ZipEntry.STORED, small);
+    verify(input, "large.zip", ZipEntry.DEFLATED, large);
+    verify(input, "text.txt", ZipEntry.DEFLATED, text);
+    verify(input, "empty", ZipEntry.DEFLATED, new byte[0]);
+    verify(input, "explicit.bin", ZipEntry.DEFLATED, small);
+    verify(input, "last.jpg", ZipEntry.STORED, small);
+    assertThat("エントリ数", input.getNextEntry(), is(nullValue()));
+    input.close();
+  }
+
+  @Test
+  public void test先頭のサンプルから圧縮の効果を推定すること() {
+    CompressibilityEstimator estimator = new CompressibilityEstimator(4096, 0.9);
+    byte[] data = random(8192);
+    assertThat("乱数は効果がないこと", estimator.isCompressible(data, 0, data.length), is(false));
+    Arrays.fill(data, 0, 4096, (byte) 0);
+    assertThat("サンプルが圧縮可能であれば効果があること", estimator.isCompressible(data, 0, data.length), is(true));
+    assertThat("サンプル外は判定しないこと", estimator.isCompressible(data, 4096, 4096), is(false));
+    assertThat("短いデータは圧縮すること", estimator.isCompressible(data, 4096, 100), is(true));
+  }
+
+  private static void write(final AdaptiveZipOutputStream zip, final String name, final byte[] data)
+      throws Exception {
+    zip.putNextEntry(new ZipEntry(name));
+    zip.write(data, 0, data.length / 2);
+    zip.write(data, data.length / 2, data.length - data.length / 2);
+    zip.closeEntry();
+  }
+
+  private static void verify(final ZipInputStream input, final String name, final int method, final byte[] data)
+      throws Exception {
+    ZipEntry entry = input.getNextEntry();
+    assertThat("エントリ名", entry.getName(), is(name));
+    assertThat("格納方式(" + name + ")", entry.getMethod(), is(method));
+    assertThat("展開したデータが一致すること(" + name + ")", Arrays.equals(IOUtils.toByteArray(input), data), is(true));
+  }
+
+  private static byte[] random(final int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherStreamFactory;
+import com.github.narh.cipher.Utils;
+
+/**
+ * @author narita
+ *
+ */
+public class DirectoryArchiverTest {
+
+  private CipherStreamFactory factory;
+  private File root;
+  private Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+
+  @Before
+  public void setUp() throws Exception {
+    Properties prop = new Properties();
+    prop.setProperty("cipher.profiles", "archive");
+    prop.setProperty("cipher.profile.archive.algorithm", "AES256CBC");
+    prop.setProperty("cipher.profile.archive.secretKey"
+        , Hex.encodeHexString("0123456789abcdef0123456789abcdef".getBytes()));
+    prop.setProperty("cipher.profile.archive.pipeline", "true");
+    factory = new CipherStreamFactory(prop);
+
+    root = File.createTempFile("archive", "");
+    root.delete();
+    root.mkdir();
+    write("a.txt", "foo-bar".getBytes(), true);
+    write("b/.hidden/x.txt", "hidden".getBytes(), false);
+    write("b/c/d.bin", random(100000, 1L), true);
+    write("b/c/e.txt", new byte[0], true);
+    write("b/large.bin", random(300000, 2L), true);
+    write("b/z.txt", "1234".getBytes(), true);
+    write(".hidden.txt", "hidden".getBytes(), false);
+    write("c.txt", "あいうえお".getBytes("UTF-8"), true);
+  }
+
+  @After
+  public void tearDown() {
+    delete(root);
+  }
+
+  @Test
+  public void test隠しファイルを除いたディレクトリ配下を再帰的にアーカイブすること() throws Exception {
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    int count = new DirectoryArchiver(factory, "archive")
+        .ioThreads(2)
+        .prefetch(2)
+        .maxPrefetchSize(200000)
+        .archive(root, encrypted);
+    assertThat("エントリ数", count, is(expected.size()));
+
+    ZipInputStream input = new ZipInputStream(
+        factory.getDecryptInputStream("archive", new ByteArrayInputStream(encrypted.toByteArray())));
+    List<String> names = new ArrayList<String>();
+    ZipEntry entry;
+    while(null != (entry = input.getNextEntry())) {
+      names.add(entry.getName());
+      assertThat("展開したデータが一致すること(" + entry.getName() + ")"
+          , Arrays.equals(IOUtils.toByteArray(input), expected.get(entry.getName())), is(true));
+    }
+    input.close();
+    assertThat("名前順に深さ優先でアーカイブすること", names, is((List<String>) new ArrayList<String>(expected.keySet())));
+  }
+
+  @Test
+  public void testシンボリックリンクの循環は辿らないこと() throws Exception {
+    Files.createSymbolicLink(new File(root, "b/c/loop").toPath(), root.toPath());
+    List<String> names = new ArrayList<String>();
+    for(File file : Utils.getTree(root))
+      names.add(file.getAbsolutePath().substring(root.getAbsolutePath().length() + 1));
+    assertThat("各ディレクトリを1回のみ辿ること", names
+        , is((List<String>) new ArrayList<String>(expected.keySet())));
+  }
+
+  @Test
+  public void test区切り文字で終わる基準ディレクトリからもエントリ名を求めること() {
+    File file = new File(File.separator + "etc" + File.separator + "hosts");
+    assertThat("ルートディレクトリ", DirectoryArchiver.entryName(File.separator, file), is("etc/hosts"));
+    assertThat("区切り文字なし", DirectoryArchiver.entryName(File.separator + "etc", file), is("hosts"));
+    assertThat("区切り文字付き", DirectoryArchiver.entryName(File.separator + "etc" + File.separator, file)
+        , is("hosts"));
+  }
+
+  private void write(final String name, final byte[] contents, final boolean archived) throws Exception {
+    File file = new File(root, name);
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(contents);
+    out.close();
+    if(archived) expected.put(name, contents);
+  }
+
+  private static byte[] random(final int length, final long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private static void delete(final File file) {
+    File[] children = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+    if(null != children) for(File child : children) delete(child);
+    file.delete();
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.zip.ScatterStatistics;
+import org.apache.commons.compress.parallel.InputStreamSupplier;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherStreamFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class ParallelZipArchiveBuilderTest {
+
+  private static final byte[] SECRET_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+  private CipherStreamFactory factory;
+  private File scatterDirectory;
+
+  @Before
+  public void setUp() throws Exception {
+    Properties prop = new Properties();
+    prop.setProperty("cipher.profiles", "archive, pipelined");
+    for(String name : new String[] { "archive", "pipelined" }) {
+      prop.setProperty("cipher.profile." + name + ".algorithm", "AES256CBC");
+      prop.setProperty("cipher.profile." + name + ".secretKey", Hex.encodeHexString(SECRET_KEY));
+    }
+    prop.setProperty("cipher.profile.pipelined.pipeline", "true");
+    factory = new CipherStreamFactory(prop);
+    scatterDirectory = File.createTempFile("scatter", "");
+    scatterDirectory.delete();
+    scatterDirectory.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    for(File file : scatterDirectory.listFiles()) file.delete();
+    scatterDirectory.delete();
+  }
+
+  @Test
+  public void test並行して圧縮したエントリを暗号化して出力すること() throws Exception {
+    for(String profile : new String[] { "archive", "pipelined" }) {
+      byte[][] contents = new byte[40][];
+      ParallelZipArchiveBuilder builder = new ParallelZipArchiveBuilder(factory, profile)
+          .threads(4)
+          .scatterDirectory(scatterDirectory);
+      for(int i = 0; i < contents.length; i++) {
+        contents[i] = contents(i);
+        builder.addEntry("dir/entry" + i + ".dat", contents[i]);
+      }
+      ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+      ScatterStatistics statistics = builder.writeTo(encrypted);
+      log.info("{}: {}", profile, statistics);
+      assertThat("乱数のエントリは無圧縮で格納すること", builder.getStoredEntries(), is(contents.length / 2));
+
+      ZipInputStream input = new ZipInputStream(
+          factory.getDecryptInputStream(profile, new ByteArrayInputStream(encrypted.toByteArray())));
+      Map<String, byte[]> entries = new HashMap<String, byte[]>();
+      ZipEntry entry;
+      while(null != (entry = input.getNextEntry())) entries.put(entry.getName(), IOUtils.toByteArray(input));
+      input.close();
+      assertThat("エントリ数", entries.size(), is(contents.length));
+      for(int i = 0; i < contents.length; i++) {
+        assertThat("展開したデータが一致すること(" + i + ")"
+            , Arrays.equals(entries.get("dir/entry" + i + ".dat"), contents[i]), is(true));
+      }
+      assertThat("スキャッタファイルを削除すること", scatterDirectory.list().length, is(0));
+    }
+  }
+
+  @Test
+  public void testエントリの読み込みに失敗した場合は例外としスキャッタファイルを削除すること() throws Exception {
+    ParallelZipArchiveBuilder builder = new ParallelZipArchiveBuilder(factory, "archive")
+        .threads(2)
+        .scatterDirectory(scatterDirectory);
+    for(int i = 0; i < 8; i++) builder.addEntry("entry" + i, contents(i));
+    builder.addEntry("broken", 0L, new InputStreamSupplier() {
+      @Override
+      public InputStream get() {
+        return new InputStream() {
+          @Override
+          public int read() throws IOException {
+            throw new IOException("read error");
+          }
+        };
+      }
+    });
+    try {
+      builder.writeTo(new ByteArrayOutputStream());
+      assertThat("例外となること", false, is(true));
+    }
+    catch (IOException e) {
+      log.info("{}", e.getMessage());
+    }
+    assertThat("スキャッタファイルを削除すること", scatterDirectory.list().length, is(0));
+  }
+
+  private static byte[] contents(final int index) {
+    byte[] data = new byte[1000 + index * 4099];
+    Random random = new Random(index);
+    // 偶数番目は圧縮可能なデータとする
+    if(0 == index % 2) Arrays.fill(data, (byte) ('a' + index % 26));
+    else random.nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author narita
+ *
+ */
+public class PipelinedOutputStreamTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void test書き込んだデータを順序どおり転送し出力先を閉じること() throws Exception {
+    byte[] data = new byte[100000];
+    new Random(1L).nextBytes(data);
+    final AtomicInteger closed = new AtomicInteger();
+    ByteArrayOutputStream sink = new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        closed.incrementAndGet();
+      }
+    };
+    OutputStream output = new PipelinedOutputStream(sink, 7, 3, executor);
+    output.write(data[0]);
+    int offset = 1;
+    for(int length = 1; offset < data.length; length = length * 3 + 1) {
+      int size = Math.min(length, data.length - offset);
+      output.write(data, offset, size);
+      offset += size;
+      output.flush();
+    }
+    output.close();
+    output.close();
+    assertThat("転送したデータが一致すること", Arrays.equals(sink.toByteArray(), data), is(true));
+    assertThat("出力先は1回のみ閉じること", closed.get(), is(1));
+  }
+
+  @Test
+  public void test空きチャンクがない場合は書き込みを待機させること() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    OutputStream blocking = new FilterOutputStream(new ByteArrayOutputStream()) {
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        out.write(b, off, len);
+      }
+    };
+    final OutputStream output = new PipelinedOutputStream(blocking, 16, 2, executor);
+    Future<Boolean> writer = executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        output.write(new byte[16 * 4]);
+        output.close();
+        return true;
+      }
+    });
+    try {
+      writer.get(300, TimeUnit.MILLISECONDS);
+      assertThat("書き込みが待機すること", false, is(true));
+    }
+    catch (TimeoutException e) {
+      // チャンク数を超えた書き込みは転送を待つ
+    }
+    release.countDown();
+    assertThat("転送後に書き込みが完了すること", writer.get(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void test転送の例外を書き込み側へ通知すること() throws Exception {
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(final int b) throws IOException {
+        throw new IOException("disk full");
+      }
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        throw new IOException("disk full");
+      }
+    };
+    OutputStream output = new PipelinedOutputStream(failing, 16, 2, executor);
+    try {
+      for(int i = 0; i < 100; i++) output.write(new byte[16]);
+      output.close();
+      assertThat("例外となること", false, is(true));
+    }
+    catch (IOException e) {
+      assertThat("転送の例外であること", e.getMessage(), is("disk full"));
+    }
+  }
+}
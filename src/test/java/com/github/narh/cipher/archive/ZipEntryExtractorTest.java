@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.archive;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherStreamFactory;
+
+/**
+ * @author narita
+ *
+ */
+public class ZipEntryExtractorTest {
+
+  private CipherStreamFactory factory;
+  private File archive;
+  private Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+
+  @Before
+  public void setUp() throws Exception {
+    Properties prop = new Properties();
+    prop.setProperty("cipher.profiles", "archive, gcm");
+    prop.setProperty("cipher.profile.archive.algorithm", "AES256CBC");
+    prop.setProperty("cipher.profile.archive.secretKey"
+        , Hex.encodeHexString("0123456789abcdef0123456789abcdef".getBytes()));
+    prop.setProperty("cipher.profile.archive.bufferSize", "4096");
+    prop.setProperty("cipher.profile.gcm.algorithm", "AES256GCM");
+    prop.setProperty("cipher.profile.gcm.passphrase", "12345678");
+    prop.setProperty("cipher.profile.gcm.salt", "0102030405060708");
+    factory = new CipherStreamFactory(prop);
+
+    byte[] text = new byte[200000];
+    for(int i = 0; i < text.length; i++) text[i] = (byte) ('a' + i % 13);
+    expected.put("a.txt", "foo-bar".getBytes());
+    expected.put("b/large.bin", random(300000));
+    expected.put("b/text.txt", text);
+    expected.put("b/empty", new byte[0]);
+    expected.put("c.txt", "あいうえお".getBytes("UTF-8"));
+
+    archive = File.createTempFile("archive", ".zip.enc");
+    ZipOutputStream zip = factory.getZipOutputStream("archive", new FileOutputStream(archive));
+    for(Map.Entry<String, byte[]> e : expected.entrySet()) {
+      zip.putNextEntry(new ZipEntry(e.getKey()));
+      zip.write(e.getValue());
+      zip.closeEntry();
+    }
+    zip.setComment("nightly");
+    zip.close();
+  }
+
+  @After
+  public void tearDown() {
+    archive.delete();
+  }
+
+  @Test
+  public void test中央ディレクトリから指定したエントリのみを展開すること() throws Exception {
+    ZipEntryExtractor extractor = factory.getZipEntryExtractor("archive", archive);
+    try {
+      assertThat("エントリ名の一覧", extractor.getEntryNames()
+          , is((List<String>) new ArrayList<String>(expected.keySet())));
+      for(String name : new String[] { "c.txt", "b/text.txt", "b/empty", "b/large.bin", "a.txt" }) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long length = extractor.extract(name, out);
+        assertThat("展開した長さ(" + name + ")", length, is((long) expected.get(name).length));
+        assertThat("展開後の長さ(" + name + ")", extractor.getSize(name), is(length));
+        assertThat("展開したデータが一致すること(" + name + ")"
+            , Arrays.equals(out.toByteArray(), expected.get(name)), is(true));
+      }
+    }
+    finally {
+      extractor.close();
+    }
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void testエントリがない場合は例外とすること() throws Exception {
+    ZipEntryExtractor extractor = factory.getZipEntryExtractor("archive", archive);
+    try {
+      extractor.extract("none.txt", new ByteArrayOutputStream());
+    }
+    finally {
+      extractor.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCBCモード以外のプロファイルは例外とすること() throws Exception {
+    factory.getZipEntryExtractor("gcm", archive);
+  }
+
+  private static byte[] random(final int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
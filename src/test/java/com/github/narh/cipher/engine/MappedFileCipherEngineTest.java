@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAESUtils;
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.DirectBufferPool;
+import com.github.narh.cipher.KeyDerivation;
+import com.github.narh.cipher.Utils;
+import com.github.narh.cipher.command.AES256CBCCryptCommand;
+
+/**
+ * @author narita
+ *
+ */
+public class MappedFileCipherEngineTest {
+
+  private static final byte[] PASSPHRASE = "12345678".getBytes();
+  private static final byte[] SALT = "saltsalt".getBytes();
+
+  private File source;
+  private File encrypted;
+  private File decrypted;
+
+  @Before
+  public void setUp() throws Exception {
+    source = File.createTempFile("mapped", ".plain");
+    encrypted = File.createTempFile("mapped", ".enc");
+    decrypted = File.createTempFile("mapped", ".dec");
+  }
+
+  @After
+  public void tearDown() {
+    source.delete();
+    encrypted.delete();
+    decrypted.delete();
+  }
+
+  @Test
+  public void testウィンドウをまたいで暗号化したファイルをコマンドで復号化できること() throws Exception {
+    byte[] plain = write(200000 + 7);
+    MappedFileCipherEngine engine = new MappedFileCipherEngine(64 * 1024, 4096);
+    DirectBufferPool pool = new DirectBufferPool(new int[] { 8192 }, 8192);
+    engine.setBufferPool(pool);
+    long written = engine.encrypt(CipherAlgorithm.AES256CBC, context(CipherOperationMode.ENCRYPT, null)
+        , source, encrypted);
+    assertThat("ヘッダと暗号文の長さを返すこと", written, is(encrypted.length()));
+    assertThat("出力バッファを返却すること", pool.getLeasedCount(), is(0));
+    assertThat("ダイレクトバッファを利用すること", pool.getMisses(), is(1L));
+
+    CipherContext context = context(CipherOperationMode.DECRYPT, Utils.getContentsByFile(encrypted));
+    new AES256CBCCryptCommand().decrypt(context);
+    assertThat("元データに戻ること", Arrays.equals(context.getContents(), plain), is(true));
+  }
+
+  @Test
+  public void testコマンドで暗号化したファイルを復号化できること() throws Exception {
+    byte[] plain = write(100000);
+    CipherContext context = context(CipherOperationMode.ENCRYPT, plain);
+    new AES256CBCCryptCommand().encrypt(context);
+    FileOutputStream output = new FileOutputStream(encrypted);
+    output.write(context.getContents());
+    IOUtils.closeQuietly(output);
+
+    MappedFileCipherEngine engine = new MappedFileCipherEngine(16 * 1024, 1000);
+    long length = engine.decrypt(CipherAlgorithm.AES256CBC, context(CipherOperationMode.DECRYPT, null)
+        , encrypted, decrypted);
+    assertThat("平文の長さを返すこと", length, is((long) plain.length));
+    assertThat("元データに戻ること", Arrays.equals(Utils.getContentsByFile(decrypted), plain), is(true));
+  }
+
+  @Test
+  public void testCTRモードで暗号化と復号化できること() throws Exception {
+    byte[] plain = write(12345);
+    MappedFileCipherEngine engine = new MappedFileCipherEngine(4096, 1024);
+    engine.encrypt(CipherAlgorithm.AES256CTR, context(CipherOperationMode.ENCRYPT, null), source, encrypted);
+    assertThat("パディングされないこと", encrypted.length(), is(16L + plain.length));
+    engine.decrypt(CipherAlgorithm.AES256CTR, context(CipherOperationMode.DECRYPT, null), encrypted, decrypted);
+    assertThat("元データに戻ること", Arrays.equals(Utils.getContentsByFile(decrypted), plain), is(true));
+  }
+
+  @Test
+  public void test暗号器を初期化できない場合は出力先を作成しないこと() throws Exception {
+    write(100);
+    encrypted.delete();
+    CipherContext context = CipherContext.builder()
+        .cryptMode(CipherOperationMode.ENCRYPT)
+        .salt(SALT)
+        .secretKey(new byte[5])
+        .iv(new byte[16])
+        .build();
+    try {
+      new MappedFileCipherEngine().encrypt(CipherAlgorithm.AES256CBC, context, source, encrypted);
+      assertThat("例外が発生すること", false, is(true));
+    }
+    catch (IllegalArgumentException e) {
+      assertThat("出力先を作成しないこと", encrypted.exists(), is(false));
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testSALTが一致しない場合は例外となること() throws Exception {
+    write(100);
+    MappedFileCipherEngine engine = new MappedFileCipherEngine();
+    engine.encrypt(CipherAlgorithm.AES256CBC, context(CipherOperationMode.ENCRYPT, null), source, encrypted);
+    CipherContext other = CipherContext.builder()
+        .cryptMode(CipherOperationMode.DECRYPT)
+        .salt("pepper!!".getBytes())
+        .secretKey(CipherAESUtils.generateSecretKey(PASSPHRASE, SALT))
+        .iv(CipherAESUtils.generateIV(PASSPHRASE, SALT, CipherAESUtils.generateSecretKey(PASSPHRASE, SALT)))
+        .build();
+    engine.decrypt(CipherAlgorithm.AES256CBC, other, encrypted, decrypted);
+  }
+
+  private CipherContext context(final CipherOperationMode mode, final byte[] origin) {
+    byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE, SALT);
+    return CipherContext.builder()
+        .cryptMode(mode)
+        .passphrase(PASSPHRASE)
+        .salt(SALT)
+        .secretKey(secretKey)
+        .iv(CipherAESUtils.generateIV(PASSPHRASE, SALT, secretKey))
+        .origin(origin)
+        .build();
+  }
+
+  private byte[] write(final int length) throws Exception {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    FileOutputStream output = new FileOutputStream(source);
+    output.write(data);
+    IOUtils.closeQuietly(output);
+    return data;
+  }
+
+  @Test
+  public void testパスフレーズのみでヘッダのSALTから鍵を導出して復号化すること() throws Exception {
+    File file = new File(getClass().getClassLoader().getResource("OpenSSLPbkdf2File.enc").toURI());
+    CipherContext context = CipherContext.builder()
+        .passphrase("12345678".getBytes())
+        .keyDerivation(KeyDerivation.PBKDF2)
+        .iterationCount(1000)
+        .build();
+    new MappedFileCipherEngine().decrypt(CipherAlgorithm.AES256CBC, context, file, decrypted);
+    assertThat("ファイルを復号化できること", new String(Utils.getContentsByFile(decrypted)), is("PBKDF2 derived key test data.\nopenssl enc -aes-256-cbc -pbkdf2 -iter 1000\n"));
+  }
+}
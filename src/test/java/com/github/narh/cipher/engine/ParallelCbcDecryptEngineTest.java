@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAESUtils;
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.KeyDerivation;
+import com.github.narh.cipher.Utils;
+import com.github.narh.cipher.command.AES256CBCCryptCommand;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class ParallelCbcDecryptEngineTest {
+
+  private static final String PASSPHRASE = "123456";
+
+  private ParallelCbcDecryptEngine engine;
+
+  @Before
+  public void setUp() {
+    engine = new ParallelCbcDecryptEngine(Executors.newFixedThreadPool(4), 64 * 1024);
+  }
+
+  @After
+  public void tearDown() {
+    engine.executor.shutdown();
+  }
+
+  @Test
+  public void testOpenSSLファイルを復号化できること() throws Exception {
+    byte[] encoded = Utils.getContentsByFile(
+        new File(getClass().getClassLoader().getResource("hoge_256.enc").toURI()));
+    byte[] origin = Utils.getContentsByFile(
+        new File(getClass().getClassLoader().getResource("hoge").toURI()));
+    CipherContext context = context(CipherOperationMode.DECRYPT
+        , CipherAESUtils.getSaltByOpenSSLCryptFiles(encoded), encoded);
+
+    engine.decrypt(CipherAlgorithm.AES256CBC, context);
+    assertThat("元ファイルと同じであること", context.getContents(), is(origin));
+  }
+
+  @Test
+  public void test複数セグメントを復号化できること() throws Exception {
+    for(int length : new int[] { 0, 15, 16, 64 * 1024, 64 * 1024 - 1, 200 * 1024 + 7 }) {
+      byte[] plain = random(length);
+      byte[] encrypted = encrypt(plain);
+      CipherContext context = context(CipherOperationMode.DECRYPT, salt(), encrypted);
+      engine.decrypt(CipherAlgorithm.AES256CBC, context);
+      log.info("length {} decrypted {}", length, context.getContents().length);
+      assertThat("元データと同じであること(" + length + ")", Arrays.equals(context.getContents(), plain), is(true));
+    }
+  }
+
+  @Test
+  public void testセグメントごとに暗号器をプールから借り出し返却すること() throws Exception {
+    CipherPool pool = new CipherPool(4, 8);
+    engine.setCipherPool(pool);
+    byte[] plain = random(200 * 1024 + 7);
+    byte[] encrypted = encrypt(plain);
+    for(int i = 0; i < 2; i++) {
+      CipherContext context = context(CipherOperationMode.DECRYPT, salt(), encrypted);
+      engine.decrypt(CipherAlgorithm.AES256CBC, context);
+      assertThat("元データと同じであること", Arrays.equals(context.getContents(), plain), is(true));
+    }
+    assertThat("生成はスレッド数以下であること", 4L >= pool.getMisses(), is(true));
+    assertThat("返却した暗号器を再利用すること", pool.getHits(), is(8L - pool.getMisses()));
+    assertThat("すべて返却すること", pool.getIdleCount(), is((int) pool.getMisses()));
+  }
+
+  @Test
+  public void testファイルを復号化できること() throws Exception {
+    byte[] plain = random(300 * 1024 + 3);
+    File source = File.createTempFile("cbc", ".enc");
+    File destination = File.createTempFile("cbc", ".plain");
+    try {
+      FileOutputStream output = new FileOutputStream(source);
+      output.write(encrypt(plain));
+      IOUtils.closeQuietly(output);
+
+      CipherContext context = context(CipherOperationMode.DECRYPT, salt(), null);
+      long length = engine.decrypt(CipherAlgorithm.AES256CBC, context, source, destination);
+      assertThat("平文の長さを返すこと", length, is((long) plain.length));
+      assertThat("元データと同じであること", Arrays.equals(Utils.getContentsByFile(destination), plain), is(true));
+    }
+    finally {
+      source.delete();
+      destination.delete();
+    }
+  }
+
+  @Test
+  public void testファイルの復号化に失敗した場合は出力先を削除すること() throws Exception {
+    File source = File.createTempFile("cbc", ".enc");
+    File destination = File.createTempFile("cbc", ".plain");
+    try {
+      FileOutputStream output = new FileOutputStream(source);
+      output.write(encrypt(random(300 * 1024 + 3)));
+      IOUtils.closeQuietly(output);
+
+      byte[] secretKey = CipherAESUtils.generateSecretKey("wrong".getBytes(), salt());
+      CipherContext context = CipherContext.builder()
+          .salt(salt())
+          .secretKey(secretKey)
+          .iv(CipherAESUtils.generateIV("wrong".getBytes(), salt(), secretKey))
+          .build();
+      try {
+        engine.decrypt(CipherAlgorithm.AES256CBC, context, source, destination);
+        assertThat("例外が発生すること", false, is(true));
+      }
+      catch (IllegalArgumentException e) {
+        assertThat("検証前の平文を残さないこと", destination.exists(), is(false));
+      }
+    }
+    finally {
+      source.delete();
+      destination.delete();
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void test鍵が異なる場合はパディングエラーとなること() throws Exception {
+    byte[] encrypted = encrypt(random(1000));
+    byte[] salt = "abcdefgh".getBytes();
+    byte[] secretKey = CipherAESUtils.generateSecretKey("wrong".getBytes(), salt);
+    CipherContext context = CipherContext.builder()
+        .secretKey(secretKey)
+        .iv(CipherAESUtils.generateIV("wrong".getBytes(), salt, secretKey))
+        .origin(encrypted)
+        .build();
+    engine.decrypt(CipherAlgorithm.AES256CBC, context);
+  }
+
+  private byte[] encrypt(final byte[] plain) {
+    CipherContext context = context(CipherOperationMode.ENCRYPT, salt(), plain);
+    new AES256CBCCryptCommand().encrypt(context);
+    return context.getContents();
+  }
+
+  private CipherContext context(final CipherOperationMode mode, final byte[] salt, final byte[] origin) {
+    byte[] secretKey = CipherAESUtils.generateSecretKey(PASSPHRASE.getBytes(), salt);
+    return CipherContext.builder()
+        .cryptMode(mode)
+        .passphrase(PASSPHRASE.getBytes())
+        .salt(salt)
+        .secretKey(secretKey)
+        .iv(CipherAESUtils.generateIV(PASSPHRASE.getBytes(), salt, secretKey))
+        .origin(origin)
+        .build();
+  }
+
+  private byte[] salt() {
+    return "12345678".getBytes();
+  }
+
+  private byte[] random(final int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testパスフレーズのみでヘッダのSALTから鍵を導出して復号化すること() throws Exception {
+    File source = new File(getClass().getClassLoader().getResource("OpenSSLPbkdf2File.enc").toURI());
+    File destination = File.createTempFile("cbc", ".plain");
+    try {
+      CipherContext context = CipherContext.builder()
+          .passphrase("12345678".getBytes())
+          .keyDerivation(KeyDerivation.PBKDF2)
+          .iterationCount(1000)
+          .origin(Utils.getContentsByFile(source))
+          .build();
+      String expected = "PBKDF2 derived key test data.\nopenssl enc -aes-256-cbc -pbkdf2 -iter 1000\n";
+      engine.decrypt(CipherAlgorithm.AES256CBC, context);
+      assertThat("配列を復号化できること", new String(context.getContents()), is(expected));
+      engine.decrypt(CipherAlgorithm.AES256CBC, context, source, destination);
+      assertThat("ファイルを復号化できること", new String(Utils.getContentsByFile(destination)), is(expected));
+    }
+    finally {
+      destination.delete();
+    }
+  }
+}
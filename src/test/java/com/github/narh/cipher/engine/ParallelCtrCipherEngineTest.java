@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.Utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class ParallelCtrCipherEngineTest {
+
+  private static final byte[] SECRET_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+  private ParallelCtrCipherEngine engine;
+
+  @Before
+  public void setUp() {
+    engine = new ParallelCtrCipherEngine(Executors.newFixedThreadPool(4), 64 * 1024);
+  }
+
+  @After
+  public void tearDown() {
+    engine.executor.shutdown();
+  }
+
+  @Test
+  public void test単一スレッドのCTRと一致すること() throws Exception {
+    byte[] iv = Hex.decodeHex("000102030405060708090a0b0c0d0e0f".toCharArray());
+    byte[] plain = random(1024 * 1024 + 37);
+
+    byte[] encrypted = engine.process(CipherAlgorithm.AES256CTR, SECRET_KEY, iv, plain);
+    assertThat("単一スレッドの結果と一致すること", Arrays.equals(encrypted, expected(iv, plain)), is(true));
+
+    byte[] decrypted = engine.process(CipherAlgorithm.AES256CTR, SECRET_KEY, iv, encrypted);
+    assertThat("元データに戻ること", Arrays.equals(decrypted, plain), is(true));
+  }
+
+  @Test
+  public void testカウンタが桁上がりすること() throws Exception {
+    byte[] iv = Hex.decodeHex("00000000000000fffffffffffffffff0".toCharArray());
+    assertThat("128bit で桁上がりすること"
+        , Hex.encodeHexString(ParallelCtrCipherEngine.counterAt(iv, 0x20))
+        , is("00000000000001000000000000000010"));
+
+    byte[] plain = random(256 * 1024);
+    byte[] encrypted = engine.process(CipherAlgorithm.AES128CTR, Arrays.copyOf(SECRET_KEY, 16), iv, plain);
+    Cipher cipher = Cipher.getInstance(CipherAlgorithm.AES128CTR.transration);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Arrays.copyOf(SECRET_KEY, 16), "AES"), new IvParameterSpec(iv));
+    assertThat("単一スレッドの結果と一致すること", Arrays.equals(encrypted, cipher.doFinal(plain)), is(true));
+  }
+
+  @Test
+  public void testファイルを処理できること() throws Exception {
+    byte[] iv = Hex.decodeHex("0f0e0d0c0b0a09080706050403020100".toCharArray());
+    byte[] plain = random(300 * 1024 + 5);
+    File source = File.createTempFile("ctr", ".plain");
+    File destination = File.createTempFile("ctr", ".enc");
+    try {
+      FileOutputStream output = new FileOutputStream(source);
+      output.write(plain);
+      IOUtils.closeQuietly(output);
+
+      engine.process(CipherAlgorithm.AES256CTR, SECRET_KEY, iv, source, destination);
+      byte[] encrypted = Utils.getContentsByFile(destination);
+      log.info("encrypted size {}", encrypted.length);
+      assertThat("単一スレッドの結果と一致すること", Arrays.equals(encrypted, expected(iv, plain)), is(true));
+    }
+    finally {
+      source.delete();
+      destination.delete();
+    }
+  }
+
+  private byte[] expected(final byte[] iv, final byte[] plain) throws Exception {
+    Cipher cipher = Cipher.getInstance(CipherAlgorithm.AES256CTR.transration);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SECRET_KEY, "AES"), new IvParameterSpec(iv));
+    return cipher.doFinal(plain);
+  }
+
+  private byte[] random(final int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.engine;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.Utils;
+import com.github.narh.cipher.stream.CipherInputStreamBuilder;
+
+/**
+ * @author narita
+ *
+ */
+public class SegmentedGcmCipherEngineTest {
+
+  private static final byte[] SECRET_KEY = "0123456789abcdef".getBytes();
+
+  private SegmentedGcmCipherEngine engine;
+
+  @Before
+  public void setUp() {
+    engine = new SegmentedGcmCipherEngine(Executors.newFixedThreadPool(4), 4096);
+  }
+
+  @After
+  public void tearDown() {
+    engine.executor.shutdown();
+  }
+
+  @Test
+  public void test並列に暗号化したデータをストリームで復号化できること() throws Exception {
+    byte[] plain = random(4096 * 7 + 11);
+    byte[] encrypted = engine.encrypt(SECRET_KEY, plain);
+
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES128GCM)
+        .operation(CipherOperationMode.DECRYPT)
+        .secretkey(SECRET_KEY)
+        .inputStream(new ByteArrayInputStream(encrypted))
+        .build();
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    IOUtils.copy(input, decrypted);
+    assertThat("ストリームで元データに戻ること", Arrays.equals(decrypted.toByteArray(), plain), is(true));
+    assertThat("並列に元データに戻ること", Arrays.equals(engine.decrypt(SECRET_KEY, encrypted), plain), is(true));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void test改ざんを検出すること() throws Exception {
+    byte[] encrypted = engine.encrypt(SECRET_KEY, random(4096 * 3));
+    encrypted[encrypted.length - 1] ^= 0x01;
+    engine.decrypt(SECRET_KEY, encrypted);
+  }
+
+  @Test
+  public void testファイルを暗号化と復号化できること() throws Exception {
+    byte[] plain = random(4096 * 5);
+    File source = File.createTempFile("gcm", ".plain");
+    File encrypted = File.createTempFile("gcm", ".enc");
+    File decrypted = File.createTempFile("gcm", ".dec");
+    try {
+      FileOutputStream output = new FileOutputStream(source);
+      output.write(plain);
+      IOUtils.closeQuietly(output);
+
+      engine.encrypt(SECRET_KEY, source, encrypted);
+      long length = engine.decrypt(SECRET_KEY, encrypted, decrypted);
+      assertThat("平文の長さを返すこと", length, is((long) plain.length));
+      assertThat("元データに戻ること", Arrays.equals(Utils.getContentsByFile(decrypted), plain), is(true));
+    }
+    finally {
+      source.delete();
+      encrypted.delete();
+      decrypted.delete();
+    }
+  }
+
+  @Test
+  public void testファイルの認証に失敗した場合は出力先を削除すること() throws Exception {
+    File encrypted = File.createTempFile("gcm", ".enc");
+    File decrypted = File.createTempFile("gcm", ".dec");
+    try {
+      byte[] data = engine.encrypt(SECRET_KEY, random(4096 * 5));
+      data[data.length - 1] ^= 0x01;
+      FileOutputStream output = new FileOutputStream(encrypted);
+      output.write(data);
+      IOUtils.closeQuietly(output);
+      try {
+        engine.decrypt(SECRET_KEY, encrypted, decrypted);
+        assertThat("例外が発生すること", false, is(true));
+      }
+      catch (IllegalArgumentException e) {
+        assertThat("未認証の平文を残さないこと", decrypted.exists(), is(false));
+      }
+    }
+    finally {
+      encrypted.delete();
+      decrypted.delete();
+    }
+  }
+
+  private byte[] random(final int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
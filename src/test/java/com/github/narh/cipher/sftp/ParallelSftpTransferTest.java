@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author narita
+ *
+ */
+public class ParallelSftpTransferTest {
+
+  private static final int RANGE_SIZE = 100000;
+
+  private static SftpTestServer server;
+  private SftpSessionPool pool;
+  private ParallelSftpTransfer transfer;
+  private File local;
+  private byte[] contents;
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    server = new SftpTestServer();
+  }
+
+  @AfterClass
+  public static void stopServer() throws Exception {
+    server.stop();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    pool = new SftpSessionPool().maxTotal(3).maintenanceInterval(0);
+    transfer = new ParallelSftpTransfer(pool, server.endpoint()).streams(3).rangeSize(RANGE_SIZE);
+    contents = new byte[RANGE_SIZE * 5 + 12345];
+    new Random(1L).nextBytes(contents);
+    local = File.createTempFile("transfer", ".enc");
+    write(local, contents);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+    local.delete();
+    new File(local.getPath() + ParallelSftpTransfer.JOURNAL_SUFFIX).delete();
+  }
+
+  @Test
+  public void test範囲ごとに並列にアップロードしてダウンロードすること() throws Exception {
+    TransferStatistics upload = transfer.upload(local, "archive.enc");
+    assertThat("範囲の数", upload.getRanges(), is(6));
+    assertThat("転送した範囲の数", upload.getTransferredRanges(), is(6));
+    assertThat("転送したバイト数", upload.getTransferredBytes(), is((long) contents.length));
+    assertThat("分割ファイル", read(new File(server.getRoot(), ParallelSftpTransfer.partName("archive.enc", 5)))
+        , is(Arrays.copyOfRange(contents, RANGE_SIZE * 5, contents.length)));
+
+    File downloaded = File.createTempFile("download", ".enc");
+    try {
+      TransferStatistics download = transfer.download("archive.enc", downloaded);
+      assertThat("転送した範囲の数", download.getTransferredRanges(), is(6));
+      assertThat("分割ファイルの組から復元すること", Arrays.equals(read(downloaded), contents), is(true));
+      assertThat("ジャーナルを削除すること"
+          , new File(downloaded.getPath() + ParallelSftpTransfer.JOURNAL_SUFFIX).exists(), is(false));
+    }
+    finally {
+      downloaded.delete();
+    }
+    assertThat("貸し出し中のチャネルがないこと", pool.getActiveCount(), is(0));
+  }
+
+  @Test
+  public void test中断したアップロードを完了した範囲から再開すること() throws Exception {
+    transfer.upload(local, "resume.enc");
+    File root = server.getRoot();
+    new File(root, ParallelSftpTransfer.partName("resume.enc", 1)).delete();
+    write(new File(root, ParallelSftpTransfer.partName("resume.enc", 3))
+        , Arrays.copyOfRange(contents, RANGE_SIZE * 3, RANGE_SIZE * 3 + 100));
+
+    TransferStatistics statistics = transfer.rangeSize(RANGE_SIZE * 2).upload(local, "resume.enc");
+    assertThat("マニフェストの範囲で再開すること", statistics.getRanges(), is(6));
+    assertThat("完了していた範囲の数", statistics.getResumedRanges(), is(4));
+    assertThat("転送したバイト数", statistics.getTransferredBytes(), is((long) RANGE_SIZE * 2 - 100));
+    for(int i = 0; i < 6; i++) {
+      assertThat("分割ファイル(" + i + ")", read(new File(root, ParallelSftpTransfer.partName("resume.enc", i)))
+          , is(Arrays.copyOfRange(contents, RANGE_SIZE * i, Math.min(RANGE_SIZE * (i + 1), contents.length))));
+    }
+  }
+
+  @Test
+  public void test単一のファイルを位置指定で並列にダウンロードし中断した範囲から再開すること() throws Exception {
+    write(new File(server.getRoot(), "single.enc"), contents);
+    File downloaded = File.createTempFile("download", ".enc");
+    File journal = new File(downloaded.getPath() + ParallelSftpTransfer.JOURNAL_SUFFIX);
+    try {
+      byte[] partial = new byte[contents.length];
+      System.arraycopy(contents, 0, partial, 0, RANGE_SIZE * 2);
+      write(downloaded, partial);
+      Properties prop = new Properties();
+      prop.setProperty("size", String.valueOf(contents.length));
+      prop.setProperty("rangeSize", String.valueOf(RANGE_SIZE));
+      prop.setProperty("completed", "0,1");
+      FileOutputStream out = new FileOutputStream(journal);
+      prop.store(out, null);
+      out.close();
+
+      TransferStatistics statistics = transfer.download("single.enc", downloaded);
+      assertThat("完了していた範囲の数", statistics.getResumedRanges(), is(2));
+      assertThat("転送したバイト数", statistics.getTransferredBytes(), is((long) contents.length - RANGE_SIZE * 2));
+      assertThat("ダウンロードしたファイル", Arrays.equals(read(downloaded), contents), is(true));
+      assertThat("ジャーナルを削除すること", journal.exists(), is(false));
+    }
+    finally {
+      downloaded.delete();
+      journal.delete();
+    }
+  }
+
+  private static void write(final File file, final byte[] data) throws Exception {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static byte[] read(final File file) throws Exception {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      return IOUtils.toByteArray(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.EvpBytesToKey;
+import com.github.narh.cipher.KeyDerivation;
+
+/**
+ * @author narita
+ *
+ */
+public class SftpDecryptStreamerTest {
+
+  private static final byte[] PASSPHRASE = "12345678".getBytes();
+  private static final byte[] SALT = "saltsalt".getBytes();
+
+  private static SftpTestServer server;
+  private SftpSessionPool pool;
+  private SftpDecryptStreamer streamer;
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    server = new SftpTestServer();
+    new File(server.getRoot(), "archives").mkdir();
+  }
+
+  @AfterClass
+  public static void stopServer() throws Exception {
+    server.stop();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    pool = new SftpSessionPool().maintenanceInterval(0);
+    streamer = new SftpDecryptStreamer(pool, server.endpoint(), CipherAlgorithm.AES256CBC
+        , CipherContext.builder()
+          .passphrase(PASSPHRASE)
+          .keyDerivation(KeyDerivation.EVP_BYTES_TO_KEY)
+          .digestAlgorithm("MD5")
+          .build())
+        .directory("archives")
+        .bufferSize(8192);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+  }
+
+  @Test
+  public void testSFTPから読み込みながら復号化して出力すること() throws Exception {
+    byte[] plain = new byte[2 * 1024 * 1024 + 3];
+    new Random(1L).nextBytes(plain);
+    encrypt(plain, new File(server.getRoot(), "archives/backup.zip.enc"));
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    long length = streamer.copyTo("backup.zip.enc", response);
+    assertThat("書き込んだバイト数", length, is((long) plain.length));
+    assertThat("平文に戻ること", Arrays.equals(response.toByteArray(), plain), is(true));
+    assertThat("チャネルを返却すること", pool.getIdleCount(), is(1));
+    assertThat("貸し出し中のチャネルがないこと", pool.getActiveCount(), is(0));
+  }
+
+  @Test
+  public void testファイルがない場合は出力せずに例外とすること() throws Exception {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    try {
+      streamer.copyTo("none.enc", response);
+      throw new AssertionError("copied from missing file.");
+    }
+    catch (FileNotFoundException e) {
+      assertThat("出力しないこと", response.size(), is(0));
+      assertThat("チャネルを返却すること", pool.getIdleCount(), is(1));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testディレクトリの外は参照できないこと() throws Exception {
+    streamer.copyTo("../secret.enc", new ByteArrayOutputStream());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testパスフレーズがない場合は接続前に例外とすること() throws Exception {
+    new SftpDecryptStreamer(pool, server.endpoint(), CipherAlgorithm.AES256CBC
+        , CipherContext.builder().keyDerivation(KeyDerivation.EVP_BYTES_TO_KEY).build());
+  }
+
+  @Test
+  public void test制御文字を含むファイル名は参照できないこと() throws Exception {
+    assertThat("通常の名前", SftpDecryptStreamer.isValidName("archive.zip.enc"), is(true));
+    assertThat("CR/LF", SftpDecryptStreamer.isValidName("a.enc\r\nSet-Cookie: x=y"), is(false));
+    assertThat("NUL", SftpDecryptStreamer.isValidName("a\u0000.enc"), is(false));
+    assertThat("DEL", SftpDecryptStreamer.isValidName("a\u007f.enc"), is(false));
+    assertThat("区切り", SftpDecryptStreamer.isValidName("a\\b.enc"), is(false));
+    assertThat("隠しファイル", SftpDecryptStreamer.isValidName(".enc"), is(false));
+    assertThat("空", SftpDecryptStreamer.isValidName(""), is(false));
+  }
+
+  private static void encrypt(final byte[] plain, final File file) throws Exception {
+    byte[] material = EvpBytesToKey.derive("MD5", 1, PASSPHRASE, SALT, 48);
+    Cipher cipher = Cipher.getInstance(CipherAlgorithm.AES256CBC.transration);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(material, 0, 32, "AES")
+        , new IvParameterSpec(material, 32, 16));
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("Salted__".getBytes());
+    out.write(SALT);
+    CipherOutputStream encrypted = new CipherOutputStream(out, cipher);
+    try {
+      encrypted.write(plain);
+    }
+    finally {
+      encrypted.close();
+    }
+  }
+}
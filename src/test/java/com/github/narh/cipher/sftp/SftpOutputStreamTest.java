@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherStreamFactory;
+
+/**
+ * @author narita
+ *
+ */
+public class SftpOutputStreamTest {
+
+  private static SftpTestServer server;
+  private SftpSessionPool pool;
+  private CipherStreamFactory factory;
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    server = new SftpTestServer();
+  }
+
+  @AfterClass
+  public static void stopServer() throws Exception {
+    server.stop();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    pool = new SftpSessionPool().maintenanceInterval(0);
+    Properties prop = new Properties();
+    prop.setProperty("cipher.profiles", "archive");
+    prop.setProperty("cipher.profile.archive.algorithm", "AES256CBC");
+    prop.setProperty("cipher.profile.archive.secretKey"
+        , Hex.encodeHexString("0123456789abcdef0123456789abcdef".getBytes()));
+    factory = new CipherStreamFactory(prop);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+  }
+
+  @Test
+  public void test上流のflushを無視してバッチ単位で送信すること() throws Exception {
+    byte[] first = new byte[600000];
+    new Random(1L).nextBytes(first);
+    byte[] second = "foo-bar".getBytes();
+
+    SftpOutputStream sink = SftpOutputStream.open(pool, server.endpoint(), "sink.zip.enc");
+    ZipOutputStream zip = factory.getZipOutputStream("archive", sink);
+    zip.putNextEntry(new ZipEntry("first.bin"));
+    for(int i = 0; i < first.length; i += 1024) {
+      zip.write(first, i, Math.min(1024, first.length - i));
+      zip.flush();
+    }
+    zip.closeEntry();
+    sink.sync();
+    zip.putNextEntry(new ZipEntry("second.txt"));
+    zip.write(second);
+    zip.close();
+
+    File remote = new File(server.getRoot(), "sink.zip.enc");
+    assertThat("書き込んだバイト数", sink.getBytesWritten(), is(remote.length()));
+    assertThat("バッチ単位で送信すること"
+        , sink.getBatches() <= remote.length() / SftpOutputStream.DEFAULT_BATCH_SIZE + 2, is(true));
+    assertThat("境界でのみ応答を待つこと", sink.getSyncs(), is(1L));
+    assertThat("転送速度", 0 < sink.getBytesPerSecond(), is(true));
+    assertThat("チャネルを返却すること", pool.getIdleCount(), is(1));
+    assertThat("貸し出し中のチャネルがないこと", pool.getActiveCount(), is(0));
+
+    ZipInputStream input = new ZipInputStream(factory.getDecryptInputStream("archive", new FileInputStream(remote)));
+    try {
+      assertThat("エントリ名", input.getNextEntry().getName(), is("first.bin"));
+      assertThat("展開したデータ", Arrays.equals(IOUtils.toByteArray(input), first), is(true));
+      assertThat("エントリ名", input.getNextEntry().getName(), is("second.txt"));
+      assertThat("展開したデータ", IOUtils.toByteArray(input), is(second));
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  @Test
+  public void test閉じた後は書き込めないこと() throws Exception {
+    SftpOutputStream sink = SftpOutputStream.open(pool, server.endpoint(), "closed.bin");
+    sink.write(new byte[] { 1, 2, 3 });
+    sink.close();
+    sink.close();
+    try {
+      sink.write(4);
+      throw new AssertionError("written after close.");
+    }
+    catch (IOException e) {
+      assertThat("書き込んだファイル", new File(server.getRoot(), "closed.bin").length(), is(3L));
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jcraft.jsch.JSchException;
+
+/**
+ * @author narita
+ *
+ */
+public class SftpSessionPoolTest {
+
+  private static SftpTestServer server;
+  private SftpSessionPool pool;
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    server = new SftpTestServer();
+  }
+
+  @AfterClass
+  public static void stopServer() throws Exception {
+    server.stop();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    pool = new SftpSessionPool().maxTotal(2).maxWait(200).maintenanceInterval(0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+  }
+
+  @Test
+  public void test返却したセッションを再利用すること() throws Exception {
+    int sessions = server.getSessionCount();
+    for(int i = 0; i < 3; i++) {
+      PooledSftpChannel sftp = pool.borrow(server.endpoint());
+      try {
+        sftp.getChannel().put(new ByteArrayInputStream(("foo-" + i).getBytes()), "file" + i + ".txt");
+      }
+      finally {
+        sftp.close();
+      }
+      sftp.close();
+    }
+    assertThat("鍵交換は1回のみであること", server.getSessionCount() - sessions, is(1));
+    assertThat("接続数", pool.getCreatedCount(), is(1L));
+    assertThat("貸し出し数", pool.getBorrowedCount(), is(3L));
+    assertThat("二重の返却は無視すること", pool.getReturnedCount(), is(3L));
+    assertThat("待機数", pool.getIdleCount(), is(1));
+    assertThat("貸し出し中の数", pool.getActiveCount(), is(0));
+    FileInputStream in = new FileInputStream(new File(server.getRoot(), "file2.txt"));
+    try {
+      assertThat("転送したファイル", new String(IOUtils.toByteArray(in)), is("foo-2"));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void test上限に達した場合は最大待機時間で例外とすること() throws Exception {
+    PooledSftpChannel first = pool.borrow(server.endpoint());
+    PooledSftpChannel second = pool.borrow(server.endpoint());
+    try {
+      pool.borrow(server.endpoint());
+      throw new AssertionError("borrowed over maxTotal.");
+    }
+    catch (JSchException e) {
+      assertThat("待機のタイムアウト数", pool.getWaitTimeouts(), is(1L));
+    }
+    second.invalidate();
+    PooledSftpChannel third = pool.borrow(server.endpoint());
+    assertThat("破棄した枠で新たに接続すること", pool.getCreatedCount(), is(3L));
+    first.close();
+    third.close();
+    assertThat("切断数", pool.getDestroyedCount(), is(1L));
+  }
+
+  @Test
+  public void test切断された接続は破棄して再接続すること() throws Exception {
+    pool.borrow(server.endpoint()).close();
+    server.disconnectAll();
+    Thread.sleep(200);
+    PooledSftpChannel sftp = pool.borrow(server.endpoint());
+    try {
+      assertThat("接続していること", sftp.isConnected(), is(true));
+      sftp.getChannel().stat(".");
+    }
+    finally {
+      sftp.close();
+    }
+    assertThat("検証の失敗数", pool.getHealthCheckFailures(), is(1L));
+    assertThat("再接続すること", pool.getCreatedCount(), is(2L));
+  }
+
+  @Test
+  public void test保守処理でアイドル時間を超えた接続を最小待機数まで破棄し補充すること() throws Exception {
+    pool.minIdle(1).idleTimeout(0);
+    PooledSftpChannel first = pool.borrow(server.endpoint());
+    PooledSftpChannel second = pool.borrow(server.endpoint());
+    first.close();
+    second.close();
+    pool.maintain();
+    assertThat("最小待機数を残すこと", pool.getIdleCount(), is(1));
+    assertThat("切断数", pool.getDestroyedCount(), is(1L));
+
+    server.disconnectAll();
+    Thread.sleep(200);
+    pool.maintain();
+    assertThat("応答しない接続を破棄して補充すること", pool.getIdleCount(), is(1));
+    assertThat("再接続すること", pool.getCreatedCount(), is(3L));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void test閉じたプールからは借り出せないこと() throws Exception {
+    pool.close();
+    pool.borrow(server.endpoint());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testknown_hostsが未設定の場合は接続しないこと() throws Exception {
+    pool.borrow(SftpEndpoint.builder().host("localhost").port(server.endpoint().getPort())
+        .user(SftpTestServer.USER).password(SftpTestServer.PASSWORD).build());
+  }
+
+  @Test
+  public void testknown_hostsに無いホスト鍵は拒否すること() throws Exception {
+    File knownHosts = File.createTempFile("known_hosts", "");
+    try {
+      pool.borrow(SftpEndpoint.builder().host("localhost").port(server.endpoint().getPort())
+          .user(SftpTestServer.USER).password(SftpTestServer.PASSWORD)
+          .knownHostsFile(knownHosts.getPath()).build());
+      fail("ホスト鍵を検証すること");
+    }
+    catch (JSchException e) {
+      assertThat("借り出し枠を解放すること", pool.getActiveCount(), is(0));
+    }
+    finally {
+      knownHosts.delete();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.sftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+
+/**
+ * テスト用のプロセス内 SFTP サーバ
+ *
+ * 一時ディレクトリをルートとし、{@link #USER} と {@link #PASSWORD} でのみ認証する。
+ *
+ * @author narita
+ *
+ */
+public class SftpTestServer {
+  public static final String USER     = "narita";
+  public static final String PASSWORD = "secret";
+
+  private final SshServer server = SshServer.setUpDefaultServer();
+  private final File root;
+  private volatile int sessions = 0;
+
+  public SftpTestServer() throws IOException {
+    root = File.createTempFile("sftp", "");
+    root.delete();
+    root.mkdir();
+    server.setHost("localhost");
+    server.setPort(0);
+    server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+    server.setPasswordAuthenticator(new PasswordAuthenticator() {
+      @Override
+      public boolean authenticate(final String username, final String password, final ServerSession session) {
+        return USER.equals(username) && PASSWORD.equals(password);
+      }
+    });
+    server.setSubsystemFactories(Collections.<NamedFactory<Command>>singletonList(new SftpSubsystemFactory()));
+    server.setFileSystemFactory(new VirtualFileSystemFactory(root.toPath()));
+    server.addSessionListener(new SessionListener() {
+      @Override
+      public void sessionCreated(final Session session) {
+        sessions++;
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * @return サーバへの接続先
+   */
+  public SftpEndpoint endpoint() {
+    return SftpEndpoint.builder().host("localhost").port(server.getPort()).user(USER).password(PASSWORD)
+        .insecureSkipHostKeyVerification(true).build();
+  }
+
+  /**
+   * @return サーバのルートディレクトリ
+   */
+  public File getRoot() {
+    return root;
+  }
+
+  /**
+   * @return 受け付けたセッション(鍵交換)の数
+   */
+  public int getSessionCount() {
+    return sessions;
+  }
+
+  /**
+   * 接続中のセッションをすべてサーバ側から切断する
+   */
+  public void disconnectAll() {
+    for(Session session : server.getActiveSessions()) session.close(true);
+  }
+
+  public void stop() throws IOException {
+    server.stop(true);
+    delete(root);
+  }
+
+  private static void delete(final File file) {
+    File[] children = file.listFiles();
+    if(null != children) for(File child : children) delete(child);
+    file.delete();
+  }
+}
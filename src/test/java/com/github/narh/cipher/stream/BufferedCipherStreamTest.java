@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.DirectBufferPool;
+
+/**
+ * @author narita
+ *
+ */
+public class BufferedCipherStreamTest {
+
+  private static final byte[] SECRET_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+  private static final byte[] IV = "fedcba9876543210".getBytes();
+
+  @Test
+  public void testバッファ長によらずJDKの暗号器と同じ結果となること() throws Exception {
+    byte[] plain = random(300000);
+    byte[] expected = jdk(Cipher.ENCRYPT_MODE, plain);
+    for(int bufferSize : new int[] { 1, 15, 16, 4096, 65536, 1024 * 1024 }) {
+      InputStream input = new CipherInputStreamBuilder()
+          .algorithm(CipherAlgorithm.AES256CBC)
+          .operation(CipherOperationMode.ENCRYPT)
+          .secretkey(SECRET_KEY)
+          .iv(IV)
+          .bufferSize(bufferSize)
+          .inputStream(new ByteArrayInputStream(plain))
+          .build();
+      ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+      IOUtils.copy(input, encrypted, 1000);
+      input.close();
+      assertThat("入力ストリームの暗号文が一致すること(" + bufferSize + ")"
+          , Arrays.equals(encrypted.toByteArray(), expected), is(true));
+
+      ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+      OutputStream output = new CipherOutputStreamBuilder()
+          .algorithm(CipherAlgorithm.AES256CBC)
+          .operation(CipherOperationMode.DECRYPT)
+          .secretkey(SECRET_KEY)
+          .iv(IV)
+          .bufferSize(bufferSize)
+          .outputStream(decrypted)
+          .build();
+      for(int i = 0; i < 100; i++) output.write(expected[i]);
+      output.write(expected, 100, expected.length - 100);
+      output.close();
+      assertThat("出力ストリームで平文に戻ること(" + bufferSize + ")"
+          , Arrays.equals(decrypted.toByteArray(), plain), is(true));
+    }
+  }
+
+  @Test
+  public void test利用可能バイト数とスキップが正しいこと() throws Exception {
+    byte[] plain = random(10000);
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES128CBC)
+        .operation(CipherOperationMode.DECRYPT)
+        .secretkey(Arrays.copyOf(SECRET_KEY, 16))
+        .iv(IV)
+        .bufferSize(4096)
+        .inputStream(new ByteArrayInputStream(jdk(Cipher.ENCRYPT_MODE, plain, 16)))
+        .build();
+    assertThat("読み込み前は 0 であること", input.available(), is(0));
+    assertThat("1バイト読み込むこと", input.read(), is(plain[0] & 0xff));
+    int available = input.available();
+    assertThat("復号化済みのバイト数を返すこと", 0 < available && available < 4096, is(true));
+    assertThat("バッファをまたいでスキップすること", input.skip(5000), is(5000L));
+    assertThat("スキップ後の位置から読み込むこと", input.read(), is(plain[5001] & 0xff));
+    assertThat("終端を超えるスキップは残りのみ", input.skip(100000), is((long) 10000 - 5002));
+    assertThat("終端であること", input.read(), is(-1));
+    assertThat("終端では 0 であること", input.available(), is(0));
+    input.close();
+  }
+
+  @Test
+  public void test閉じると暗号器をプールへ返却すること() throws Exception {
+    CipherPool pool = new CipherPool(4, 4);
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256CBC)
+        .operation(CipherOperationMode.ENCRYPT)
+        .secretkey(SECRET_KEY)
+        .iv(IV)
+        .cipherPool(pool)
+        .inputStream(new ByteArrayInputStream(new byte[10]))
+        .build();
+    assertThat("貸し出し中は待機していないこと", pool.getIdleCount(), is(0));
+    input.close();
+    input.close();
+    assertThat("1回だけ返却すること", pool.getIdleCount(), is(1));
+  }
+
+  @Test
+  public void test閉じるとバッファをプールへ返却すること() throws Exception {
+    DirectBufferPool bufferPool = new DirectBufferPool(DirectBufferPool.DEFAULT_SIZE_CLASSES, 1024 * 1024);
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256CBC)
+        .operation(CipherOperationMode.ENCRYPT)
+        .secretkey(SECRET_KEY)
+        .iv(IV)
+        .bufferPool(bufferPool)
+        .inputStream(new ByteArrayInputStream(new byte[10]))
+        .build();
+    OutputStream output = new CipherOutputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256CBC)
+        .operation(CipherOperationMode.ENCRYPT)
+        .secretkey(SECRET_KEY)
+        .iv(IV)
+        .bufferPool(bufferPool)
+        .outputStream(new ByteArrayOutputStream())
+        .build();
+    assertThat("入出力のバッファを借り出すこと", bufferPool.getLeasedCount(), is(4));
+    assertThat("既定のバッファ長は 64KiB の区分に収まること", bufferPool.getLeasedBytes(), is(4L * 64 * 1024));
+    IOUtils.copy(input, output);
+    input.close();
+    output.close();
+    assertThat("閉じると返却すること", bufferPool.getLeasedCount(), is(0));
+    assertThat("返却したバッファを待機させること", bufferPool.getIdleCount(), is(4));
+  }
+
+  @Test
+  public void test小さな書き込みをバッファ長まで集めてから出力すること() throws Exception {
+    byte[] plain = random(10000);
+    final int[] writes = new int[1];
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(final byte[] b, final int off, final int len) {
+        writes[0]++;
+        super.write(b, off, len);
+      }
+    };
+    OutputStream output = new CipherOutputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256CBC)
+        .operation(CipherOperationMode.ENCRYPT)
+        .secretkey(SECRET_KEY)
+        .iv(IV)
+        .bufferSize(4096)
+        .outputStream(encrypted)
+        .build();
+    for(int i = 0; i < 400; i++) output.write(plain, i * 10, 10);
+    assertThat("バッファ長に達するまで出力しないこと", writes[0], is(0));
+    for(int i = 4000; i < 5000; i++) output.write(plain[i]);
+    assertThat("バッファ長単位で出力すること", writes[0], is(5000 / (4096 - 32)));
+    output.flush();
+    assertThat("フラッシュで集めたデータを出力すること", encrypted.size(), is(4992));
+    output.write(plain, 5000, 5000);
+    output.close();
+    assertThat("JDKの暗号器と同じ結果となること"
+        , Arrays.equals(encrypted.toByteArray(), jdk(Cipher.ENCRYPT_MODE, plain)), is(true));
+  }
+
+  @Test(expected=IOException.class)
+  public void test復号化に失敗した場合は例外となること() throws Exception {
+    byte[] encrypted = jdk(Cipher.ENCRYPT_MODE, random(100));
+    OutputStream output = new CipherOutputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256CBC)
+        .operation(CipherOperationMode.DECRYPT)
+        .secretkey(SECRET_KEY)
+        .iv(IV)
+        .outputStream(new ByteArrayOutputStream())
+        .build();
+    output.write(encrypted, 0, encrypted.length - 1);
+    output.close();
+  }
+
+  private byte[] jdk(final int mode, final byte[] data) throws Exception {
+    return jdk(mode, data, 32);
+  }
+
+  private byte[] jdk(final int mode, final byte[] data, final int keyLength) throws Exception {
+    Cipher cipher = Cipher.getInstance(CipherAlgorithm.AES256CBC.transration);
+    cipher.init(mode, new SecretKeySpec(SECRET_KEY, 0, keyLength, "AES"), new IvParameterSpec(IV));
+    return cipher.doFinal(data);
+  }
+
+  private byte[] random(final int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
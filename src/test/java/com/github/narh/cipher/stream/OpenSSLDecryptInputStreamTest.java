@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.stream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.CipherPool;
+import com.github.narh.cipher.EvpBytesToKey;
+import com.github.narh.cipher.KeyDerivation;
+import com.github.narh.cipher.KeyDerivationService;
+
+/**
+ * @author narita
+ *
+ */
+public class OpenSSLDecryptInputStreamTest {
+
+  private static final byte[] PASSPHRASE = "12345678".getBytes();
+  private static final byte[] SALT = "saltsalt".getBytes();
+
+  @Test
+  public void testPBKDF2で暗号化されたOpenSSLファイルを復号化できること() throws Exception {
+    InputStream input = new OpenSSLDecryptInputStream(
+        getClass().getClassLoader().getResourceAsStream("OpenSSLPbkdf2File.enc"), CipherAlgorithm.AES256CBC
+        , CipherContext.builder()
+          .passphrase(PASSPHRASE)
+          .keyDerivation(KeyDerivation.PBKDF2)
+          .iterationCount(1000)
+          .build());
+    assertThat("平文に戻ること", new String(IOUtils.toByteArray(input))
+        , is("PBKDF2 derived key test data.\nopenssl enc -aes-256-cbc -pbkdf2 -iter 1000\n"));
+    input.close();
+  }
+
+  @Test
+  public void testヘッダとバッファ分のみを読み込みながら復号化すること() throws Exception {
+    byte[] plain = new byte[3 * 1024 * 1024 + 5];
+    new Random(1L).nextBytes(plain);
+    CountingInputStream source = new CountingInputStream(new ByteArrayInputStream(encrypt(plain)));
+    OpenSSLDecryptInputStream input = new OpenSSLDecryptInputStream(source, CipherAlgorithm.AES256CBC
+        , CipherContext.builder()
+          .passphrase(PASSPHRASE)
+          .keyDerivation(KeyDerivation.EVP_BYTES_TO_KEY)
+          .digestAlgorithm("MD5")
+          .build()
+        , 4096, CipherPool.getDefault(), KeyDerivationService.getDefault());
+    assertThat("生成時には読み込まないこと", source.count, is(0L));
+    assertThat("SALT は未取得であること", input.getSalt(), is(nullValue()));
+
+    assertThat("先頭バイト", (byte) input.read(), is(plain[0]));
+    assertThat("ヘッダとバッファ長分のみ読み込むこと", source.count <= 16 + 4096, is(true));
+    assertThat("ヘッダの SALT", Arrays.equals(input.getSalt(), SALT), is(true));
+
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    decrypted.write(plain[0]);
+    IOUtils.copy(input, decrypted, 1000);
+    input.close();
+    assertThat("平文に戻ること", Arrays.equals(decrypted.toByteArray(), plain), is(true));
+  }
+
+  @Test
+  public void testパスフレーズのみの場合はMD5で鍵データを導出すること() throws Exception {
+    byte[] plain = "openssl enc -aes-256-cbc -md md5\n".getBytes();
+    InputStream input = new OpenSSLDecryptInputStream(new ByteArrayInputStream(encrypt(plain))
+        , CipherAlgorithm.AES256CBC, PASSPHRASE);
+    assertThat("平文に戻ること", Arrays.equals(IOUtils.toByteArray(input), plain), is(true));
+    input.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testSaltedヘッダでない場合は例外となること() throws Exception {
+    InputStream input = new OpenSSLDecryptInputStream(new ByteArrayInputStream(new byte[64])
+        , CipherAlgorithm.AES256CBC, PASSPHRASE);
+    try {
+      input.read();
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  private static byte[] encrypt(final byte[] plain) throws Exception {
+    byte[] material = EvpBytesToKey.derive("MD5", 1, PASSPHRASE, SALT, 48);
+    Cipher cipher = Cipher.getInstance(CipherAlgorithm.AES256CBC.transration);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(material, 0, 32, "AES")
+        , new IvParameterSpec(material, 32, 16));
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    encrypted.write("Salted__".getBytes());
+    encrypted.write(SALT);
+    encrypted.write(cipher.doFinal(plain));
+    return encrypted.toByteArray();
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private long count = 0;
+
+    CountingInputStream(final InputStream inputStream) {
+      super(inputStream);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if(-1 != b) count++;
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int read = super.read(b, off, len);
+      if(0 < read) count += read;
+      return read;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.github.narh.cipher.stream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherContext;
+import com.github.narh.cipher.KeyDerivation;
+import com.github.narh.cipher.KeyDerivationService;
+import com.github.narh.cipher.engine.MappedFileCipherEngine;
+
+/**
+ * @author narita
+ *
+ */
+public class SeekableCbcDecryptChannelTest {
+
+  private static final byte[] PASSPHRASE = "12345678".getBytes();
+  private static final byte[] SALT = "saltsalt".getBytes();
+
+  private File source;
+  private File encrypted;
+
+  @Before
+  public void setUp() throws Exception {
+    source = File.createTempFile("seekable", ".plain");
+    encrypted = File.createTempFile("seekable", ".enc");
+  }
+
+  @After
+  public void tearDown() {
+    source.delete();
+    encrypted.delete();
+  }
+
+  @Test
+  public void test任意の位置と長さで復号化できること() throws Exception {
+    for(int length : new int[] { 0, 1, 15, 16, 17, 100003 }) {
+      byte[] plain = encrypt(length);
+      SeekableCbcDecryptChannel channel = new SeekableCbcDecryptChannel(encrypted, CipherAlgorithm.AES256CBC
+          , context(), 1024, KeyDerivationService.getDefault());
+      try {
+        assertThat("パディングを除いた平文長(" + length + ")", channel.size(), is((long) length));
+        Random random = new Random(length);
+        for(int i = 0; i < 50 && 0 < length; i++) {
+          int position = random.nextInt(length);
+          int size = Math.min(1 + random.nextInt(5000), length - position);
+          ByteBuffer buffer = ByteBuffer.allocate(size);
+          channel.position(position);
+          while(buffer.hasRemaining()) channel.read(buffer);
+          assertThat("平文の範囲が一致すること(" + position + ", " + size + ")"
+              , Arrays.equals(buffer.array(), Arrays.copyOfRange(plain, position, position + size)), is(true));
+          assertThat("読み込み位置を進めること", channel.position(), is((long) position + size));
+        }
+        channel.position(length);
+        assertThat("終端では -1 を返すこと", channel.read(ByteBuffer.allocate(16)), is(-1));
+      }
+      finally {
+        channel.close();
+      }
+      assertThat("閉じること", channel.isOpen(), is(false));
+    }
+  }
+
+  @Test
+  public void test末尾のみを読み込めること() throws Exception {
+    byte[] plain = encrypt(1024 * 1024 + 5);
+    SeekableCbcDecryptChannel channel = new SeekableCbcDecryptChannel(encrypted, CipherAlgorithm.AES256CBC
+        , context());
+    try {
+      ByteBuffer tail = ByteBuffer.allocate(100);
+      channel.position(channel.size() - 100);
+      assertThat("末尾の長さ", channel.read(tail), is(100));
+      assertThat("末尾が一致すること"
+          , Arrays.equals(tail.array(), Arrays.copyOfRange(plain, plain.length - 100, plain.length)), is(true));
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  @Test
+  public void testPBKDF2で暗号化されたOpenSSLファイルを読み込めること() throws Exception {
+    File file = new File(getClass().getClassLoader().getResource("OpenSSLPbkdf2File.enc").toURI());
+    SeekableCbcDecryptChannel channel = new SeekableCbcDecryptChannel(file, CipherAlgorithm.AES256CBC
+        , CipherContext.builder()
+          .passphrase(PASSPHRASE)
+          .keyDerivation(KeyDerivation.PBKDF2)
+          .iterationCount(1000)
+          .build());
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate((int) channel.size() - 30);
+      channel.position(30);
+      channel.read(buffer);
+      assertThat("途中から平文に戻ること", new String(buffer.array())
+          , is("PBKDF2 derived key test data.\nopenssl enc -aes-256-cbc -pbkdf2 -iter 1000\n".substring(30)));
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  private byte[] encrypt(final int length) throws Exception {
+    byte[] plain = new byte[length];
+    new Random(length).nextBytes(plain);
+    FileOutputStream out = new FileOutputStream(source);
+    out.write(plain);
+    out.close();
+    new MappedFileCipherEngine().encrypt(CipherAlgorithm.AES256CBC, CipherContext.builder()
+        .passphrase(PASSPHRASE)
+        .salt(SALT)
+        .keyDerivation(KeyDerivation.EVP_BYTES_TO_KEY)
+        .digestAlgorithm("MD5")
+        .build(), source, encrypted);
+    return plain;
+  }
+
+  private static CipherContext context() {
+    return CipherContext.builder()
+        .passphrase(PASSPHRASE)
+        .keyDerivation(KeyDerivation.EVP_BYTES_TO_KEY)
+        .digestAlgorithm("MD5")
+        .build();
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018, NARH https://github.com/NARH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * * Neither the name of the copyright holder nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.narh.cipher.stream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import com.github.narh.cipher.CipherAlgorithm;
+import com.github.narh.cipher.CipherOperationMode;
+import com.github.narh.cipher.SegmentedGcmCipher;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author narita
+ *
+ */
+@Slf4j
+public class SegmentedGcmStreamTest {
+
+  private static final byte[] SECRET_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+  private static final int SEGMENT_SIZE = 1024;
+
+  @Test
+  public void test暗号化と復号化で元データに戻ること() throws Exception {
+    for(int length : new int[] { 0, 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, SEGMENT_SIZE * 5 + 77 }) {
+      byte[] plain = random(length);
+      byte[] encrypted = encrypt(plain);
+      assertThat("暗号文長が一致すること(" + length + ")", (long) encrypted.length
+          , is(SegmentedGcmCipher.forEncryption(SECRET_KEY, SEGMENT_SIZE).getEncryptedLength(length)));
+
+      InputStream input = new CipherInputStreamBuilder()
+          .algorithm(CipherAlgorithm.AES256GCM)
+          .operation(CipherOperationMode.DECRYPT)
+          .secretkey(SECRET_KEY)
+          .inputStream(new ByteArrayInputStream(encrypted))
+          .build();
+      ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+      IOUtils.copy(input, decrypted);
+      IOUtils.closeQuietly(input);
+      assertThat("元データに戻ること(" + length + ")", Arrays.equals(decrypted.toByteArray(), plain), is(true));
+    }
+  }
+
+  @Test
+  public void test入力ストリームで暗号化し出力ストリームで復号化できること() throws Exception {
+    byte[] plain = random(SEGMENT_SIZE * 3 + 5);
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256GCM)
+        .operation(CipherOperationMode.ENCRYPT)
+        .secretkey(SECRET_KEY)
+        .segmentSize(SEGMENT_SIZE)
+        .inputStream(new ByteArrayInputStream(plain))
+        .build();
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    OutputStream output = new CipherOutputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256GCM)
+        .operation(CipherOperationMode.DECRYPT)
+        .secretkey(SECRET_KEY)
+        .outputStream(decrypted)
+        .build();
+    IOUtils.copy(input, output, 100);
+    output.close();
+    input.close();
+    assertThat("元データに戻ること", Arrays.equals(decrypted.toByteArray(), plain), is(true));
+  }
+
+  @Test
+  public void test改ざんされたセグメントを検出すること() throws Exception {
+    byte[] encrypted = encrypt(random(SEGMENT_SIZE * 4));
+    int corrupt = SegmentedGcmCipher.HEADER_LENGTH + (SEGMENT_SIZE + SegmentedGcmCipher.TAG_LENGTH) * 2 + 10;
+    encrypted[corrupt] ^= 0x01;
+
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256GCM)
+        .operation(CipherOperationMode.DECRYPT)
+        .secretkey(SECRET_KEY)
+        .inputStream(new ByteArrayInputStream(encrypted))
+        .build();
+    byte[] buffer = new byte[SEGMENT_SIZE];
+    long read = 0;
+    try {
+      int len;
+      while(-1 != (len = input.read(buffer))) read += len;
+      assertThat("例外が発生すること", false, is(true));
+    }
+    catch (IOException e) {
+      log.info(e.getMessage());
+      assertThat("改ざん前のセグメントまでは読み込めること", read, is((long) SEGMENT_SIZE * 2));
+      assertThat("セグメント番号が含まれること", e.getMessage(), containsString("segment 2"));
+    }
+  }
+
+  @Test(expected=IOException.class)
+  public void testセグメント境界での切り詰めを検出すること() throws Exception {
+    byte[] encrypted = encrypt(random(SEGMENT_SIZE * 3));
+    byte[] truncated = Arrays.copyOf(encrypted
+        , SegmentedGcmCipher.HEADER_LENGTH + (SEGMENT_SIZE + SegmentedGcmCipher.TAG_LENGTH) * 2);
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256GCM)
+        .operation(CipherOperationMode.DECRYPT)
+        .secretkey(SECRET_KEY)
+        .inputStream(new ByteArrayInputStream(truncated))
+        .build();
+    IOUtils.copy(input, new ByteArrayOutputStream());
+  }
+
+  @Test
+  public void test上限を超えるセグメント長のヘッダは例外とすること() throws Exception {
+    for(int segmentSize : new int[] { SegmentedGcmCipher.MAX_SEGMENT_SIZE + 1, Integer.MAX_VALUE }) {
+      byte[] crafted = encrypt(random(SEGMENT_SIZE));
+      ByteBuffer.wrap(crafted, SegmentedGcmCipher.MAGIC.length() + 1, 4).putInt(segmentSize);
+      try {
+        SegmentedGcmCipher.forDecryption(SECRET_KEY, crafted);
+        assertThat("例外が発生すること(" + segmentSize + ")", false, is(true));
+      }
+      catch (IllegalArgumentException e) {
+        log.info(e.getMessage());
+      }
+
+      InputStream input = new CipherInputStreamBuilder()
+          .algorithm(CipherAlgorithm.AES256GCM)
+          .operation(CipherOperationMode.DECRYPT)
+          .secretkey(SECRET_KEY)
+          .inputStream(new ByteArrayInputStream(crafted))
+          .build();
+      try {
+        input.read();
+        assertThat("読み込み時に例外が発生すること(" + segmentSize + ")", false, is(true));
+      }
+      catch (IOException e) {
+        assertThat("セグメント長の例外であること", e.getMessage(), containsString("segment size error"));
+      }
+      finally {
+        input.close();
+      }
+    }
+  }
+
+  @Test
+  public void testスキップと利用可能バイト数が正しいこと() throws Exception {
+    byte[] plain = random(SEGMENT_SIZE * 2 + 300);
+    InputStream input = new CipherInputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256GCM)
+        .operation(CipherOperationMode.DECRYPT)
+        .secretkey(SECRET_KEY)
+        .inputStream(new ByteArrayInputStream(encrypt(plain)))
+        .build();
+    assertThat("読み込み前は 0 であること", input.available(), is(0));
+    assertThat("セグメントをまたいでスキップすること", input.skip(SEGMENT_SIZE + 10), is((long) SEGMENT_SIZE + 10));
+    assertThat("セグメントの残りが利用可能であること", input.available(), is(SEGMENT_SIZE - 10));
+    assertThat("スキップ後の位置から読み込むこと", input.read(), is(plain[SEGMENT_SIZE + 10] & 0xff));
+    assertThat("終端を超えるスキップは残りのみ", input.skip(SEGMENT_SIZE * 10), is((long) SEGMENT_SIZE + 289));
+    assertThat("終端であること", input.read(), is(-1));
+    input.close();
+  }
+
+  private byte[] encrypt(final byte[] plain) throws Exception {
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    OutputStream output = new CipherOutputStreamBuilder()
+        .algorithm(CipherAlgorithm.AES256GCM)
+        .operation(CipherOperationMode.ENCRYPT)
+        .secretkey(SECRET_KEY)
+        .segmentSize(SEGMENT_SIZE)
+        .outputStream(encrypted)
+        .build();
+    output.write(plain);
+    output.close();
+    return encrypted.toByteArray();
+  }
+
+  private byte[] random(final int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}